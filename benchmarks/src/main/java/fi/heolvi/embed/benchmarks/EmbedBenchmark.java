@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//Embeds a new structure of white nodes: a chain, a binary tree or a
+//root with a wide list node, of size nodes each.
+//
+//The embedded structure is deleted after each invocation, outside
+//the measurement, so that the database does not grow during the
+//benchmark.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmbedBenchmark
+{
+  @Param({"sqlite", "heap"})
+  public String store;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  private Stores stores;
+  private Friend root;
+
+
+  @Setup(Level.Trial)
+  public void open()
+  throws Exception
+  {
+    stores = new Stores(store);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void close()
+  throws Exception
+  {
+    stores.close();
+  }
+
+
+  @TearDown(Level.Invocation)
+  public void deleteRoot()
+  throws Exception
+  {
+    stores.db.decrORC(root);
+  }
+
+
+  @Benchmark
+  public void embedWhiteChain()
+  throws Exception
+  {
+    root = Structures.chain("chain",size);
+    stores.db.embed(root);
+  }
+
+
+  @Benchmark
+  public void embedWhiteTree()
+  throws Exception
+  {
+    root = Structures.tree("tree",size);
+    stores.db.embed(root);
+  }
+
+
+  @Benchmark
+  public void embedWhiteWideList()
+  throws Exception
+  {
+    root = Structures.wideList("list",size);
+    stores.db.embed(root);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import fi.heolvi.embed.base.*;
+
+//The type of fixed node of the benchmarks, like Friend of the demo
+//demoComplexExampleFixedNodes.
+public class Friend
+{
+  public int id;
+
+  public String name;
+  public Integer age;
+
+  public Friend fr1;
+  public Friend fr2;
+  public Friend fr3;
+
+  public ListNode list;
+
+
+  //Default constructor required.
+  public Friend(){}
+
+
+  public Friend(String name, int age){this.name = name; this.age = age;}
+}
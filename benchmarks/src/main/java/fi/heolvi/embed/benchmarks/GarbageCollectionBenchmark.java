@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//Collects cyclic garbage. Before each invocation a structure of
+//size groups of nodes with cycles is embedded, outside the
+//measurement, and the invocation decrements the orc of its root,
+//so that the garbage collection deletes the whole structure.
+//
+//  collectFixedNodeCycles  Cycles of fixed nodes, as in the demo
+//                          demoComplexExampleFixedNodes.
+//  collectListNodeCycles   Cycles through list nodes, as in the
+//                          demo demoListNodesCircularStructure.
+//
+//See Structures for the groups.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GarbageCollectionBenchmark
+{
+  @Param({"sqlite", "heap"})
+  public String store;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  private Stores stores;
+  private Friend fixedRoot;
+  private Friend listRoot;
+
+
+  @Setup(Level.Trial)
+  public void open()
+  throws Exception
+  {
+    stores = new Stores(store);
+  }
+
+
+  @TearDown(Level.Trial)
+  public void close()
+  throws Exception
+  {
+    stores.close();
+  }
+
+
+  @Setup(Level.Invocation)
+  public void embedGarbage()
+  throws Exception
+  {
+    fixedRoot = Structures.fixedNodeCycles("fixed",size);
+    stores.db.embed(fixedRoot);
+    listRoot = Structures.listNodeCycles("lists",size);
+    stores.db.embed(listRoot);
+  }
+
+
+  //Removes the structure which was not collected by the invocation.
+  @TearDown(Level.Invocation)
+  public void deleteRemaining()
+  throws Exception
+  {
+    if (fixedRoot != null)
+      stores.db.decrORC(fixedRoot);
+    if (listRoot != null)
+      stores.db.decrORC(listRoot);
+  }
+
+
+  @Benchmark
+  public void collectFixedNodeCycles()
+  throws Exception
+  {
+    stores.db.decrORC(fixedRoot);
+    fixedRoot = null;
+  }
+
+
+  @Benchmark
+  public void collectListNodeCycles()
+  throws Exception
+  {
+    stores.db.decrORC(listRoot);
+    listRoot = null;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//Embeds again a structure of gray nodes loaded from the database,
+//after a small edit. The structure is a chain of size friends, each
+//with a list of LIST_SIZE friends.
+//
+//  reembedScalarEdit  Modifies the age of one friend of the chain.
+//  reembedListEdit    Replaces an item of the list of one friend
+//                     with a new friend, so the old item becomes
+//                     garbage.
+//
+//The edited friend moves along the chain from one invocation to
+//the next.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReembedBenchmark
+{
+  static final int LIST_SIZE = 4;
+
+  @Param({"sqlite", "heap"})
+  public String store;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  private Stores stores;
+  private Friend root;
+  private Friend[] friends;
+  private int next;
+
+
+  @Setup(Level.Trial)
+  public void open()
+  throws Exception
+  {
+    stores = new Stores(store);
+    stores.db.embed(Structures.chainWithLists("root",size,LIST_SIZE));
+
+    ArrayList<Object> objects =
+      stores.db.searchFixedNodesFromDB(Friend.class,"name","root");
+    root = (Friend) objects.get(0);
+    friends = new Friend[size];
+    int i = 0;
+    for (Friend p=root; p!=null; p=p.fr1)
+      friends[i++] = p;
+  }
+
+
+  @TearDown(Level.Trial)
+  public void close()
+  throws Exception
+  {
+    stores.close();
+  }
+
+
+  @Benchmark
+  public void reembedScalarEdit()
+  throws Exception
+  {
+    Friend p = friends[next++ % size];
+    p.age = p.age + 1;
+    stores.db.embed(root);
+  }
+
+
+  @Benchmark
+  public void reembedListEdit()
+  throws Exception
+  {
+    int k = next++;
+    Friend p = friends[k % size];
+    p.list.set(k % LIST_SIZE,new Friend("new child",k));
+    stores.db.embed(root);
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+//The main class of benchmarks.jar. It takes the command line
+//options of JMH, and runs the benchmarks with the GC profiler, which
+//reports also the allocated bytes per operation
+//(gc.alloc.rate.norm), unless other profilers are given with -prof.
+public class RunBenchmarks
+{
+  public static void main(String[] args)
+  throws Exception
+  {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList()
+        || cmd.shouldListWithParams() || cmd.shouldListProfilers()
+        || cmd.shouldListResultFormats())
+    {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+    if (cmd.getProfilers().isEmpty())
+      options.addProfiler(GCProfiler.class);
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//Searches a root node with searchFixedNodesFromDB, which loads the
+//whole structure reachable from it: a chain of size friends (a deep
+//structure), a binary tree or a root with a wide list node.
+//
+//The search scans the friends of all the structures for the name,
+//because the field is not indexed, so this scan is included in the
+//time.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark
+{
+  @Param({"sqlite", "heap"})
+  public String store;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  private Stores stores;
+
+
+  @Setup(Level.Trial)
+  public void open()
+  throws Exception
+  {
+    stores = new Stores(store);
+    stores.db.embed(Structures.chain("chain",size));
+    stores.db.embed(Structures.tree("tree",size));
+    stores.db.embed(Structures.wideList("list",size));
+  }
+
+
+  @TearDown(Level.Trial)
+  public void close()
+  throws Exception
+  {
+    stores.close();
+  }
+
+
+  @Benchmark
+  public ArrayList<Object> searchDeepChain()
+  throws Exception
+  {
+    return stores.db.searchFixedNodesFromDB(Friend.class,"name","chain");
+  }
+
+
+  @Benchmark
+  public ArrayList<Object> searchTree()
+  throws Exception
+  {
+    return stores.db.searchFixedNodesFromDB(Friend.class,"name","tree");
+  }
+
+
+  @Benchmark
+  public ArrayList<Object> searchWideList()
+  throws Exception
+  {
+    return stores.db.searchFixedNodesFromDB(Friend.class,"name","list");
+  }
+}
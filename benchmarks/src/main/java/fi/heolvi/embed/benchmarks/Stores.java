@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import java.io.*;
+import java.nio.file.*;
+
+import fi.heolvi.embed.base.*;
+
+//Opens the database of a benchmark on top of the node store given
+//with the parameter store of the benchmark:
+//
+//  sqlite   SQLiteNodeStore
+//  packed   SQLiteNodeStore with the list nodes in the packed format
+//  mapped   MappedNodeStore
+//  log      LogNodeStore
+//  heap     HeapNodeStore
+//
+//The files of the store are in a new temporary directory, which is
+//deleted when the database is closed with close.
+class Stores
+{
+  private File dir;
+  TestDB db;
+
+
+  Stores(String store)
+  throws Exception
+  {
+    dir = Files.createTempDirectory("embed-bench").toFile();
+    String name = new File(dir,"bench").getPath();
+    if (store.equals("sqlite"))
+      db = new TestDB(new SQLiteNodeStore(name+".db"));
+    else if (store.equals("packed"))
+    {
+      SQLiteNodeStore packedStore = new SQLiteNodeStore(name+".db");
+      packedStore.setPackedLists(true);
+      db = new TestDB(packedStore);
+    }
+    else if (store.equals("mapped"))
+      db = new TestDB(new MappedNodeStore(name));
+    else if (store.equals("log"))
+      db = new TestDB(new LogNodeStore(name));
+    else if (store.equals("heap"))
+      db = new TestDB(new HeapNodeStore());
+    else
+      throw new IllegalArgumentException("Unknown store: "+store);
+  }
+
+
+  void close()
+  throws Exception
+  {
+    db.close();
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    dir.delete();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.benchmarks;
+
+import fi.heolvi.embed.base.*;
+
+//The structures of run-time nodes used by the benchmarks. Each
+//method returns the root node of a new structure of about size
+//nodes. The root node is named with the given name, so that it can
+//be searched.
+class Structures
+{
+  //A chain root -> n1 -> n2 -> ... through the field fr1.
+  static Friend chain(String name, int size)
+  {
+    Friend root = new Friend(name,0);
+    Friend p = root;
+    for (int i=1; i<size; ++i)
+    {
+      p.fr1 = new Friend("chain"+i,i);
+      p = p.fr1;
+    }
+    return root;
+  }
+
+
+  //A complete binary tree through the fields fr1 and fr2.
+  static Friend tree(String name, int size)
+  {
+    Friend[] nodes = new Friend[size];
+    nodes[0] = new Friend(name,0);
+    for (int i=1; i<size; ++i)
+      nodes[i] = new Friend("tree"+i,i);
+    for (int i=0; 2*i+1<size; ++i)
+    {
+      nodes[i].fr1 = nodes[2*i+1];
+      if (2*i+2 < size)
+        nodes[i].fr2 = nodes[2*i+2];
+    }
+    return nodes[0];
+  }
+
+
+  //A root whose list node has size-2 friends.
+  static Friend wideList(String name, int size)
+  {
+    Friend root = new Friend(name,0);
+    root.list = new ListNode();
+    for (int i=2; i<size; ++i)
+      root.list.add(new Friend("item"+i,i));
+    return root;
+  }
+
+
+  //A chain like chain, where each friend of the chain has also a
+  //list of size friends. The re-embed benchmark modifies this
+  //structure.
+  static Friend chainWithLists(String name, int size, int listSize)
+  {
+    Friend root = chain(name,size);
+    for (Friend p=root; p!=null; p=p.fr1)
+    {
+      p.list = new ListNode();
+      for (int i=0; i<listSize; ++i)
+        p.list.add(new Friend("child"+i,i));
+    }
+    return root;
+  }
+
+
+  //Groups of fixed nodes with cycles, like the nodes J to Q and U
+  //to X of the demo demoComplexExampleFixedNodes. The root refers
+  //to the first group, and each group to the next one:
+  //
+  //  g0 -> g1 -> g2 -> g0     a cycle
+  //  g2 -> g3 -> g3           a node referring to itself
+  //  g1 -> next g0
+  //
+  //When the root is no more persistent, all the groups are cyclic
+  //garbage.
+  static Friend fixedNodeCycles(String name, int groups)
+  {
+    Friend root = new Friend(name,0);
+    Friend previous = root;
+    for (int k=0; k<groups; ++k)
+    {
+      Friend g0 = new Friend("g0",k);
+      Friend g1 = new Friend("g1",k);
+      Friend g2 = new Friend("g2",k);
+      Friend g3 = new Friend("g3",k);
+      g0.fr1 = g1;
+      g1.fr1 = g2;
+      g2.fr1 = g0;
+      g2.fr2 = g3;
+      g3.fr1 = g3;
+      if (previous == root)
+        root.fr1 = g0;
+      else
+        previous.fr2 = g0;
+      previous = g1;
+    }
+    return root;
+  }
+
+
+  //Groups of list nodes with cycles, like the structure of the
+  //demo demoListNodesCircularStructure. In each group
+  //
+  //  b -> list1
+  //  list1 -> list3, list2
+  //  list2 -> c, list2, "cat"
+  //  c -> list3
+  //  list3 -> d, null
+  //  d -> list3
+  //
+  //and d refers to b of the next group through the field fr1.
+  static Friend listNodeCycles(String name, int groups)
+  {
+    Friend root = new Friend(name,0);
+    Friend previous = root;
+    for (int k=0; k<groups; ++k)
+    {
+      Friend b = new Friend("B",k);
+      Friend c = new Friend("C",k);
+      Friend d = new Friend("D",k);
+      ListNode list1 = new ListNode();
+      ListNode list2 = new ListNode();
+      ListNode list3 = new ListNode();
+      b.list = list1;
+      list1.add(list3);
+      list1.add(list2);
+      list2.add(c);
+      list2.add(list2);
+      list2.add("cat");
+      c.list = list3;
+      list3.add(d);
+      list3.add(null);
+      d.list = list3;
+      previous.fr1 = b;
+      previous = d;
+    }
+    return root;
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks the export and the import of an SQLite object database (see
+//TestDB.exportDB and TestDB.importDB) with a round trip.
+//
+//The database has a root for each format of a list node: a ListNode
+//in the row format, in the packed format and in the chunked format,
+//and an IntListNode and a StringListNode. All the roots refer to
+//the friend X, which refers to the friend Y. Before the export the
+//irc of X is made wrong with SQL.
+//
+//The database is exported compressed and uncompressed, and each
+//file is imported to a new database. The imported database must
+//have the same nodes with the same ids, types, orcs and fields,
+//and the irc of X must have been computed again from the imported
+//nodes. Each list node must be in the same format as in the
+//exported database. The imported database must be in the WAL mode,
+//and a node embedded in it must get an id not used before.
+//
+//An exception is thrown if a check fails.
+public class CheckDump
+{
+  static final int CHUNKED_LIST_SIZE = 10;
+  static final int SEGMENT_SIZE = 4;
+  static final int WRONG_IRC = 100;
+
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  //A fixed node with the list nodes of primitive items.
+  public static class Primitives
+  {
+    public long id;
+    public String name;
+    public Friend x;
+    public IntListNode ints;
+    public StringListNode strings;
+  }
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    String dbName = new File(dir,"dump.db").getPath();
+    try
+    {
+      SQLiteNodeStore store = new SQLiteNodeStore(dbName);
+      TestDB db = new TestDB(store);
+      Friend x = new Friend("X",1);
+      x.fr1 = new Friend("Y",2);
+
+      Friend rows = createRoot("rows",x,3);
+      db.embed(rows);
+      store.setPackedLists(true);
+      Friend packed = createRoot("packed",x,3);
+      db.embed(packed);
+      store.setPackedLists(false);
+      store.setChunkedLists(SEGMENT_SIZE);
+      Friend chunked = createRoot("chunked",x,CHUNKED_LIST_SIZE);
+      db.embed(chunked);
+      Primitives primitives = createPrimitives(x);
+      db.embed(primitives);
+      db.close();
+
+      long[] rootIds =
+        {rows.id,packed.id,chunked.id,primitives.id};
+      ArrayList<String> nodes = describeNodes(dbName,rootIds);
+      ArrayList<String> lists = describeLists(dbName);
+      checkFormats(lists);
+
+      executeSQL(dbName,"UPDATE nodeInstances SET irc="+WRONG_IRC
+                 +" WHERE id="+x.id);
+      check(!describeNodes(dbName,rootIds).equals(nodes),
+            "the irc of X was not made wrong");
+
+      for (int i=0; i<2; ++i)
+      {
+        boolean compressed = i == 1;
+        String fileName = new File(dir,"dump"+i+".embd").getPath();
+        String importName = new File(dir,"import"+i+".db").getPath();
+        TestDB.exportDB(dbName,fileName,compressed);
+        TestDB.importDB(fileName,importName);
+        checkImport(importName,rootIds,nodes,lists,
+                    compressed ? "compressed" : "uncompressed");
+      }
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" dump checks failed");
+    }
+    System.out.println("All dump checks passed.");
+  }
+
+
+  static void checkImport(String dbName, long[] rootIds,
+                          ArrayList<String> nodes,
+                          ArrayList<String> lists, String kind)
+  throws Exception
+  {
+    ArrayList<String> imported = describeNodes(dbName,rootIds);
+    check(imported.equals(nodes),
+          "the "+kind+" import has other nodes: "+imported);
+    check(describeLists(dbName).equals(lists),
+          "the "+kind+" import has other formats of lists");
+    check(readJournalMode(dbName).equalsIgnoreCase("wal"),
+          "the "+kind+" import is not in the WAL mode");
+
+    long maxId = 0;
+    for (String node : nodes)
+      maxId = Math.max(maxId,Long.parseLong(node.split(" ")[0]));
+    TestDB db = new TestDB(dbName);
+    Friend f = new Friend("new",0);
+    db.embed(f);
+    db.close();
+    check(f.id > maxId,
+          "the "+kind+" import gave an old id "+f.id+" to a new node");
+  }
+
+
+  //A friend with a list of n items. The list refers to X at the
+  //first and the last position, and has scalars and a friend of
+  //its own.
+  static Friend createRoot(String name, Friend x, int n)
+  {
+    Friend root = new Friend(name,0);
+    root.fr1 = x;
+    root.list = new ListNode();
+    for (int i=0; i<n; ++i)
+    {
+      if (i == 0 || i == n-1)
+        root.list.add(x);
+      else if (i % 3 == 1)
+        root.list.add(new Friend("item",i));
+      else if (i % 3 == 2)
+        root.list.add("text"+i);
+      else
+        root.list.add(null);
+    }
+    return root;
+  }
+
+
+  static Primitives createPrimitives(Friend x)
+  {
+    Primitives p = new Primitives();
+    p.name = "primitives";
+    p.x = x;
+    p.ints = new IntListNode(new int[] {3,-1,0,Integer.MAX_VALUE});
+    p.strings = new StringListNode(new String[] {"a","",null,"ä"});
+    return p;
+  }
+
+
+  //Describes the nodes reachable from the roots, one line for each
+  //node in the order of the ids: the id, the type, the orc, the irc
+  //and the fields.
+  static ArrayList<String> describeNodes(String dbName, long[] rootIds)
+  throws Exception
+  {
+    SQLiteNodeStore store = new SQLiteNodeStore(dbName);
+    ArrayList<String> lines = new ArrayList<String>();
+    try
+    {
+      store.beginTransaction();
+      TreeSet<Long> ids = new TreeSet<Long>();
+      ArrayDeque<Long> stack = new ArrayDeque<Long>();
+      for (long id : rootIds)
+        stack.push(id);
+      while (!stack.isEmpty())
+      {
+        long id = stack.pop();
+        if (!ids.add(id))
+          continue;
+        LongList children = store.readIdsOfNonNullChildNodes(id);
+        for (int i=0; i<children.size(); ++i)
+          stack.push(children.get(i));
+      }
+
+      for (long id : ids)
+      {
+        StringBuilder line = new StringBuilder();
+        line.append(id+" "+store.readClassOfNode(id).getSimpleName()
+                    +" orc="+store.readORC(id)
+                    +" irc="+store.readIRC(id));
+        for (FieldT f : store.readFields(id,0))
+        {
+          Object name = f.field instanceof Field ?
+            ((Field) f.field).getName() : f.field;
+          line.append(" "+name+"="+f.value);
+        }
+        lines.add(line.toString());
+      }
+      store.rollbackTransaction();
+    }
+    finally
+    {
+      store.close();
+    }
+    return lines;
+  }
+
+
+  //Describes the format of each list node, one line for each list
+  //in the order of the ids: the id, the type, the format and the
+  //count of the rows of the items or of the segments.
+  static ArrayList<String> describeLists(String dbName)
+  throws Exception
+  {
+    ArrayList<String> lines = new ArrayList<String>();
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    try
+    {
+      Statement st = c.createStatement();
+      ResultSet rs = st.executeQuery
+        ("SELECT n.id,n.className,l.items IS NOT NULL,l.segmentSize,"
+         +" (SELECT COUNT(*) FROM listItems i WHERE i.parent=l.id),"
+         +" (SELECT COUNT(*) FROM listSegments s"
+         +" WHERE s.instanceId=n.id)"
+         +" FROM lists l JOIN nodeInstances n ON n.id=l.instanceId"
+         +" ORDER BY n.id");
+      while (rs.next())
+      {
+        String format;
+        if (rs.getObject(4) != null)
+          format = "chunked "+rs.getInt(6);
+        else if (rs.getBoolean(3))
+          format = "packed";
+        else
+          format = "rows "+rs.getInt(5);
+        String className = rs.getString(2);
+        lines.add(rs.getLong(1)+" "
+                  +className.substring(className.lastIndexOf('.')+1)
+                  +" "+format);
+      }
+      st.close();
+    }
+    finally
+    {
+      c.close();
+    }
+    return lines;
+  }
+
+
+  //The exported database must have a list node in each format.
+  static void checkFormats(ArrayList<String> lists)
+  {
+    String[] expected =
+      {"ListNode rows","ListNode packed","ListNode chunked",
+       "IntListNode packed","StringListNode packed"};
+    for (String format : expected)
+    {
+      boolean found = false;
+      for (String list : lists)
+        if (list.contains(" "+format))
+          found = true;
+      check(found,"the exported database has no "+format+" list");
+    }
+  }
+
+
+  static String readJournalMode(String dbName)
+  throws Exception
+  {
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    try
+    {
+      Statement st = c.createStatement();
+      ResultSet rs = st.executeQuery("PRAGMA journal_mode");
+      rs.next();
+      String mode = rs.getString(1);
+      st.close();
+      return mode;
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+
+
+  static void executeSQL(String dbName, String sql)
+  throws Exception
+  {
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    try
+    {
+      Statement st = c.createStatement();
+      st.execute(sql);
+      st.close();
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks TestDB.embedAll with each node store, by embedding the same
+//roots with embedAll in one database and with the embed method one
+//root at a time in another database. After each step the databases
+//must have the same friends with the same fields, orcs and ircs.
+//
+//1) White roots. The roots are P, Q, P, X and Y: P refers to Q, so
+//the white root Q is reachable from an earlier root, P is repeated,
+//and Y refers to X, so the white root X is reachable from a later
+//root. P, X and Y must become persistent roots (orc=1), but Q must
+//not, and the irc of Q must be 1.
+//
+//2) Gray roots. P is loaded and its reference to Q is replaced with
+//the new friend Z, and the roots P, Z and Z are embedded. Z must
+//not become a persistent root, and Q, which was not a persistent
+//root, must be collected as garbage.
+//
+//3) The orc of P is decremented, so that P and Z are collected.
+//
+//An exception is thrown if a check fails.
+public class CheckEmbedAll
+{
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    try
+    {
+      String[] kinds = {"sqlite","heap","mapped","log"};
+      for (String kind : kinds)
+      {
+        NodeStore allStore = openStore(kind,new File(dir,kind+"-all.db"));
+        NodeStore oneStore = openStore(kind,new File(dir,kind+"-one.db"));
+        TestDB all = new TestDB(allStore);
+        TestDB one = new TestDB(oneStore);
+        checkWhiteRoots(all,allStore,one,oneStore,kind);
+        checkGrayRoots(all,allStore,one,oneStore,kind);
+        all.decrORC(loadFriend(all,"P"));
+        one.decrORC(loadFriend(one,"P"));
+        compare(all,allStore,one,oneStore,kind+" after decrORC");
+        all.close();
+        one.close();
+      }
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" embedAll checks failed");
+    }
+    System.out.println("All embedAll checks passed.");
+  }
+
+
+  static NodeStore openStore(String kind, File file)
+  throws Exception
+  {
+    if (kind.equals("sqlite"))
+      return new SQLiteNodeStore(file.getPath());
+    if (kind.equals("heap"))
+      return new HeapNodeStore();
+    if (kind.equals("mapped"))
+      return new MappedNodeStore(file.getPath());
+    return new LogNodeStore(file.getPath());
+  }
+
+
+  static void checkWhiteRoots(TestDB all, NodeStore allStore,
+                              TestDB one, NodeStore oneStore,
+                              String kind)
+  throws Exception
+  {
+    all.embedAll(Arrays.asList(createWhiteRoots()));
+    for (Friend root : createWhiteRoots())
+      one.embed(root);
+    String s = compare(all,allStore,one,oneStore,kind+" white roots");
+
+    check(s.contains("P(1) orc=1 irc=0"),
+          kind+": P is not a persistent root: "+s);
+    check(s.contains("Q(2) orc=0 irc=1"),
+          kind+": Q reachable from P became a persistent root: "+s);
+    check(s.contains("X(3) orc=1 irc=1") && s.contains("Y(4) orc=1"),
+          kind+": X and Y are not persistent roots: "+s);
+  }
+
+
+  static void checkGrayRoots(TestDB all, NodeStore allStore,
+                             TestDB one, NodeStore oneStore,
+                             String kind)
+  throws Exception
+  {
+    Friend[][] roots = {createGrayRoots(all),createGrayRoots(one)};
+    all.embedAll(Arrays.asList(roots[0]));
+    for (Friend root : roots[1])
+      one.embed(root);
+    String s = compare(all,allStore,one,oneStore,kind+" gray roots");
+
+    check(s.contains("Z(5) orc=0 irc=1"),
+          kind+": Z reachable from P became a persistent root: "+s);
+    check(!s.contains("Q("),
+          kind+": Q was not collected: "+s);
+  }
+
+
+  //The roots P, Q, P, X and Y of the check 1).
+  static Friend[] createWhiteRoots()
+  {
+    Friend p = new Friend("P",1);
+    Friend q = new Friend("Q",2);
+    Friend x = new Friend("X",3);
+    Friend y = new Friend("Y",4);
+    p.fr1 = q;
+    y.fr1 = x;
+    return new Friend[] {p,q,p,x,y};
+  }
+
+
+  //The roots P, Z and Z of the check 2), with P loaded from the
+  //database.
+  static Friend[] createGrayRoots(TestDB db)
+  throws Exception
+  {
+    Friend p = loadFriend(db,"P");
+    Friend z = new Friend("Z",5);
+    p.fr1 = z;
+    return new Friend[] {p,z,z};
+  }
+
+
+  //Returns the description of the database embedded with embedAll,
+  //and adds a failure if the other database has another one.
+  static String compare(TestDB all, NodeStore allStore,
+                        TestDB one, NodeStore oneStore, String step)
+  throws Exception
+  {
+    String s = describe(all,allStore);
+    String t = describe(one,oneStore);
+    check(s.equals(t),
+          step+": embedAll gave "+s+", the embed method gave "+t);
+    return s;
+  }
+
+
+  //Describes all the friends in the order of their names: the name,
+  //the age, the orc, the irc and the names of the friends they
+  //refer to.
+  static String describe(TestDB db, NodeStore store)
+  throws Exception
+  {
+    StringBuilder sb = new StringBuilder();
+    Query<Friend> q = new Query<Friend>(Friend.class).orderBy("name",true);
+    for (Friend f : db.findFixedNodes(q))
+      sb.append(f.name+"("+f.age+")"
+                +" orc="+CheckEmbedSession.readCount(store,f.id,true)
+                +" irc="+CheckEmbedSession.readCount(store,f.id,false)
+                +" fr1="+(f.fr1 == null ? null : f.fr1.name)
+                +" fr2="+(f.fr2 == null ? null : f.fr2.name)+"; ");
+    return sb.toString();
+  }
+
+
+  static Friend loadFriend(TestDB db, String name)
+  throws Exception
+  {
+    return CheckEmbedSession.loadFriend(db,name);
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
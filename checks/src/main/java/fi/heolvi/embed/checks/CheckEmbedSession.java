@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks the embed session (see EmbedSession) with each node store.
+//
+//1) Forward references. The root R is added before the friend A it
+//refers to, and A before the friend B it refers to, so the ids of A
+//and B are pending until they are added. The friend O is added
+//without any node referring to it, so the garbage collection at
+//the end of the session removes it. The friend C is added before
+//the node referring to it, B, so it is kept. A is then added again
+//with a new age, as a gray node. The stored structure must be
+//R -> A -> B -> C with the new age of A, the irc of A must be 1 and
+//the orc of R must be 1.
+//
+//2) A gray re-add. R is loaded and its reference to A is removed,
+//and R is added to a new session. A, B and C must be collected as
+//garbage when the session is closed.
+//
+//3) A close with pending ids. The root S referring to the friend P
+//is added, but P is not. Closing the session must fail and leave
+//the database as it was, and the ids of S and P must be zero again.
+//A new session adding both must then succeed.
+//
+//An exception is thrown if a check fails.
+public class CheckEmbedSession
+{
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    try
+    {
+      String[] kinds = {"sqlite","heap","mapped","log"};
+      for (String kind : kinds)
+      {
+        NodeStore store = openStore(kind,dir);
+        TestDB db = new TestDB(store);
+        checkForwardReferences(db,store,kind);
+        checkGrayReAdd(db,kind);
+        checkPendingClose(db,kind);
+        db.close();
+      }
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" embed session checks failed");
+    }
+    System.out.println("All embed session checks passed.");
+  }
+
+
+  static NodeStore openStore(String kind, File dir)
+  throws Exception
+  {
+    String name = new File(dir,"session-"+kind+".db").getPath();
+    if (kind.equals("sqlite"))
+      return new SQLiteNodeStore(name);
+    if (kind.equals("heap"))
+      return new HeapNodeStore();
+    if (kind.equals("mapped"))
+      return new MappedNodeStore(name);
+    return new LogNodeStore(name);
+  }
+
+
+  static void checkForwardReferences(TestDB db, NodeStore store,
+                                     String kind)
+  throws Exception
+  {
+    Friend r = new Friend("R",0);
+    Friend a = new Friend("A",1);
+    Friend b = new Friend("B",2);
+    Friend c = new Friend("C",3);
+    Friend o = new Friend("O",4);
+    r.fr1 = a;
+    a.fr1 = b;
+
+    EmbedSession session = db.openEmbedSession();
+    session.addRoot(r);
+    check(session.getPendingCount() == 1,
+          kind+": A is not pending after R was added");
+    session.add(a);
+    session.add(o);
+    session.add(c);
+    b.fr1 = c;
+    session.add(b);
+    check(session.getPendingCount() == 0,
+          kind+": ids are pending after all the nodes were added");
+    a.age = 10;
+    session.add(a);
+    session.close();
+
+    r = loadFriend(db,"R");
+    check(r != null && r.fr1 != null && r.fr1.age == 10
+          && r.fr1.fr1 != null && r.fr1.fr1.name.equals("B")
+          && r.fr1.fr1.fr1 != null && r.fr1.fr1.fr1.name.equals("C"),
+          kind+": the structure R -> A -> B -> C was not stored");
+    check(loadFriend(db,"O") == null,
+          kind+": O which no node refers to was not collected");
+    check(readCount(store,a.id,false) == 1,
+          kind+": the irc of A is not 1");
+    check(readCount(store,r.id,true) == 1,
+          kind+": the orc of R is not 1");
+  }
+
+
+  static void checkGrayReAdd(TestDB db, String kind)
+  throws Exception
+  {
+    Friend r = loadFriend(db,"R");
+    r.fr1 = null;
+    EmbedSession session = db.openEmbedSession();
+    session.add(r);
+    session.close();
+
+    check(loadFriend(db,"R") != null && loadFriend(db,"R").fr1 == null,
+          kind+": the gray re-add of R was not stored");
+    check(loadFriend(db,"A") == null && loadFriend(db,"B") == null
+          && loadFriend(db,"C") == null,
+          kind+": A, B and C were not collected after the gray re-add");
+  }
+
+
+  static void checkPendingClose(TestDB db, String kind)
+  throws Exception
+  {
+    Friend s = new Friend("S",0);
+    Friend p = new Friend("P",1);
+    s.fr1 = p;
+
+    EmbedSession session = db.openEmbedSession();
+    session.addRoot(s);
+    try
+    {
+      session.close();
+      check(false,kind+": a session with a pending id was closed");
+    }
+    catch (IllegalStateException e)
+    {
+      //Expected.
+    }
+    check(loadFriend(db,"S") == null,
+          kind+": the aborted session changed the database");
+    check(s.id == 0 && p.id == 0,
+          kind+": the ids of the aborted session were not cleared");
+
+    session = db.openEmbedSession();
+    session.addRoot(s);
+    session.add(p);
+    session.close();
+    Friend loaded = loadFriend(db,"S");
+    check(loaded != null && loaded.fr1 != null
+          && loaded.fr1.name.equals("P"),
+          kind+": S -> P was not stored after the aborted session");
+  }
+
+
+  //Returns the friend with the name, or null.
+  static Friend loadFriend(TestDB db, String name)
+  throws Exception
+  {
+    ArrayList<Object> nodes =
+      db.searchFixedNodesFromDB(Friend.class,"name",name);
+    return nodes.isEmpty() ? null : (Friend) nodes.get(0);
+  }
+
+
+  //Returns the orc or the irc of the node.
+  static int readCount(NodeStore store, long id, boolean orc)
+  throws Exception
+  {
+    NodeStore reader = store.openReader();
+    reader.beginTransaction();
+    try
+    {
+      return orc ? reader.readORC(id) : reader.readIRC(id);
+    }
+    finally
+    {
+      reader.rollbackTransaction();
+      reader.close();
+    }
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
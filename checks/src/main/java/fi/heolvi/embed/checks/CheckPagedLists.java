@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks that a node loaded through a page of a PagedListNode is the
+//same Java object as the node loaded by the search which loaded the
+//list, and that the embed method rejects two different objects with
+//the same id.
+//
+//The structure: the root refers to the friend X with fr1, and its
+//list of LIST_SIZE friends has X at the position X_POSITION. X
+//refers to the friend Y with fr1. The list is loaded in pages of
+//PAGE_SIZE items, so X is reached through a page which is read after
+//the search.
+//
+//1) X is edited through the root (its age is set and Y is removed
+//from it), and the root is embedded again. The stored X must have
+//the edits, Y must have been collected as garbage, and the irc of
+//X must be 2 (the root and its list).
+//
+//2) The root is loaded twice, and the X of the second load is put in
+//the first root. Embedding the first root must fail, and leave the
+//database as it was.
+//
+//An exception is thrown if a check fails.
+public class CheckPagedLists
+{
+  static final int LIST_SIZE = 10;
+  static final int PAGE_SIZE = 2;
+  static final int X_POSITION = 5;
+
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    String dbName = new File(dir,"paged.db").getPath();
+    try
+    {
+      SQLiteNodeStore store = new SQLiteNodeStore(dbName);
+      TestDB db = new TestDB(store);
+      db.setPagedLists(PAGE_SIZE,2);
+      db.embed(createRoot());
+
+      checkEdit(db,store);
+      checkTwoObjects(db,store);
+
+      db.close();
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" paged list checks failed");
+    }
+    System.out.println("All paged list checks passed.");
+  }
+
+
+  static void checkEdit(TestDB db, NodeStore store)
+  throws Exception
+  {
+    Friend root = loadRoot(db);
+    Friend x = root.fr1;
+    check(root.list instanceof PagedListNode,
+          "the list is not loaded as a paged list node");
+    check(root.list.get(X_POSITION) == x,
+          "X is two objects, through fr1 and through the list");
+
+    x.age = 99;
+    x.fr1 = null;
+    db.embed(root);
+
+    root = loadRoot(db);
+    check(root.fr1.age == 99 && root.fr1.fr1 == null,
+          "the edit of X was lost");
+    check(((Friend) root.list.get(X_POSITION)).age == 99,
+          "the edit of X is not seen through the list");
+    check(db.searchFixedNodesFromDB(Friend.class,"name","Y").isEmpty(),
+          "Y was not collected");
+    check(readIRC(store,root.fr1.id) == 2,
+          "the irc of X is not 2");
+  }
+
+
+  static void checkTwoObjects(TestDB db, NodeStore store)
+  throws Exception
+  {
+    Friend root = loadRoot(db);
+    Friend other = loadRoot(db);
+    root.fr2 = other.fr1;
+    root.fr1.age = 100;
+    try
+    {
+      db.embed(root);
+      check(false,"two objects with the same id were embedded");
+    }
+    catch (IllegalStateException e)
+    {
+      //Expected.
+    }
+
+    root = loadRoot(db);
+    check(root.fr2 == null && root.fr1.age == 99,
+          "the failed embed changed the database");
+    check(readIRC(store,root.fr1.id) == 2,
+          "the failed embed changed the irc of X");
+  }
+
+
+  static Friend createRoot()
+  {
+    Friend root = new Friend("root",0);
+    Friend x = new Friend("X",1);
+    x.fr1 = new Friend("Y",2);
+    root.fr1 = x;
+    root.list = new ListNode();
+    for (int i=0; i<LIST_SIZE; ++i)
+      root.list.add(i == X_POSITION ? x : new Friend("item",i));
+    return root;
+  }
+
+
+  static Friend loadRoot(TestDB db)
+  throws Exception
+  {
+    return (Friend) db.searchFixedNodesFromDB
+      (Friend.class,"name","root").get(0);
+  }
+
+
+  static int readIRC(NodeStore store, long id)
+  throws Exception
+  {
+    NodeStore reader = store.openReader();
+    reader.beginTransaction();
+    try
+    {
+      return reader.readIRC(id);
+    }
+    finally
+    {
+      reader.rollbackTransaction();
+      reader.close();
+    }
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
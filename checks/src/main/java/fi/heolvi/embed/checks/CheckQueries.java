@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks the queries (see Query) by running the same queries in
+//SQLiteNodeStore, which compiles them to SQL, and in HeapNodeStore,
+//MappedNodeStore and LogNodeStore, which search the nodes
+//sequentially. The results of each store must be the same as the
+//results of SQLite, in the same order.
+//
+//The friends have names with the wildcard characters of GLOB (*, ?
+//and [), names outside ASCII, an empty name and null names, and
+//ages with ties and null ages. The queries have each operator, IN
+//without values, prefixes with the wildcard characters, ORDER BY
+//with ties in both directions, LIMIT, and a query with arguments
+//which is compiled once and run with several arguments.
+//
+//The SQL of the queries is recorded (see RecordingNodeStore), and
+//its query plans are checked like in CheckStatements: a query may
+//scan the table of its type, because the scalar fields are not
+//indexed, but no other table.
+//
+//An exception is thrown if a check fails.
+public class CheckQueries
+{
+  static final String[] NAMES =
+    {"a","ab","abc","a*","a*b","a?","a[","a[b]","[x","*","?","b",
+     "B","","a",null,"\u00e9","\ud834\udd1e","\uffff","\u00e4",
+     null,"ab"};
+
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    String dbName = new File(dir,"queries.db").getPath();
+    try
+    {
+      String[] kinds = {"sqlite","heap","mapped","log"};
+      TestDB[] dbs = new TestDB[kinds.length];
+      dbs[0] = new TestDB(new RecordingNodeStore(dbName));
+      dbs[1] = new TestDB(new HeapNodeStore());
+      dbs[2] = new TestDB
+        (new MappedNodeStore(new File(dir,"mapped.db").getPath()));
+      dbs[3] = new TestDB
+        (new LogNodeStore(new File(dir,"log.db").getPath()));
+
+      //The index of each friend by its id, in each store.
+      ArrayList<HashMap<Long,Integer>> indexes =
+        new ArrayList<HashMap<Long,Integer>>();
+      for (TestDB db : dbs)
+        indexes.add(embedFriends(db));
+
+      int mark = StatementLog.size();
+      ArrayList<Query<Friend>> queries = new ArrayList<Query<Friend>>();
+      ArrayList<Object[]> arguments = new ArrayList<Object[]>();
+      createQueries(queries,arguments);
+      for (int i=0; i<queries.size(); ++i)
+      {
+        Query<Friend> q = queries.get(i);
+        Object[] a = arguments.get(i);
+        String expected = null;
+        for (int k=0; k<dbs.length; ++k)
+        {
+          String ids = describe(dbs[k].findIdsOfFixedNodes(q,a),
+                                indexes.get(k));
+          String nodes = describe(dbs[k].findFixedNodes(q,a),
+                                  indexes.get(k));
+          check(ids.equals(nodes),
+                kinds[k]+": "+q+" "+Arrays.toString(a)
+                +" finds other ids than nodes");
+          if (k == 0)
+            expected = ids;
+          else
+            check(ids.equals(expected),
+                  kinds[k]+": "+q+" "+Arrays.toString(a)+" found "+ids
+                  +", SQLite found "+expected);
+        }
+      }
+
+      for (TestDB db : dbs)
+        db.close();
+
+      LinkedHashSet<String> statements =
+        new LinkedHashSet<String>(StatementLog.since(mark));
+      TreeSet<String> plans = new TreeSet<String>();
+      CheckStatements.checkQueryPlans(dbName,statements,plans);
+      failures.addAll(CheckStatements.failures);
+      System.out.println("Queries checked: "+queries.size()
+                         +", query plans checked: "+plans.size());
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" query checks failed");
+    }
+    System.out.println("All query checks passed.");
+  }
+
+
+  //Embeds a friend for each name, and returns the indexes of the
+  //friends in NAMES by their ids. Every fifth age is null, and the
+  //other ages are from -3 to 3, with ties.
+  static HashMap<Long,Integer> embedFriends(TestDB db)
+  throws Exception
+  {
+    HashMap<Long,Integer> indexes = new HashMap<Long,Integer>();
+    for (int i=0; i<NAMES.length; ++i)
+    {
+      Friend f = new Friend(NAMES[i],i*5%7-3);
+      if (i % 5 == 3)
+        f.age = null;
+      db.embed(f);
+      indexes.put((long) f.id,i);
+    }
+    return indexes;
+  }
+
+
+  static void createQueries(ArrayList<Query<Friend>> queries,
+                            ArrayList<Object[]> arguments)
+  {
+    Object[] none = new Object[0];
+    add(queries,arguments,query().equal("age",0),none);
+    add(queries,arguments,query().notEqual("age",0),none);
+    add(queries,arguments,query().lessThan("age",1),none);
+    add(queries,arguments,query().lessOrEqual("age",1),none);
+    add(queries,arguments,query().greaterThan("age",-1),none);
+    add(queries,arguments,query().greaterOrEqual("age",-1),none);
+    add(queries,arguments,query().between("age",-1,2),none);
+    add(queries,arguments,query().between("name","a","b"),none);
+    add(queries,arguments,query().in("age",1,-2,3),none);
+    add(queries,arguments,query().in("age"),none);
+    add(queries,arguments,query().in("name"),none);
+    add(queries,arguments,query().in("name","a","*",""),none);
+    add(queries,arguments,query().lessThan("name","b"),none);
+    add(queries,arguments,query().greaterThan("name","z"),none);
+    add(queries,arguments,query().notEqual("name","a"),none);
+
+    String[] prefixes = {"a","a*","a?","a[","a[b","[","*","?","",
+                         "\u00e9","\ud834\udd1e","B"};
+    for (String prefix : prefixes)
+      add(queries,arguments,query().startsWith("name",prefix),none);
+
+    add(queries,arguments,query().orderBy("name",true),none);
+    add(queries,arguments,query().orderBy("name",false),none);
+    add(queries,arguments,query().orderBy("age",true),none);
+    add(queries,arguments,query().orderBy("age",false),none);
+    add(queries,arguments,
+        query().equal("name","a").orderBy("age",false),none);
+    add(queries,arguments,
+        query().startsWith("name","a").orderBy("name",false),none);
+    add(queries,arguments,query().orderBy("age",false).limit(5),none);
+    add(queries,arguments,query().limit(0),none);
+    add(queries,arguments,query().limit(3),none);
+    add(queries,arguments,
+        query().greaterOrEqual("age",-2).lessOrEqual("age",2)
+        .orderBy("name",true).limit(4),none);
+
+    //A query with arguments, compiled once and run with each of the
+    //arguments.
+    Query<Friend> q = query()
+      .greaterOrEqual("age",Query.arg(0))
+      .startsWith("name",Query.arg(1))
+      .in("age",Query.arg(2),Query.arg(0),3)
+      .orderBy("age",false)
+      .limit(4);
+    Object[][] a =
+      {{-1,"a",2},{0,"a*",1},{2,"",-3},{-3,"[",0},{-3,"",-2}};
+    for (Object[] values : a)
+      add(queries,arguments,q,values);
+  }
+
+
+  static Query<Friend> query()
+  {
+    return new Query<Friend>(Friend.class);
+  }
+
+
+  static void add(ArrayList<Query<Friend>> queries,
+                  ArrayList<Object[]> arguments,
+                  Query<Friend> q, Object[] a)
+  {
+    queries.add(q);
+    arguments.add(a);
+  }
+
+
+  //Returns the indexes of the found friends in NAMES, in the order
+  //of the result.
+  static String describe(LongList ids, HashMap<Long,Integer> indexes)
+  {
+    ArrayList<Integer> found = new ArrayList<Integer>();
+    for (int i=0; i<ids.size(); ++i)
+      found.add(indexes.get(ids.get(i)));
+    return found.toString();
+  }
+  static String describe(ArrayList<Friend> friends,
+                         HashMap<Long,Integer> indexes)
+  {
+    ArrayList<Integer> found = new ArrayList<Integer>();
+    for (Friend f : friends)
+      found.add(indexes.get((long) f.id));
+    return found.toString();
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks the read views (see ReadView) with each node store.
+//
+//The database has the root R referring to the friend A, which
+//refers to the friend B, and R has a list of the friend C, A and a
+//string. The root S refers to the friend D and has a list of the
+//friend E. The state of a view is described by searching R and S
+//and by a query of all the friends ordered by name, through the
+//view.
+//
+//1) A pinned view. A view is opened, and the writer then commits
+//three times: it changes the age of A and adds the friend F to the
+//list of R, it embeds the new root N, and it decrements the orc of
+//S, so that S, D and E are collected as garbage. After each commit
+//the view must have the state described when it was opened, which
+//is the state of the writer before the commits. After the commits
+//the writer must have the new state.
+//
+//2) A new view. A view opened after the commits must have the new
+//state, also after the first view has been closed. A closed view
+//must throw an IllegalStateException.
+//
+//3) The same snapshots. The states of the heap, mapped and log
+//stores, before and after the commits, must be the same as the
+//states of SQLiteNodeStore, where the view is a read connection of
+//its own in the WAL mode.
+//
+//An exception is thrown if a check fails.
+public class CheckReadViews
+{
+  static ArrayList<String> failures = new ArrayList<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    try
+    {
+      String[] kinds = {"sqlite","heap","mapped","log"};
+      String[] expected = null;
+      for (String kind : kinds)
+      {
+        TestDB db = new TestDB(CheckEmbedSession.openStore(kind,dir));
+        String[] states = checkViews(db,kind);
+        db.close();
+        if (expected == null)
+          expected = states;
+        else
+        {
+          check(states[0].equals(expected[0]),
+                kind+": the state before the commits is "+states[0]
+                +", in SQLite "+expected[0]);
+          check(states[1].equals(expected[1]),
+                kind+": the state after the commits is "+states[1]
+                +", in SQLite "+expected[1]);
+        }
+      }
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+
+    if (!failures.isEmpty())
+    {
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" read view checks failed");
+    }
+    System.out.println("All read view checks passed.");
+  }
+
+
+  //Runs the checks 1) and 2). Returns the states before and after
+  //the commits.
+  static String[] checkViews(TestDB db, String kind)
+  throws Exception
+  {
+    for (Friend root : createRoots())
+      db.embed(root);
+    ReadView view = db.openReadView();
+    String before = describe(view);
+    check(before.equals(describe(db)),
+          kind+": the view does not have the state of the writer");
+
+    Friend r = (Friend) db.searchFixedNodesFromDB
+      (Friend.class,"name","R").get(0);
+    r.fr1.age = 10;
+    r.list.add(new Friend("F",6));
+    db.embed(r);
+    check(describe(view).equals(before),
+          kind+": the view changed when the writer changed R");
+
+    db.embed(new Friend("N",7));
+    check(describe(view).equals(before),
+          kind+": the view changed when the writer added N");
+
+    Friend s = (Friend) db.searchFixedNodesFromDB
+      (Friend.class,"name","S").get(0);
+    db.decrORC(s);
+    check(describe(view).equals(before),
+          kind+": the view changed when the writer collected S");
+
+    String after = describe(db);
+    check(!after.equals(before) && after.contains("N(7)")
+          && !after.contains("S(") && after.contains("A(10)"),
+          kind+": the writer does not have the new state: "+after);
+
+    ReadView newView = db.openReadView();
+    check(describe(newView).equals(after),
+          kind+": a new view does not have the new state");
+    view.close();
+    check(describe(newView).equals(after),
+          kind+": the new view changed when the first view was closed");
+    newView.close();
+    try
+    {
+      view.searchFixedNodesFromDB(Friend.class,"name","R");
+      check(false,kind+": a closed view was searched");
+    }
+    catch (IllegalStateException e)
+    {
+      //Expected.
+    }
+    return new String[] {before,after};
+  }
+
+
+  //The roots R and S, see above.
+  static Friend[] createRoots()
+  {
+    Friend r = new Friend("R",0);
+    Friend a = new Friend("A",1);
+    r.fr1 = a;
+    a.fr1 = new Friend("B",2);
+    r.list = new ListNode();
+    r.list.add(new Friend("C",3));
+    r.list.add(a);
+    r.list.add("text");
+
+    Friend s = new Friend("S",0);
+    s.fr1 = new Friend("D",4);
+    s.list = new ListNode();
+    s.list.add(new Friend("E",5));
+    return new Friend[] {r,s};
+  }
+
+
+  //Describes the state read through the view: the structures of R
+  //and S, and the names and ages of all the friends in the order of
+  //the names.
+  static String describe(ReadView view)
+  throws Exception
+  {
+    Query<Friend> all = new Query<Friend>(Friend.class)
+      .orderBy("name",true);
+    ArrayList<Friend> friends = view.findFixedNodes(all);
+    check(friends.size() == view.findIdsOfFixedNodes(all).size(),
+          "the view finds other ids than nodes");
+    return describe(view.searchFixedNodesFromDB(Friend.class,"name","R"),
+                    view.searchFixedNodesFromDB(Friend.class,"name","S"),
+                    friends);
+  }
+  static String describe(TestDB db)
+  throws Exception
+  {
+    Query<Friend> all = new Query<Friend>(Friend.class)
+      .orderBy("name",true);
+    return describe(db.searchFixedNodesFromDB(Friend.class,"name","R"),
+                    db.searchFixedNodesFromDB(Friend.class,"name","S"),
+                    db.findFixedNodes(all));
+  }
+  static String describe(ArrayList<Object> r, ArrayList<Object> s,
+                         ArrayList<Friend> friends)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Object root : r)
+      describe(root,sb);
+    sb.append(" ");
+    for (Object root : s)
+      describe(root,sb);
+    sb.append(" ");
+    for (Friend f : friends)
+      sb.append(f.name+"("+f.age+")");
+    return sb.toString();
+  }
+
+
+  static void describe(Object o, StringBuilder sb)
+  {
+    if (o instanceof Friend)
+    {
+      Friend f = (Friend) o;
+      sb.append(f.name+"("+f.age+")");
+      if (f.fr1 == null && f.fr2 == null && f.list == null)
+        return;
+      sb.append("{");
+      describe(f.fr1,sb);
+      sb.append(",");
+      describe(f.fr2,sb);
+      sb.append(",");
+      describe(f.list,sb);
+      sb.append("}");
+    }
+    else if (o instanceof ListNode)
+    {
+      ListNode list = (ListNode) o;
+      sb.append("[");
+      for (int i=0; i<list.size(); ++i)
+      {
+        if (i > 0)
+          sb.append(",");
+        describe(list.get(i),sb);
+      }
+      sb.append("]");
+    }
+    else
+      sb.append(o);
+  }
+
+
+  static void check(boolean condition, String failure)
+  {
+    if (!condition)
+      failures.add(failure);
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+import fi.heolvi.embed.base.*;
+
+//Checks the SQL statements executed by SQLiteNodeStore, so that
+//the two usual performance regressions fail the build: an extra
+//statement for each node, and a missing index.
+//
+//The workloads below are run on a temporary database, with the
+//list nodes in the row format and in the packed format, and their
+//statements are recorded (see StatementLog).
+//
+//  embed           Embeds a chain of friends, each having a list of
+//                  two friends, i.e. 4 white nodes for each friend
+//                  of the chain.
+//  search          Loads the chain with searchFixedNodesFromDB.
+//  re-embed        Modifies the age of one friend of the loaded
+//                  chain and embeds it again (all nodes are gray).
+//  gc              Decrements the orc of the chain, so that the
+//                  garbage collection removes all its nodes.
+//  gc cycles       The same with groups of friends with cycles.
+//
+//1) Statement budgets. Each workload is run with two sizes, and
+//the count of statements per node is the difference of the counts
+//divided by the difference of the node counts. It must not exceed
+//the budget of the workload, i.e. the count of statements must be
+//O(1) for each node, with the constant of the budget.
+//
+//2) Query plans. EXPLAIN QUERY PLAN is run for each distinct
+//SELECT, UPDATE and DELETE statement of the workloads. A plan
+//scanning a whole table (SCAN) fails the check. The search of the
+//root by a scalar field (see NodeStore.findFixedNode) is an
+//exception, because the scalar fields are not indexed. For the same
+//reason a query compiled from a Query (see CheckQueries) may scan
+//the table of its type, but no other table. The scans of the schema
+//(sqlite_master and the pragma functions, for example
+//pragma_table_info) are allowed too.
+//
+//The results are printed, and an exception is thrown if a check
+//fails.
+public class CheckStatements
+{
+  static final int SMALL = 20;
+  static final int LARGE = 60;
+
+  static final String[] WORKLOADS =
+    {"embed","search","re-embed","gc","gc cycles"};
+
+  //The budgets of statements per node of the workloads, with the
+  //list nodes in the row format and in the packed format. A budget
+  //is the count measured when it was set plus 0.5, so that one more
+  //statement per node fails the check. When a change reduces the
+  //statements, the budget should be lowered.
+  static final double[][] BUDGETS =
+    {{11.5, 8.75, 17.5, 20.25, 17.5},
+     {9.5, 7.5, 13.75, 16.75, 17.5}};
+
+  //The statement of NodeStore.findFixedNode.
+  static final Pattern FIND_FIXED_NODE = Pattern.compile
+    ("SELECT instanceId FROM \\w+ WHERE (\\w+)=\\?");
+
+  //A query compiled from a Query by SQLiteNodeStore.
+  static final Pattern QUERY = Pattern.compile
+    ("SELECT instanceId FROM (\\w+)(?: WHERE .*)? ORDER BY .*");
+
+  //A full scan of a table in the detail of a query plan.
+  static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)");
+
+  static LinkedHashSet<String> failures = new LinkedHashSet<String>();
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    System.out.println("Statements per node (budget):");
+    System.out.println(String.format("%-12s%16s%16s",
+                                     "workload","rows","packed"));
+    double[][] perNode = new double[2][];
+    TreeSet<String> plans = new TreeSet<String>();
+    for (int format=0; format<2; ++format)
+    {
+      boolean packed = format == 1;
+      int[] small = run(SMALL,packed,plans);
+      int[] large = run(LARGE,packed,plans);
+      perNode[format] = new double[WORKLOADS.length];
+      for (int w=0; w<WORKLOADS.length; ++w)
+      {
+        perNode[format][w] =
+          (double) (large[w]-small[w]) / (4*(LARGE-SMALL));
+        if (perNode[format][w] > BUDGETS[format][w])
+          failures.add(String.format
+            ("%s (%s): %.2f statements per node, budget %.2f",
+             WORKLOADS[w],packed ? "packed" : "rows",
+             perNode[format][w],BUDGETS[format][w]));
+      }
+    }
+    for (int w=0; w<WORKLOADS.length; ++w)
+      System.out.println(String.format
+        ("%-12s%16s%16s",WORKLOADS[w],
+         String.format("%.2f (%.2f)",perNode[0][w],BUDGETS[0][w]),
+         String.format("%.2f (%.2f)",perNode[1][w],BUDGETS[1][w])));
+
+    System.out.println();
+    System.out.println("Query plans checked: "+plans.size());
+    for (String plan : plans)
+      System.out.println("  "+plan);
+
+    if (!failures.isEmpty())
+    {
+      System.out.println();
+      for (String failure : failures)
+        System.out.println("FAILED: "+failure);
+      throw new Exception(failures.size()+" statement checks failed");
+    }
+    System.out.println();
+    System.out.println("All statement checks passed.");
+  }
+
+
+  //Runs the workloads with a chain of n friends. Returns the counts
+  //of statements of the workloads. The query plans of the
+  //statements are checked, and the distinct plans are added in
+  //plans.
+  static int[] run(int n, boolean packed, TreeSet<String> plans)
+  throws Exception
+  {
+    File dir = Files.createTempDirectory("embed-checks").toFile();
+    String dbName = new File(dir,"checks.db").getPath();
+    int[] counts = new int[WORKLOADS.length];
+    LinkedHashSet<String> statements = new LinkedHashSet<String>();
+    try
+    {
+      RecordingNodeStore store = new RecordingNodeStore(dbName);
+      store.setPackedLists(packed);
+      TestDB db = new TestDB(store);
+
+      int mark = StatementLog.size();
+      db.embed(createChain("root",n));
+      mark = count(counts,0,mark,statements);
+
+      ArrayList<Object> objects =
+        db.searchFixedNodesFromDB(Friend.class,"name","root");
+      mark = count(counts,1,mark,statements);
+
+      Friend root = (Friend) objects.get(0);
+      root.fr1.age = root.fr1.age + 1;
+      db.embed(root);
+      mark = count(counts,2,mark,statements);
+
+      db.decrORC(root);
+      mark = count(counts,3,mark,statements);
+
+      Friend cycles = createCycles("cycles",n);
+      db.embed(cycles);
+      mark = StatementLog.size();
+      db.decrORC(cycles);
+      count(counts,4,mark,statements);
+
+      db.close();
+      checkQueryPlans(dbName,statements,plans);
+    }
+    finally
+    {
+      File[] files = dir.listFiles();
+      if (files != null)
+        for (File f : files)
+          f.delete();
+      dir.delete();
+    }
+    return counts;
+  }
+
+
+  //Sets the count of the statements of the workload w, i.e. of the
+  //statements after the mark, and adds them in statements. Returns
+  //the mark of the next workload.
+  static int count(int[] counts, int w, int mark,
+                   LinkedHashSet<String> statements)
+  {
+    ArrayList<String> executed = StatementLog.since(mark);
+    counts[w] = executed.size();
+    statements.addAll(executed);
+    return mark + executed.size();
+  }
+
+
+  //Runs EXPLAIN QUERY PLAN for the statements, on the database
+  //after the workloads.
+  static void checkQueryPlans(String dbName,
+                              Collection<String> statements,
+                              TreeSet<String> plans)
+  throws Exception
+  {
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    try
+    {
+      for (String sql : statements)
+      {
+        if (!sql.startsWith("SELECT") && !sql.startsWith("UPDATE")
+            && !sql.startsWith("DELETE"))
+          continue;
+        Matcher find = FIND_FIXED_NODE.matcher(sql);
+        if (find.matches() && !find.group(1).equals("id"))
+          continue;
+        Matcher query = QUERY.matcher(sql);
+        String queriedTable = query.matches() ? query.group(1) : null;
+
+        Statement st = c.createStatement();
+        ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN "+sql);
+        while (rs.next())
+        {
+          String detail = rs.getString("detail");
+          plans.add(detail);
+          Matcher scan = SCAN.matcher(detail);
+          if (scan.find() && !scan.group(1).startsWith("sqlite_")
+              && !scan.group(1).startsWith("pragma_")
+              && !scan.group(1).equals(queriedTable))
+            failures.add("Table scan \""+detail+"\" in "+sql);
+        }
+        st.close();
+      }
+    }
+    finally
+    {
+      c.close();
+    }
+  }
+
+
+  //A chain of n friends, each having a list of two friends.
+  static Friend createChain(String name, int n)
+  {
+    Friend root = new Friend(name,0);
+    Friend p = root;
+    for (int i=0; i<n; ++i)
+    {
+      if (i > 0)
+      {
+        p.fr1 = new Friend("chain"+i,i);
+        p = p.fr1;
+      }
+      p.list = new ListNode();
+      p.list.add(new Friend("item",i));
+      p.list.add(new Friend("item",i));
+    }
+    return root;
+  }
+
+
+  //A root referring to n groups of 4 friends with cycles:
+  //g0 -> g1 -> g2 -> g0 and g2 -> g3 -> g3. The group refers to the
+  //next group with g1.fr2.
+  static Friend createCycles(String name, int n)
+  {
+    Friend root = new Friend(name,0);
+    Friend previous = root;
+    for (int k=0; k<n; ++k)
+    {
+      Friend g0 = new Friend("g0",k);
+      Friend g1 = new Friend("g1",k);
+      Friend g2 = new Friend("g2",k);
+      Friend g3 = new Friend("g3",k);
+      g0.fr1 = g1;
+      g1.fr1 = g2;
+      g2.fr1 = g0;
+      g2.fr2 = g3;
+      g3.fr1 = g3;
+      if (previous == root)
+        root.fr1 = g0;
+      else
+        previous.fr2 = g0;
+      previous = g1;
+    }
+    return root;
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import fi.heolvi.embed.base.*;
+
+//The type of fixed node of the workloads.
+public class Friend
+{
+  public int id;
+
+  public String name;
+  public Integer age;
+
+  public Friend fr1;
+  public Friend fr2;
+
+  public ListNode list;
+
+
+  //Default constructor required.
+  public Friend(){}
+
+
+  public Friend(String name, int age){this.name = name; this.age = age;}
+}
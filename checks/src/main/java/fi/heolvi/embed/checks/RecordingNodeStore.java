@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.sql.Connection;
+
+import fi.heolvi.embed.base.*;
+
+//SQLiteNodeStore whose connections, and the connections of its
+//readers, add their statements to the StatementLog.
+class RecordingNodeStore extends SQLiteNodeStore
+{
+  RecordingNodeStore(String dbName)
+  throws Exception
+  {
+    super(dbName);
+  }
+
+
+  protected Connection openConnection()
+  throws Exception
+  {
+    return StatementLog.wrap(super.openConnection());
+  }
+}
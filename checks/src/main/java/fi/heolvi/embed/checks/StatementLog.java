@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.checks;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+//The log of the SQL statements executed through the connections
+//of RecordingNodeStore. A connection is wrapped with a proxy which
+//adds the SQL of each statement prepared or executed to the log.
+//
+//The log is static, because the connection of the writer is opened
+//in the constructor of SQLiteNodeStore, before the fields of the
+//subclass are initialized.
+class StatementLog
+{
+  private static ArrayList<String> statements = new ArrayList<String>();
+
+
+  static synchronized void add(String sql)
+  {
+    statements.add(sql);
+  }
+
+
+  //Count of the statements in the log. This is used as a mark, see
+  //since.
+  static synchronized int size()
+  {
+    return statements.size();
+  }
+
+
+  //Returns the statements added after the log had mark statements.
+  static synchronized ArrayList<String> since(int mark)
+  {
+    return new ArrayList<String>(statements.subList(mark,statements.size()));
+  }
+
+
+  //Returns a connection which adds the statements to the log, and
+  //otherwise works like the connection c.
+  static Connection wrap(final Connection c)
+  {
+    return (Connection) Proxy.newProxyInstance
+      (Connection.class.getClassLoader(),
+       new Class<?>[] {Connection.class},
+       new InvocationHandler()
+    {
+      public Object invoke(Object proxy, Method m, Object[] args)
+      throws Throwable
+      {
+        if (m.getName().startsWith("prepare") && args != null
+            && args[0] instanceof String)
+          add((String) args[0]);
+        Object result = call(c,m,args);
+        if (m.getName().equals("createStatement"))
+          return wrapStatement((Statement) result);
+        return result;
+      }
+    });
+  }
+
+
+  //A statement created with createStatement gets the SQL when it is
+  //executed.
+  private static Statement wrapStatement(final Statement st)
+  {
+    return (Statement) Proxy.newProxyInstance
+      (Statement.class.getClassLoader(),
+       new Class<?>[] {Statement.class},
+       new InvocationHandler()
+    {
+      public Object invoke(Object proxy, Method m, Object[] args)
+      throws Throwable
+      {
+        if (m.getName().startsWith("execute") && args != null
+            && args[0] instanceof String)
+          add((String) args[0]);
+        return call(st,m,args);
+      }
+    });
+  }
+
+
+  private static Object call(Object target, Method m, Object[] args)
+  throws Throwable
+  {
+    try
+    {
+      return m.invoke(target,args);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Compares the memory use and the speed of the boxed collections
+//with the primitive long collections, which the garbage collection
+//of TestDB uses for its bookkeeping of node ids:
+//
+//  set    The ids of the seed garbage nodes and of the nodes
+//         referred to from outside Z: HashSet<Long> and LongSet.
+//  map    The counts of internal references in Z:
+//         HashMap<Long,Integer> and LongIntMap. Each id is counted
+//         twice.
+//  list   The ids of the child nodes of a node:
+//         ArrayList<Long> and LongList.
+//
+//The memory is the growth of the used heap in bytes per id, after
+//the collection has been built. The time is in milliseconds, and
+//includes building the collection and looking up each id once.
+//The count of ids can be given as an argument.
+public class Demo
+{
+  static int IDS = 1000000;
+
+  static long[] ids;
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    if (args.length > 0)
+      IDS = Integer.parseInt(args[0]);
+
+    //The ids of nodes in Z are scattered over the id space of the
+    //database.
+    ids = new long[IDS];
+    Random random = new Random(1);
+    for (int i=0; i<IDS; ++i)
+      ids[i] = 1 + (random.nextLong() >>> 2);
+
+    System.out.println("Ids: "+IDS);
+    System.out.println("collection                  bytes/id     time");
+
+    //Warm up, so that the times do not include the compilation.
+    for (int i=0; i<3; ++i)
+      for (int kind=0; kind<6; ++kind)
+        build(kind);
+
+    String[] names = {"HashSet<Long>","LongSet",
+                      "HashMap<Long,Integer>","LongIntMap",
+                      "ArrayList<Long>","LongList"};
+    for (int kind=0; kind<6; ++kind)
+    {
+      long before = usedMemory();
+      long start = System.nanoTime();
+      Object collection = build(kind);
+      long time = System.nanoTime() - start;
+      long after = usedMemory();
+      System.out.println(String.format("%-24s %11.1f %8d",
+        names[kind],(double) (after-before)/IDS,time/1000000));
+      //Keep the collection reachable until it has been measured.
+      if (collection == null)
+        System.out.println();
+    }
+  }
+
+
+  static Object build(int kind)
+  {
+    if (kind == 0)
+    {
+      HashSet<Long> set = new HashSet<Long>();
+      for (long id : ids)
+        set.add(id);
+      for (long id : ids)
+        if (!set.contains(id))
+          throw new RuntimeException("Lost id "+id);
+      return set;
+    }
+    if (kind == 1)
+    {
+      LongSet set = new LongSet();
+      for (long id : ids)
+        set.add(id);
+      for (long id : ids)
+        if (!set.contains(id))
+          throw new RuntimeException("Lost id "+id);
+      return set;
+    }
+    if (kind == 2)
+    {
+      HashMap<Long,Integer> map = new HashMap<Long,Integer>();
+      for (int i=0; i<2; ++i)
+        for (long id : ids)
+        {
+          Integer count = map.get(id);
+          map.put(id,count == null ? 1 : count+1);
+        }
+      for (long id : ids)
+        if (map.get(id) < 2)
+          throw new RuntimeException("Lost id "+id);
+      return map;
+    }
+    if (kind == 3)
+    {
+      LongIntMap map = new LongIntMap();
+      for (int i=0; i<2; ++i)
+        for (long id : ids)
+          map.add(id,1);
+      for (long id : ids)
+        if (map.get(id) < 2)
+          throw new RuntimeException("Lost id "+id);
+      return map;
+    }
+    if (kind == 4)
+    {
+      ArrayList<Long> list = new ArrayList<Long>();
+      for (long id : ids)
+        list.add(id);
+      long sum = 0;
+      for (int i=0; i<list.size(); ++i)
+        sum += list.get(i);
+      return sum == 0 ? null : list;
+    }
+    LongList list = new LongList();
+    for (long id : ids)
+      list.add(id);
+    long sum = 0;
+    for (int i=0; i<list.size(); ++i)
+      sum += list.get(i);
+    return sum == 0 ? null : list;
+  }
+
+
+  static long usedMemory()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0; i<3; ++i)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,5 @@
+cls
+del ..\..\..\..\*.class /s >NUL
+javac -classpath .;..\..\..\..\main\java  Demo.java
+java  -Xmx1g -classpath .;..\..\..\..\main\java  Demo
+del ..\..\..\..\*.class /s >NUL
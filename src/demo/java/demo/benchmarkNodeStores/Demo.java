@@ -0,0 +1,120 @@
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Compares the node stores with the same work load:
+//
+//  embed   Embeds ROOTS root nodes. Each root node has a chain of
+//          CHAIN_LENGTH friends, and a list of CHAIN_LENGTH
+//          children.
+//  search  Searches each root node by name and loads its structure.
+//  update  Modifies the age of each node in the chain, replaces a
+//          child, and embeds the root node again.
+//  delete  Decrements the orc of each root node, so that the garbage
+//          collection deletes all nodes.
+//
+//The times are in milliseconds. The count of root nodes can be
+//given as an argument.
+public class Demo
+{
+  static int ROOTS = 200;
+  static int CHAIN_LENGTH = 10;
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    if (args.length > 0)
+      ROOTS = Integer.parseInt(args[0]);
+
+    System.out.println("Roots: "+ROOTS+", nodes per root: "
+                       +(2+3*CHAIN_LENGTH));
+    System.out.println("store     embed    search   update   delete");
+
+    String dbName = "benchmark.db";
+    if (TestDB.existsDB(dbName))
+      TestDB.deleteDB(dbName);
+    run("SQLite",new TestDB(dbName));
+
+    //The same with the list nodes in the packed format.
+    TestDB.deleteDB(dbName);
+    SQLiteNodeStore packedStore = new SQLiteNodeStore(dbName);
+    packedStore.setPackedLists(true);
+    run("SQLite-P",new TestDB(packedStore));
+
+    String storeName = "benchmark";
+    MappedNodeStore.deleteStore(storeName);
+    run("Mapped",new TestDB(new MappedNodeStore(storeName)));
+
+    LogNodeStore.deleteStore(storeName);
+    run("Log",new TestDB(new LogNodeStore(storeName)));
+
+    run("Heap",new TestDB(new HeapNodeStore()));
+  }
+
+
+  static void run(String storeName, TestDB db)
+  throws Exception
+  {
+    long[] times = new long[4];
+
+    long start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+      db.embed(createStructure(i));
+    times[0] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+      search(db,i);
+    times[1] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+    {
+      Person root = search(db,i);
+      for (Person p=root.friend; p!=null; p=p.friend)
+        p.age = p.age + 1;
+      root.children.set(0,new Person("New child",0));
+      db.embed(root);
+    }
+    times[2] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+      db.decrORC(search(db,i));
+    times[3] = System.nanoTime() - start;
+
+    db.close();
+
+    System.out.printf("%-8s",storeName);
+    for (long t : times)
+      System.out.printf(" %8d",t/1000000);
+    System.out.println();
+  }
+
+
+  static Person createStructure(int i)
+  {
+    Person root = new Person("Root "+i,i);
+    root.children = new ListNode();
+    Person p = root;
+    for (int j=0; j<CHAIN_LENGTH; ++j)
+    {
+      p.friend = new Person("Friend "+i+"."+j,j);
+      p = p.friend;
+      Person child = new Person("Child "+i+"."+j,j);
+      child.friend = p;
+      root.children.add(child);
+      root.children.add("Note "+j);
+    }
+    return root;
+  }
+
+
+  static Person search(TestDB db, int i)
+  throws Exception
+  {
+    return (Person) db.searchFixedNodesFromDB
+      (Person.class,"name","Root "+i).get(0);
+  }
+}
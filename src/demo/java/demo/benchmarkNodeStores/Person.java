@@ -0,0 +1,20 @@
+import fi.heolvi.embed.base.*;
+
+public class Person
+{
+  public int id;
+
+  public String name;
+  public Integer age;
+
+  public Person friend;
+
+  public ListNode children;
+
+
+  //Default costructor required.
+  public Person(){}
+
+
+  public Person(String name, int age){this.name = name; this.age = age;}
+}
@@ -0,0 +1,18 @@
+import fi.heolvi.embed.base.*;
+
+//A type of fixed node with a generated mapper.
+@EmbedNode
+public class Book
+{
+  public int id;
+
+  public String name;
+  public Integer price;
+
+
+  //Default costructor required.
+  public Book(){}
+
+
+  public Book(String name, int price){this.name = name; this.price = price;}
+}
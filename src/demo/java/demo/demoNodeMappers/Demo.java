@@ -0,0 +1,95 @@
+import java.util.*;
+
+import fi.heolvi.embed.base.*;
+
+//Compares the node types with a generated mapper (Friend and Book)
+//with the same types without a mapper (PlainFriend and PlainBook).
+//The program is run once for each, in a new virtual machine, so
+//that the first embed includes the start-up work done for new
+//types: creating their tables and finding their fields.
+//
+//  first   The first embed: one friend with a book and a list.
+//  embed   Embeds ROOTS root nodes, each with a chain of
+//          CHAIN_LENGTH friends having a book.
+//  search  Searches each root node by name and loads its structure.
+//
+//The times are in milliseconds. The argument is "mapped" or
+//"plain".
+public class Demo
+{
+  static int ROOTS = 200;
+  static int CHAIN_LENGTH = 10;
+
+
+  public static void main(String[] args)
+  throws Exception
+  {
+    boolean mapped = args.length == 0 || args[0].equals("mapped");
+
+    String dbName = "mappers.db";
+    if (TestDB.existsDB(dbName))
+      TestDB.deleteDB(dbName);
+    TestDB db = new TestDB(dbName);
+
+    long[] times = new long[3];
+
+    long start = System.nanoTime();
+    db.embed(mapped ? createFriends(-1,1) : createPlainFriends(-1,1));
+    times[0] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+      db.embed(mapped ? createFriends(i,CHAIN_LENGTH)
+                      : createPlainFriends(i,CHAIN_LENGTH));
+    times[1] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i=0; i<ROOTS; ++i)
+      db.searchFixedNodesFromDB
+        (mapped ? Friend.class : PlainFriend.class,"name","Root "+i);
+    times[2] = System.nanoTime() - start;
+
+    System.out.printf("%-8s %8d %8d %8d%n",
+                      mapped ? "mapped" : "plain",
+                      times[0]/1000000,
+                      times[1]/1000000,
+                      times[2]/1000000);
+    db.close();
+  }
+
+
+  static Friend createFriends(int i, int length)
+  {
+    Friend root = new Friend("Root "+i,i);
+    root.list = new ListNode();
+    Friend p = root;
+    for (int j=0; j<length; ++j)
+    {
+      p.book = new Book("Book "+j,j);
+      p.rank = j;
+      p.list = root.list;
+      root.list.add(p.book);
+      if (j+1 < length)
+        p = p.fr1 = new Friend("Friend "+j,j);
+    }
+    return root;
+  }
+
+
+  static PlainFriend createPlainFriends(int i, int length)
+  {
+    PlainFriend root = new PlainFriend("Root "+i,i);
+    root.list = new ListNode();
+    PlainFriend p = root;
+    for (int j=0; j<length; ++j)
+    {
+      p.book = new PlainBook("Book "+j,j);
+      p.rank = j;
+      p.list = root.list;
+      root.list.add(p.book);
+      if (j+1 < length)
+        p = p.fr1 = new PlainFriend("Friend "+j,j);
+    }
+    return root;
+  }
+}
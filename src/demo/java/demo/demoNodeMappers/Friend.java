@@ -0,0 +1,25 @@
+import fi.heolvi.embed.base.*;
+
+//A type of fixed node with a generated mapper. When this file is
+//compiled with NodeMapperProcessor, the class Friend_NodeMapper is
+//generated for it.
+@EmbedNode
+public class Friend
+{
+  public int id;
+
+  public String name;
+  public Integer age;
+  public int rank;
+
+  public Book book;
+  public Friend fr1;
+  public ListNode list;
+
+
+  //Default costructor required.
+  public Friend(){}
+
+
+  public Friend(String name, int age){this.name = name; this.age = age;}
+}
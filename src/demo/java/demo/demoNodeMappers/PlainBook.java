@@ -0,0 +1,17 @@
+import fi.heolvi.embed.base.*;
+
+//The same type as Book without the annotation EmbedNode.
+public class PlainBook
+{
+  public int id;
+
+  public String name;
+  public Integer price;
+
+
+  //Default costructor required.
+  public PlainBook(){}
+
+
+  public PlainBook(String name, int price){this.name = name; this.price = price;}
+}
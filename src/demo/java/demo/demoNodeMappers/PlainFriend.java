@@ -0,0 +1,23 @@
+import fi.heolvi.embed.base.*;
+
+//The same type as Friend without the annotation EmbedNode. The
+//database accesses it with reflection.
+public class PlainFriend
+{
+  public int id;
+
+  public String name;
+  public Integer age;
+  public int rank;
+
+  public PlainBook book;
+  public PlainFriend fr1;
+  public ListNode list;
+
+
+  //Default costructor required.
+  public PlainFriend(){}
+
+
+  public PlainFriend(String name, int age){this.name = name; this.age = age;}
+}
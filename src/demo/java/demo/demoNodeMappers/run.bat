@@ -0,0 +1,8 @@
+cls
+del ..\..\..\..\*.class /s >NUL
+javac ..\..\..\..\main\java\fi\heolvi\embed\base\NodeMapperProcessor.java
+javac -classpath .;..\..\..\..\main\java -processorpath ..\..\..\..\main\java -processor fi.heolvi.embed.base.NodeMapperProcessor Demo.java Friend.java Book.java PlainFriend.java PlainBook.java
+java  -classpath .;..\..\..\..\main\java;..\..\..\..\..\sqlitedriver\sqlite-jdbc-3.8.11.2.jar  Demo plain
+java  -classpath .;..\..\..\..\main\java;..\..\..\..\..\sqlitedriver\sqlite-jdbc-3.8.11.2.jar  Demo mapped
+del ..\..\..\..\*.class /s >NUL
+del *_NodeMapper.java
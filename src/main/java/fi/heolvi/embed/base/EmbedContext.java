@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.*;
+
+//This is the per-call state of the update and the garbage
+//collection phases of the embed method, and of the method decrORC.
+//A new context is created for each call. Therefore, the state of
+//one call is never seen by another call, and one TestDB object can
+//be shared by many threads.
+class EmbedContext
+{
+  //The node store used by the call. This is always the writing
+  //instance of the node store of the database. The caller holds the
+  //writer lock of the database while using the context.
+  NodeStore store;
+
+  //The embed method is called for a modified object structure s
+  //(with its root node) in the run-time memory. In the beginning
+  //of the embed method non-null nodes in s are separated in two
+  //groups, white nodes and gray nodes. A non-null node p in s is
+  //a white node if its id is zero, i.e. if p does not yet have a
+  //corresponding node in the the database. Otherwise, if id>0, p
+  //already has a corresponding node in the database with that id
+  //and p is a gray node. White nodes are collected in the list
+  //whiteNodes and gray nodes are collected in the list GrayNodes.
+  ArrayList<Object> whiteNodes;
+  ArrayList<Object> grayNodes;
+
+  //The nodes which have got their ids in the call, i.e. the white
+  //nodes. Their ids are cleared if the transaction is rolled back,
+  //see TestDB.rollback.
+  ArrayList<Object> allocatedNodes = new ArrayList<Object>();
+
+  //The nodes in the lists whiteNodes and grayNodes, compared by
+  //identity. This is the set of visited nodes when the nodes are
+  //collected.
+  Set<Object> collectedNodes;
+
+  //The gray nodes by their ids. One id must not have two different
+  //objects, see TestDB.collectWhiteAndGrayNodes.
+  LongObjectMap<Object> grayNodesById;
+
+  //As a side effect, the update phase of the embed method
+  //collects ids of potential garbage nodes, it finds, in the
+  //set seedGarbageIds. When the update phase has been finished,
+  //all possible garbage nodes belong to set or graph Z
+  //consisting of the nodes reachable from the nodes having their
+  //ids in seedGarbageIds. It is possible that only some, or none
+  //of the nodes in Z are garbage. Z may also be empty.
+  LongSet seedGarbageIds;
+
+  //The map countOfInternalReferencesInZ is used to count the
+  //internal references inside Z. The key is id of a node and the
+  //value is count of internal references to that node in Z.
+  LongIntMap countOfInternalReferencesInZ;
+
+  //In Z, nodes which are referred to from outside the Z,
+  //cannot be garbage. Ids of those nodes are collected in the
+  //set idsOfNodesRefOutsideZ.
+  LongSet idsOfNodesRefOutsideZ;
+
+  //The paged list nodes whose dirty pages have been written by the
+  //call. Their pages are marked clean when the transaction has been
+  //committed.
+  ArrayList<PagedListNode> writtenPagedLists =
+    new ArrayList<PagedListNode>();
+
+  //The listener of the metrics of the call, null if the metrics
+  //are not enabled.
+  MetricsListener metrics;
+
+  EmbedContext(NodeStore store)
+  {
+    this.store = store;
+    this.seedGarbageIds = new LongSet();
+  }
+}
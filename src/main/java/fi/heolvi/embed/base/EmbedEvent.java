@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import jdk.jfr.*;
+
+//The events of the JDK Flight Recorder emitted by the database:
+//
+//  fi.heolvi.embed.Embed              EmbedEvent
+//  fi.heolvi.embed.GarbageCollection  GarbageCollectionEvent
+//  fi.heolvi.embed.Load               LoadEvent
+//  fi.heolvi.embed.SqlStatement       SqlStatementEvent
+//
+//The events have the stack trace of the thread, so a recording
+//shows which calls of the client program cause long embeds, walks
+//of Z and loads. They are recorded like the events of the JDK, for
+//example with
+//
+//  java -XX:StartFlightRecording:filename=embed.jfr ...
+//  jfr print --events fi.heolvi.embed.Embed embed.jfr
+//
+//and when no recording is running, they cost almost nothing.
+//
+//This event is the update phase of the embed method: collecting
+//the white and the gray nodes, handling the internal reference
+//counts and copying the nodes to the database. With embedAll and
+//embedWriteBehind the phase is for many root nodes, and the root
+//id is the id of the first of them.
+@Name("fi.heolvi.embed.Embed")
+@Label("Embed")
+@Category({"Object Database"})
+@Description("The update phase of the embed method")
+@StackTrace(true)
+class EmbedEvent extends Event
+{
+  @Label("Root Id")
+  long rootId;
+
+  @Label("Root Count")
+  int rootCount;
+
+  @Label("White Nodes")
+  int whiteNodes;
+
+  @Label("Gray Nodes")
+  int grayNodes;
+}
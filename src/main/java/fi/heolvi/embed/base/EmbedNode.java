@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.lang.annotation.*;
+
+//Marks a Java type of fixed node for NodeMapperProcessor. When the
+//type is compiled with the processor, a NodeMapper is generated for
+//it, and the database uses the mapper instead of reflection, see
+//NodeMapper.
+//
+//  @EmbedNode
+//  public class Friend
+//  {
+//    public long id;   //or int id
+//    public String name;
+//    ...
+//  }
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface EmbedNode
+{
+}
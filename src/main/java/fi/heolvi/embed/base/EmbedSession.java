@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+//An embed session embeds an object structure which is given to the
+//database node by node, instead of giving its root node to the
+//embed method. It is meant for importers generating structures
+//larger than the heap: a node can be dropped from the run-time
+//memory as soon as it has been added to the session.
+//
+//  EmbedSession session = db.openEmbedSession();
+//  session.addRoot(s);
+//  for (...)
+//    session.add(p);
+//  session.close();
+//
+//Each node is written to the database when it is added, in a flat
+//way like in the update phase of the embed method. A white node
+//referred to by an added node gets its id at once, and its id is
+//kept pending in the node store until the node itself is added
+//(see NodeStore.addPendingId). Therefore every white node
+//reachable from an added node must be added before the session
+//is closed. The changes of the internal reference counts are
+//written to the nodes in the database as they arise.
+//
+//The session is one transaction, so the other threads see the
+//structure only when the session has been closed, and the
+//garbage collection is run once at the end. The session holds the
+//writer lock of the database from openEmbedSession to close or
+//abort, so it must be used by the thread which opened it, and the
+//other write operations of the database wait until it has ended.
+public class EmbedSession implements AutoCloseable
+{
+  private TestDB db;
+
+  //The state of the session, null when the session has ended.
+  EmbedContext ctx;
+
+
+  EmbedSession(TestDB db, EmbedContext ctx)
+  {
+    this.db = db;
+    this.ctx = ctx;
+  }
+
+
+  //Adds the node p to the session. If p is white, or if it has got
+  //its id when a node referring to it was added, p is written to
+  //the database as a new node. Otherwise p is gray, and the node p'
+  //is updated with p. A node can be added several times; it is
+  //then gray the next times.
+  //
+  //If the method fails, the session is aborted.
+  public void add(Object p)
+  throws Exception
+  {
+    db.addToEmbedSession(this,p,false);
+  }
+
+
+  //Adds the node s to the session like the method add. If s is
+  //written as a new node, s' becomes a persistent root node like
+  //the root node of the embed method (orc=1).
+  public void addRoot(Object s)
+  throws Exception
+  {
+    db.addToEmbedSession(this,s,true);
+  }
+
+
+  //Returns the count of the nodes which have got their ids but
+  //have not been added yet.
+  public int getPendingCount()
+  throws Exception
+  {
+    return db.countPendingInEmbedSession(this);
+  }
+
+
+  //Ends the session. The garbage collection is run for the nodes
+  //which may have become garbage, and the transaction is
+  //committed. If some pending nodes have not been added, or if the
+  //method fails, the session is aborted and an exception is
+  //thrown. Closing an ended session does nothing.
+  //
+  //Only the checked exceptions of the node stores, SQLException
+  //and IOException, are declared, so that the session can be used
+  //in a try-with-resources statement without the warning of
+  //-Xlint:try about InterruptedException. Other checked exceptions
+  //are wrapped in a RuntimeException.
+  public void close()
+  throws SQLException, IOException
+  {
+    try
+    {
+      db.closeEmbedSession(this,true);
+    }
+    catch (RuntimeException e)
+    {
+      throw e;
+    }
+    catch (SQLException e)
+    {
+      throw e;
+    }
+    catch (IOException e)
+    {
+      throw e;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  //Ends the session and rolls back its transaction. The ids
+  //assigned to the white nodes in the session are set back to
+  //zero, like when the embed method fails, so the nodes can be
+  //embedded again.
+  public void abort()
+  throws Exception
+  {
+    db.closeEmbedSession(this,false);
+  }
+}
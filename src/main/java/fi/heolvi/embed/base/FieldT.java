@@ -10,24 +10,26 @@ import java.lang.reflect.*;
 //This is an abstraction for a field of a node.
 //Used for fixed nodes and list nodes.
 //Used for run-time nodes and nodes in the object database.
-class FieldT
+//The class is public, because the fields of the nodes are
+//exchanged in this structure with a NodeStore.
+public class FieldT
 {
-  int typeCode;  //Typecode of a field. Defines type of data in
-                 //a field.
-  Object field;  //For a fixed node java.lang.reflect.Field.
-                 //For a list node position (integer 0,1,..) in
-                 //a list.
+  public int typeCode;  //Typecode of a field. Defines type of data
+                        //in a field.
+  public Object field;  //For a fixed node java.lang.reflect.Field.
+                        //For a list node position (integer 0,1,..)
+                        //in a list.
 
-  Object value;  //Value in a field.
+  public Object value;  //Value in a field.
 
-  FieldT(Field f, int typeCode, Object value)
+  public FieldT(Field f, int typeCode, Object value)
   {
     this.typeCode = typeCode;
     this.field = f;
     this.value = value;
   }
 
-  FieldT(Integer pos, int typeCode, Object value)
+  public FieldT(Integer pos, int typeCode, Object value)
   {
     this.typeCode = typeCode;
     this.field = pos;
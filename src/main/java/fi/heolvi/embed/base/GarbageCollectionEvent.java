@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import jdk.jfr.*;
+
+//The garbage collection phase of the embed method or of decrORC.
+//See EmbedEvent.
+@Name("fi.heolvi.embed.GarbageCollection")
+@Label("Garbage Collection")
+@Category({"Object Database"})
+@Description("Walking the graph Z and removing the garbage nodes")
+@StackTrace(true)
+class GarbageCollectionEvent extends Event
+{
+  @Label("Seed Garbage Ids")
+  int seedCount;
+
+  @Label("Size of Z")
+  int sizeOfZ;
+
+  @Label("Garbage Nodes")
+  int garbageCount;
+}
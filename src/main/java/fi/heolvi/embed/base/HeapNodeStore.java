@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+//This is a node store which keeps the nodes in the heap of the
+//Java virtual machine. The content of the store is lost when the
+//store is closed. The store is useful for testing and for caches,
+//where the overhead of SQL is not wanted.
+//
+//The nodes are kept in a map from the node id to the node. Each
+//node is a HeapNode record holding the type, the reference counts
+//and the values of the fields of the node.
+//
+//The readers of the store (see openReader) share the data of the
+//store. The records of the nodes are not modified after they have
+//been committed: a write transaction copies the record of a node
+//when it modifies the node the first time, and keeps the original
+//record for a rollback. A read transaction sees the version of the
+//data committed when it began (see Snapshots): the original
+//records replaced by the commits after that version are kept as
+//undo records while the read transaction is open, and the
+//original records of the current write transaction hide its
+//changes. So the readers and the writer do not wait for each
+//other's transactions. A read-write lock protects the map of the
+//nodes only for the time of one access.
+public class HeapNodeStore implements NodeStore
+{
+  //A node in the store.
+  static class HeapNode
+  {
+    //Java type of the node, ListNode.class, IntListNode.class or
+    //StringListNode.class for a list node.
+    Class<?> c;
+
+    int orc;
+    int irc;
+
+    //For a fixed node the values of the fields, in the order given
+    //by the field descriptor of the type. For a list node the
+    //items of the list.
+    Object[] values;
+
+    //For a list node the type codes of the items of the list.
+    //Not used for fixed nodes.
+    int[] typeCodes;
+
+    //For a list node of primitive items the items, an int[] or a
+    //String[]. The values of the node are then empty.
+    Object items;
+
+    HeapNode copy()
+    {
+      HeapNode n = new HeapNode();
+      n.c = c;
+      n.orc = orc;
+      n.irc = irc;
+      n.values = values;
+      n.typeCodes = typeCodes;
+      n.items = items;
+      return n;
+    }
+  }
+
+  //The data shared by the store and its readers.
+  static class Data
+  {
+    LongObjectMap<HeapNode> nodes = new LongObjectMap<HeapNode>();
+
+    //The last allocated node id. The ids are not reused.
+    long lastId = 0;
+
+    //Fields of each type of fixed node, see getFieldsOfClass.
+    ConcurrentHashMap<Class<?>,ArrayList<FieldT>> fieldsOfClasses =
+      new ConcurrentHashMap<Class<?>,ArrayList<FieldT>>();
+
+    //The original records of the nodes modified in the current
+    //write transaction, null outside a write transaction. The value
+    //NEW_NODE marks a node allocated in the transaction.
+    LongObjectMap<HeapNode> originalNodes;
+
+    //The original records of the nodes modified by the commits
+    //after the versions of the open read transactions.
+    Snapshots<LongObjectMap<HeapNode>> snapshots =
+      new Snapshots<LongObjectMap<HeapNode>>();
+
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  }
+
+  private static final HeapNode NEW_NODE = new HeapNode();
+
+  private Data data;
+
+  //True for the writing instance, false for a reader.
+  private boolean isWriter;
+
+  //Reader only. The version seen by the current read transaction.
+  private long snapshotVersion;
+
+  //Writer only. The pending ids of the current transaction, see
+  //NodeStore.addPendingId.
+  private LongSet pendingIds = new LongSet();
+
+
+  //Creates a new empty store.
+  public HeapNodeStore()
+  {
+    this(new Data(),true);
+  }
+  private HeapNodeStore(Data data, boolean isWriter)
+  {
+    this.data = data;
+    this.isWriter = isWriter;
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Methods of the interface NodeStore.
+  public NodeStore openReader()
+  {
+    return new HeapNodeStore(data,false);
+  }
+
+
+  public void close()
+  {
+  }
+
+
+  //The store does not execute statements.
+  public void setMetricsListener(MetricsListener listener)
+  {
+  }
+
+
+  public void beginTransaction()
+  {
+    if (isWriter)
+    {
+      data.lock.writeLock().lock();
+      data.originalNodes = new LongObjectMap<HeapNode>();
+      data.lock.writeLock().unlock();
+    }
+    else
+    {
+      data.lock.readLock().lock();
+      snapshotVersion = data.snapshots.begin();
+      data.lock.readLock().unlock();
+    }
+  }
+  //The original records of the transaction become the undo record
+  //of the commit, if some read transaction is open.
+  public void commitTransaction()
+  {
+    if (!isWriter)
+    {
+      data.snapshots.end(snapshotVersion);
+      return;
+    }
+    data.lock.writeLock().lock();
+    try
+    {
+      Snapshots<LongObjectMap<HeapNode>> snapshots = data.snapshots;
+      snapshots.commit
+        (snapshots.isNeeded() ? data.originalNodes : null);
+      data.originalNodes = null;
+    }
+    finally
+    {
+      data.lock.writeLock().unlock();
+    }
+    pendingIds.clear();
+  }
+  public void rollbackTransaction()
+  {
+    if (!isWriter)
+    {
+      data.snapshots.end(snapshotVersion);
+      return;
+    }
+    data.lock.writeLock().lock();
+    try
+    {
+      LongObjectMap<HeapNode> originalNodes = data.originalNodes;
+      for (long id : originalNodes.keys())
+      {
+        HeapNode original = originalNodes.get(id);
+        if (original == NEW_NODE)
+          data.nodes.remove(id);
+        else
+          data.nodes.put(id,original);
+      }
+      data.originalNodes = null;
+    }
+    finally
+    {
+      data.lock.writeLock().unlock();
+    }
+    pendingIds.clear();
+  }
+
+
+  public void registerClass(Class<?> c)
+  {
+    getFieldsOfClass(c);
+  }
+
+
+  public long allocateFixedNode(Class<?> c)
+  {
+    HeapNode n = new HeapNode();
+    n.c = c;
+    n.values = new Object[getFieldsOfClass(c).size()];
+    return allocateNode(n);
+  }
+  public long allocateListNode(Class<?> c)
+  {
+    HeapNode n = new HeapNode();
+    n.c = c;
+    n.values = new Object[0];
+    n.typeCodes = new int[0];
+    if (c == IntListNode.class)
+      n.items = new int[0];
+    else if (c == StringListNode.class)
+      n.items = new String[0];
+    return allocateNode(n);
+  }
+
+
+  public Class<?> readClassOfNode(long id)
+  {
+    return node(id).c;
+  }
+
+
+  public ArrayList<FieldT> readFields(long id, int selector)
+  throws Exception
+  {
+    HeapNode n = node(id);
+    if (n.c == IntListNode.class)
+      return TestDB.getFields
+        (n.c,new IntListNode((int[]) n.items),selector);
+    if (n.c == StringListNode.class)
+      return TestDB.getFields
+        (n.c,new StringListNode((String[]) n.items),selector);
+
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+    if (n.c != ListNode.class)
+    {
+      ArrayList<FieldT> fieldsOfClass = getFieldsOfClass(n.c);
+      for (int i=0; i<n.values.length; ++i)
+      {
+        FieldT f = fieldsOfClass.get(i);
+        if (isSelected(f.typeCode,selector))
+          fields.add
+            (new FieldT((Field) f.field,f.typeCode,n.values[i]));
+      }
+    }
+    else
+    {
+      for (int pos=0; pos<n.values.length; ++pos)
+        if (isSelected(n.typeCodes[pos],selector))
+          fields.add(new FieldT(pos,n.typeCodes[pos],n.values[pos]));
+    }
+    return fields;
+  }
+
+
+  public void writeFields(long id, Class<?> c, ArrayList<FieldT> fields)
+  {
+    HeapNode n = modify(id);
+    if (c != ListNode.class)
+    {
+      ArrayList<FieldT> fieldsOfClass = getFieldsOfClass(c);
+      Object[] values = n.values.clone();
+      for (FieldT f : fields)
+        values[indexOfField(fieldsOfClass,(Field) f.field)] = f.value;
+      n.values = values;
+    }
+    else
+    {
+      int len = fields.size();
+      Object[] values = new Object[len];
+      int[] typeCodes = new int[len];
+      for (FieldT f : fields)
+      {
+        int pos = (Integer) f.field;
+        values[pos] = f.value;
+        typeCodes[pos] = f.typeCode;
+      }
+      n.values = values;
+      n.typeCodes = typeCodes;
+    }
+  }
+
+
+  //The whole list is read and written again.
+  public void writeListFields(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    ArrayList<FieldT> items = readFields(id,0);
+    TestDB.setFieldsAtPositions(items,0,fields);
+    writeFields(id,ListNode.class,items);
+  }
+
+
+  public int readListLength(long id)
+  {
+    HeapNode n = node(id);
+    if (n.c == IntListNode.class)
+      return ((int[]) n.items).length;
+    if (n.c == StringListNode.class)
+      return ((String[]) n.items).length;
+    return n.values.length;
+  }
+  public ArrayList<FieldT> readListFields
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    return TestDB.getFieldsAtPositions
+      (readFields(id,selector),fromPos,toPos);
+  }
+
+
+  //The items are copied, so that the stored items are not modified
+  //through the run-time node.
+  public void writeIntListItems(long id, int[] items, int size)
+  {
+    modify(id).items = Arrays.copyOf(items,size);
+  }
+  public int[] readIntListItems(long id)
+  {
+    return ((int[]) node(id).items).clone();
+  }
+  public void writeStringListItems(long id, String[] items, int size)
+  {
+    modify(id).items = Arrays.copyOf(items,size);
+  }
+  public String[] readStringListItems(long id)
+  {
+    return ((String[]) node(id).items).clone();
+  }
+
+
+  public LongList readIdsOfNonNullChildNodes(long id)
+  {
+    HeapNode n = node(id);
+    LongList ids = new LongList(n.values.length);
+    for (int i=0; i<n.values.length; ++i)
+    {
+      int typeCode = (n.c != ListNode.class)
+        ? getFieldsOfClass(n.c).get(i).typeCode
+        : n.typeCodes[i];
+      if (!TestDB.isPointerField(typeCode))
+        continue;
+      long idChild = (Long) n.values[i];
+      if (idChild != TestDB.ID_NULL_NODE)
+        ids.add(idChild);
+    }
+    return ids;
+  }
+
+
+  public int readORC(long id)
+  {
+    return node(id).orc;
+  }
+  public int readIRC(long id)
+  {
+    return node(id).irc;
+  }
+  public void incrORC(long id)
+  {
+    modify(id).orc++;
+  }
+  public void decrORC(long id)
+  {
+    modify(id).orc--;
+  }
+  public void incrIRC(long id)
+  {
+    modify(id).irc++;
+  }
+  public void decrIRC(long id)
+  {
+    modify(id).irc--;
+  }
+
+
+  public void deleteNode(long id)
+  {
+    modify(id);
+    data.lock.writeLock().lock();
+    data.nodes.remove(id);
+    data.lock.writeLock().unlock();
+  }
+
+
+  //The nodes are searched sequentially. The node having the
+  //smallest id is returned, like in SQLiteNodeStore.
+  public long findFixedNode(Class<?> c, String fieldName, Object value)
+  {
+    ArrayList<FieldT> fieldsOfClass = getFieldsOfClass(c);
+    int index = -1;
+    for (int i=0; i<fieldsOfClass.size(); ++i)
+    {
+      Field f = (Field) fieldsOfClass.get(i).field;
+      if (f.getName().equals(fieldName))
+        index = i;
+    }
+    if (index < 0)
+      return TestDB.ID_NULL_NODE;
+
+    long foundId = TestDB.ID_NULL_NODE;
+    for (long id : ids())
+    {
+      HeapNode n = node(id);
+      if (n == null || n.c != c || !valuesEqual(n.values[index],value))
+        continue;
+      if (foundId == TestDB.ID_NULL_NODE || id < foundId)
+        foundId = id;
+    }
+    return foundId;
+  }
+
+
+  //The nodes are searched sequentially, like in findFixedNode.
+  public LongList findFixedNodes(Query<?> query, Object[][] operands)
+  {
+    ArrayList<FieldT> fieldsOfClass = getFieldsOfClass(query.c);
+    int[] indexes = new int[query.fieldNames.size()];
+    for (int i=0; i<fieldsOfClass.size(); ++i)
+    {
+      String name = ((Field) fieldsOfClass.get(i).field).getName();
+      int k = query.fieldNames.indexOf(name);
+      if (k >= 0)
+        indexes[k] = i;
+    }
+
+    Query.Selection selection = new Query.Selection(query,operands);
+    Object[] values = new Object[indexes.length];
+    for (long id : ids())
+    {
+      HeapNode n = node(id);
+      if (n == null || n.c != query.c)
+        continue;
+      for (int k=0; k<indexes.length; ++k)
+        values[k] = n.values[indexes[k]];
+      selection.offer(id,values);
+    }
+    return selection.result();
+  }
+
+
+  //The pending ids are kept in the heap.
+  public void addPendingId(long id)
+  {
+    pendingIds.add(id);
+  }
+  public boolean removePendingId(long id)
+  {
+    return pendingIds.remove(id);
+  }
+  public int countPendingIds()
+  {
+    return pendingIds.size();
+  }
+// Methods of the interface NodeStore.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Tool methods.
+  private long allocateNode(HeapNode n)
+  {
+    long id = ++data.lastId;
+    data.lock.writeLock().lock();
+    data.nodes.put(id,n);
+    data.originalNodes.put(id,NEW_NODE);
+    data.lock.writeLock().unlock();
+    return id;
+  }
+
+
+  //Returns the record of the node for modification. When a node is
+  //modified the first time in a transaction, its record is copied
+  //and the original record is saved for a rollback and for the
+  //readers. The copy is modified only by the writer, because the
+  //readers see the original record until the commit. The arrays of
+  //the records are not modified in place but replaced.
+  private HeapNode modify(long id)
+  {
+    HeapNode n = data.nodes.get(id);
+    if (data.originalNodes.containsKey(id))
+      return n;
+    HeapNode copy = n.copy();
+    data.lock.writeLock().lock();
+    data.originalNodes.put(id,n);
+    data.nodes.put(id,copy);
+    data.lock.writeLock().unlock();
+    return copy;
+  }
+
+
+  //Returns the record of the node seen by the transaction, or null
+  //if the node does not exist in the version of the reader. The
+  //writer sees its own changes.
+  private HeapNode node(long id)
+  {
+    if (isWriter)
+      return data.nodes.get(id);
+    data.lock.readLock().lock();
+    try
+    {
+      Snapshots<LongObjectMap<HeapNode>> snapshots = data.snapshots;
+      for (int i=snapshots.firstUndoRecord(snapshotVersion);
+           i<snapshots.undoRecords.size(); ++i)
+      {
+        HeapNode original = snapshots.undoRecords.get(i).get(id);
+        if (original != null)
+          return original != NEW_NODE ? original : null;
+      }
+      if (data.originalNodes != null)
+      {
+        HeapNode original = data.originalNodes.get(id);
+        if (original != null)
+          return original != NEW_NODE ? original : null;
+      }
+      return data.nodes.get(id);
+    }
+    finally
+    {
+      data.lock.readLock().unlock();
+    }
+  }
+
+
+  //Returns the ids of the nodes for a sequential search. For a
+  //reader the ids include the nodes deleted after its version or
+  //in the current write transaction, and the ids for which node
+  //returns null must be skipped.
+  private long[] ids()
+  {
+    if (isWriter)
+      return data.nodes.keys();
+    data.lock.readLock().lock();
+    try
+    {
+      LongSet ids = new LongSet(data.nodes.size());
+      for (long id : data.nodes.keys())
+        ids.add(id);
+      Snapshots<LongObjectMap<HeapNode>> snapshots = data.snapshots;
+      for (int i=snapshots.firstUndoRecord(snapshotVersion);
+           i<snapshots.undoRecords.size(); ++i)
+        for (long id : snapshots.undoRecords.get(i).keys())
+          ids.add(id);
+      if (data.originalNodes != null)
+        for (long id : data.originalNodes.keys())
+          ids.add(id);
+      return ids.toArray();
+    }
+    finally
+    {
+      data.lock.readLock().unlock();
+    }
+  }
+
+
+  //Returns the fields of a type of fixed node. The index of a field
+  //in this list is the index of its value in HeapNode.values.
+  private ArrayList<FieldT> getFieldsOfClass(Class<?> c)
+  {
+    ArrayList<FieldT> fields = data.fieldsOfClasses.get(c);
+    if (fields == null)
+    {
+      try
+      {
+        fields = TestDB.getFields(c,null,0);
+      }
+      catch (Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+      data.fieldsOfClasses.put(c,fields);
+    }
+    return fields;
+  }
+
+
+  private static int indexOfField(ArrayList<FieldT> fields, Field f)
+  {
+    for (int i=0; i<fields.size(); ++i)
+      if (((Field) fields.get(i).field).getName().equals(f.getName()))
+        return i;
+    return -1; //Should not happen.
+  }
+
+
+  private static boolean isSelected(int typeCode, int selector)
+  {
+    return (TestDB.isPointerField(typeCode) &&
+             (selector == 0 || selector == 1))
+        || (TestDB.isScalarField(typeCode) &&
+             (selector == 0 || selector == 2));
+  }
+
+
+  //Compares a value in the store with a search value. Like in the
+  //SQLite database, a number and its string presentation are
+  //equal, for example 23 and "23".
+  private static boolean valuesEqual
+    (Object valueInStore, Object value)
+  {
+    if (valueInStore == null || value == null)
+      return false;
+    return valueInStore.equals(value)
+      || valueInStore.toString().equals(value.toString());
+  }
+// Tool methods.
+//////////////////////////////////////////////////////////////////
+}
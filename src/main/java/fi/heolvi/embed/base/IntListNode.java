@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.Arrays;
+
+//A list node whose items are ints. The items are kept in an int
+//array, not boxed in an ArrayList like in ListNode, and the node
+//stores write and read them as a whole array without a type code
+//per item (see NodeStore.writeIntListItems).
+//
+//Items can not be null and they can not refer to other nodes. A
+//field or a list item referring to an IntListNode is a pointer to
+//a list node, like a reference to a ListNode.
+public class IntListNode
+{
+  //Id of the list node, like in ListNode.
+  public long id;
+
+  //The items of the list are items[0..size-1].
+  int[] items;
+  int size;
+
+  //Default constructor. The database uses this constructor to
+  //create a corresponding Java object when the list node is loaded
+  //from the database with the search method.
+  public IntListNode()
+  {
+    items = new int[8];
+  }
+
+  //A list node with the given items. The array is used as such,
+  //it is not copied.
+  public IntListNode(int[] items)
+  {
+    this.items = items;
+    this.size = items.length;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+  public void add(int item)
+  {
+    if (size == items.length)
+      items = Arrays.copyOf(items,Math.max(8,2*size));
+    items[size++] = item;
+  }
+  public int get(int index)
+  {
+    checkIndex(index);
+    return items[index];
+  }
+  public int remove(int index)
+  {
+    checkIndex(index);
+    int item = items[index];
+    System.arraycopy(items,index+1,items,index,size-index-1);
+    --size;
+    return item;
+  }
+  public int set(int index, int item)
+  {
+    checkIndex(index);
+    int oldItem = items[index];
+    items[index] = item;
+    return oldItem;
+  }
+
+  //Returns a copy of the items.
+  public int[] toArray()
+  {
+    return Arrays.copyOf(items,size);
+  }
+
+  public String toString()
+  {
+    return Arrays.toString(toArray());
+  }
+
+  private void checkIndex(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException
+        ("Index: "+index+", size: "+size);
+  }
+}
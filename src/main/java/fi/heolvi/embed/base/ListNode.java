@@ -15,7 +15,7 @@ public class ListNode
   //have a corresponding node in the database.
   //If id>0 the list node has a corresponding node in the
   //database identified by the id.
-  public int id;
+  public long id;
 
   //ArrayList containing items of list.
   public ArrayList<Object> list = new ArrayList<Object>();
@@ -43,6 +43,10 @@ public class ListNode
   {
     return list.set(index,element);
   }
+  public int size()
+  {
+    return list.size();
+  }
 
   public String toString()
   {
@@ -64,8 +68,12 @@ public class ListNode
         s+=o;
       else if (o.getClass() == String.class)
         s+=o;
-      else if (o.getClass() == ListNode.class)
-        s += "size=" + ((ListNode)o).list.size();
+      else if (o instanceof ListNode)
+        s += "size=" + ((ListNode)o).size();
+      else if (o.getClass() == IntListNode.class)
+        s += "size=" + ((IntListNode)o).size();
+      else if (o.getClass() == StringListNode.class)
+        s += "size=" + ((StringListNode)o).size();
       else
       {
        String name = null;
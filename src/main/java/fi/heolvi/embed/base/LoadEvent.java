@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import jdk.jfr.*;
+
+//A call of searchFixedNodesFromDB or findFixedNodes, or the reading
+//of a page of a PagedListNode. The search rule is the search rules
+//of the call, the query (see Query.toString), or the list and the
+//positions of the page. See EmbedEvent.
+@Name("fi.heolvi.embed.Load")
+@Label("Load")
+@Category({"Object Database"})
+@Description("Loading nodes from the database")
+@StackTrace(true)
+class LoadEvent extends Event
+{
+  @Label("Search Rule")
+  String searchRule;
+
+  @Label("Nodes Materialized")
+  int nodesMaterialized;
+}
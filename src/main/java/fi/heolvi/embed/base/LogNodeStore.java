@@ -0,0 +1,1660 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+//This is a node store which writes the nodes to an append-only log.
+//The store is meant for write-heavy work loads: a commit appends
+//the changes of the transaction to the end of the log, and nothing
+//is written in place.
+//
+//The log <name>.nlog is a sequence of entries. An entry is a type
+//byte, an int length and the payload of the entry:
+//
+//  LOG_HEADER   long generation of the log. The first entry.
+//  LOG_CLASS    A stored class, see StoredClass.
+//  LOG_VERSION  int id, short class id, int orc, int irc and the
+//               record of the node (see NodeRecords). A new version
+//               of the node replaces the older versions.
+//  LOG_COUNTS   int id, int change of orc, int change of irc. Used
+//               when only the reference counts of a node change.
+//  LOG_DELETE   int id. The node is deleted.
+//  LOG_COMMIT   long CRC32 checksum of the entries after the
+//               previous LOG_COMMIT.
+//
+//The entries of a transaction are followed by a LOG_COMMIT entry.
+//The entries after the last LOG_COMMIT with a matching checksum
+//belong to a commit which did not finish, and they are cut off
+//when the store is opened.
+//
+//In the memory there is an index from the node id to the place of
+//the latest version of the node in the log, and to the reference
+//counts of the node. At open the index is read from the checkpoint
+//file <name>.ckpt, and the entries written after the checkpoint are
+//read from the log. A checkpoint is written when the store is
+//closed, and in the background when the log has grown by
+//checkpointInterval bytes after the previous checkpoint.
+//
+//The older versions of the nodes and the deleted nodes are garbage
+//in the log. When there is more garbage than live data in the log,
+//and at least compactionMinGarbage bytes, the log is compacted in
+//the background: the latest versions of the nodes are copied to a
+//new log, and the new log replaces the old one. The writer and the
+//readers continue during the copying. Only at the end, when the
+//entries appended during the copying are moved to the new log, the
+//compaction waits until the write transaction has ended.
+//
+//The readers of the store (see openReader) share the index. A
+//write transaction does not modify the index; the changes are kept
+//in txnNodes until the commit. A read transaction sees the version
+//of the data committed when it began (see Snapshots): while read
+//transactions are open, a commit saves the entries of the index
+//it changes to an undo record, and a reader of an older version
+//uses these entries. The records of the older versions are read
+//from the log, or from the memory after a compaction, which does
+//not copy them to the new log. A read-write lock protects the
+//index: the commit holds the write lock while it updates the
+//index, and a reader holds the read lock for the time of one read,
+//not for the read transaction, so the readers and the writer do
+//not wait for each other's transactions.
+public class LogNodeStore implements NodeStore
+{
+  //Types of the log entries.
+  private static final byte LOG_HEADER = 1;
+  private static final byte LOG_CLASS = 2;
+  private static final byte LOG_VERSION = 3;
+  private static final byte LOG_COUNTS = 4;
+  private static final byte LOG_DELETE = 5;
+  private static final byte LOG_COMMIT = 6;
+
+  //Type byte and int length.
+  private static final int ENTRY_HEADER_SIZE = 5;
+
+  //Size of the payload of LOG_VERSION before the record.
+  private static final int VERSION_HEADER_SIZE = 14;
+
+  private static final int CHECKPOINT_MAGIC = 0x54444B31;
+
+  private static final long NO_OFFSET = -1;
+
+  //Class ids. The ids of the types of fixed nodes start from
+  //FIRST_CLASS_ID in the order of the stored classes.
+  private static final int CLASS_ID_LIST_NODE = 1;
+  private static final int FIRST_CLASS_ID = 2;
+
+  //The compaction writes a LOG_COMMIT after this many bytes, so
+  //that the opening of the store does not need to hold the whole
+  //compacted log in the memory.
+  private static final int COMPACTION_BATCH_SIZE = 1 << 20;
+
+  public static long DEFAULT_COMPACTION_MIN_GARBAGE = 4L << 20;
+  public static long DEFAULT_CHECKPOINT_INTERVAL = 16L << 20;
+
+
+  //Index of the nodes in the log. The arrays are indexed with the
+  //node id.
+  static class Index
+  {
+    //Offset of the record of the latest version of the node in the
+    //log, NO_OFFSET if there is no node with the id.
+    long[] offsets = new long[1024];
+    int[] lengths = new int[1024];
+    int[] orcs = new int[1024];
+    int[] ircs = new int[1024];
+    short[] classIds = new short[1024];
+
+    //The greatest node id used.
+    int lastId = 0;
+
+    Index()
+    {
+      Arrays.fill(offsets,NO_OFFSET);
+    }
+
+    void ensureCapacity(int id)
+    {
+      if (id < offsets.length)
+        return;
+      int oldLength = offsets.length;
+      int length = Math.max(id+1,2*oldLength);
+      offsets = Arrays.copyOf(offsets,length);
+      Arrays.fill(offsets,oldLength,length,NO_OFFSET);
+      lengths = Arrays.copyOf(lengths,length);
+      orcs = Arrays.copyOf(orcs,length);
+      ircs = Arrays.copyOf(ircs,length);
+      classIds = Arrays.copyOf(classIds,length);
+    }
+
+    Index copy()
+    {
+      Index index = new Index();
+      index.offsets = offsets.clone();
+      index.lengths = lengths.clone();
+      index.orcs = orcs.clone();
+      index.ircs = ircs.clone();
+      index.classIds = classIds.clone();
+      index.lastId = lastId;
+      return index;
+    }
+  }
+
+
+  //The entry of a node in the index, in an undo record.
+  static class IndexEntry
+  {
+    long offset = NO_OFFSET;
+    int length;
+    int orc;
+    int irc;
+    short classId;
+
+    //The record of the node, when it has been read to the memory
+    //because the log was compacted. The offset is not valid then.
+    byte[] record;
+  }
+
+
+  //The state of the index before a commit: the entries of the
+  //nodes changed by the commit, and the greatest node id used.
+  static class IndexUndoRecord
+  {
+    int lastId;
+    LongObjectMap<IndexEntry> entries = new LongObjectMap<IndexEntry>();
+  }
+
+
+  //A node modified in the current write transaction.
+  static class TxnNode
+  {
+    int classId;
+    int orc;
+    int irc;
+
+    //The reference counts in the index, at the beginning of the
+    //transaction.
+    int committedOrc;
+    int committedIrc;
+
+    //The new record of the node, or null if the record has not been
+    //modified.
+    byte[] record;
+
+    boolean isDeleted;
+  }
+
+
+  //The data shared by the store and its readers.
+  static class Data
+  {
+    String name;
+    RandomAccessFile file;
+    FileChannel channel;
+
+    //The end of the committed entries in the log.
+    long end;
+
+    //Generation of the log, changes when the log is compacted.
+    long generation;
+
+    //Bytes of the log in use: the header, the stored classes and the
+    //latest versions of the nodes. The rest is garbage.
+    long liveBytes;
+
+    //The end of the log when the last checkpoint was written.
+    long checkpointEnd;
+
+    Index index = new Index();
+
+    //The stored classes, the class id of classes.get(i) is
+    //FIRST_CLASS_ID+i.
+    ArrayList<StoredClass> classes = new ArrayList<StoredClass>();
+
+    //The entries of the index changed by the commits after the
+    //versions of the open read transactions.
+    Snapshots<IndexUndoRecord> snapshots =
+      new Snapshots<IndexUndoRecord>();
+
+    //Protects the index, the classes and the log file.
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Held by the writer during a write transaction, and by the
+    //compaction when it replaces the log.
+    ReentrantLock writerLock = new ReentrantLock();
+
+    //Runs the compaction and the checkpoints in the background.
+    ExecutorService maintenanceExecutor;
+    AtomicBoolean isMaintenanceScheduled = new AtomicBoolean(false);
+    volatile Exception maintenanceError;
+
+    volatile long compactionMinGarbage = DEFAULT_COMPACTION_MIN_GARBAGE;
+    volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+  }
+
+  private Data data;
+
+  //True for the writing instance, false for a reader.
+  private boolean isWriter;
+
+  //Reader only. The version seen by the current read transaction.
+  private long snapshotVersion;
+
+  //Writer only. The nodes and the stored classes modified in the
+  //current transaction, and the greatest node id allocated.
+  private LongObjectMap<TxnNode> txnNodes;
+  private ArrayList<StoredClass> newClasses;
+  private int txnLastId;
+
+  //Writer only. The stored class used for new nodes of each Java
+  //type.
+  private HashMap<Class<?>,StoredClass> currentStoredClasses =
+    new HashMap<Class<?>,StoredClass>();
+
+  //Writer only. The pending ids of the current transaction, see
+  //NodeStore.addPendingId.
+  private LongSet pendingIds = new LongSet();
+
+
+  //Opens the store with the given name, or creates it if it does
+  //not exist.
+  public LogNodeStore(String name)
+  throws Exception
+  {
+    data = new Data();
+    isWriter = true;
+    data.name = name;
+    data.file = new RandomAccessFile(logFileName(name),"rw");
+    data.channel = data.file.getChannel();
+
+    if (data.channel.size() == 0)
+    {
+      data.generation = newGeneration();
+      byte[] entries = headerEntry(data.generation);
+      appendToLog(data.channel,0,entries,true);
+      data.end = entries.length;
+      data.liveBytes = ENTRY_HEADER_SIZE + 8;
+    }
+    else
+    {
+      data.generation = readGeneration(data.channel);
+      long start = 0;
+      if (readCheckpoint())
+        start = data.checkpointEnd;
+      recover(start);
+    }
+
+    data.maintenanceExecutor = Executors.newSingleThreadExecutor
+      (new ThreadFactory()
+       {
+         public Thread newThread(Runnable r)
+         {
+           Thread t = new Thread(r,"LogNodeStore-maintenance");
+           t.setDaemon(true);
+           return t;
+         }
+       });
+  }
+  private LogNodeStore(Data data)
+  {
+    this.data = data;
+    this.isWriter = false;
+  }
+
+
+  //Returns true, if a store with the given name exists.
+  public static boolean existsStore(String name)
+  {
+    return new File(logFileName(name)).exists();
+  }
+
+
+  //Deletes the files of the store with the given name. The store
+  //must be closed.
+  public static void deleteStore(String name)
+  {
+    new File(logFileName(name)).delete();
+    new File(checkpointFileName(name)).delete();
+    new File(logFileName(name)+".compact").delete();
+    new File(checkpointFileName(name)+".tmp").delete();
+  }
+
+
+  //The log is compacted in the background, when it contains at
+  //least minGarbageBytes of garbage, and more garbage than live
+  //data.
+  public void setCompactionThreshold(long minGarbageBytes)
+  {
+    data.compactionMinGarbage = minGarbageBytes;
+  }
+
+
+  //A checkpoint is written in the background, when the log has
+  //grown by intervalBytes after the previous checkpoint.
+  public void setCheckpointInterval(long intervalBytes)
+  {
+    data.checkpointInterval = intervalBytes;
+  }
+
+
+  //Returns the size of the log and the bytes in use in it.
+  public long getLogSize()
+  {
+    return data.end;
+  }
+  public long getLiveBytes()
+  {
+    return data.liveBytes;
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Methods of the interface NodeStore.
+  public NodeStore openReader()
+  {
+    return new LogNodeStore(data);
+  }
+
+
+  //Waits for the background work, and writes a checkpoint so that
+  //the next opening is fast. A failure of the background work is
+  //thrown here. The store is consistent after such a failure,
+  //because the log is replaced only after a successful compaction.
+  public void close()
+  throws Exception
+  {
+    if (!isWriter)
+      return;
+    data.maintenanceExecutor.shutdown();
+    data.maintenanceExecutor.awaitTermination
+      (Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+    try
+    {
+      if (data.end != data.checkpointEnd)
+        writeCheckpoint();
+    }
+    finally
+    {
+      data.file.close();
+    }
+    Exception e = data.maintenanceError;
+    if (e != null)
+      throw e;
+  }
+
+
+  //The store does not execute statements.
+  public void setMetricsListener(MetricsListener listener)
+  {
+  }
+
+
+  public void beginTransaction()
+  {
+    if (isWriter)
+    {
+      data.writerLock.lock();
+      txnNodes = new LongObjectMap<TxnNode>();
+      newClasses = new ArrayList<StoredClass>();
+      txnLastId = data.index.lastId;
+    }
+    else
+    {
+      data.lock.readLock().lock();
+      snapshotVersion = data.snapshots.begin();
+      data.lock.readLock().unlock();
+    }
+  }
+  public void commitTransaction()
+  throws Exception
+  {
+    if (!isWriter)
+    {
+      data.snapshots.end(snapshotVersion);
+      return;
+    }
+
+    //If the commit fails, the transaction is ended by
+    //rollbackTransaction.
+    byte[] entries = makeEntries();
+    if (entries.length > 0)
+    {
+      CRC32 crc = new CRC32();
+      crc.update(entries,0,entries.length);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(entries);
+      writeEntry(out,LOG_COMMIT,longToBytes(crc.getValue()));
+      byte[] committed = bytes.toByteArray();
+
+      try
+      {
+        appendToLog(data.channel,data.end,committed,true);
+      }
+      catch (IOException e)
+      {
+        //Do not leave a part of the transaction after the end.
+        data.channel.truncate(data.end);
+        throw e;
+      }
+
+      data.lock.writeLock().lock();
+      try
+      {
+        IndexUndoRecord undoRecord = null;
+        if (data.snapshots.isNeeded())
+          undoRecord = makeUndoRecord();
+        applyEntries(ByteBuffer.wrap(entries),data.end);
+        data.end += committed.length;
+        data.snapshots.commit(undoRecord);
+      }
+      finally
+      {
+        data.lock.writeLock().unlock();
+      }
+    }
+    endWriteTransaction();
+    scheduleMaintenance();
+  }
+  public void rollbackTransaction()
+  {
+    if (isWriter)
+    {
+      currentStoredClasses.clear();
+      endWriteTransaction();
+    }
+    else
+      data.snapshots.end(snapshotVersion);
+  }
+
+
+  //A new stored class is written at commit.
+  public void registerClass(Class<?> c)
+  throws Exception
+  {
+    currentStoredClass(c);
+  }
+
+
+  public long allocateFixedNode(Class<?> c)
+  throws Exception
+  {
+    StoredClass sc = currentStoredClass(c);
+    return allocateNode(sc.id,NodeRecords.emptyRecord(sc));
+  }
+  //A list node of primitive items has a stored class without
+  //fields, like a fixed node.
+  public long allocateListNode(Class<?> c)
+  throws Exception
+  {
+    if (c != ListNode.class)
+      return allocateFixedNode(c);
+    return allocateNode
+      (CLASS_ID_LIST_NODE,NodeRecords.emptyListRecord());
+  }
+
+
+  public Class<?> readClassOfNode(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      int classId = classIdOfNode(id);
+      if (classId == CLASS_ID_LIST_NODE)
+        return ListNode.class;
+      return storedClass(classId).resolve().c;
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public ArrayList<FieldT> readFields(long id, int selector)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      int classId = classIdOfNode(id);
+      StoredClass sc = null;
+      if (classId != CLASS_ID_LIST_NODE)
+        sc = storedClass(classId).resolve();
+      return NodeRecords.readFields(readRecord(id),sc,selector);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public void writeFields(long id, Class<?> c, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    byte[] record;
+    if (c != ListNode.class)
+      record = NodeRecords.writeFields
+        (readRecord(id),storedClass(classIdOfNode(id)),fields);
+    else
+      record = NodeRecords.writeListFields(fields);
+    modify(id).record = record;
+  }
+
+
+  //The whole list is read and written again.
+  public void writeListFields(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    ArrayList<FieldT> items = readFields(id,0);
+    TestDB.setFieldsAtPositions(items,0,fields);
+    writeFields(id,ListNode.class,items);
+  }
+
+
+  //The count of items is at the beginning of the record of a list
+  //node.
+  public int readListLength(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      return readRecord(id).getInt();
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public ArrayList<FieldT> readListFields
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    return TestDB.getFieldsAtPositions
+      (readFields(id,selector),fromPos,toPos);
+  }
+
+
+  public void writeIntListItems(long id, int[] items, int size)
+  {
+    modify(id).record = NodeRecords.encodeIntList(items,size);
+  }
+  public int[] readIntListItems(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      return NodeRecords.decodeIntList(readRecord(id));
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public void writeStringListItems(long id, String[] items, int size)
+  {
+    modify(id).record = NodeRecords.encodeStringList(items,size);
+  }
+  public String[] readStringListItems(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      return NodeRecords.decodeStringList(readRecord(id));
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public LongList readIdsOfNonNullChildNodes(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      int classId = classIdOfNode(id);
+      StoredClass sc = null;
+      if (classId != CLASS_ID_LIST_NODE)
+        sc = storedClass(classId);
+      return NodeRecords.readIdsOfNonNullChildNodes(readRecord(id),sc);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public int readORC(long id)
+  {
+    TxnNode t = txnNode(id);
+    if (t != null)
+      return t.orc;
+    beginRead();
+    try
+    {
+      IndexEntry e = undoEntry(id);
+      return e != null ? e.orc : data.index.orcs[slot(id)];
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public int readIRC(long id)
+  {
+    TxnNode t = txnNode(id);
+    if (t != null)
+      return t.irc;
+    beginRead();
+    try
+    {
+      IndexEntry e = undoEntry(id);
+      return e != null ? e.irc : data.index.ircs[slot(id)];
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public void incrORC(long id)
+  {
+    modify(id).orc++;
+  }
+  public void decrORC(long id)
+  {
+    modify(id).orc--;
+  }
+  public void incrIRC(long id)
+  {
+    modify(id).irc++;
+  }
+  public void decrIRC(long id)
+  {
+    modify(id).irc--;
+  }
+
+
+  public void deleteNode(long id)
+  {
+    TxnNode t = modify(id);
+    t.isDeleted = true;
+    t.record = null;
+  }
+
+
+  //The nodes are searched sequentially. The node having the
+  //smallest id is returned, like in SQLiteNodeStore. A reader holds
+  //the read lock for one node at a time, so that a long search does
+  //not keep a commit waiting.
+  public long findFixedNode(Class<?> c, String fieldName, Object value)
+  throws Exception
+  {
+    ArrayList<StoredClass> classes;
+    int lastId;
+    beginRead();
+    try
+    {
+      classes = allClasses();
+      lastId = lastId();
+    }
+    finally
+    {
+      endRead();
+    }
+
+    //Index of the field in the records of each class id, -1 if the
+    //class id is not of the type c or does not have the field.
+    int[] indexOfField = new int[FIRST_CLASS_ID+classes.size()];
+    Arrays.fill(indexOfField,-1);
+    boolean found = false;
+    for (StoredClass sc : classes)
+    {
+      if (!sc.className.equals(c.getName()))
+        continue;
+      indexOfField[sc.id] = sc.indexOfField(fieldName);
+      found |= indexOfField[sc.id] >= 0;
+    }
+    if (!found)
+      return TestDB.ID_NULL_NODE;
+
+    for (int id=1; id<=lastId; ++id)
+    {
+      beginRead();
+      try
+      {
+        if (!nodeExists(id))
+          continue;
+        int classId = classIdOfNode(id);
+        if (classId < FIRST_CLASS_ID || indexOfField[classId] < 0)
+          continue;
+        if (NodeRecords.valueEquals
+              (readRecord(id),indexOfField[classId],value))
+          return id;
+      }
+      finally
+      {
+        endRead();
+      }
+    }
+    return TestDB.ID_NULL_NODE;
+  }
+
+
+  //The nodes are searched sequentially, like in findFixedNode.
+  public LongList findFixedNodes(Query<?> query, Object[][] operands)
+  throws Exception
+  {
+    ArrayList<StoredClass> classes;
+    int lastId;
+    beginRead();
+    try
+    {
+      classes = allClasses();
+      lastId = lastId();
+    }
+    finally
+    {
+      endRead();
+    }
+
+    int[][] indexes = StoredClass.indexesOfFields
+      (classes,query.c,query.fieldNames);
+    Query.Selection selection = new Query.Selection(query,operands);
+    for (int id=1; id<=lastId; ++id)
+    {
+      beginRead();
+      try
+      {
+        if (!nodeExists(id))
+          continue;
+        int classId = classIdOfNode(id);
+        if (classId < FIRST_CLASS_ID || indexes[classId] == null)
+          continue;
+        selection.offer(id,NodeRecords.readValues
+                             (readRecord(id),indexes[classId]));
+      }
+      finally
+      {
+        endRead();
+      }
+    }
+    return selection.result();
+  }
+
+
+  //The pending ids are kept in the heap.
+  public void addPendingId(long id)
+  {
+    pendingIds.add(id);
+  }
+  public boolean removePendingId(long id)
+  {
+    return pendingIds.remove(id);
+  }
+  public int countPendingIds()
+  {
+    return pendingIds.size();
+  }
+// Methods of the interface NodeStore.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Nodes.
+  //The ids are indexes of the arrays of the index, so the ids of
+  //the store are below 2^31.
+  private long allocateNode(int classId, byte[] record)
+  {
+    if (txnLastId == Integer.MAX_VALUE)
+      throw new IllegalStateException("The node ids are used up");
+    int id = ++txnLastId;
+    TxnNode t = new TxnNode();
+    t.classId = classId;
+    t.record = record;
+    txnNodes.put(id,t);
+    return id;
+  }
+
+
+  //Returns the index of the node in the arrays of the index.
+  private static int slot(long id)
+  {
+    return Math.toIntExact(id);
+  }
+
+
+  //Returns the node modified in the current transaction, or null.
+  //Always null for a reader.
+  private TxnNode txnNode(long id)
+  {
+    return txnNodes != null ? txnNodes.get(id) : null;
+  }
+
+
+  //Returns the node for modification in the current transaction.
+  private TxnNode modify(long id)
+  {
+    TxnNode t = txnNodes.get(id);
+    if (t == null)
+    {
+      Index index = data.index;
+      t = new TxnNode();
+      t.classId = index.classIds[slot(id)];
+      t.orc = t.committedOrc = index.orcs[slot(id)];
+      t.irc = t.committedIrc = index.ircs[slot(id)];
+      txnNodes.put(id,t);
+    }
+    return t;
+  }
+
+
+  //The methods below read the index with the read lock, see
+  //beginRead.
+  private boolean nodeExists(long id)
+  {
+    TxnNode t = txnNode(id);
+    if (t != null)
+      return !t.isDeleted;
+    IndexEntry e = undoEntry(id);
+    if (e != null)
+      return e.offset != NO_OFFSET;
+    return id < data.index.offsets.length
+      && data.index.offsets[slot(id)] != NO_OFFSET;
+  }
+
+
+  private int classIdOfNode(long id)
+  {
+    TxnNode t = txnNode(id);
+    if (t != null)
+      return t.classId;
+    IndexEntry e = undoEntry(id);
+    return e != null ? e.classId : data.index.classIds[slot(id)];
+  }
+
+
+  //Returns the record of the node, positioned at its beginning.
+  private ByteBuffer readRecord(long id)
+  throws IOException
+  {
+    TxnNode t = txnNode(id);
+    if (t != null && t.record != null)
+      return ByteBuffer.wrap(t.record);
+    IndexEntry e = undoEntry(id);
+    if (e != null && e.record != null)
+      return ByteBuffer.wrap(e.record);
+    long offset = e != null ? e.offset : data.index.offsets[slot(id)];
+    int length = e != null ? e.length : data.index.lengths[slot(id)];
+    ByteBuffer record = ByteBuffer.allocate(length);
+    readFully(data.channel,offset,record);
+    record.flip();
+    return record;
+  }
+
+
+  //Returns the greatest node id used in the state seen by the
+  //transaction.
+  private int lastId()
+  {
+    if (isWriter)
+      return txnLastId;
+    Snapshots<IndexUndoRecord> snapshots = data.snapshots;
+    int i = snapshots.firstUndoRecord(snapshotVersion);
+    if (i < snapshots.undoRecords.size())
+      return snapshots.undoRecords.get(i).lastId;
+    return data.index.lastId;
+  }
+
+
+  //Reader only. Returns the entry of the node in the oldest undo
+  //record after the version of the reader which has the node, or
+  //null if the node has not changed after the version. Always null
+  //for the writer.
+  private IndexEntry undoEntry(long id)
+  {
+    if (isWriter)
+      return null;
+    Snapshots<IndexUndoRecord> snapshots = data.snapshots;
+    for (int i=snapshots.firstUndoRecord(snapshotVersion);
+         i<snapshots.undoRecords.size(); ++i)
+    {
+      IndexEntry e = snapshots.undoRecords.get(i).entries.get(id);
+      if (e != null)
+        return e;
+    }
+    return null;
+  }
+
+
+  //Returns the entries of the index of the nodes changed in the
+  //current transaction, before the commit changes them. Called
+  //with the write lock.
+  private IndexUndoRecord makeUndoRecord()
+  {
+    Index index = data.index;
+    IndexUndoRecord undoRecord = new IndexUndoRecord();
+    undoRecord.lastId = index.lastId;
+    for (long id : txnNodes.keys())
+    {
+      IndexEntry e = new IndexEntry();
+      if (id < index.offsets.length)
+      {
+        e.offset = index.offsets[slot(id)];
+        e.length = index.lengths[slot(id)];
+        e.orc = index.orcs[slot(id)];
+        e.irc = index.ircs[slot(id)];
+        e.classId = index.classIds[slot(id)];
+      }
+      undoRecord.entries.put(id,e);
+    }
+    return undoRecord;
+  }
+
+
+  //A reader holds the read lock for the time of one read, so that a
+  //commit or a compaction does not change the index or the log file
+  //while the reader uses them. The writer does not need the lock,
+  //because the commits and the compactions do not run during its
+  //transaction.
+  private void beginRead()
+  {
+    if (!isWriter)
+      data.lock.readLock().lock();
+  }
+  private void endRead()
+  {
+    if (!isWriter)
+      data.lock.readLock().unlock();
+  }
+
+
+  private void endWriteTransaction()
+  {
+    txnNodes = null;
+    newClasses = null;
+    pendingIds.clear();
+    data.writerLock.unlock();
+  }
+// Nodes.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Log entries.
+  //Returns the entries of the current transaction, without the
+  //LOG_COMMIT entry.
+  private byte[] makeEntries()
+  throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    for (StoredClass sc : newClasses)
+      writeEntry(out,LOG_CLASS,classPayload(sc));
+
+    long[] ids = txnNodes.keys();
+    Arrays.sort(ids);
+    for (long key : ids)
+    {
+      int id = slot(key);
+      TxnNode t = txnNodes.get(id);
+      if (t.isDeleted)
+        writeEntry(out,LOG_DELETE,intsToBytes(id));
+      else if (t.record != null)
+        writeEntry(out,LOG_VERSION,
+                   versionPayload(id,t.classId,t.orc,t.irc,t.record));
+      else if (t.orc != t.committedOrc || t.irc != t.committedIrc)
+        writeEntry(out,LOG_COUNTS,
+                   intsToBytes(id,t.orc-t.committedOrc,
+                               t.irc-t.committedIrc));
+    }
+    return bytes.toByteArray();
+  }
+
+
+  //Applies the entries to the index. The entries begin at the
+  //offset in the log. Called with the write lock, or when the store
+  //is opened.
+  private void applyEntries(ByteBuffer entries, long offset)
+  {
+    Index index = data.index;
+    while (entries.hasRemaining())
+    {
+      long entryOffset = offset + entries.position();
+      byte type = entries.get();
+      int length = entries.getInt();
+      ByteBuffer payload = entries.slice();
+      payload.limit(length);
+      entries.position(entries.position()+length);
+
+      if (type == LOG_HEADER || type == LOG_CLASS)
+      {
+        if (type == LOG_CLASS)
+        {
+          payload.getInt();
+          int classId = (Integer) NodeRecords.readValue(payload);
+          data.classes.add(StoredClass.read(classId,payload));
+        }
+        data.liveBytes += ENTRY_HEADER_SIZE + length;
+        continue;
+      }
+
+      int id = payload.getInt();
+      index.ensureCapacity(id);
+      index.lastId = Math.max(index.lastId,id);
+      if (type == LOG_COUNTS)
+      {
+        index.orcs[id] += payload.getInt();
+        index.ircs[id] += payload.getInt();
+        continue;
+      }
+
+      if (index.offsets[id] != NO_OFFSET)
+        data.liveBytes -= versionEntrySize(index.lengths[id]);
+      if (type == LOG_DELETE)
+      {
+        index.offsets[id] = NO_OFFSET;
+        index.lengths[id] = 0;
+        index.orcs[id] = 0;
+        index.ircs[id] = 0;
+        index.classIds[id] = 0;
+      }
+      else if (type == LOG_VERSION)
+      {
+        index.classIds[id] = payload.getShort();
+        index.orcs[id] = payload.getInt();
+        index.ircs[id] = payload.getInt();
+        index.offsets[id] =
+          entryOffset + ENTRY_HEADER_SIZE + VERSION_HEADER_SIZE;
+        index.lengths[id] = length - VERSION_HEADER_SIZE;
+        data.liveBytes += versionEntrySize(index.lengths[id]);
+      }
+    }
+  }
+
+
+  //Reads the entries of the log beginning at the offset start, and
+  //applies the committed transactions to the index. An unfinished
+  //transaction at the end of the log is cut off.
+  private void recover(long start)
+  throws IOException
+  {
+    long size = data.channel.size();
+    data.channel.position(start);
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(Channels.newInputStream(data.channel),
+                               1 << 16));
+    long end = start;
+    ByteArrayOutputStream txn = new ByteArrayOutputStream();
+    CRC32 crc = new CRC32();
+    DataOutputStream txnOut =
+      new DataOutputStream(new CheckedOutputStream(txn,crc));
+    try
+    {
+      while (true)
+      {
+        byte type = in.readByte();
+        int length = in.readInt();
+        long entryOffset = end + txn.size();
+        if (length < 0 || length > size-entryOffset-ENTRY_HEADER_SIZE)
+          break;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (type != LOG_COMMIT)
+        {
+          writeEntry(txnOut,type,payload);
+          continue;
+        }
+        if (length != 8 || ByteBuffer.wrap(payload).getLong() != crc.getValue())
+          break;
+        applyEntries(ByteBuffer.wrap(txn.toByteArray()),end);
+        end += txn.size() + ENTRY_HEADER_SIZE + length;
+        txn.reset();
+        crc.reset();
+      }
+    }
+    catch (EOFException e)
+    {
+      //The end of the log.
+    }
+    if (end < size)
+    {
+      data.channel.truncate(end);
+      data.channel.force(false);
+    }
+    data.end = end;
+  }
+
+
+  private static void writeEntry
+    (DataOutputStream out, byte type, byte[] payload)
+  throws IOException
+  {
+    out.writeByte(type);
+    out.writeInt(payload.length);
+    out.write(payload);
+  }
+
+
+  //Returns the header entry of a new log, with its LOG_COMMIT.
+  private static byte[] headerEntry(long generation)
+  throws IOException
+  {
+    byte[] header = new byte[ENTRY_HEADER_SIZE+8];
+    ByteBuffer.wrap(header).put(LOG_HEADER).putInt(8).putLong(generation);
+    CRC32 crc = new CRC32();
+    crc.update(header,0,header.length);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(header);
+    writeEntry(out,LOG_COMMIT,longToBytes(crc.getValue()));
+    return bytes.toByteArray();
+  }
+
+
+  private static long readGeneration(FileChannel channel)
+  throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE+8);
+    readFully(channel,0,header);
+    if (header.get(0) != LOG_HEADER)
+      throw new IOException("Not a node store log");
+    return header.getLong(ENTRY_HEADER_SIZE);
+  }
+
+
+  private static byte[] versionPayload
+    (int id, int classId, int orc, int irc, byte[] record)
+  {
+    ByteBuffer b = ByteBuffer.allocate(VERSION_HEADER_SIZE+record.length);
+    b.putInt(id).putShort((short) classId).putInt(orc).putInt(irc);
+    b.put(record);
+    return b.array();
+  }
+
+
+  private static byte[] classPayload(StoredClass sc)
+  {
+    ArrayList<Object> values = new ArrayList<Object>();
+    values.add(sc.id);
+    sc.addTo(values);
+    return NodeRecords.encode(values);
+  }
+
+
+  private static int versionEntrySize(int recordLength)
+  {
+    return ENTRY_HEADER_SIZE + VERSION_HEADER_SIZE + recordLength;
+  }
+// Log entries.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Compaction and checkpoints.
+  private void scheduleMaintenance()
+  {
+    long garbage = data.end - data.liveBytes;
+    final boolean compact =
+      garbage >= data.compactionMinGarbage && garbage > data.liveBytes;
+    boolean checkpoint =
+      data.end - data.checkpointEnd >= data.checkpointInterval;
+    if (!compact && !checkpoint)
+      return;
+    if (!data.isMaintenanceScheduled.compareAndSet(false,true))
+      return;
+    try
+    {
+      data.maintenanceExecutor.execute
+        (new Runnable()
+         {
+           public void run()
+           {
+             try
+             {
+               if (compact)
+                 compact();
+               else
+                 writeCheckpoint();
+             }
+             catch (Exception e)
+             {
+               data.maintenanceError = e;
+             }
+             finally
+             {
+               data.isMaintenanceScheduled.set(false);
+             }
+           }
+         });
+    }
+    catch (RejectedExecutionException e)
+    {
+      data.isMaintenanceScheduled.set(false); //Closing.
+    }
+  }
+
+
+  //Compacts the log: the latest versions of the nodes are copied to
+  //a new log, which replaces the old log. This is normally done in
+  //the background, but it can be called also directly outside the
+  //transactions of the store.
+  public synchronized void compact()
+  throws Exception
+  {
+    //The committed state at the beginning.
+    Index snapshot;
+    ArrayList<StoredClass> classes;
+    long snapshotEnd;
+    data.lock.readLock().lock();
+    try
+    {
+      snapshot = data.index.copy();
+      classes = new ArrayList<StoredClass>(data.classes);
+      snapshotEnd = data.end;
+    }
+    finally
+    {
+      data.lock.readLock().unlock();
+    }
+
+    //Copy the latest versions to the new log. The offsets of the
+    //records in the new log are stored in the snapshot.
+    String newLogName = logFileName(data.name)+".compact";
+    RandomAccessFile newFile = new RandomAccessFile(newLogName,"rw");
+    boolean isReplaced = false;
+    try
+    {
+      FileChannel newChannel = newFile.getChannel();
+      newChannel.truncate(0);
+      long generation = newGeneration();
+      byte[] header = headerEntry(generation);
+      appendToLog(newChannel,0,header,false);
+      long newEnd = header.length;
+
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(batch);
+      for (StoredClass sc : classes)
+        writeEntry(out,LOG_CLASS,classPayload(sc));
+      for (int id=1; id<=snapshot.lastId; ++id)
+      {
+        if (snapshot.offsets[id] == NO_OFFSET)
+          continue;
+        ByteBuffer record = ByteBuffer.allocate(snapshot.lengths[id]);
+        readFully(data.channel,snapshot.offsets[id],record);
+        snapshot.offsets[id] = newEnd + batch.size()
+          + ENTRY_HEADER_SIZE + VERSION_HEADER_SIZE;
+        writeEntry(out,LOG_VERSION,
+                   versionPayload(id,snapshot.classIds[id],
+                                  snapshot.orcs[id],snapshot.ircs[id],
+                                  record.array()));
+        if (batch.size() >= COMPACTION_BATCH_SIZE)
+        {
+          newEnd += appendBatch(newChannel,newEnd,batch);
+          out = new DataOutputStream(batch);
+        }
+      }
+      if (batch.size() > 0)
+        newEnd += appendBatch(newChannel,newEnd,batch);
+
+      //Move the transactions committed during the copying to the
+      //new log, and replace the old log.
+      data.writerLock.lock();
+      try
+      {
+        data.lock.writeLock().lock();
+        try
+        {
+          long tailLength = data.end - snapshotEnd;
+          long copied = 0;
+          while (copied < tailLength)
+            copied += data.channel.transferTo
+              (snapshotEnd+copied,tailLength-copied,
+               newChannel.position(newEnd+copied));
+          newChannel.force(true);
+
+          Index index = data.index;
+          for (int id=1; id<=index.lastId; ++id)
+          {
+            if (index.offsets[id] == NO_OFFSET)
+              continue;
+            if (index.offsets[id] >= snapshotEnd)
+              index.offsets[id] += newEnd - snapshotEnd;
+            else
+              index.offsets[id] = snapshot.offsets[id];
+          }
+
+          readUndoRecordsToMemory();
+          Files.move(Paths.get(newLogName),
+                     Paths.get(logFileName(data.name)),
+                     StandardCopyOption.REPLACE_EXISTING,
+                     StandardCopyOption.ATOMIC_MOVE);
+          isReplaced = true;
+          data.file.close();
+          data.file = newFile;
+          data.channel = newChannel;
+          data.generation = generation;
+          data.end = newEnd + tailLength;
+          data.checkpointEnd = 0;
+          data.liveBytes = ENTRY_HEADER_SIZE + 8;
+          for (StoredClass sc : data.classes)
+            data.liveBytes +=
+              ENTRY_HEADER_SIZE + classPayload(sc).length;
+          for (int id=1; id<=index.lastId; ++id)
+            if (index.offsets[id] != NO_OFFSET)
+              data.liveBytes += versionEntrySize(index.lengths[id]);
+        }
+        finally
+        {
+          data.lock.writeLock().unlock();
+        }
+      }
+      finally
+      {
+        data.writerLock.unlock();
+      }
+    }
+    finally
+    {
+      if (!isReplaced)
+        newFile.close();
+    }
+
+    writeCheckpoint();
+  }
+
+
+  //Reads the records of the older versions of the nodes, which the
+  //undo records refer to, from the log to the memory. Called with
+  //the write lock when the log is replaced by a compacted log,
+  //which does not contain the older versions.
+  private void readUndoRecordsToMemory()
+  throws IOException
+  {
+    for (IndexUndoRecord undoRecord : data.snapshots.undoRecords)
+      for (long id : undoRecord.entries.keys())
+      {
+        IndexEntry e = undoRecord.entries.get(id);
+        if (e.offset == NO_OFFSET || e.record != null)
+          continue;
+        ByteBuffer record = ByteBuffer.allocate(e.length);
+        readFully(data.channel,e.offset,record);
+        e.record = record.array();
+      }
+  }
+
+
+  //Appends the entries of the batch with a LOG_COMMIT to the log.
+  //Returns the count of bytes written, and empties the batch.
+  private static long appendBatch
+    (FileChannel channel, long offset, ByteArrayOutputStream batch)
+  throws IOException
+  {
+    byte[] entries = batch.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(entries,0,entries.length);
+    DataOutputStream out = new DataOutputStream(batch);
+    writeEntry(out,LOG_COMMIT,longToBytes(crc.getValue()));
+    byte[] committed = batch.toByteArray();
+    appendToLog(channel,offset,committed,false);
+    batch.reset();
+    return committed.length;
+  }
+
+
+  //Checkpoint file:
+  //  int CHECKPOINT_MAGIC, long generation of the log, long end of
+  //  the log covered by the checkpoint, long live bytes,
+  //  the stored classes as a record (see writeCatalog of
+  //  MappedNodeStore), int last id, and for each id up to the last
+  //  id: long offset, int length, int orc, int irc, short class id.
+  //  Finally the long CRC32 checksum of all that.
+  //The checkpoint is written to a temporary file, which then
+  //replaces the old checkpoint.
+  private synchronized void writeCheckpoint()
+  throws IOException
+  {
+    Index index;
+    ArrayList<StoredClass> classes;
+    long generation, end, liveBytes;
+    data.lock.readLock().lock();
+    try
+    {
+      index = data.index.copy();
+      classes = new ArrayList<StoredClass>(data.classes);
+      generation = data.generation;
+      end = data.end;
+      liveBytes = data.liveBytes;
+    }
+    finally
+    {
+      data.lock.readLock().unlock();
+    }
+
+    String fileName = checkpointFileName(data.name);
+    FileOutputStream file = new FileOutputStream(fileName+".tmp");
+    try
+    {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream
+        (new CheckedOutputStream
+           (new BufferedOutputStream(file,1 << 16),crc));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(generation);
+      out.writeLong(end);
+      out.writeLong(liveBytes);
+      ArrayList<Object> values = new ArrayList<Object>();
+      values.add(classes.size());
+      for (StoredClass sc : classes)
+        sc.addTo(values);
+      byte[] classRecord = NodeRecords.encode(values);
+      out.writeInt(classRecord.length);
+      out.write(classRecord);
+      out.writeInt(index.lastId);
+      for (int id=1; id<=index.lastId; ++id)
+      {
+        out.writeLong(index.offsets[id]);
+        out.writeInt(index.lengths[id]);
+        out.writeInt(index.orcs[id]);
+        out.writeInt(index.ircs[id]);
+        out.writeShort(index.classIds[id]);
+      }
+      out.flush();
+      new DataOutputStream(file).writeLong(crc.getValue());
+      file.getFD().sync();
+    }
+    finally
+    {
+      file.close();
+    }
+    Files.move(Paths.get(fileName+".tmp"),Paths.get(fileName),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    data.checkpointEnd = end;
+  }
+
+
+  //Reads the index from the checkpoint. Returns false, if there is
+  //no valid checkpoint of the current log.
+  private boolean readCheckpoint()
+  throws IOException
+  {
+    File file = new File(checkpointFileName(data.name));
+    if (!file.exists())
+      return false;
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(new FileInputStream(file),1 << 16));
+    try
+    {
+      CRC32 crc = new CRC32();
+      DataInputStream checked =
+        new DataInputStream(new CheckedInputStream(in,crc));
+      if (checked.readInt() != CHECKPOINT_MAGIC
+          || checked.readLong() != data.generation)
+        return false;
+      long end = checked.readLong();
+      long liveBytes = checked.readLong();
+      if (end > data.channel.size())
+        return false;
+      byte[] classRecord = new byte[checked.readInt()];
+      checked.readFully(classRecord);
+      int lastId = checked.readInt();
+      Index index = new Index();
+      index.ensureCapacity(lastId);
+      index.lastId = lastId;
+      for (int id=1; id<=lastId; ++id)
+      {
+        index.offsets[id] = checked.readLong();
+        index.lengths[id] = checked.readInt();
+        index.orcs[id] = checked.readInt();
+        index.ircs[id] = checked.readInt();
+        index.classIds[id] = checked.readShort();
+      }
+      if (in.readLong() != crc.getValue())
+        return false;
+
+      ByteBuffer record = ByteBuffer.wrap(classRecord);
+      record.getInt();
+      int count = (Integer) NodeRecords.readValue(record);
+      for (int i=0; i<count; ++i)
+        data.classes.add(StoredClass.read(FIRST_CLASS_ID+i,record));
+      data.index = index;
+      data.liveBytes = liveBytes;
+      data.checkpointEnd = end;
+      return true;
+    }
+    catch (EOFException e)
+    {
+      return false;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+// Compaction and checkpoints.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Stored classes.
+  //Returns the stored class for new nodes of the type c. A new
+  //stored class is added if the type does not have one with its
+  //current fields.
+  private StoredClass currentStoredClass(Class<?> c)
+  throws Exception
+  {
+    StoredClass sc = currentStoredClasses.get(c);
+    if (sc != null)
+      return sc;
+
+    ArrayList<StoredClass> classes = allClasses();
+    for (int i=classes.size()-1; i>=0 && sc==null; --i)
+      if (classes.get(i).matches(c))
+        sc = classes.get(i);
+    if (sc == null)
+    {
+      sc = new StoredClass(FIRST_CLASS_ID+classes.size(),c);
+      newClasses.add(sc);
+    }
+    currentStoredClasses.put(c,sc);
+    return sc;
+  }
+
+
+  //Returns the stored classes, including the classes added in the
+  //current transaction.
+  private ArrayList<StoredClass> allClasses()
+  {
+    ArrayList<StoredClass> classes =
+      new ArrayList<StoredClass>(data.classes);
+    if (newClasses != null)
+      classes.addAll(newClasses);
+    return classes;
+  }
+
+
+  private StoredClass storedClass(int classId)
+  {
+    int i = classId - FIRST_CLASS_ID;
+    if (i < data.classes.size())
+      return data.classes.get(i);
+    return newClasses.get(i-data.classes.size());
+  }
+// Stored classes.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Tool methods.
+  private static String logFileName(String name)
+  {
+    return name+".nlog";
+  }
+  private static String checkpointFileName(String name)
+  {
+    return name+".ckpt";
+  }
+
+
+  private static long newGeneration()
+  {
+    return System.currentTimeMillis() ^ System.nanoTime() << 20;
+  }
+
+
+  private static void appendToLog
+    (FileChannel channel, long offset, byte[] bytes, boolean force)
+  throws IOException
+  {
+    ByteBuffer b = ByteBuffer.wrap(bytes);
+    while (b.hasRemaining())
+      channel.write(b,offset+b.position());
+    if (force)
+      channel.force(false);
+  }
+
+
+  private static void readFully
+    (FileChannel channel, long offset, ByteBuffer b)
+  throws IOException
+  {
+    while (b.hasRemaining())
+      if (channel.read(b,offset+b.position()) < 0)
+        throw new EOFException();
+  }
+
+
+  private static byte[] intsToBytes(int... values)
+  {
+    ByteBuffer b = ByteBuffer.allocate(4*values.length);
+    for (int v : values)
+      b.putInt(v);
+    return b.array();
+  }
+  private static byte[] longToBytes(long value)
+  {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+// Tool methods.
+//////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.Arrays;
+
+//This is a hash map from longs to ints, like HashMap<Long,Integer>
+//but without boxing the keys and the values. The map uses open
+//addressing with linear probing, like LongObjectMap.
+//
+//The keys are node ids. The key zero (the id of a null node) is
+//reserved to mark empty slots and it cannot be stored in the map.
+public class LongIntMap
+{
+  private long[] keys;
+  private int[] values;
+  private int size;
+
+  public LongIntMap()
+  {
+    this(16);
+  }
+
+  public LongIntMap(int expectedSize)
+  {
+    int capacity = 16;
+    while (capacity < 2*expectedSize)
+      capacity *= 2;
+    keys = new long[capacity];
+    values = new int[capacity];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean containsKey(long key)
+  {
+    return keys[indexOf(key)] != 0;
+  }
+
+  //Returns zero if the key is not in the map.
+  public int get(long key)
+  {
+    int i = indexOf(key);
+    return keys[i] == 0 ? 0 : values[i];
+  }
+
+  public void put(long key, int value)
+  {
+    int i = indexOf(key);
+    values[i] = value;
+    if (keys[i] != 0)
+      return;
+    keys[i] = key;
+    ++size;
+    //Keep the load factor at most 1/2.
+    if (2*size > keys.length)
+      rehash(2*keys.length);
+  }
+
+  //Adds delta to the value of the key, with one lookup. A key which
+  //is not in the map is added with the value delta.
+  public void add(long key, int delta)
+  {
+    int i = indexOf(key);
+    if (keys[i] != 0)
+    {
+      values[i] += delta;
+      return;
+    }
+    put(key,delta);
+  }
+
+  //Returns false, if the key was not in the map.
+  public boolean remove(long key)
+  {
+    int i = indexOf(key);
+    if (keys[i] == 0)
+      return false;
+    --size;
+
+    //Shift the following entries of the same probe sequence
+    //backward, so that no empty slot is left inside a sequence.
+    int mask = keys.length-1;
+    int j = i;
+    while (true)
+    {
+      j = (j+1) & mask;
+      if (keys[j] == 0)
+        break;
+      int home = LongObjectMap.hash(keys[j]) & mask;
+      //Move the entry at j to i if i lies cyclically in [home,j).
+      boolean move = (i <= j) ? (home <= i || home > j)
+                              : (home <= i && home > j);
+      if (move)
+      {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        i = j;
+      }
+    }
+    keys[i] = 0;
+    values[i] = 0;
+    return true;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(keys,0);
+    Arrays.fill(values,0);
+    size = 0;
+  }
+
+  //Returns the keys of the map in an array, in no particular
+  //order.
+  public long[] keys()
+  {
+    long[] result = new long[size];
+    int n = 0;
+    for (long k : keys)
+      if (k != 0)
+        result[n++] = k;
+    return result;
+  }
+
+  //Returns the index of the slot of the key, or the index of the
+  //empty slot where the key would be inserted.
+  private int indexOf(long key)
+  {
+    int mask = keys.length-1;
+    int i = LongObjectMap.hash(key) & mask;
+    while (keys[i] != 0 && keys[i] != key)
+      i = (i+1) & mask;
+    return i;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[capacity];
+    values = new int[capacity];
+    int mask = capacity-1;
+    for (int j=0; j<oldKeys.length; ++j)
+    {
+      if (oldKeys[j] == 0)
+        continue;
+      int i = LongObjectMap.hash(oldKeys[j]) & mask;
+      while (keys[i] != 0)
+        i = (i+1) & mask;
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+    }
+  }
+}
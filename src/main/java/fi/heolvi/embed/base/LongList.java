@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.Arrays;
+
+//This is a growable list of longs, like ArrayList<Long> but
+//without boxing the values. Used for the lists of node ids.
+public class LongList
+{
+  private long[] values;
+  private int size;
+
+  public LongList()
+  {
+    this(8);
+  }
+
+  public LongList(int capacity)
+  {
+    values = new long[Math.max(capacity,1)];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public long get(int i)
+  {
+    if (i >= size)
+      throw new IndexOutOfBoundsException("Index: "+i+", size: "+size);
+    return values[i];
+  }
+
+  public void add(long value)
+  {
+    if (size == values.length)
+      values = Arrays.copyOf(values,2*size);
+    values[size++] = value;
+  }
+
+  //Removes the value at the index i. The following values are
+  //moved backward.
+  public void removeAt(int i)
+  {
+    if (i >= size)
+      throw new IndexOutOfBoundsException("Index: "+i+", size: "+size);
+    System.arraycopy(values,i+1,values,i,size-i-1);
+    --size;
+  }
+
+  //Removes the first occurrence of the value. Returns false, if the
+  //value is not in the list.
+  public boolean removeValue(long value)
+  {
+    for (int i=0; i<size; ++i)
+      if (values[i] == value)
+      {
+        removeAt(i);
+        return true;
+      }
+    return false;
+  }
+
+  public void clear()
+  {
+    size = 0;
+  }
+
+  public long[] toArray()
+  {
+    return Arrays.copyOf(values,size);
+  }
+
+  public String toString()
+  {
+    return Arrays.toString(toArray());
+  }
+}
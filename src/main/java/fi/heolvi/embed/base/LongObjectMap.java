@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+//This is a hash map from long keys to objects. The keys are stored
+//in a primitive long array, so that they are not boxed. The map
+//uses open addressing with linear probing.
+//
+//The keys are node ids. The key zero (the id of a null node) is
+//reserved to mark empty slots and it cannot be stored in the map.
+class LongObjectMap<V>
+{
+  private long[] keys;
+  private Object[] values;
+  private int size;
+
+  LongObjectMap()
+  {
+    this(16);
+  }
+
+  LongObjectMap(int expectedSize)
+  {
+    int capacity = 16;
+    while (capacity < 2*expectedSize)
+      capacity *= 2;
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  //Returns null if the key is not in the map.
+  @SuppressWarnings("unchecked")
+  V get(long key)
+  {
+    int i = indexOf(key);
+    return keys[i] == 0 ? null : (V) values[i];
+  }
+
+  boolean containsKey(long key)
+  {
+    return keys[indexOf(key)] != 0;
+  }
+
+  //Returns the previous value of the key, or null.
+  @SuppressWarnings("unchecked")
+  V put(long key, V value)
+  {
+    int i = indexOf(key);
+    if (keys[i] != 0)
+    {
+      V old = (V) values[i];
+      values[i] = value;
+      return old;
+    }
+    keys[i] = key;
+    values[i] = value;
+    ++size;
+    //Keep the load factor at most 1/2.
+    if (2*size > keys.length)
+      rehash(2*keys.length);
+    return null;
+  }
+
+  //Returns the removed value, or null if the key was not in the
+  //map.
+  @SuppressWarnings("unchecked")
+  V remove(long key)
+  {
+    int i = indexOf(key);
+    if (keys[i] == 0)
+      return null;
+    V old = (V) values[i];
+    --size;
+
+    //Shift the following entries of the same probe sequence
+    //backward, so that no empty slot is left inside a sequence.
+    int mask = keys.length-1;
+    int j = i;
+    while (true)
+    {
+      j = (j+1) & mask;
+      if (keys[j] == 0)
+        break;
+      int home = hash(keys[j]) & mask;
+      //Move the entry at j to i if i lies cyclically in [home,j).
+      boolean move = (i <= j) ? (home <= i || home > j)
+                              : (home <= i && home > j);
+      if (move)
+      {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        i = j;
+      }
+    }
+    keys[i] = 0;
+    values[i] = null;
+    return old;
+  }
+
+  void clear()
+  {
+    java.util.Arrays.fill(keys,0);
+    java.util.Arrays.fill(values,null);
+    size = 0;
+  }
+
+  //Returns the keys of the map in an array, in no particular
+  //order.
+  long[] keys()
+  {
+    long[] result = new long[size];
+    int n = 0;
+    for (long k : keys)
+      if (k != 0)
+        result[n++] = k;
+    return result;
+  }
+
+  //Returns the index of the slot of the key, or the index of the
+  //empty slot where the key would be inserted.
+  private int indexOf(long key)
+  {
+    int mask = keys.length-1;
+    int i = hash(key) & mask;
+    while (keys[i] != 0 && keys[i] != key)
+      i = (i+1) & mask;
+    return i;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    int mask = capacity-1;
+    for (int j=0; j<oldKeys.length; ++j)
+    {
+      if (oldKeys[j] == 0)
+        continue;
+      int i = hash(oldKeys[j]) & mask;
+      while (keys[i] != 0)
+        i = (i+1) & mask;
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+    }
+  }
+
+  //Node ids are consecutive, so they are scrambled before taking
+  //the index, to avoid long probe sequences. The high bits of the
+  //product are folded in, because the index takes the low bits.
+  static int hash(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32) ^ (h >>> 48));
+  }
+}
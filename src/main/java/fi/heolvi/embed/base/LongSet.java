@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.Arrays;
+
+//This is a hash set of longs, like HashSet<Long> but without
+//boxing the values. The set uses open addressing with linear
+//probing, like LongObjectMap.
+//
+//The values are node ids. The value zero (the id of a null node) is
+//reserved to mark empty slots and it cannot be stored in the set.
+public class LongSet
+{
+  private long[] keys;
+  private int size;
+
+  public LongSet()
+  {
+    this(16);
+  }
+
+  public LongSet(int expectedSize)
+  {
+    int capacity = 16;
+    while (capacity < 2*expectedSize)
+      capacity *= 2;
+    keys = new long[capacity];
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean contains(long key)
+  {
+    return keys[indexOf(key)] != 0;
+  }
+
+  //Returns false, if the key was already in the set.
+  public boolean add(long key)
+  {
+    int i = indexOf(key);
+    if (keys[i] != 0)
+      return false;
+    keys[i] = key;
+    ++size;
+    //Keep the load factor at most 1/2.
+    if (2*size > keys.length)
+      rehash(2*keys.length);
+    return true;
+  }
+
+  //Returns false, if the key was not in the set.
+  public boolean remove(long key)
+  {
+    int i = indexOf(key);
+    if (keys[i] == 0)
+      return false;
+    --size;
+
+    //Shift the following keys of the same probe sequence backward,
+    //so that no empty slot is left inside a sequence.
+    int mask = keys.length-1;
+    int j = i;
+    while (true)
+    {
+      j = (j+1) & mask;
+      if (keys[j] == 0)
+        break;
+      int home = LongObjectMap.hash(keys[j]) & mask;
+      //Move the key at j to i if i lies cyclically in [home,j).
+      boolean move = (i <= j) ? (home <= i || home > j)
+                              : (home <= i && home > j);
+      if (move)
+      {
+        keys[i] = keys[j];
+        i = j;
+      }
+    }
+    keys[i] = 0;
+    return true;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(keys,0);
+    size = 0;
+  }
+
+  //Returns the keys of the set in an array, in no particular order.
+  public long[] toArray()
+  {
+    long[] result = new long[size];
+    int n = 0;
+    for (long k : keys)
+      if (k != 0)
+        result[n++] = k;
+    return result;
+  }
+
+  //Returns the index of the slot of the key, or the index of the
+  //empty slot where the key would be inserted.
+  private int indexOf(long key)
+  {
+    int mask = keys.length-1;
+    int i = LongObjectMap.hash(key) & mask;
+    while (keys[i] != 0 && keys[i] != key)
+      i = (i+1) & mask;
+    return i;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldKeys = keys;
+    keys = new long[capacity];
+    int mask = capacity-1;
+    for (long k : oldKeys)
+    {
+      if (k == 0)
+        continue;
+      int i = LongObjectMap.hash(k) & mask;
+      while (keys[i] != 0)
+        i = (i+1) & mask;
+      keys[i] = k;
+    }
+  }
+}
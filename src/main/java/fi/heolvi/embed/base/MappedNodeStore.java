@@ -0,0 +1,1357 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+//This is a node store which keeps the nodes in memory-mapped files.
+//The store does the same as SQLiteNodeStore, but there is no SQL
+//between the object database and the data: a node is found
+//directly by its id, and the fields are decoded from the mapped
+//pages of the files.
+//
+//The store consists of three files:
+//
+//  <name>.nodes  The node headers. Page 0 is the header of the
+//                store. After that the node headers are in the
+//                order of the node ids, NODE_HEADER_SIZE bytes
+//                each, so the header of a node is found by
+//                computing its place from the id.
+//                A node header contains the class id, the orc, the
+//                irc and the place of the record of the node in the
+//                data file.
+//
+//  <name>.data   The records of the nodes, in slotted pages. A
+//                slotted page has a directory of slots at its
+//                beginning and the records at its end. A record
+//                which does not fit in a page is stored in a chain
+//                of overflow pages. Empty pages are kept in a
+//                free list and reused.
+//
+//  <name>.log    The redo log, see below.
+//
+//The files are mapped in segments of SEGMENT_PAGES pages, so that
+//a file can grow without remapping the segments already mapped.
+//Reads go directly to the mapped segments.
+//
+//Crash consistency:
+//  A write transaction does not modify the mapped files. The pages
+//  modified in the transaction are copied to the heap (dirtyPages)
+//  and modified there. At commit the new contents of the modified
+//  pages are written to the redo log, with a checksum, and the log
+//  is forced to disk. Only then the pages are copied to the mapped
+//  files, the files are forced to disk and the log is emptied.
+//  When the store is opened and the log is not empty, the process
+//  has stopped during a commit. If the log is complete (the
+//  checksum matches) the pages in it are copied to the files again,
+//  otherwise the log is ignored, because the files were not yet
+//  modified. Either way the files contain the state after the last
+//  completed commit.
+//
+//The readers of the store (see openReader) share the mapped files.
+//Because the mapped files are modified only during a commit, a
+//reader sees the committed state. A read transaction sees the
+//version of the data committed when it began (see Snapshots):
+//while read transactions are open, a commit copies the original
+//contents of the pages it overwrites to an undo record, and a
+//reader of an older version reads these copies instead of the
+//mapped pages. A read-write lock makes the copying of the pages
+//to the mapped files wait until the reads going on have ended,
+//and a read wait until the copying has ended. The lock is held
+//for the time of one read, not for the read transaction, so the
+//readers and the writer do not wait for each other's
+//transactions.
+//
+//The format of the records is described in NodeRecords. The class
+//catalog maps the class ids in the node headers to the stored
+//classes (see StoredClass), and it is stored as a record in the
+//data file.
+public class MappedNodeStore implements NodeStore
+{
+  static final int PAGE_SIZE = 4096;
+
+  //The files are mapped in segments of this many pages.
+  static final int SEGMENT_PAGES = 256;
+  static final int SEGMENT_SIZE = SEGMENT_PAGES*PAGE_SIZE;
+
+  private static final int NODE_FILE = 0;
+  private static final int DATA_FILE = 1;
+
+  private static final int MAGIC = 0x54444231;
+  private static final int LOG_MAGIC = 0x54444C31;
+  private static final int VERSION = 1;
+
+  private static final int NO_PAGE = -1;
+
+  //Layout of the header of the store, page 0 of the node file.
+  private static final int H_MAGIC = 0;
+  private static final int H_VERSION = 4;
+  private static final int H_PAGE_SIZE = 8;
+  private static final int H_LAST_ID = 12;
+  private static final int H_DATA_PAGE_COUNT = 16;
+  private static final int H_FREE_PAGE = 20;   //First free data page.
+  private static final int H_CATALOG_REF = 24; //Long.
+
+  //Layout of a node header.
+  static final int NODE_HEADER_SIZE = 16;
+  private static final int NODE_HEADERS_PER_PAGE =
+    PAGE_SIZE/NODE_HEADER_SIZE;
+  private static final int N_CLASS_ID = 0; //Short, 0 = no node.
+  private static final int N_SLOT = 2;     //Short.
+  private static final int N_ORC = 4;
+  private static final int N_IRC = 8;
+  private static final int N_PAGE = 12;
+
+  //Kinds of data pages.
+  private static final byte PAGE_SLOTTED = 1;
+  private static final byte PAGE_OVERFLOW = 2;
+  private static final byte PAGE_FREE = 3;
+
+  //Layout of a data page. All kinds of pages have the kind in the
+  //first byte.
+  private static final int P_KIND = 0;
+  private static final int P_SLOT_COUNT = 2; //Short, slotted page.
+  private static final int P_FREE_END = 4;   //Short, slotted page.
+  private static final int P_SLOTS = 8;      //Slotted page.
+  private static final int SLOT_SIZE = 4;    //Short offset, length.
+  private static final int P_NEXT = 4;       //Overflow, free page.
+  private static final int P_LENGTH = 8;     //Overflow page.
+  private static final int P_DATA = 12;      //Overflow page.
+
+  private static final int MAX_SLOTTED_RECORD =
+    PAGE_SIZE - P_SLOTS - SLOT_SIZE;
+
+  //Slot of a record stored in overflow pages.
+  private static final int SLOT_OVERFLOW = -1;
+
+  //Class ids. The ids of the types of fixed nodes start from
+  //FIRST_CLASS_ID in the order of the class catalog.
+  private static final int CLASS_ID_LIST_NODE = 1;
+  private static final int FIRST_CLASS_ID = 2;
+
+  //The data shared by the store and its readers.
+  static class Data
+  {
+    RandomAccessFile[] files = new RandomAccessFile[2];
+    FileChannel[] channels = new FileChannel[2];
+    ArrayList<ArrayList<MappedByteBuffer>> segments =
+      new ArrayList<ArrayList<MappedByteBuffer>>();
+
+    RandomAccessFile logFile;
+    FileChannel log;
+
+    //The class catalog, the class id of classes.get(i) is
+    //FIRST_CLASS_ID+i.
+    ArrayList<StoredClass> classes = new ArrayList<StoredClass>();
+
+    //The original contents of the pages overwritten by the commits
+    //after the versions of the open read transactions, by the keys
+    //of the pages (see pageKey).
+    Snapshots<HashMap<Long,ByteBuffer>> snapshots =
+      new Snapshots<HashMap<Long,ByteBuffer>>();
+
+    ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  }
+
+  private Data data;
+
+  //True for the writing instance, false for a reader.
+  private boolean isWriter;
+
+  //Reader only. The version seen by the current read transaction.
+  private long snapshotVersion;
+
+  //Writer only. Copies of the pages modified in the current
+  //transaction, see readPage and writePage, and the classes added
+  //to the catalog in the transaction.
+  private HashMap<Long,ByteBuffer> dirtyPages;
+  private ArrayList<StoredClass> newClasses;
+
+  //Writer only. The class catalog entry used for new nodes of each
+  //Java type.
+  private HashMap<Class<?>,StoredClass> currentStoredClasses =
+    new HashMap<Class<?>,StoredClass>();
+
+  //Writer only. The slotted page where new records are inserted.
+  private int insertPage = NO_PAGE;
+
+  //Writer only. The pending ids of the current transaction, see
+  //NodeStore.addPendingId.
+  private LongSet pendingIds = new LongSet();
+
+
+  //Opens the store with the given name, or creates it if it does
+  //not exist.
+  public MappedNodeStore(String name)
+  throws Exception
+  {
+    data = new Data();
+    isWriter = true;
+    data.files[NODE_FILE] = new RandomAccessFile(name+".nodes","rw");
+    data.files[DATA_FILE] = new RandomAccessFile(name+".data","rw");
+    data.logFile = new RandomAccessFile(name+".log","rw");
+    data.log = data.logFile.getChannel();
+    for (int file=0; file<2; ++file)
+    {
+      data.channels[file] = data.files[file].getChannel();
+      data.segments.add(new ArrayList<MappedByteBuffer>());
+      long size = data.channels[file].size();
+      if (size > 0)
+        mapPage(file,(int) ((size-1)/PAGE_SIZE));
+    }
+
+    recover();
+
+    if (data.channels[NODE_FILE].size() == 0)
+    {
+      beginTransaction();
+      ByteBuffer h = writePage(NODE_FILE,0);
+      h.putInt(H_MAGIC,MAGIC);
+      h.putInt(H_VERSION,VERSION);
+      h.putInt(H_PAGE_SIZE,PAGE_SIZE);
+      h.putInt(H_LAST_ID,0);
+      h.putInt(H_DATA_PAGE_COUNT,0);
+      h.putInt(H_FREE_PAGE,NO_PAGE);
+      h.putLong(H_CATALOG_REF,makeRef(NO_PAGE,0));
+      commitTransaction();
+    }
+    else
+    {
+      ByteBuffer h = readPage(NODE_FILE,0);
+      if (h.getInt(H_MAGIC) != MAGIC
+          || h.getInt(H_PAGE_SIZE) != PAGE_SIZE)
+      {
+        close();
+        throw new IOException("Not a node store: "+name);
+      }
+      readCatalog();
+    }
+  }
+  private MappedNodeStore(Data data)
+  {
+    this.data = data;
+    this.isWriter = false;
+  }
+
+
+  //Returns true, if a store with the given name exists.
+  public static boolean existsStore(String name)
+  {
+    return new File(name+".nodes").exists();
+  }
+
+
+  //Deletes the files of the store with the given name. The store
+  //must be closed.
+  public static void deleteStore(String name)
+  {
+    new File(name+".nodes").delete();
+    new File(name+".data").delete();
+    new File(name+".log").delete();
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Methods of the interface NodeStore.
+  public NodeStore openReader()
+  {
+    return new MappedNodeStore(data);
+  }
+
+
+  //The mapped segments are unmapped by the garbage collection of
+  //the Java virtual machine, not here.
+  public void close()
+  throws Exception
+  {
+    if (!isWriter)
+      return;
+    for (int file=0; file<2; ++file)
+      data.files[file].close();
+    data.logFile.close();
+  }
+
+
+  //The store does not execute statements.
+  public void setMetricsListener(MetricsListener listener)
+  {
+  }
+
+
+  public void beginTransaction()
+  {
+    if (isWriter)
+    {
+      dirtyPages = new HashMap<Long,ByteBuffer>();
+      newClasses = new ArrayList<StoredClass>();
+    }
+    else
+    {
+      data.lock.readLock().lock();
+      snapshotVersion = data.snapshots.begin();
+      data.lock.readLock().unlock();
+    }
+  }
+  public void commitTransaction()
+  throws Exception
+  {
+    if (!isWriter)
+    {
+      data.snapshots.end(snapshotVersion);
+      return;
+    }
+
+    if (!newClasses.isEmpty())
+      writeCatalog();
+
+    if (!dirtyPages.isEmpty())
+    {
+      //Write the redo log before touching the mapped files.
+      ByteBuffer logRecord = makeLogRecord();
+      writeLog(logRecord);
+
+      Set<MappedByteBuffer> modifiedSegments;
+      data.lock.writeLock().lock();
+      try
+      {
+        HashMap<Long,ByteBuffer> undoRecord = null;
+        if (data.snapshots.isNeeded())
+          undoRecord = copyOfMappedPages(dirtyPages.keySet());
+        modifiedSegments = applyLogRecord(logRecord);
+        data.classes.addAll(newClasses);
+        data.snapshots.commit(undoRecord);
+      }
+      finally
+      {
+        data.lock.writeLock().unlock();
+      }
+      for (MappedByteBuffer segment : modifiedSegments)
+        segment.force();
+
+      //The files are up to date, the log is not needed any more.
+      data.log.truncate(0);
+      data.log.force(false);
+    }
+    dirtyPages = null;
+    newClasses = null;
+    pendingIds.clear();
+  }
+  public void rollbackTransaction()
+  {
+    if (isWriter)
+    {
+      dirtyPages = null;
+      newClasses = null;
+      currentStoredClasses.clear();
+      insertPage = NO_PAGE;
+      pendingIds.clear();
+    }
+    else
+      data.snapshots.end(snapshotVersion);
+  }
+
+
+  //A new stored class is written at commit.
+  public void registerClass(Class<?> c)
+  throws Exception
+  {
+    currentStoredClass(c);
+  }
+
+
+  public long allocateFixedNode(Class<?> c)
+  throws Exception
+  {
+    StoredClass sc = currentStoredClass(c);
+    return allocateNode(sc.id,NodeRecords.emptyRecord(sc));
+  }
+  //A list node of primitive items has a stored class without
+  //fields, like a fixed node.
+  public long allocateListNode(Class<?> c)
+  throws Exception
+  {
+    if (c != ListNode.class)
+      return allocateFixedNode(c);
+    return allocateNode
+      (CLASS_ID_LIST_NODE,NodeRecords.emptyListRecord());
+  }
+
+
+  public Class<?> readClassOfNode(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      int classId =
+        readNodeHeader(id).getShort(nodeOffset(id)+N_CLASS_ID);
+      if (classId == CLASS_ID_LIST_NODE)
+        return ListNode.class;
+      return storedClass(classId).resolve().c;
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public ArrayList<FieldT> readFields(long id, int selector)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      ByteBuffer h = readNodeHeader(id);
+      int o = nodeOffset(id);
+      int classId = h.getShort(o+N_CLASS_ID);
+      StoredClass sc = null;
+      if (classId != CLASS_ID_LIST_NODE)
+        sc = storedClass(classId).resolve();
+      return NodeRecords.readFields
+        (readRecord(readRef(h,o)),sc,selector);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public void writeFields(long id, Class<?> c, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    ByteBuffer h = readNodeHeader(id);
+    int o = nodeOffset(id);
+    if (c != ListNode.class)
+      writeRecord(id,NodeRecords.writeFields
+        (readRecord(readRef(h,o)),
+         storedClass(h.getShort(o+N_CLASS_ID)),fields));
+    else
+      writeRecord(id,NodeRecords.writeListFields(fields));
+  }
+
+
+  //The whole list is read and written again.
+  public void writeListFields(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    ArrayList<FieldT> items = readFields(id,0);
+    TestDB.setFieldsAtPositions(items,0,fields);
+    writeFields(id,ListNode.class,items);
+  }
+
+
+  //The count of items is at the beginning of the record of a list
+  //node.
+  public int readListLength(long id)
+  {
+    beginRead();
+    try
+    {
+      return readRecord(readRef(readNodeHeader(id),nodeOffset(id)))
+        .getInt();
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public ArrayList<FieldT> readListFields
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    return TestDB.getFieldsAtPositions
+      (readFields(id,selector),fromPos,toPos);
+  }
+
+
+  public void writeIntListItems(long id, int[] items, int size)
+  throws Exception
+  {
+    writeRecord(id,NodeRecords.encodeIntList(items,size));
+  }
+  public int[] readIntListItems(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      return NodeRecords.decodeIntList
+        (readRecord(readRef(readNodeHeader(id),nodeOffset(id))));
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public void writeStringListItems(long id, String[] items, int size)
+  throws Exception
+  {
+    writeRecord(id,NodeRecords.encodeStringList(items,size));
+  }
+  public String[] readStringListItems(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      return NodeRecords.decodeStringList
+        (readRecord(readRef(readNodeHeader(id),nodeOffset(id))));
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public LongList readIdsOfNonNullChildNodes(long id)
+  throws Exception
+  {
+    beginRead();
+    try
+    {
+      ByteBuffer h = readNodeHeader(id);
+      int o = nodeOffset(id);
+      int classId = h.getShort(o+N_CLASS_ID);
+      StoredClass sc = null;
+      if (classId != CLASS_ID_LIST_NODE)
+        sc = storedClass(classId);
+      return NodeRecords.readIdsOfNonNullChildNodes
+        (readRecord(readRef(h,o)),sc);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+
+
+  public int readORC(long id)
+  {
+    beginRead();
+    try
+    {
+      return readNodeHeader(id).getInt(nodeOffset(id)+N_ORC);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public int readIRC(long id)
+  {
+    beginRead();
+    try
+    {
+      return readNodeHeader(id).getInt(nodeOffset(id)+N_IRC);
+    }
+    finally
+    {
+      endRead();
+    }
+  }
+  public void incrORC(long id)
+  {
+    addToNodeHeader(id,N_ORC,1);
+  }
+  public void decrORC(long id)
+  {
+    addToNodeHeader(id,N_ORC,-1);
+  }
+  public void incrIRC(long id)
+  {
+    addToNodeHeader(id,N_IRC,1);
+  }
+  public void decrIRC(long id)
+  {
+    addToNodeHeader(id,N_IRC,-1);
+  }
+
+
+  public void deleteNode(long id)
+  {
+    int o = nodeOffset(id);
+    freeRecord(readRef(readNodeHeader(id),o));
+    ByteBuffer h = writePage(NODE_FILE,nodePage(id));
+    for (int i=0; i<NODE_HEADER_SIZE; ++i)
+      h.put(o+i,(byte) 0);
+  }
+
+
+  //The node headers are searched sequentially. The node having the
+  //smallest id is returned, like in SQLiteNodeStore. A reader holds
+  //the read lock for one node at a time, so that a long search does
+  //not keep a commit waiting.
+  public long findFixedNode(Class<?> c, String fieldName, Object value)
+  {
+    ArrayList<StoredClass> classes;
+    int lastId;
+    beginRead();
+    try
+    {
+      classes = allClasses();
+      lastId = readPage(NODE_FILE,0).getInt(H_LAST_ID);
+    }
+    finally
+    {
+      endRead();
+    }
+
+    //Index of the field in the records of each class id, -1 if the
+    //class id is not of the type c or does not have the field.
+    int[] indexOfField = new int[FIRST_CLASS_ID+classes.size()];
+    Arrays.fill(indexOfField,-1);
+    boolean found = false;
+    for (StoredClass sc : classes)
+    {
+      if (!sc.className.equals(c.getName()))
+        continue;
+      indexOfField[sc.id] = sc.indexOfField(fieldName);
+      found |= indexOfField[sc.id] >= 0;
+    }
+    if (!found)
+      return TestDB.ID_NULL_NODE;
+
+    for (long id=1; id<=lastId; ++id)
+    {
+      beginRead();
+      try
+      {
+        ByteBuffer h = readNodeHeader(id);
+        int o = nodeOffset(id);
+        int classId = h.getShort(o+N_CLASS_ID);
+        if (classId < FIRST_CLASS_ID || indexOfField[classId] < 0)
+          continue;
+        if (NodeRecords.valueEquals
+              (readRecord(readRef(h,o)),indexOfField[classId],value))
+          return id;
+      }
+      finally
+      {
+        endRead();
+      }
+    }
+    return TestDB.ID_NULL_NODE;
+  }
+
+
+  //The node headers are searched sequentially, like in
+  //findFixedNode.
+  public LongList findFixedNodes(Query<?> query, Object[][] operands)
+  {
+    ArrayList<StoredClass> classes;
+    int lastId;
+    beginRead();
+    try
+    {
+      classes = allClasses();
+      lastId = readPage(NODE_FILE,0).getInt(H_LAST_ID);
+    }
+    finally
+    {
+      endRead();
+    }
+
+    int[][] indexes = StoredClass.indexesOfFields
+      (classes,query.c,query.fieldNames);
+    Query.Selection selection = new Query.Selection(query,operands);
+    for (long id=1; id<=lastId; ++id)
+    {
+      beginRead();
+      try
+      {
+        ByteBuffer h = readNodeHeader(id);
+        int o = nodeOffset(id);
+        int classId = h.getShort(o+N_CLASS_ID);
+        if (classId < FIRST_CLASS_ID || indexes[classId] == null)
+          continue;
+        selection.offer(id,NodeRecords.readValues
+                          (readRecord(readRef(h,o)),indexes[classId]));
+      }
+      finally
+      {
+        endRead();
+      }
+    }
+    return selection.result();
+  }
+
+
+  //The pending ids are kept in the heap.
+  public void addPendingId(long id)
+  {
+    pendingIds.add(id);
+  }
+  public boolean removePendingId(long id)
+  {
+    return pendingIds.remove(id);
+  }
+  public int countPendingIds()
+  {
+    return pendingIds.size();
+  }
+// Methods of the interface NodeStore.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Pages.
+  //Returns the page for reading. The writer sees the pages modified
+  //in its transaction. A reader sees the original content of the
+  //page in the oldest undo record after its version which has the
+  //page, otherwise the mapped page. The returned buffer is a view
+  //to the page, its index 0 is the first byte of the page.
+  private ByteBuffer readPage(int file, int pageNo)
+  {
+    if (dirtyPages != null)
+    {
+      ByteBuffer page = dirtyPages.get(pageKey(file,pageNo));
+      if (page != null)
+        return page;
+    }
+    if (!isWriter)
+    {
+      Snapshots<HashMap<Long,ByteBuffer>> snapshots = data.snapshots;
+      for (int i=snapshots.firstUndoRecord(snapshotVersion);
+           i<snapshots.undoRecords.size(); ++i)
+      {
+        ByteBuffer page =
+          snapshots.undoRecords.get(i).get(pageKey(file,pageNo));
+        if (page != null)
+          return page.duplicate();
+      }
+    }
+    return mappedPage(file,pageNo);
+  }
+
+
+  //Returns copies of the mapped pages with the keys, for an undo
+  //record. A page beyond the mapped segments is filled with zeros.
+  private HashMap<Long,ByteBuffer> copyOfMappedPages(Set<Long> keys)
+  {
+    HashMap<Long,ByteBuffer> pages = new HashMap<Long,ByteBuffer>();
+    for (long key : keys)
+    {
+      ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+      ByteBuffer mapped = mappedPage((int) (key >>> 32),(int) key);
+      if (mapped != null)
+        page.put(mapped);
+      page.clear();
+      pages.put(key,page);
+    }
+    return pages;
+  }
+
+
+  //A reader holds the read lock for the time of one read, so that a
+  //commit does not copy pages to the mapped files while the reader
+  //decodes them. The writer does not need the lock, because only
+  //its own commit modifies the mapped files.
+  private void beginRead()
+  {
+    if (!isWriter)
+      data.lock.readLock().lock();
+  }
+  private void endRead()
+  {
+    if (!isWriter)
+      data.lock.readLock().unlock();
+  }
+
+
+  //Returns the page for modification in the current transaction.
+  //When a page is modified the first time in a transaction, it is
+  //copied from the mapped file to the heap. A page which does not
+  //exist yet in the file is initially filled with zeros.
+  private ByteBuffer writePage(int file, int pageNo)
+  {
+    Long key = pageKey(file,pageNo);
+    ByteBuffer page = dirtyPages.get(key);
+    if (page == null)
+    {
+      page = ByteBuffer.allocate(PAGE_SIZE);
+      ByteBuffer mapped = mappedPage(file,pageNo);
+      if (mapped != null)
+        page.put(mapped);
+      page.clear();
+      dirtyPages.put(key,page);
+    }
+    return page;
+  }
+
+
+  //Returns a view to the page in a mapped segment, or null if the
+  //page is beyond the mapped segments.
+  private ByteBuffer mappedPage(int file, int pageNo)
+  {
+    ArrayList<MappedByteBuffer> segments = data.segments.get(file);
+    int segmentNo = pageNo/SEGMENT_PAGES;
+    if (segmentNo >= segments.size())
+      return null;
+    int offset = (pageNo%SEGMENT_PAGES)*PAGE_SIZE;
+    ByteBuffer page = segments.get(segmentNo).duplicate();
+    page.position(offset);
+    page.limit(offset+PAGE_SIZE);
+    return page.slice();
+  }
+
+
+  //Maps the segments of the file up to the segment containing the
+  //page. Mapping a segment beyond the end of the file extends the
+  //file. Returns the segment of the page.
+  private MappedByteBuffer mapPage(int file, int pageNo)
+  throws IOException
+  {
+    ArrayList<MappedByteBuffer> segments = data.segments.get(file);
+    int segmentNo = pageNo/SEGMENT_PAGES;
+    while (segments.size() <= segmentNo)
+    {
+      segments.add
+        (data.channels[file].map
+           (FileChannel.MapMode.READ_WRITE,
+            (long) segments.size()*SEGMENT_SIZE,
+            SEGMENT_SIZE));
+    }
+    return segments.get(segmentNo);
+  }
+
+
+  private static Long pageKey(int file, int pageNo)
+  {
+    return ((long) file << 32) | pageNo;
+  }
+// Pages.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Redo log.
+  //Returns the log record of the current transaction:
+  //int LOG_MAGIC, int count of pages, for each page int file,
+  //int page number and the content of the page, and finally the
+  //CRC32 checksum of all that as a long.
+  private ByteBuffer makeLogRecord()
+  {
+    int count = dirtyPages.size();
+    ByteBuffer logRecord =
+      ByteBuffer.allocate(8 + count*(8+PAGE_SIZE) + 8);
+    logRecord.putInt(LOG_MAGIC);
+    logRecord.putInt(count);
+    for (Map.Entry<Long,ByteBuffer> e : dirtyPages.entrySet())
+    {
+      long key = e.getKey();
+      logRecord.putInt((int) (key >>> 32));
+      logRecord.putInt((int) key);
+      ByteBuffer page = e.getValue().duplicate();
+      page.clear();
+      logRecord.put(page);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(logRecord.array(),0,logRecord.position());
+    logRecord.putLong(crc.getValue());
+    logRecord.flip();
+    return logRecord;
+  }
+
+
+  private void writeLog(ByteBuffer logRecord)
+  throws IOException
+  {
+    ByteBuffer b = logRecord.duplicate();
+    data.log.truncate(0);
+    long position = 0;
+    while (b.hasRemaining())
+      position += data.log.write(b,position);
+    data.log.force(false);
+  }
+
+
+  //Copies the pages of a complete log record to the mapped files.
+  //Returns the modified segments. The set compares the segments by
+  //identity, because the hash code of a buffer depends on its
+  //content.
+  private Set<MappedByteBuffer> applyLogRecord(ByteBuffer logRecord)
+  throws IOException
+  {
+    Set<MappedByteBuffer> modifiedSegments =
+      Collections.newSetFromMap
+        (new IdentityHashMap<MappedByteBuffer,Boolean>());
+    ByteBuffer b = logRecord.duplicate();
+    b.position(4);
+    int count = b.getInt();
+    for (int i=0; i<count; ++i)
+    {
+      int file = b.getInt();
+      int pageNo = b.getInt();
+      modifiedSegments.add(mapPage(file,pageNo));
+      ByteBuffer content = b.duplicate();
+      content.limit(content.position()+PAGE_SIZE);
+      mappedPage(file,pageNo).put(content);
+      b.position(b.position()+PAGE_SIZE);
+    }
+    return modifiedSegments;
+  }
+
+
+  //Called when the store is opened. If the log contains a complete
+  //log record, the last commit did not finish and is done again.
+  //An incomplete log record is from a commit which did not modify
+  //the files, and it is ignored.
+  private void recover()
+  throws IOException
+  {
+    long size = data.log.size();
+    if (size == 0)
+      return;
+    if (size <= Integer.MAX_VALUE)
+    {
+      ByteBuffer logRecord = ByteBuffer.allocate((int) size);
+      while (logRecord.hasRemaining())
+        if (data.log.read(logRecord,logRecord.position()) < 0)
+          break;
+      logRecord.flip();
+      if (isCompleteLogRecord(logRecord))
+      {
+        for (MappedByteBuffer segment : applyLogRecord(logRecord))
+          segment.force();
+      }
+    }
+    data.log.truncate(0);
+    data.log.force(false);
+  }
+
+
+  private static boolean isCompleteLogRecord(ByteBuffer logRecord)
+  {
+    if (logRecord.limit() < 16 || logRecord.getInt(0) != LOG_MAGIC)
+      return false;
+    long count = logRecord.getInt(4);
+    long length = 8 + count*(8+PAGE_SIZE);
+    if (count < 0 || length+8 > logRecord.limit())
+      return false;
+    CRC32 crc = new CRC32();
+    crc.update(logRecord.array(),0,(int) length);
+    return crc.getValue() == logRecord.getLong((int) length);
+  }
+// Redo log.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Node headers.
+  //The last id is an int in the header of the store, so the ids of
+  //the store are below 2^31.
+  private long allocateNode(int classId, byte[] record)
+  {
+    ByteBuffer h = writePage(NODE_FILE,0);
+    int lastId = h.getInt(H_LAST_ID);
+    if (lastId == Integer.MAX_VALUE)
+      throw new IllegalStateException("The node ids are used up");
+    int id = lastId + 1;
+    h.putInt(H_LAST_ID,id);
+
+    long ref = insertRecord(record);
+    ByteBuffer nodeHeader = writePage(NODE_FILE,nodePage(id));
+    int o = nodeOffset(id);
+    nodeHeader.putShort(o+N_CLASS_ID,(short) classId);
+    nodeHeader.putInt(o+N_ORC,0);
+    nodeHeader.putInt(o+N_IRC,0);
+    writeRef(nodeHeader,o,ref);
+    return id;
+  }
+
+
+  //Replaces the record of the node. The new record is written in
+  //place of the old one if it fits there, otherwise to a new place.
+  private void writeRecord(long id, byte[] newRecord)
+  {
+    int o = nodeOffset(id);
+    long ref = readRef(readNodeHeader(id),o);
+    if (!replaceRecordInPlace(ref,newRecord))
+    {
+      freeRecord(ref);
+      ref = insertRecord(newRecord);
+      writeRef(writePage(NODE_FILE,nodePage(id)),o,ref);
+    }
+  }
+
+
+  //Returns the page containing the header of the node. The header
+  //is at nodeOffset(id) in the page.
+  private ByteBuffer readNodeHeader(long id)
+  {
+    return readPage(NODE_FILE,nodePage(id));
+  }
+
+
+  private void addToNodeHeader(long id, int field, int delta)
+  {
+    ByteBuffer h = writePage(NODE_FILE,nodePage(id));
+    int o = nodeOffset(id)+field;
+    h.putInt(o,h.getInt(o)+delta);
+  }
+
+
+  private static int nodePage(long id)
+  {
+    return 1 + (int) ((id-1)/NODE_HEADERS_PER_PAGE);
+  }
+  private static int nodeOffset(long id)
+  {
+    return (int) ((id-1)%NODE_HEADERS_PER_PAGE)*NODE_HEADER_SIZE;
+  }
+
+
+  private static long readRef(ByteBuffer h, int o)
+  {
+    return makeRef(h.getInt(o+N_PAGE),h.getShort(o+N_SLOT));
+  }
+  private static void writeRef(ByteBuffer h, int o, long ref)
+  {
+    h.putInt(o+N_PAGE,refPage(ref));
+    h.putShort(o+N_SLOT,(short) refSlot(ref));
+  }
+// Node headers.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Records.
+  //A record is referred to by its page and slot, combined in a
+  //long. The slot of a record in overflow pages is SLOT_OVERFLOW.
+  private static long makeRef(int pageNo, int slot)
+  {
+    return ((long) pageNo << 32) | (slot & 0xffffffffL);
+  }
+  private static int refPage(long ref)
+  {
+    return (int) (ref >> 32);
+  }
+  private static int refSlot(long ref)
+  {
+    return (int) ref;
+  }
+
+
+  //Returns a buffer positioned at the beginning of the record and
+  //limited to its end. A record in a slotted page is read from the
+  //page as such. A record in overflow pages is copied to the heap.
+  private ByteBuffer readRecord(long ref)
+  {
+    ByteBuffer page = readPage(DATA_FILE,refPage(ref));
+    if (refSlot(ref) != SLOT_OVERFLOW)
+    {
+      int s = P_SLOTS + refSlot(ref)*SLOT_SIZE;
+      int offset = page.getShort(s);
+      ByteBuffer record = page.duplicate();
+      record.position(offset);
+      record.limit(offset+page.getShort(s+2));
+      return record;
+    }
+
+    int length = 0;
+    for (int p=refPage(ref); p!=NO_PAGE;)
+    {
+      ByteBuffer overflowPage = readPage(DATA_FILE,p);
+      length += overflowPage.getInt(P_LENGTH);
+      p = overflowPage.getInt(P_NEXT);
+    }
+    ByteBuffer record = ByteBuffer.allocate(length);
+    for (int p=refPage(ref); p!=NO_PAGE;)
+    {
+      ByteBuffer overflowPage = readPage(DATA_FILE,p).duplicate();
+      overflowPage.position(P_DATA);
+      overflowPage.limit(P_DATA+overflowPage.getInt(P_LENGTH));
+      record.put(overflowPage);
+      p = overflowPage.getInt(P_NEXT);
+    }
+    record.flip();
+    return record;
+  }
+
+
+  //Inserts the record in the data file and returns its reference.
+  //A record is inserted in the current insert page if it fits
+  //there, otherwise in a new page.
+  private long insertRecord(byte[] record)
+  {
+    if (record.length > MAX_SLOTTED_RECORD)
+      return insertOverflowRecord(record);
+
+    if (insertPage != NO_PAGE
+        && insertPage < readPage(NODE_FILE,0).getInt(H_DATA_PAGE_COUNT)
+        && readPage(DATA_FILE,insertPage).get(P_KIND) == PAGE_SLOTTED)
+    {
+      int slot = insertRecordInPage(insertPage,record);
+      if (slot >= 0)
+        return makeRef(insertPage,slot);
+    }
+
+    insertPage = allocateDataPage();
+    ByteBuffer page = writePage(DATA_FILE,insertPage);
+    page.put(P_KIND,PAGE_SLOTTED);
+    page.putShort(P_SLOT_COUNT,(short) 0);
+    page.putShort(P_FREE_END,(short) PAGE_SIZE);
+    return makeRef(insertPage,insertRecordInPage(insertPage,record));
+  }
+
+
+  //Inserts the record in the slotted page, and returns its slot,
+  //or -1 if the record does not fit in the page. If the record fits
+  //only in the space left by deleted records, the page is compacted
+  //first.
+  private int insertRecordInPage(int pageNo, byte[] record)
+  {
+    ByteBuffer page = readPage(DATA_FILE,pageNo);
+    int slotCount = page.getShort(P_SLOT_COUNT);
+    int freeEnd = page.getShort(P_FREE_END) & 0xffff;
+    int slot = slotCount;
+    int liveBytes = 0;
+    for (int i=0; i<slotCount; ++i)
+    {
+      int s = P_SLOTS + i*SLOT_SIZE;
+      if (page.getShort(s) == 0)
+        slot = Math.min(slot,i);
+      else
+        liveBytes += page.getShort(s+2);
+    }
+    int needed = record.length + (slot == slotCount ? SLOT_SIZE : 0);
+    int gap = freeEnd - (P_SLOTS + slotCount*SLOT_SIZE);
+    int holes = (PAGE_SIZE - freeEnd) - liveBytes;
+    if (gap + holes < needed)
+      return -1;
+
+    page = writePage(DATA_FILE,pageNo);
+    if (gap < needed)
+      freeEnd = compactPage(page,slotCount);
+    freeEnd -= record.length;
+    ByteBuffer b = page.duplicate();
+    b.position(freeEnd);
+    b.put(record);
+    page.putShort(P_FREE_END,(short) freeEnd);
+    page.putShort(P_SLOTS+slot*SLOT_SIZE,(short) freeEnd);
+    page.putShort(P_SLOTS+slot*SLOT_SIZE+2,(short) record.length);
+    if (slot == slotCount)
+      page.putShort(P_SLOT_COUNT,(short) (slotCount+1));
+    return slot;
+  }
+
+
+  //Moves the records of the slotted page to the end of the page, so
+  //that the free space is in one piece. Returns the new beginning of
+  //the records.
+  private static int compactPage(ByteBuffer page, int slotCount)
+  {
+    byte[] copy = new byte[PAGE_SIZE];
+    ByteBuffer b = page.duplicate();
+    b.clear();
+    b.get(copy);
+    int freeEnd = PAGE_SIZE;
+    for (int i=0; i<slotCount; ++i)
+    {
+      int s = P_SLOTS + i*SLOT_SIZE;
+      int offset = page.getShort(s);
+      if (offset == 0)
+        continue;
+      int length = page.getShort(s+2);
+      freeEnd -= length;
+      b.position(freeEnd);
+      b.put(copy,offset,length);
+      page.putShort(s,(short) freeEnd);
+    }
+    page.putShort(P_FREE_END,(short) freeEnd);
+    return freeEnd;
+  }
+
+
+  //Replaces a record in a slotted page with a record which is not
+  //longer. Returns false, if this cannot be done.
+  private boolean replaceRecordInPlace(long ref, byte[] record)
+  {
+    if (refSlot(ref) == SLOT_OVERFLOW)
+      return false;
+    int s = P_SLOTS + refSlot(ref)*SLOT_SIZE;
+    ByteBuffer page = readPage(DATA_FILE,refPage(ref));
+    if (page.getShort(s+2) < record.length)
+      return false;
+    page = writePage(DATA_FILE,refPage(ref));
+    ByteBuffer b = page.duplicate();
+    b.position(page.getShort(s));
+    b.put(record);
+    page.putShort(s+2,(short) record.length);
+    return true;
+  }
+
+
+  private long insertOverflowRecord(byte[] record)
+  {
+    int chunk = PAGE_SIZE - P_DATA;
+    int first = NO_PAGE;
+    ByteBuffer previous = null;
+    for (int offset=0; offset<record.length; offset+=chunk)
+    {
+      int pageNo = allocateDataPage();
+      ByteBuffer page = writePage(DATA_FILE,pageNo);
+      int length = Math.min(chunk,record.length-offset);
+      page.put(P_KIND,PAGE_OVERFLOW);
+      page.putInt(P_NEXT,NO_PAGE);
+      page.putInt(P_LENGTH,length);
+      ByteBuffer b = page.duplicate();
+      b.position(P_DATA);
+      b.put(record,offset,length);
+      if (previous == null)
+        first = pageNo;
+      else
+        previous.putInt(P_NEXT,pageNo);
+      previous = page;
+    }
+    return makeRef(first,SLOT_OVERFLOW);
+  }
+
+
+  //Frees the space of the record. A slotted page without records
+  //and the overflow pages of a record are moved to the free list.
+  private void freeRecord(long ref)
+  {
+    int pageNo = refPage(ref);
+    if (refSlot(ref) == SLOT_OVERFLOW)
+    {
+      while (pageNo != NO_PAGE)
+      {
+        int next = readPage(DATA_FILE,pageNo).getInt(P_NEXT);
+        freeDataPage(pageNo);
+        pageNo = next;
+      }
+      return;
+    }
+
+    ByteBuffer page = writePage(DATA_FILE,pageNo);
+    int s = P_SLOTS + refSlot(ref)*SLOT_SIZE;
+    page.putShort(s,(short) 0);
+    page.putShort(s+2,(short) 0);
+    int slotCount = page.getShort(P_SLOT_COUNT);
+    while (slotCount > 0
+           && page.getShort(P_SLOTS+(slotCount-1)*SLOT_SIZE) == 0)
+      slotCount--;
+    page.putShort(P_SLOT_COUNT,(short) slotCount);
+    if (slotCount == 0)
+      freeDataPage(pageNo);
+  }
+
+
+  private int allocateDataPage()
+  {
+    ByteBuffer h = writePage(NODE_FILE,0);
+    int pageNo = h.getInt(H_FREE_PAGE);
+    if (pageNo != NO_PAGE)
+      h.putInt(H_FREE_PAGE,readPage(DATA_FILE,pageNo).getInt(P_NEXT));
+    else
+    {
+      pageNo = h.getInt(H_DATA_PAGE_COUNT);
+      h.putInt(H_DATA_PAGE_COUNT,pageNo+1);
+    }
+    return pageNo;
+  }
+  private void freeDataPage(int pageNo)
+  {
+    ByteBuffer h = writePage(NODE_FILE,0);
+    ByteBuffer page = writePage(DATA_FILE,pageNo);
+    page.put(P_KIND,PAGE_FREE);
+    page.putInt(P_NEXT,h.getInt(H_FREE_PAGE));
+    h.putInt(H_FREE_PAGE,pageNo);
+  }
+// Records.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Class catalog.
+  //Returns the stored class for new nodes of the type c. A new
+  //stored class is added to the catalog if the type does not have
+  //one with its current fields.
+  private StoredClass currentStoredClass(Class<?> c)
+  throws Exception
+  {
+    StoredClass sc = currentStoredClasses.get(c);
+    if (sc != null)
+      return sc;
+
+    ArrayList<StoredClass> classes = allClasses();
+    for (int i=classes.size()-1; i>=0 && sc==null; --i)
+      if (classes.get(i).matches(c))
+        sc = classes.get(i);
+    if (sc == null)
+    {
+      sc = new StoredClass(FIRST_CLASS_ID+classes.size(),c);
+      newClasses.add(sc);
+    }
+    currentStoredClasses.put(c,sc);
+    return sc;
+  }
+
+
+  //Returns the stored classes of the catalog, including the classes
+  //added in the current transaction.
+  private ArrayList<StoredClass> allClasses()
+  {
+    ArrayList<StoredClass> classes =
+      new ArrayList<StoredClass>(data.classes);
+    if (newClasses != null)
+      classes.addAll(newClasses);
+    return classes;
+  }
+
+
+  private StoredClass storedClass(int classId)
+  {
+    int i = classId - FIRST_CLASS_ID;
+    if (i < data.classes.size())
+      return data.classes.get(i);
+    return newClasses.get(i-data.classes.size());
+  }
+
+
+  //The catalog record: the count of stored classes, and the stored
+  //classes written with StoredClass.addTo.
+  private void writeCatalog()
+  {
+    ArrayList<StoredClass> classes = allClasses();
+    ArrayList<Object> values = new ArrayList<Object>();
+    values.add(classes.size());
+    for (StoredClass sc : classes)
+      sc.addTo(values);
+    byte[] record = NodeRecords.encode(values);
+
+    ByteBuffer h = writePage(NODE_FILE,0);
+    long ref = h.getLong(H_CATALOG_REF);
+    if (refPage(ref) != NO_PAGE)
+      freeRecord(ref);
+    h.putLong(H_CATALOG_REF,insertRecord(record));
+  }
+
+
+  private void readCatalog()
+  {
+    long ref = readPage(NODE_FILE,0).getLong(H_CATALOG_REF);
+    if (refPage(ref) == NO_PAGE)
+      return;
+    ByteBuffer record = readRecord(ref);
+    record.getInt();
+    int count = (Integer) NodeRecords.readValue(record);
+    for (int i=0; i<count; ++i)
+      data.classes.add(StoredClass.read(FIRST_CLASS_ID+i,record));
+  }
+// Class catalog.
+//////////////////////////////////////////////////////////////////
+}
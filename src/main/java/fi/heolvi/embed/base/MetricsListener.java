@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+//The listener of the metrics of the object database. It is set with
+//TestDB.setMetricsListener, and it is told
+//
+//  - the time of each phase of the embed method, the garbage
+//    collection and the search (phaseFinished),
+//  - the counts of the white nodes and the gray nodes of each
+//    update (nodesCollected),
+//  - the count of seed garbage ids, the size of the graph Z and the
+//    count of garbage nodes removed by each garbage collection
+//    (garbageCollected),
+//  - the count of nodes loaded by each search (nodesLoaded),
+//  - each SQL statement executed and the count of rows written by
+//    the statements (statementExecuted and rowsWritten). These are
+//    told only by SQLiteNodeStore, the other node stores do not
+//    execute SQL.
+//
+//The methods are called by the thread executing the operation, so
+//the writer and the searches call them concurrently.
+//
+//The database asks isEnabled once at the beginning of each
+//operation, and the node store before each statement. When it
+//returns false, the other methods are not called, and the times
+//are not measured. The default listener NONE is never enabled.
+//MetricsRecorder is a listener collecting the metrics in counters
+//and histograms.
+public interface MetricsListener
+{
+  //The phases. The update phase of the embed method consists of
+  //collecting the white and the gray nodes (step 1 and step 2),
+  //handling the internal reference counts and copying the contents
+  //of the nodes to the database (step 3). The garbage collection
+  //phase follows the update phase, and it is also run by decrORC.
+  static final int PHASE_COLLECT = 0;
+  static final int PHASE_IRC = 1;
+  static final int PHASE_COPY = 2;
+  static final int PHASE_GC = 3;
+  static final int PHASE_SEARCH = 4;
+  static final int PHASE_COUNT = 5;
+
+  //The kinds of SQL statements. STATEMENT_OTHER is for example
+  //CREATE TABLE or PRAGMA.
+  static final int STATEMENT_SELECT = 0;
+  static final int STATEMENT_INSERT = 1;
+  static final int STATEMENT_UPDATE = 2;
+  static final int STATEMENT_DELETE = 3;
+  static final int STATEMENT_OTHER = 4;
+  static final int STATEMENT_KIND_COUNT = 5;
+
+  //The listener doing nothing.
+  static final MetricsListener NONE = new MetricsListener()
+  {
+    public boolean isEnabled()
+    {
+      return false;
+    }
+    public void phaseFinished(int phase, long nanos)
+    {
+    }
+    public void nodesCollected(int whiteNodes, int grayNodes)
+    {
+    }
+    public void garbageCollected(int seedCount, int sizeOfZ,
+                                 int garbageCount)
+    {
+    }
+    public void nodesLoaded(int count)
+    {
+    }
+    public void statementExecuted(int kind)
+    {
+    }
+    public void rowsWritten(int count)
+    {
+    }
+  };
+
+
+  boolean isEnabled();
+
+  //The phase (PHASE_...) took nanos nanoseconds.
+  void phaseFinished(int phase, long nanos);
+
+  //The update phase found the given counts of white nodes and gray
+  //nodes, for one root node or for all the root nodes of embedAll.
+  void nodesCollected(int whiteNodes, int grayNodes);
+
+  //The garbage collection started with seedCount seed garbage ids,
+  //walked sizeOfZ nodes in the graph Z and removed garbageCount
+  //nodes.
+  void garbageCollected(int seedCount, int sizeOfZ, int garbageCount);
+
+  //The search created count run-time nodes.
+  void nodesLoaded(int count);
+
+  //A statement of the kind (STATEMENT_...) was executed.
+  void statementExecuted(int kind);
+
+  //A statement inserted, updated or deleted count rows.
+  void rowsWritten(int count);
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.concurrent.atomic.*;
+
+//A metrics listener which collects the metrics in counters and
+//histograms, for example
+//
+//  MetricsRecorder metrics = new MetricsRecorder();
+//  db.setMetricsListener(metrics);
+//  ...
+//  System.out.println(metrics);
+//
+//The recorder can be disabled with setEnabled(false). Then the
+//database does not measure the times and does not call the
+//recorder, so a disabled recorder costs only a check per operation
+//and per statement.
+//
+//The counters and the histograms can be updated and read by many
+//threads at the same time.
+public class MetricsRecorder implements MetricsListener
+{
+  //A histogram of non-negative values. The values are counted in
+  //buckets by their magnitude: the bucket k has the values from
+  //2^(k-1) to 2^k-1, and the bucket 0 has the value 0. The count,
+  //the sum and the maximum of the values are exact, the percentiles
+  //are the upper bounds of the buckets.
+  public static class Histogram
+  {
+    private AtomicLongArray buckets = new AtomicLongArray(65);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+      buckets.incrementAndGet(64-Long.numberOfLeadingZeros(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long m = max.get();
+      while (value > m && !max.compareAndSet(m,value))
+        m = max.get();
+    }
+
+    public long getCount()
+    {
+      return count.get();
+    }
+    public long getSum()
+    {
+      return sum.get();
+    }
+    public long getMax()
+    {
+      return max.get();
+    }
+    public double getMean()
+    {
+      long n = count.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    //Returns the value below which the fraction p (0..1) of the
+    //values are, rounded up to the upper bound of its bucket.
+    public long getPercentile(double p)
+    {
+      long n = count.get();
+      if (n == 0)
+        return 0;
+      long rank = (long) Math.ceil(p*n);
+      long seen = 0;
+      for (int k=0; k<65; ++k)
+      {
+        seen += buckets.get(k);
+        if (seen >= rank && seen > 0)
+          return Math.min(k == 0 ? 0 : (1L << k) - 1, max.get());
+      }
+      return max.get();
+    }
+
+    public void reset()
+    {
+      for (int k=0; k<65; ++k)
+        buckets.set(k,0);
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+
+    public String toString()
+    {
+      return "count=" + getCount()
+        + ",mean=" + Math.round(getMean())
+        + ",p50=" + getPercentile(0.5)
+        + ",p99=" + getPercentile(0.99)
+        + ",max=" + getMax();
+    }
+  }
+
+
+  private volatile boolean enabled = true;
+
+  //Times of the phases in nanoseconds.
+  private Histogram[] phases = new Histogram[PHASE_COUNT];
+
+  //Counts of nodes of each update, garbage collection and search.
+  private Histogram whiteNodes = new Histogram();
+  private Histogram grayNodes = new Histogram();
+  private Histogram seedCounts = new Histogram();
+  private Histogram sizesOfZ = new Histogram();
+  private Histogram garbageCounts = new Histogram();
+  private Histogram loadedNodes = new Histogram();
+
+  //Counts of the SQL statements by their kind, and count of the
+  //rows written.
+  private AtomicLongArray statements =
+    new AtomicLongArray(STATEMENT_KIND_COUNT);
+  private AtomicLong rowsWritten = new AtomicLong();
+
+  private static final String[] PHASE_NAMES =
+    {"collect","irc","copy","gc","search"};
+  private static final String[] STATEMENT_NAMES =
+    {"select","insert","update","delete","other"};
+
+
+  public MetricsRecorder()
+  {
+    for (int i=0; i<PHASE_COUNT; ++i)
+      phases[i] = new Histogram();
+  }
+
+
+  public void setEnabled(boolean enabled)
+  {
+    this.enabled = enabled;
+  }
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+
+  public void phaseFinished(int phase, long nanos)
+  {
+    phases[phase].record(nanos);
+  }
+  public void nodesCollected(int whiteNodes, int grayNodes)
+  {
+    this.whiteNodes.record(whiteNodes);
+    this.grayNodes.record(grayNodes);
+  }
+  public void garbageCollected(int seedCount, int sizeOfZ,
+                               int garbageCount)
+  {
+    seedCounts.record(seedCount);
+    sizesOfZ.record(sizeOfZ);
+    garbageCounts.record(garbageCount);
+  }
+  public void nodesLoaded(int count)
+  {
+    loadedNodes.record(count);
+  }
+  public void statementExecuted(int kind)
+  {
+    statements.incrementAndGet(kind);
+  }
+  public void rowsWritten(int count)
+  {
+    rowsWritten.addAndGet(count);
+  }
+
+
+  //The histogram of the times of the phase (PHASE_...) in
+  //nanoseconds.
+  public Histogram getPhaseTimes(int phase)
+  {
+    return phases[phase];
+  }
+  public Histogram getWhiteNodes()
+  {
+    return whiteNodes;
+  }
+  public Histogram getGrayNodes()
+  {
+    return grayNodes;
+  }
+  public Histogram getSeedCounts()
+  {
+    return seedCounts;
+  }
+  public Histogram getSizesOfZ()
+  {
+    return sizesOfZ;
+  }
+  public Histogram getGarbageCounts()
+  {
+    return garbageCounts;
+  }
+  public Histogram getLoadedNodes()
+  {
+    return loadedNodes;
+  }
+  //The count of the statements of the kind (STATEMENT_...).
+  public long getStatementCount(int kind)
+  {
+    return statements.get(kind);
+  }
+  public long getRowsWritten()
+  {
+    return rowsWritten.get();
+  }
+
+
+  //Sets all the counters and histograms to zero.
+  public void reset()
+  {
+    for (Histogram h : phases)
+      h.reset();
+    whiteNodes.reset();
+    grayNodes.reset();
+    seedCounts.reset();
+    sizesOfZ.reset();
+    garbageCounts.reset();
+    loadedNodes.reset();
+    for (int i=0; i<STATEMENT_KIND_COUNT; ++i)
+      statements.set(i,0);
+    rowsWritten.set(0);
+  }
+
+
+  //Returns the metrics as text, a line for each histogram. The
+  //times are in nanoseconds.
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<PHASE_COUNT; ++i)
+      sb.append(PHASE_NAMES[i]).append(" ns: ")
+        .append(phases[i]).append("\n");
+    sb.append("white nodes: ").append(whiteNodes).append("\n");
+    sb.append("gray nodes: ").append(grayNodes).append("\n");
+    sb.append("seed garbage ids: ").append(seedCounts).append("\n");
+    sb.append("size of Z: ").append(sizesOfZ).append("\n");
+    sb.append("garbage removed: ").append(garbageCounts).append("\n");
+    sb.append("nodes loaded: ").append(loadedNodes).append("\n");
+    sb.append("statements:");
+    for (int i=0; i<STATEMENT_KIND_COUNT; ++i)
+      sb.append(" ").append(STATEMENT_NAMES[i])
+        .append("=").append(statements.get(i));
+    sb.append("\n");
+    sb.append("rows written: ").append(rowsWritten.get()).append("\n");
+    return sb.toString();
+  }
+}
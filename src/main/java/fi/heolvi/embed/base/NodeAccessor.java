@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+//The accessor of the fields of a Java type of node. TestDB reads and
+//writes the fields of the run-time nodes, creates the run-time nodes
+//and reads and sets their ids through the accessor, instead of
+//looking up the fields with reflection on each call.
+//
+//The accessor of a type is created when the type is used for the
+//first time, and then kept with the type (see of). It has a method
+//handle for reading and writing each field, and for the id field
+//and the default constructor. The handles are looked up and their
+//access is checked only once, and they are adapted to the types
+//Object and long, so that the id is read and written without
+//boxing. The id field of a type is int or long; an id which does
+//not fit an int field is an error (ArithmeticException).
+//
+//If the type has a generated NodeMapper, the accessor uses the
+//mapper instead of the handles, and no handles are created.
+class NodeAccessor
+{
+  private static final ClassValue<NodeAccessor> accessors =
+    new ClassValue<NodeAccessor>()
+  {
+    protected NodeAccessor computeValue(Class<?> c)
+    {
+      try
+      {
+        return new NodeAccessor(c);
+      }
+      catch (RuntimeException e)
+      {
+        throw e;
+      }
+      catch (Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  //The fields of the type, except the id field, in the order of
+  //Class.getDeclaredFields, and their type codes.
+  Field[] fields;
+  int[] typeCodes;
+
+  //The generated mapper of the type, null if the type does not have
+  //one.
+  NodeMapper mapper;
+
+  //Handles of the type (Object)Object for reading the fields and of
+  //the type (Object,Object)void for writing them. A setter is null
+  //if the field can not be written (a static final field).
+  private MethodHandle[] getters;
+  private MethodHandle[] setters;
+
+  //Handles of the types (Object)long and (Object,long)void for the id
+  //field, and of the type ()Object for the default constructor. The
+  //constructor is null if the type does not have one. A type
+  //without the id field is rejected when the accessor is created.
+  private MethodHandle idGetter;
+  private MethodHandle idSetter;
+  private MethodHandle constructor;
+
+  //Math.toIntExact, for writing an id in an int id field.
+  private static final MethodHandle TO_INT;
+  static
+  {
+    try
+    {
+      TO_INT = MethodHandles.lookup().findStatic
+        (Math.class,"toIntExact",
+         MethodType.methodType(int.class,long.class));
+    }
+    catch (Exception e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+
+  //Returns the accessor of the type c.
+  static NodeAccessor of(Class<?> c)
+  {
+    return accessors.get(c);
+  }
+
+
+  private NodeAccessor(Class<?> c)
+  throws Exception
+  {
+    Field[] allFields = c.getDeclaredFields();
+    int count = 0;
+    for (Field f : allFields)
+      if (!f.getName().equals("id"))
+        ++count;
+
+    //A type of node must have the id field, also if it has a
+    //generated mapper.
+    if (count == allFields.length)
+      throw new IllegalArgumentException
+        ("The node class "+c.getName()+" does not have the field id");
+
+    mapper = findMapper(c,allFields,count);
+    if (mapper != null)
+    {
+      fields = new Field[count];
+      for (int i=0; i<count; ++i)
+        fields[i] = c.getDeclaredField(mapper.getFieldNames()[i]);
+      typeCodes = mapper.getTypeCodes();
+      return;
+    }
+
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    fields = new Field[count];
+    typeCodes = new int[count];
+    getters = new MethodHandle[count];
+    setters = new MethodHandle[count];
+
+    int i = 0;
+    for (Field f : allFields)
+    {
+      f.setAccessible(true);
+      if (f.getName().equals("id"))
+      {
+        idGetter = lookup.unreflectGetter(f)
+          .asType(MethodType.methodType(long.class,Object.class));
+        idSetter = lookup.unreflectSetter(f);
+        if (f.getType() == int.class)
+          idSetter = MethodHandles.filterArguments(idSetter,1,TO_INT);
+        idSetter = idSetter.asType
+          (MethodType.methodType(void.class,Object.class,long.class));
+        continue;
+      }
+
+      fields[i] = f;
+      typeCodes[i] = TestDB.getTypeCodeOfFieldFromClass(f.getType());
+
+      MethodHandle getter = lookup.unreflectGetter(f);
+      MethodHandle setter = null;
+      try
+      {
+        setter = lookup.unreflectSetter(f);
+      }
+      catch (IllegalAccessException e)
+      {
+      }
+      //A static field does not take the node as a parameter.
+      if (Modifier.isStatic(f.getModifiers()))
+      {
+        getter = MethodHandles.dropArguments(getter,0,Object.class);
+        if (setter != null)
+          setter = MethodHandles.dropArguments(setter,0,Object.class);
+      }
+      getters[i] = getter.asType
+        (MethodType.methodType(Object.class,Object.class));
+      if (setter != null)
+        setters[i] = setter.asType
+          (MethodType.methodType(void.class,Object.class,Object.class));
+      ++i;
+    }
+
+    try
+    {
+      Constructor<?> cnstr = c.getDeclaredConstructor();
+      cnstr.setAccessible(true);
+      constructor = lookup.unreflectConstructor(cnstr)
+        .asType(MethodType.methodType(Object.class));
+    }
+    catch (NoSuchMethodException e)
+    {
+    }
+  }
+
+
+  //Returns the generated mapper of the type c, or null if c does
+  //not have a mapper or if the fields of the mapper are not the
+  //count fields of c other than id.
+  private static NodeMapper findMapper
+    (Class<?> c, Field[] allFields, int count)
+  throws Exception
+  {
+    String name = c.getName();
+    int dot = name.lastIndexOf('.');
+    String mapperName = name.substring(0,dot+1)
+      + name.substring(dot+1).replace('$','_') + "_NodeMapper";
+    Class<?> m;
+    try
+    {
+      m = Class.forName(mapperName,true,c.getClassLoader());
+    }
+    catch (ClassNotFoundException e)
+    {
+      return null;
+    }
+    NodeMapper mapper =
+      (NodeMapper) m.getDeclaredConstructor().newInstance();
+
+    HashSet<String> names = new HashSet<String>();
+    for (Field f : allFields)
+      names.add(f.getName());
+    String[] mapperNames = mapper.getFieldNames();
+    if (mapperNames.length != count)
+      return null;
+    for (String fieldName : mapperNames)
+      if (fieldName.equals("id") || !names.contains(fieldName))
+        return null;
+    return mapper;
+  }
+
+
+  long getId(Object p)
+  throws Exception
+  {
+    if (mapper != null)
+      return mapper.getId(p);
+    try
+    {
+      return (long) idGetter.invokeExact(p);
+    }
+    catch (Throwable e)
+    {
+      throw asException(e);
+    }
+  }
+  void setId(Object p, long id)
+  throws Exception
+  {
+    if (mapper != null)
+    {
+      mapper.setId(p,id);
+      return;
+    }
+    try
+    {
+      idSetter.invokeExact(p,id);
+    }
+    catch (Throwable e)
+    {
+      throw asException(e);
+    }
+  }
+
+
+  //Creates a node with the default constructor.
+  Object newInstance()
+  throws Exception
+  {
+    if (mapper != null)
+      return mapper.newNode();
+    try
+    {
+      return (Object) constructor.invokeExact();
+    }
+    catch (Throwable e)
+    {
+      throw asException(e);
+    }
+  }
+
+
+  //Returns the value of the field i of the node p.
+  Object get(Object p, int i)
+  throws Exception
+  {
+    if (mapper != null)
+      return mapper.getValue(p,i);
+    try
+    {
+      return (Object) getters[i].invokeExact(p);
+    }
+    catch (Throwable e)
+    {
+      throw asException(e);
+    }
+  }
+  //Sets the value of the field f of the node p. The field is one of
+  //the fields of the accessor, but it may be another instance of
+  //java.lang.reflect.Field for the same field.
+  void set(Object p, Field f, Object value)
+  throws Exception
+  {
+    int i = indexOfField(f);
+    if (mapper != null)
+    {
+      mapper.setValue(p,i,value);
+      return;
+    }
+    if (setters[i] == null)
+      throw new IllegalAccessException("Can not set field "+f);
+    try
+    {
+      setters[i].invokeExact(p,value);
+    }
+    catch (Throwable e)
+    {
+      throw asException(e);
+    }
+  }
+
+
+  //Adds the non-null nodes referred to by the pointer fields of the
+  //node p in children.
+  void addChildNodes(Object p, List<Object> children)
+  throws Exception
+  {
+    if (mapper != null)
+    {
+      mapper.addChildNodes(p,children);
+      return;
+    }
+    for (int i=0; i<fields.length; ++i)
+      if (TestDB.isPointerField(typeCodes[i]))
+      {
+        Object q = get(p,i);
+        if (q != null)
+          children.add(q);
+      }
+  }
+
+
+  int indexOfField(Field f)
+  {
+    for (int i=0; i<fields.length; ++i)
+      if (fields[i] == f)
+        return i;
+    for (int i=0; i<fields.length; ++i)
+      if (fields[i].equals(f))
+        return i;
+    throw new IllegalArgumentException("Unknown field "+f);
+  }
+
+
+  private static Exception asException(Throwable e)
+  {
+    if (e instanceof Error)
+      throw (Error) e;
+    if (e instanceof Exception)
+      return (Exception) e;
+    return new Exception(e);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.List;
+
+//The mapper of a Java type of fixed node, generated at compile time
+//by NodeMapperProcessor for a type annotated with EmbedNode. The
+//mapper of the type a.b.Friend is the class a.b.Friend_NodeMapper
+//(for a nested type the $ of its binary name is replaced with _).
+//
+//When the mapper of a type exists, the database uses it instead of
+//reflection: the fields of the type are known without looking them
+//up, the nodes are created and their fields read and written with
+//plain Java code, and SQLiteNodeStore creates the table of the type
+//and reads and writes its nodes with the SQL of the mapper. If the
+//mapper does not exist, or its fields differ from the fields of the
+//type (the type has been changed without running the processor
+//again), reflection is used, see NodeAccessor.
+//
+//The fields are numbered 0,1,.. in the order of getFieldNames. The
+//id field is not among them.
+public interface NodeMapper
+{
+  //The names of the fields of the type, except the id field, in
+  //the order of their declarations, and their type codes
+  //(TestDB.FIELD_TYPE_INT etc.). The arrays must not be modified.
+  String[] getFieldNames();
+  int[] getTypeCodes();
+
+  //The SQL statements of SQLiteNodeStore for the type: the DDL of
+  //the table of the type, the insert of an empty node with the
+  //parameter instanceId, the update of all the fields with the
+  //values of the fields and instanceId as the parameters, and the
+  //select of all the fields with the parameter instanceId. The
+  //update and the select are null if the type has no fields.
+  String getCreateTableSQL();
+  String getInsertSQL();
+  String getUpdateSQL();
+  String getSelectSQL();
+
+  //Creates a node with the default constructor.
+  Object newNode();
+
+  //The id is an int or a long in the type; the mapper widens it.
+  //Writing an id which does not fit an int id field throws an
+  //ArithmeticException.
+  long getId(Object p);
+  void setId(Object p, long id);
+
+  //Reads and writes the field i of the node p. The value of an int
+  //field is an Integer.
+  Object getValue(Object p, int i);
+  void setValue(Object p, int i, Object value);
+
+  //Adds the non-null nodes referred to by the pointer fields of the
+  //node p in children, in the order of the fields.
+  void addChildNodes(Object p, List<Object> children);
+}
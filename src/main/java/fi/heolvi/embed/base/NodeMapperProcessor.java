@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.*;
+import java.util.*;
+import javax.annotation.processing.*;
+import javax.lang.model.*;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.tools.*;
+
+//The annotation processor which generates a NodeMapper for each
+//Java type of fixed node annotated with EmbedNode. It is run with
+//javac when the types are compiled, for example
+//
+//  javac -processorpath <classes of fi.heolvi.embed.base>
+//        -processor fi.heolvi.embed.base.NodeMapperProcessor
+//        Friend.java Book.java
+//
+//and the mappers are compiled with the types.
+//
+//The mapper accesses the fields and the default constructor of the
+//type directly. Therefore they must not be private, the fields must
+//not be final, and a nested type must be static. The fields must
+//have the types supported for fixed nodes: int, Integer, String, a
+//list node type or a type of fixed node. Violations are reported as
+//compilation errors.
+@SupportedAnnotationTypes("fi.heolvi.embed.base.EmbedNode")
+public class NodeMapperProcessor extends AbstractProcessor
+{
+  public SourceVersion getSupportedSourceVersion()
+  {
+    return SourceVersion.latestSupported();
+  }
+
+
+  public boolean process(Set<? extends TypeElement> annotations,
+                         RoundEnvironment roundEnv)
+  {
+    for (Element e : roundEnv.getElementsAnnotatedWith(EmbedNode.class))
+    {
+      try
+      {
+        if (isValidNodeType(e))
+          generateMapper((TypeElement) e);
+      }
+      catch (IOException ex)
+      {
+        error(e,"Can not write the node mapper: "+ex);
+      }
+    }
+    return true;
+  }
+
+
+  //Reports an error and returns false, if the mapper can not be
+  //generated for the element.
+  private boolean isValidNodeType(Element e)
+  {
+    if (e.getKind() != ElementKind.CLASS)
+      return error(e,"@EmbedNode is allowed only for classes");
+    Set<Modifier> m = e.getModifiers();
+    if (m.contains(Modifier.PRIVATE) || m.contains(Modifier.ABSTRACT))
+      return error(e,"A node type must not be private or abstract");
+    if (e.getEnclosingElement().getKind() != ElementKind.PACKAGE
+        && !m.contains(Modifier.STATIC))
+      return error(e,"A nested node type must be static");
+
+    boolean hasConstructor = false;
+    boolean hasId = false;
+    for (Element member : e.getEnclosedElements())
+    {
+      if (member.getKind() == ElementKind.CONSTRUCTOR
+          && ((ExecutableElement) member).getParameters().isEmpty()
+          && !member.getModifiers().contains(Modifier.PRIVATE))
+        hasConstructor = true;
+      if (member.getKind() != ElementKind.FIELD)
+        continue;
+
+      if (member.getModifiers().contains(Modifier.PRIVATE)
+          || member.getModifiers().contains(Modifier.FINAL))
+        return error(member,"A field of a node type must not be"
+                            +" private or final");
+      if (member.getSimpleName().contentEquals("id"))
+      {
+        if (member.asType().getKind() != TypeKind.INT
+            && member.asType().getKind() != TypeKind.LONG)
+          return error(member,"The id field must be of type int or"
+                              +" long");
+        hasId = true;
+      }
+      else if (member.asType().getKind().isPrimitive()
+               && member.asType().getKind() != TypeKind.INT)
+        return error(member,"Unsupported type of field: "
+                            +member.asType());
+    }
+    if (!hasId)
+      return error(e,"A node type must have the field int id or"
+                     +" long id");
+    if (!hasConstructor)
+      return error(e,"A node type must have a default constructor"
+                     +" which is not private");
+    return true;
+  }
+
+
+  private void generateMapper(TypeElement type)
+  throws IOException
+  {
+    String packageName = processingEnv.getElementUtils()
+      .getPackageOf(type).getQualifiedName().toString();
+    String binaryName = processingEnv.getElementUtils()
+      .getBinaryName(type).toString();
+    String typeName = type.getQualifiedName().toString();
+    String mapperName = binaryName.substring
+      (packageName.isEmpty() ? 0 : packageName.length()+1)
+      .replace('$','_') + "_NodeMapper";
+    String tableName = binaryName.replace('.','_');
+
+    ArrayList<VariableElement> fields = new ArrayList<VariableElement>();
+    boolean isIntId = false;
+    for (Element member : type.getEnclosedElements())
+    {
+      if (member.getKind() != ElementKind.FIELD)
+        continue;
+      if (!member.getSimpleName().contentEquals("id"))
+        fields.add((VariableElement) member);
+      else
+        isIntId = member.asType().getKind() == TypeKind.INT;
+    }
+
+    StringBuilder names = new StringBuilder();
+    StringBuilder codes = new StringBuilder();
+    StringBuilder columns = new StringBuilder();
+    StringBuilder assignments = new StringBuilder();
+    for (VariableElement f : fields)
+    {
+      String sep = names.length() == 0 ? "" : ",";
+      String name = f.getSimpleName().toString();
+      names.append(sep).append("\"").append(name).append("\"");
+      codes.append(sep).append("TestDB.").append(typeCodeName(f));
+      columns.append(sep).append(name);
+      assignments.append(sep).append(name).append("=?");
+    }
+    String ddl = "CREATE TABLE "+tableName
+      +" (id INTEGER PRIMARY KEY AUTOINCREMENT,instanceId INTEGER";
+    for (VariableElement f : fields)
+      ddl += ","+f.getSimpleName()+" "+sqlType(f);
+    ddl += ")";
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile
+      ((packageName.isEmpty() ? "" : packageName+".")+mapperName,type);
+    PrintWriter out = new PrintWriter(file.openWriter());
+
+    if (!packageName.isEmpty())
+      out.println("package "+packageName+";");
+    out.println();
+    out.println("import java.util.List;");
+    out.println("import fi.heolvi.embed.base.*;");
+    out.println();
+    out.println("//Generated by NodeMapperProcessor from "+typeName+".");
+    out.println("//Do not edit.");
+    out.println("public final class "+mapperName+" implements NodeMapper");
+    out.println("{");
+    out.println("  private static final String[] FIELD_NAMES =");
+    out.println("    {"+names+"};");
+    out.println("  private static final int[] TYPE_CODES =");
+    out.println("    {"+codes+"};");
+    out.println();
+    out.println("  public String[] getFieldNames()");
+    out.println("  {");
+    out.println("    return FIELD_NAMES;");
+    out.println("  }");
+    out.println("  public int[] getTypeCodes()");
+    out.println("  {");
+    out.println("    return TYPE_CODES;");
+    out.println("  }");
+    out.println();
+    out.println("  public String getCreateTableSQL()");
+    out.println("  {");
+    out.println("    return \""+ddl+"\";");
+    out.println("  }");
+    out.println("  public String getInsertSQL()");
+    out.println("  {");
+    out.println("    return \"INSERT INTO "+tableName
+                +" (id,instanceId) VALUES(NULL,?)\";");
+    out.println("  }");
+    out.println("  public String getUpdateSQL()");
+    out.println("  {");
+    if (fields.isEmpty())
+      out.println("    return null;");
+    else
+      out.println("    return \"UPDATE "+tableName+" SET "+assignments
+                  +" WHERE instanceId=?\";");
+    out.println("  }");
+    out.println("  public String getSelectSQL()");
+    out.println("  {");
+    if (fields.isEmpty())
+      out.println("    return null;");
+    else
+      out.println("    return \"SELECT "+columns+" FROM "+tableName
+                  +" WHERE instanceId=?\";");
+    out.println("  }");
+    out.println();
+    out.println("  public Object newNode()");
+    out.println("  {");
+    out.println("    return new "+typeName+"();");
+    out.println("  }");
+    out.println("  public long getId(Object p)");
+    out.println("  {");
+    out.println("    return (("+typeName+") p).id;");
+    out.println("  }");
+    out.println("  public void setId(Object p, long id)");
+    out.println("  {");
+    out.println("    (("+typeName+") p).id = "
+                +(isIntId ? "Math.toIntExact(id);" : "id;"));
+    out.println("  }");
+    out.println();
+    out.println("  public Object getValue(Object p, int i)");
+    out.println("  {");
+    out.println("    "+typeName+" n = ("+typeName+") p;");
+    out.println("    switch (i)");
+    out.println("    {");
+    for (int i=0; i<fields.size(); ++i)
+      out.println("      case "+i+": return n."
+                  +fields.get(i).getSimpleName()+";");
+    out.println("    }");
+    out.println("    throw new IndexOutOfBoundsException(\"Field: \"+i);");
+    out.println("  }");
+    out.println("  public void setValue(Object p, int i, Object value)");
+    out.println("  {");
+    out.println("    "+typeName+" n = ("+typeName+") p;");
+    out.println("    switch (i)");
+    out.println("    {");
+    for (int i=0; i<fields.size(); ++i)
+      out.println("      case "+i+": n."+fields.get(i).getSimpleName()
+                  +" = ("+boxedType(fields.get(i))+") value; return;");
+    out.println("    }");
+    out.println("    throw new IndexOutOfBoundsException(\"Field: \"+i);");
+    out.println("  }");
+    out.println();
+    out.println("  public void addChildNodes(Object p, List<Object> children)");
+    out.println("  {");
+    out.println("    "+typeName+" n = ("+typeName+") p;");
+    for (VariableElement f : fields)
+    {
+      String code = typeCodeName(f);
+      if (!code.equals("FIELD_TYPE_FIXED_NODE")
+          && !code.equals("FIELD_TYPE_LIST_NODE"))
+        continue;
+      String name = "n."+f.getSimpleName();
+      out.println("    if ("+name+" != null)");
+      out.println("      children.add("+name+");");
+    }
+    out.println("  }");
+    out.println("}");
+    out.close();
+  }
+
+
+  //The name of the constant of the type code of the field in TestDB,
+  //as in TestDB.getTypeCodeOfFieldFromClass.
+  private String typeCodeName(VariableElement f)
+  {
+    TypeMirror t = f.asType();
+    if (t.getKind() == TypeKind.INT)
+      return "FIELD_TYPE_INT";
+    String name = processingEnv.getTypeUtils().erasure(t).toString();
+    if (name.equals("java.lang.Integer"))
+      return "FIELD_TYPE_INTEGER";
+    if (name.equals("java.lang.String"))
+      return "FIELD_TYPE_STRING";
+    if (name.equals(ListNode.class.getName())
+        || name.equals(PagedListNode.class.getName())
+        || name.equals(IntListNode.class.getName())
+        || name.equals(StringListNode.class.getName()))
+      return "FIELD_TYPE_LIST_NODE";
+    return "FIELD_TYPE_FIXED_NODE";
+  }
+
+
+  //The SQL type of the column of the field, as in SQLiteNodeStore.
+  private String sqlType(VariableElement f)
+  {
+    return typeCodeName(f).equals("FIELD_TYPE_STRING")
+      ? "TEXT" : "INTEGER";
+  }
+
+
+  //The type to which a value is cast when it is set in the field.
+  private String boxedType(VariableElement f)
+  {
+    if (f.asType().getKind() == TypeKind.INT)
+      return "Integer";
+    return processingEnv.getTypeUtils().erasure(f.asType()).toString();
+  }
+
+
+  private boolean error(Element e, String message)
+  {
+    processingEnv.getMessager().printMessage
+      (Diagnostic.Kind.ERROR,message,e);
+    return false;
+  }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+//The binary format of the nodes in the file based node stores,
+//MappedNodeStore and LogNodeStore, and of the BLOBs of lists in
+//SQLiteNodeStore.
+//
+//Format of a record:
+//  int count of values, followed by the values. For a fixed node
+//  the values are in the order of the field names of its
+//  StoredClass, for a list node they are the items of the list.
+//  A value is a tag byte (TAG_*) followed by the data of the value:
+//    TAG_NULL                       no data
+//    TAG_INT                        int
+//    TAG_STRING                     int length, UTF-8 bytes
+//    TAG_FIXED_NODE, TAG_LIST_NODE  int id of the node
+//    TAG_FIXED_NODE_LONG,           long id of the node, used when
+//    TAG_LIST_NODE_LONG             the id does not fit an int
+//
+//The ids of the nodes are read as Longs, the other numbers as
+//Integers. The records written before the long tags existed have
+//only int ids, and they are read in the same way.
+//
+//The list nodes of primitive items, IntListNode and StringListNode,
+//have stored classes without fields (see StoredClass.isPrimitiveList)
+//and their records have no tags:
+//  IntListNode     int count of items, the items as ints.
+//  StringListNode  int count of items, for each item int length
+//                  (-1 for a null item) and UTF-8 bytes.
+//An empty list has the same record as a fixed node without fields.
+//
+//The packed format of a ListNode in SQLiteNodeStore (see
+//encodePackedList) uses variable length ints (varints, 7 bits in a
+//byte, the lowest bits first) to keep small ids and type codes in
+//one byte. The ids are written as varlongs, which have the same
+//format, so an id below 2^31 has the same bytes in both:
+//  varint count of items, followed by the items. An item is the
+//  varint type code (FIELD_TYPE_*) followed by the data of the
+//  item:
+//    FIELD_TYPE_NONE                        no data
+//    FIELD_TYPE_INTEGER                     zigzag varint
+//    FIELD_TYPE_STRING                      varint length, UTF-8 bytes
+//    FIELD_TYPE_FIXED_NODE, _LIST_NODE      varlong id of the node
+//
+//The records are read from a ByteBuffer positioned at the beginning
+//of the record.
+class NodeRecords
+{
+  static final byte TAG_NULL = 0;
+  static final byte TAG_INT = 1;
+  static final byte TAG_STRING = 2;
+  static final byte TAG_FIXED_NODE = 3;
+  static final byte TAG_LIST_NODE = 4;
+  static final byte TAG_FIXED_NODE_LONG = 5;
+  static final byte TAG_LIST_NODE_LONG = 6;
+
+
+//////////////////////////////////////////////////////////////////
+// Records.
+  //Returns a record of a fixed node of the stored class with null
+  //values.
+  static byte[] emptyRecord(StoredClass sc)
+  {
+    int count = sc.fieldNames.length;
+    return encode(new Object[count],new byte[count]);
+  }
+
+
+  //Returns a record of an empty list node.
+  static byte[] emptyListRecord()
+  {
+    return encode(new Object[0],new byte[0]);
+  }
+
+
+  //Returns the fields of a record selected with the selector. The
+  //stored class sc is null for a list node. The stored class must
+  //be resolved.
+  static ArrayList<FieldT> readFields
+    (ByteBuffer record, StoredClass sc, int selector)
+  throws Exception
+  {
+    if (sc != null && sc.c == IntListNode.class)
+      return TestDB.getFields
+        (sc.c,new IntListNode(decodeIntList(record)),selector);
+    if (sc != null && sc.c == StringListNode.class)
+      return TestDB.getFields
+        (sc.c,new StringListNode(decodeStringList(record)),selector);
+
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+    int count = record.getInt();
+    for (int i=0; i<count; ++i)
+    {
+      byte tag = record.get();
+      Object value = readValue(tag,record);
+      if (sc == null)
+      {
+        int typeCode = typeCodeOfTag(tag);
+        if (isSelected(typeCode,selector))
+          fields.add(new FieldT(i,typeCode,value));
+      }
+      else if (sc.fields[i] != null
+               && isSelected(sc.typeCodes[i],selector))
+        fields.add(new FieldT(sc.fields[i],sc.typeCodes[i],value));
+    }
+    return fields;
+  }
+
+
+  //Returns a new record of a fixed node of the stored class sc,
+  //where the given fields are written over the old record. The
+  //fields not given keep their values.
+  static byte[] writeFields
+    (ByteBuffer oldRecord, StoredClass sc, ArrayList<FieldT> fields)
+  {
+    Object[] values = new Object[sc.fieldNames.length];
+    byte[] tags = new byte[values.length];
+    int count = oldRecord.getInt();
+    for (int i=0; i<count; ++i)
+    {
+      tags[i] = oldRecord.get();
+      values[i] = readValue(tags[i],oldRecord);
+    }
+    for (FieldT f : fields)
+    {
+      int i = sc.indexOfField(((Field) f.field).getName());
+      if (i < 0)
+        continue;
+      values[i] = f.value;
+      tags[i] = tagOfValue(f.typeCode,f.value);
+    }
+    return encode(values,tags);
+  }
+
+
+  //Returns a record of a list node with the given items.
+  static byte[] writeListFields(ArrayList<FieldT> fields)
+  {
+    Object[] values = new Object[fields.size()];
+    byte[] tags = new byte[values.length];
+    for (FieldT f : fields)
+    {
+      int pos = (Integer) f.field;
+      values[pos] = f.value;
+      tags[pos] = tagOfValue(f.typeCode,f.value);
+    }
+    return encode(values,tags);
+  }
+
+
+  //Returns the ids of the child nodes in a record of the stored
+  //class sc, null for a list node.
+  static LongList readIdsOfNonNullChildNodes
+    (ByteBuffer record, StoredClass sc)
+  {
+    //The items of a list node of primitive items are not read.
+    if (sc != null && sc.isPrimitiveList())
+      return new LongList(1);
+
+    int count = record.getInt();
+    LongList ids = new LongList(count);
+    for (int i=0; i<count; ++i)
+    {
+      byte tag = record.get();
+      Object value = readValue(tag,record);
+      if (isNodeTag(tag))
+      {
+        long idChild = (Long) value;
+        if (idChild != TestDB.ID_NULL_NODE)
+          ids.add(idChild);
+      }
+    }
+    return ids;
+  }
+
+
+  //Returns true, if the value at the index in the record equals
+  //value, see valuesEqual.
+  static boolean valueEquals(ByteBuffer record, int index, Object value)
+  {
+    int count = record.getInt();
+    if (index >= count)
+      return false;
+    for (int i=0; i<index; ++i)
+      skipValue(record.get(),record);
+    return valuesEqual(readValue(record.get(),record),value);
+  }
+
+
+  //Returns the values at the indexes in the record of a fixed node.
+  //The indexes are different, except -1. The value is null for the
+  //index -1 and for an index past the values of the record.
+  static Object[] readValues(ByteBuffer record, int[] indexes)
+  {
+    Object[] values = new Object[indexes.length];
+    int last = -1;
+    for (int index : indexes)
+      last = Math.max(last,index);
+    int count = Math.min(record.getInt(),last+1);
+    for (int i=0; i<count; ++i)
+    {
+      byte tag = record.get();
+      int k = 0;
+      while (k < indexes.length && indexes[k] != i)
+        ++k;
+      if (k < indexes.length)
+        values[k] = readValue(tag,record);
+      else
+        skipValue(tag,record);
+    }
+    return values;
+  }
+
+
+  static byte[] encodeIntList(int[] items, int size)
+  {
+    ByteBuffer record = ByteBuffer.allocate(4+4*size);
+    record.putInt(size);
+    for (int i=0; i<size; ++i)
+      record.putInt(items[i]);
+    return record.array();
+  }
+  static int[] decodeIntList(ByteBuffer record)
+  {
+    int[] items = new int[record.getInt()];
+    record.asIntBuffer().get(items);
+    record.position(record.position()+4*items.length);
+    return items;
+  }
+
+
+  static byte[] encodeStringList(String[] items, int size)
+  {
+    byte[][] bytes = new byte[size][];
+    int length = 4+4*size;
+    for (int i=0; i<size; ++i)
+      if (items[i] != null)
+      {
+        bytes[i] = items[i].getBytes(StandardCharsets.UTF_8);
+        length += bytes[i].length;
+      }
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.putInt(size);
+    for (int i=0; i<size; ++i)
+    {
+      if (bytes[i] == null)
+        record.putInt(-1);
+      else
+        record.putInt(bytes[i].length).put(bytes[i]);
+    }
+    return record.array();
+  }
+  static String[] decodeStringList(ByteBuffer record)
+  {
+    String[] items = new String[record.getInt()];
+    for (int i=0; i<items.length; ++i)
+    {
+      int length = record.getInt();
+      if (length < 0)
+        continue;
+      byte[] s = new byte[length];
+      record.get(s);
+      items[i] = new String(s,StandardCharsets.UTF_8);
+    }
+    return items;
+  }
+// Records.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Packed lists.
+  //Returns the packed format of a list with the given items. The
+  //fields are in the order of their positions, and a pointer field
+  //contains the id of the node.
+  static byte[] encodePackedList(List<FieldT> fields)
+  {
+    ByteArrayOutputStream out =
+      new ByteArrayOutputStream(1+3*fields.size());
+    writeVarint(out,fields.size());
+    for (FieldT f : fields)
+    {
+      writeVarint(out,f.typeCode);
+      if (f.typeCode == TestDB.FIELD_TYPE_INTEGER)
+      {
+        int v = (Integer) f.value;
+        writeVarint(out,(v << 1) ^ (v >> 31));
+      }
+      else if (f.typeCode == TestDB.FIELD_TYPE_STRING)
+      {
+        byte[] s = ((String) f.value).getBytes(StandardCharsets.UTF_8);
+        writeVarint(out,s.length);
+        out.write(s,0,s.length);
+      }
+      else if (TestDB.isPointerField(f.typeCode))
+        writeVarlong(out,((Number) f.value).longValue());
+    }
+    return out.toByteArray();
+  }
+
+
+  //Returns the items of a packed list selected with the selector.
+  static ArrayList<FieldT> decodePackedList
+    (ByteBuffer packed, int selector)
+  {
+    int count = readVarint(packed);
+    ArrayList<FieldT> fields = new ArrayList<FieldT>(count);
+    for (int pos=0; pos<count; ++pos)
+    {
+      int typeCode = readVarint(packed);
+      Object value = null;
+      if (typeCode == TestDB.FIELD_TYPE_INTEGER)
+      {
+        int v = readVarint(packed);
+        value = (v >>> 1) ^ -(v & 1);
+      }
+      else if (typeCode == TestDB.FIELD_TYPE_STRING)
+      {
+        byte[] s = new byte[readVarint(packed)];
+        packed.get(s);
+        value = new String(s,StandardCharsets.UTF_8);
+      }
+      else if (TestDB.isPointerField(typeCode))
+        value = readVarlong(packed);
+      if (isSelected(typeCode,selector))
+        fields.add(new FieldT(pos,typeCode,value));
+    }
+    return fields;
+  }
+
+
+  //Returns the ids of the child nodes of a packed list, without
+  //creating the items.
+  static LongList readIdsOfNonNullChildNodesOfPackedList
+    (ByteBuffer packed)
+  {
+    int count = readVarint(packed);
+    LongList ids = new LongList(count);
+    for (int pos=0; pos<count; ++pos)
+    {
+      int typeCode = readVarint(packed);
+      if (typeCode == TestDB.FIELD_TYPE_INTEGER)
+        readVarint(packed);
+      else if (typeCode == TestDB.FIELD_TYPE_STRING)
+      {
+        int length = readVarint(packed);
+        packed.position(packed.position()+length);
+      }
+      else if (TestDB.isPointerField(typeCode))
+      {
+        long idChild = readVarlong(packed);
+        if (idChild != TestDB.ID_NULL_NODE)
+          ids.add(idChild);
+      }
+    }
+    return ids;
+  }
+
+
+  //Returns the ids as a varint count followed by the varlong ids.
+  static byte[] encodeIds(LongList ids)
+  {
+    ByteArrayOutputStream out =
+      new ByteArrayOutputStream(1+3*ids.size());
+    writeVarint(out,ids.size());
+    for (int i=0; i<ids.size(); ++i)
+      writeVarlong(out,ids.get(i));
+    return out.toByteArray();
+  }
+  //Adds the ids written with encodeIds to the list ids.
+  static void decodeIds(ByteBuffer encoded, LongList ids)
+  {
+    int count = readVarint(encoded);
+    for (int i=0; i<count; ++i)
+      ids.add(readVarlong(encoded));
+  }
+
+
+  static void writeVarint(ByteArrayOutputStream out, int value)
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+  static int readVarint(ByteBuffer in)
+  {
+    int value = 0;
+    for (int shift=0; ; shift+=7)
+    {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return value;
+    }
+  }
+  static void writeVarlong(ByteArrayOutputStream out, long value)
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+  static long readVarlong(ByteBuffer in)
+  {
+    long value = 0;
+    for (int shift=0; ; shift+=7)
+    {
+      byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0)
+        return value;
+    }
+  }
+// Packed lists.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Values.
+  static byte[] encode(Object[] values, byte[] tags)
+  {
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(values.length);
+      for (int i=0; i<values.length; ++i)
+      {
+        out.writeByte(tags[i]);
+        if (tags[i] == TAG_INT
+            || tags[i] == TAG_FIXED_NODE || tags[i] == TAG_LIST_NODE)
+          out.writeInt(((Number) values[i]).intValue());
+        else if (tags[i] == TAG_FIXED_NODE_LONG
+                 || tags[i] == TAG_LIST_NODE_LONG)
+          out.writeLong(((Number) values[i]).longValue());
+        else if (tags[i] == TAG_STRING)
+        {
+          byte[] s = ((String) values[i]).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(s.length);
+          out.write(s);
+        }
+      }
+      return bytes.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e); //Should not happen.
+    }
+  }
+
+
+  //Returns a record of scalar values. Used for the other records of
+  //the stores than nodes, for example the stored classes.
+  static byte[] encode(List<Object> values)
+  {
+    byte[] tags = new byte[values.size()];
+    for (int i=0; i<tags.length; ++i)
+      tags[i] = tagOfValue(TestDB.FIELD_TYPE_NONE,values.get(i));
+    return encode(values.toArray(),tags);
+  }
+
+
+  //Reads the data of a value with the tag from the record.
+  static Object readValue(byte tag, ByteBuffer record)
+  {
+    if (tag == TAG_NULL)
+      return null;
+    if (tag == TAG_STRING)
+    {
+      byte[] s = new byte[record.getInt()];
+      record.get(s);
+      return new String(s,StandardCharsets.UTF_8);
+    }
+    if (tag == TAG_FIXED_NODE || tag == TAG_LIST_NODE)
+      return (long) record.getInt();
+    if (tag == TAG_FIXED_NODE_LONG || tag == TAG_LIST_NODE_LONG)
+      return record.getLong();
+    return record.getInt();
+  }
+
+
+  //Reads the next value with its tag from the record.
+  static Object readValue(ByteBuffer record)
+  {
+    return readValue(record.get(),record);
+  }
+
+
+  //Skips the data of a value with the tag in the record.
+  static void skipValue(byte tag, ByteBuffer record)
+  {
+    if (tag == TAG_STRING)
+    {
+      //The length is read before the position after it.
+      int length = record.getInt();
+      record.position(record.position()+length);
+    }
+    else if (tag == TAG_FIXED_NODE_LONG || tag == TAG_LIST_NODE_LONG)
+      record.position(record.position()+8);
+    else if (tag != TAG_NULL)
+      record.position(record.position()+4);
+  }
+
+
+  //Returns the tag of a value in a field with the type code. A
+  //pointer field contains the id of the node as a Long; the long
+  //tags are used only for the ids which do not fit an int. A
+  //scalar value other than Integer is stored as a string.
+  static byte tagOfValue(int typeCode, Object value)
+  {
+    if (TestDB.isPointerField(typeCode))
+    {
+      long id = ((Number) value).longValue();
+      boolean isInt = id == (int) id;
+      if (typeCode == TestDB.FIELD_TYPE_FIXED_NODE)
+        return isInt ? TAG_FIXED_NODE : TAG_FIXED_NODE_LONG;
+      return isInt ? TAG_LIST_NODE : TAG_LIST_NODE_LONG;
+    }
+    if (value == null)
+      return TAG_NULL;
+    if (value instanceof Integer)
+      return TAG_INT;
+    return TAG_STRING;
+  }
+
+
+  //Returns the type code of an item of a list with the tag, the same
+  //which TestDB gives to the item when it is in the run-time list.
+  static int typeCodeOfTag(byte tag)
+  {
+    if (tag == TAG_INT)
+      return TestDB.FIELD_TYPE_INTEGER;
+    if (tag == TAG_STRING)
+      return TestDB.FIELD_TYPE_STRING;
+    if (tag == TAG_FIXED_NODE || tag == TAG_FIXED_NODE_LONG)
+      return TestDB.FIELD_TYPE_FIXED_NODE;
+    if (tag == TAG_LIST_NODE || tag == TAG_LIST_NODE_LONG)
+      return TestDB.FIELD_TYPE_LIST_NODE;
+    return TestDB.FIELD_TYPE_NONE;
+  }
+
+
+  static boolean isNodeTag(byte tag)
+  {
+    return tag == TAG_FIXED_NODE || tag == TAG_LIST_NODE
+      || tag == TAG_FIXED_NODE_LONG || tag == TAG_LIST_NODE_LONG;
+  }
+
+
+  static boolean isSelected(int typeCode, int selector)
+  {
+    return (TestDB.isPointerField(typeCode) &&
+             (selector == 0 || selector == 1))
+        || (TestDB.isScalarField(typeCode) &&
+             (selector == 0 || selector == 2));
+  }
+
+
+  //Compares a value in the store with a search value. Like in the
+  //SQLite database, a number and its string presentation are
+  //equal, for example 23 and "23".
+  static boolean valuesEqual(Object valueInStore, Object value)
+  {
+    if (valueInStore == null || value == null)
+      return false;
+    return valueInStore.equals(value)
+      || valueInStore.toString().equals(value.toString());
+  }
+// Values.
+//////////////////////////////////////////////////////////////////
+}
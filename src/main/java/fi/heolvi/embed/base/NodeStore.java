@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.ArrayList;
+
+//This is the interface of the underlying data store of the object
+//database. TestDB implements the embed method, the garbage
+//collection and the search on top of the operations of this
+//interface, and it does not know how the nodes are stored.
+//
+//Four implementations are included:
+//  SQLiteNodeStore stores the nodes in an SQLite database.
+//  HeapNodeStore stores the nodes in the heap of the Java virtual
+//  machine. The content is lost when the store is closed.
+//  MappedNodeStore stores the nodes in memory-mapped files, where a
+//  node is found directly by its id.
+//  LogNodeStore appends the changes of the nodes to a log, for
+//  write-heavy work loads.
+//
+//A node store instance is used by one thread at a time. TestDB
+//uses one instance for writing, and gets instances for reading
+//with the method openReader.
+//
+//In the operations below a node is identified by its id, a
+//positive 64-bit integer. A store may limit the range of the ids
+//it allocates (see MappedNodeStore). The fields of the nodes are
+//exchanged in the structure FieldT. In the store a pointer field
+//contains the id (Long) of the referred node, or ID_NULL_NODE if
+//the field refers to a null node. A scalar field contains its
+//value as such.
+//
+//The selector parameters have the same values as elsewhere:
+//0 = Pointer fields and scalar fields.
+//1 = Only pointer fields.
+//2 = Only scalar fields.
+public interface NodeStore
+{
+  //Returns a new instance for reading the same data. The new
+  //instance can be used in another thread concurrently with this
+  //instance. Between beginTransaction and rollbackTransaction the
+  //reader sees one consistent committed state of the data.
+  NodeStore openReader()
+  throws Exception;
+
+  //Closes this instance. Closing the writing instance closes the
+  //store.
+  void close()
+  throws Exception;
+
+  //Sets the listener told of the statements executed and the rows
+  //written by this instance and by the readers opened from it, see
+  //MetricsListener. A store which does not execute statements
+  //ignores the listener.
+  void setMetricsListener(MetricsListener listener);
+
+
+  //Transactions. All the other operations are called inside a
+  //transaction. A reader ends its transaction always with
+  //rollbackTransaction.
+  void beginTransaction()
+  throws Exception;
+  void commitTransaction()
+  throws Exception;
+  void rollbackTransaction()
+  throws Exception;
+
+
+  //Prepares the store for the fixed nodes of the type c, so that
+  //allocating the first node of the type does no more work than
+  //allocating the others. For example SQLiteNodeStore creates the
+  //table of the type. Registering a type again does nothing.
+  void registerClass(Class<?> c)
+  throws Exception;
+
+  //Allocates an empty fixed node of the type c, and returns its
+  //id. The id has not been used before in the store. The orc and
+  //the irc of the new node are zero.
+  long allocateFixedNode(Class<?> c)
+  throws Exception;
+
+  //Allocates an empty list node of the type c and returns its id,
+  //like allocateFixedNode. The type is ListNode.class, or
+  //IntListNode.class or StringListNode.class for a list node of
+  //primitive items.
+  long allocateListNode(Class<?> c)
+  throws Exception;
+
+  //Returns the Java type of the node, ListNode.class,
+  //IntListNode.class or StringListNode.class for a list node.
+  Class<?> readClassOfNode(long id)
+  throws Exception;
+
+
+  //Returns the fields of the node selected with the selector. For
+  //a fixed node FieldT.field is the java.lang.reflect.Field of the
+  //field and for a list node the position of the item.
+  ArrayList<FieldT> readFields(long id, int selector)
+  throws Exception;
+
+  //Returns the count of items of a list node.
+  int readListLength(long id)
+  throws Exception;
+
+  //Returns the items of a list node at the positions fromPos to
+  //toPos-1, selected with the selector like in readFields. A store
+  //reads only the part of the list containing the positions if it
+  //can.
+  ArrayList<FieldT> readListFields
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception;
+
+  //Writes the fields of the node. The type of the node is c. For a
+  //fixed node the values of the given fields are written. For a
+  //list node the items of the list are replaced with the given
+  //fields, in the order of their positions.
+  void writeFields(long id, Class<?> c, ArrayList<FieldT> fields)
+  throws Exception;
+
+  //Writes the given fields in a list node at their positions,
+  //replacing the items at these positions. The other items are not
+  //changed. The positions are consecutive and start at a position
+  //not greater than the count of items; if they go past the end of
+  //the list, the list is extended. A store writes only the part of
+  //the list containing the positions if it can.
+  void writeListFields(long id, ArrayList<FieldT> fields)
+  throws Exception;
+
+  //The items of a list node of primitive items, IntListNode or
+  //StringListNode, are written and read as a whole array, without
+  //a FieldT and a type code for each item. The write replaces the
+  //items of the list with the first size items of the array.
+  //writeFields is not used for these list nodes, but readFields
+  //returns their items like the items of a ListNode.
+  void writeIntListItems(long id, int[] items, int size)
+  throws Exception;
+  int[] readIntListItems(long id)
+  throws Exception;
+  void writeStringListItems(long id, String[] items, int size)
+  throws Exception;
+  String[] readStringListItems(long id)
+  throws Exception;
+
+  //Returns the ids of non-null child nodes of the node. If the
+  //node refers several times to the same child node, the id of the
+  //child node is as many times in the list.
+  LongList readIdsOfNonNullChildNodes(long id)
+  throws Exception;
+
+
+  //Outer reference count (orc) and internal reference count (irc)
+  //of a node.
+  int readORC(long id)
+  throws Exception;
+  int readIRC(long id)
+  throws Exception;
+  void incrORC(long id)
+  throws Exception;
+  void decrORC(long id)
+  throws Exception;
+  void incrIRC(long id)
+  throws Exception;
+  void decrIRC(long id)
+  throws Exception;
+
+
+  //Deletes the node, in a flat way. The nodes referred to by the
+  //node are not affected.
+  void deleteNode(long id)
+  throws Exception;
+
+
+  //Returns the id of a fixed node of the type c whose scalar field
+  //fieldName equals value, or ID_NULL_NODE if no such node exists.
+  //If several nodes match, the one found first is returned.
+  long findFixedNode(Class<?> c, String fieldName, Object value)
+  throws Exception;
+
+  //Returns the ids of the fixed nodes of the type of the query which
+  //satisfy its conditions, in the order of the query (see Query).
+  //The operands are the operands of the conditions with the
+  //arguments of the query bound, see Query.bind.
+  LongList findFixedNodes(Query<?> query, Object[][] operands)
+  throws Exception;
+
+
+  //The pending ids of an embed session (see EmbedSession), i.e.
+  //the ids of the nodes allocated by the session whose content has
+  //not been written yet. The session may leave very many ids
+  //pending, so a store keeps them outside the heap if it can. The
+  //pending ids belong to the current write transaction, and they
+  //are discarded when it ends.
+  void addPendingId(long id)
+  throws Exception;
+
+  //Removes the id from the pending ids. Returns false if the id was
+  //not pending.
+  boolean removePendingId(long id)
+  throws Exception;
+
+  int countPendingIds()
+  throws Exception;
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.*;
+
+//A list node loaded from the database in pages. The search method
+//returns a long list node as a PagedListNode when paged loading
+//has been set with TestDB.setPagedLists. It is a ListNode, so it
+//can be in a field of type ListNode, but its items are not in the
+//field list (which is null). They are read with the methods get,
+//set, add and size.
+//
+//The items are read from the database in pages of pageSize items,
+//when an item of the page is first needed. At most
+//maxResidentPages pages are kept in the memory; when there are
+//more, the least recently used page is dropped and read again if it
+//is needed again. A page is read in its own read transaction, but
+//the nodes are loaded with the map of the search which loaded the
+//list: a node which has already been loaded by the search, or by an
+//earlier page, is the same Java object, so each id has one object.
+//The nodes loaded later are added to the map, so the map is kept as
+//long as the list.
+//
+//A page where items have been set or added is dirty. Dirty pages
+//are kept in the memory until the list has been embedded. The embed
+//method writes only the dirty pages of the list, and only the
+//items of these pages are reached from the list when the modified
+//nodes are collected. A node which is reached only through a
+//dropped page is not embedded with the list, so changes made to it
+//must be embedded before reading other pages. (If the page is read
+//again, the node is the same object.)
+//
+//Items can be appended, but not inserted or removed, because that
+//would move all the following items.
+public class PagedListNode extends ListNode
+{
+  //The database the pages are read from.
+  TestDB db;
+
+  //The nodes loaded by the search which loaded the list (see
+  //SearchContext.readNodes), shared by all its paged list nodes.
+  //The pages are loaded holding the lock of the map.
+  LongObjectMap<Object> readNodes;
+
+  int pageSize;
+  int maxResidentPages;
+
+  //Count of items in the list, and in the list in the database.
+  //These differ when items have been appended but not embedded.
+  int size;
+  int storedSize;
+
+  //The pages in the memory by the page number, in the order of
+  //their use. Page k has the items at the positions from
+  //k*pageSize on.
+  LinkedHashMap<Integer,ArrayList<Object>> pages =
+    new LinkedHashMap<Integer,ArrayList<Object>>(16,0.75f,true);
+
+  //Numbers of the dirty pages.
+  TreeSet<Integer> dirtyPages = new TreeSet<Integer>();
+
+
+  PagedListNode(TestDB db, LongObjectMap<Object> readNodes, long id,
+                int size, int pageSize, int maxResidentPages)
+  {
+    this.db = db;
+    this.readNodes = readNodes;
+    this.id = id;
+    this.size = size;
+    this.storedSize = size;
+    this.pageSize = pageSize;
+    this.maxResidentPages = maxResidentPages;
+    list = null;
+  }
+
+
+  public int size()
+  {
+    return size;
+  }
+  public Object get(int index)
+  {
+    checkIndex(index);
+    return page(index/pageSize).get(index%pageSize);
+  }
+  public Object set(int index, Object element)
+  {
+    checkIndex(index);
+    int k = index/pageSize;
+    Object old = page(k).set(index%pageSize,element);
+    dirtyPages.add(k);
+    return old;
+  }
+  public void add(Object o)
+  {
+    int k = size/pageSize;
+    page(k).add(o);
+    dirtyPages.add(k);
+    ++size;
+  }
+  public Object remove(int index)
+  {
+    throw new UnsupportedOperationException
+      ("Items can not be removed from a paged list node");
+  }
+
+
+  public String toString()
+  {
+    return "[size=" + size + ",pages=" + pages.keySet() + "]";
+  }
+
+
+  //Returns the page k, reading it from the database if it is not in
+  //the memory.
+  private ArrayList<Object> page(int k)
+  {
+    ArrayList<Object> page = pages.get(k);
+    if (page != null)
+      return page;
+
+    int fromPos = k*pageSize;
+    int toPos = Math.min(fromPos+pageSize,storedSize);
+    if (fromPos < toPos)
+    {
+      try
+      {
+        page = db.readListPage(this,fromPos,toPos);
+      }
+      catch (Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    else
+      page = new ArrayList<Object>(); //A new page at the end.
+
+    dropPages(maxResidentPages-1);
+    pages.put(k,page);
+    return page;
+  }
+
+
+  //Drops the least recently used pages which are not dirty, until
+  //at most max pages are in the memory.
+  private void dropPages(int max)
+  {
+    Iterator<Integer> it = pages.keySet().iterator();
+    while (pages.size() > max && it.hasNext())
+      if (!dirtyPages.contains(it.next()))
+        it.remove();
+  }
+
+
+  //Called when the dirty pages have been committed to the database.
+  void pagesWritten()
+  {
+    storedSize = size;
+    dirtyPages.clear();
+    dropPages(maxResidentPages);
+  }
+
+
+  private void checkIndex(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException
+        ("Index: "+index+", Size: "+size);
+  }
+}
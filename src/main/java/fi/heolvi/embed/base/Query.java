@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.*;
+
+//A query finds the fixed nodes of one type whose scalar fields
+//satisfy the conditions of the query, for example
+//
+//  Query<Person> q = new Query<Person>(Person.class)
+//    .greaterOrEqual("age",Query.arg(0))
+//    .startsWith("name","Vir")
+//    .orderBy("age",false)
+//    .limit(10);
+//  ArrayList<Person> a = db.findFixedNodes(q,30);
+//  LongList ids = db.findIdsOfFixedNodes(q,40);
+//
+//All the conditions of a query must hold. A condition never holds
+//for a null value, like in SQL. The nodes are returned in the order
+//of the field of orderBy, the nodes having the same value in the
+//order of their ids, and without orderBy in the order of their ids.
+//Null values are the smallest ones, like in SQLite. The numbers are
+//compared as numbers and the strings by their characters (code
+//points), and prefix conditions are case sensitive.
+//
+//The values of the conditions are Integers for the int and Integer
+//fields and Strings for the String fields. A value can also be an
+//argument (see arg), which is given when the query is run. The
+//fields and the values are checked when a condition is added, and
+//the arguments when the query is run. The query can not be changed
+//after it has been run for the first time, and then one query
+//object can be run any number of times, also by many threads.
+//
+//SQLiteNodeStore compiles the query once to a parameterized SELECT
+//on the table of the type, so SQLite uses the indexes which exist
+//on the columns. The other node stores search the nodes
+//sequentially.
+public class Query<T>
+{
+  //Operators of the conditions.
+  static final int EQUAL = 0;
+  static final int NOT_EQUAL = 1;
+  static final int LESS_THAN = 2;
+  static final int LESS_OR_EQUAL = 3;
+  static final int GREATER_THAN = 4;
+  static final int GREATER_OR_EQUAL = 5;
+  static final int BETWEEN = 6;
+  static final int IN = 7;
+  static final int STARTS_WITH = 8;
+
+  //The SQL operators of the comparisons, by the operator.
+  static final String[] SQL_OPERATORS = {"=","<>","<","<=",">",">="};
+
+  //A condition on one field. The operands are the values compared
+  //with the value of the field: one for a comparison and
+  //STARTS_WITH, the low and the high limit for BETWEEN and the
+  //values for IN.
+  static class Condition
+  {
+    int operator;
+    int field;
+    Object[] operands;
+
+    Condition(int operator, int field, Object[] operands)
+    {
+      this.operator = operator;
+      this.field = field;
+      this.operands = operands;
+    }
+  }
+
+  //An argument of a query, see arg.
+  static class Argument
+  {
+    int index;
+
+    Argument(int index)
+    {
+      this.index = index;
+    }
+
+    public String toString()
+    {
+      return "?"+index;
+    }
+  }
+
+  //The type of the nodes.
+  Class<T> c;
+
+  //The names of the fields of the conditions and of orderBy, and
+  //for each of them the type code of the field.
+  ArrayList<String> fieldNames = new ArrayList<String>();
+  private ArrayList<Integer> typeCodes = new ArrayList<Integer>();
+
+  ArrayList<Condition> conditions = new ArrayList<Condition>();
+
+  //The index of the field of orderBy in fieldNames, -1 if the
+  //nodes are in the order of their ids.
+  int orderField = -1;
+  boolean ascending = true;
+
+  //Maximum count of the nodes returned, -1 if there is no limit.
+  int limit = -1;
+
+  //The SQL of the query, compiled by SQLiteNodeStore when the query
+  //is run in it for the first time.
+  volatile String sql;
+
+  //True when the query has been run.
+  private volatile boolean isRun = false;
+
+
+  //Creates a query of the nodes of the type c. The type must be a
+  //type of fixed node.
+  public Query(Class<T> c)
+  {
+    if (TestDB.isListNode(c))
+      throw new IllegalArgumentException
+        ("A query can not find list nodes: "+c.getName());
+    this.c = c;
+  }
+
+
+  //Returns an argument of the query. The argument is given to the
+  //method running the query; the index is its index in the
+  //arguments of the method.
+  public static Object arg(int index)
+  {
+    if (index < 0)
+      throw new IllegalArgumentException("Negative index "+index);
+    return new Argument(index);
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Conditions.
+  public Query<T> equal(String fieldName, Object value)
+  {
+    return addCondition(EQUAL,fieldName,value);
+  }
+  public Query<T> notEqual(String fieldName, Object value)
+  {
+    return addCondition(NOT_EQUAL,fieldName,value);
+  }
+  public Query<T> lessThan(String fieldName, Object value)
+  {
+    return addCondition(LESS_THAN,fieldName,value);
+  }
+  public Query<T> lessOrEqual(String fieldName, Object value)
+  {
+    return addCondition(LESS_OR_EQUAL,fieldName,value);
+  }
+  public Query<T> greaterThan(String fieldName, Object value)
+  {
+    return addCondition(GREATER_THAN,fieldName,value);
+  }
+  public Query<T> greaterOrEqual(String fieldName, Object value)
+  {
+    return addCondition(GREATER_OR_EQUAL,fieldName,value);
+  }
+
+  //The value of the field is at least low and at most high.
+  public Query<T> between(String fieldName, Object low, Object high)
+  {
+    return addCondition(BETWEEN,fieldName,low,high);
+  }
+
+  //The value of the field is one of the values. No node satisfies
+  //the condition without values.
+  public Query<T> in(String fieldName, Object... values)
+  {
+    return addCondition(IN,fieldName,values.clone());
+  }
+
+  //The value of the String field begins with the prefix. This is
+  //the condition LIKE 'prefix%' of SQL, but case sensitive. In
+  //SQLite it is compiled to GLOB, which unlike LIKE can use an
+  //ordinary index of the column.
+  public Query<T> startsWith(String fieldName, Object prefix)
+  {
+    checkNotRun();
+    int field = indexOfField(fieldName);
+    if (typeCodes.get(field) != TestDB.FIELD_TYPE_STRING)
+      throw new IllegalArgumentException
+        ("The field "+fieldName+" is not a String field");
+    return addCondition(STARTS_WITH,fieldName,prefix);
+  }
+// Conditions.
+//////////////////////////////////////////////////////////////////
+
+
+  //The nodes are returned in the order of the values of the field.
+  public Query<T> orderBy(String fieldName, boolean ascending)
+  {
+    checkNotRun();
+    orderField = indexOfField(fieldName);
+    this.ascending = ascending;
+    return this;
+  }
+
+
+  //At most count nodes are returned.
+  public Query<T> limit(int count)
+  {
+    checkNotRun();
+    if (count < 0)
+      throw new IllegalArgumentException("Negative limit "+count);
+    limit = count;
+    return this;
+  }
+
+
+  //Returns the query in a readable form, for example for LoadEvent.
+  public String toString()
+  {
+    String str = c.getName();
+    for (int i=0; i<conditions.size(); ++i)
+    {
+      Condition cond = conditions.get(i);
+      Object[] o = cond.operands;
+      str += (i == 0 ? " WHERE " : " AND ") + fieldNames.get(cond.field);
+      if (cond.operator == BETWEEN)
+        str += " BETWEEN "+o[0]+" AND "+o[1];
+      else if (cond.operator == IN)
+        str += " IN "+Arrays.toString(o);
+      else if (cond.operator == STARTS_WITH)
+        str += " STARTS WITH "+o[0];
+      else
+        str += SQL_OPERATORS[cond.operator]+o[0];
+    }
+    if (orderField >= 0)
+      str += " ORDER BY "+fieldNames.get(orderField)
+           + (ascending ? "" : " DESC");
+    if (limit >= 0)
+      str += " LIMIT "+limit;
+    return str;
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Running the query.
+  //Returns the operands of the conditions with the arguments
+  //replaced by their values. Called by TestDB when the query is run,
+  //after which the query can not be changed.
+  Object[][] bind(Object[] arguments)
+  {
+    isRun = true;
+    Object[][] operands = new Object[conditions.size()][];
+    for (int i=0; i<operands.length; ++i)
+    {
+      Condition cond = conditions.get(i);
+      operands[i] = cond.operands.clone();
+      for (int j=0; j<operands[i].length; ++j)
+      {
+        if (!(operands[i][j] instanceof Argument))
+          continue;
+        int index = ((Argument) operands[i][j]).index;
+        if (index >= arguments.length)
+          throw new IllegalArgumentException
+            ("The argument "+index+" of the query is missing");
+        operands[i][j] = arguments[index];
+        checkValue(cond.field,operands[i][j]);
+      }
+    }
+    return operands;
+  }
+
+
+  //Returns true, if the nodes whose fields have the values satisfy
+  //the conditions. The values are in the order of fieldNames.
+  boolean matches(Object[] values, Object[][] operands)
+  {
+    for (int i=0; i<operands.length; ++i)
+    {
+      Condition cond = conditions.get(i);
+      Object v = values[cond.field];
+      if (v == null || !holds(cond.operator,v,operands[i]))
+        return false;
+    }
+    return true;
+  }
+
+
+  //Collects the nodes found by a sequential search, and returns
+  //their ids in the order of the query. The node stores offer the
+  //nodes of the type of the query to a selection, with the values
+  //of their fields in the order of fieldNames.
+  static class Selection
+  {
+    private Query<?> query;
+    private Object[][] operands;
+    private LongList ids = new LongList();
+    private ArrayList<Object> orderValues = new ArrayList<Object>();
+
+    Selection(Query<?> query, Object[][] operands)
+    {
+      this.query = query;
+      this.operands = operands;
+    }
+
+    void offer(long id, Object[] values)
+    {
+      if (!query.matches(values,operands))
+        return;
+      ids.add(id);
+      if (query.orderField >= 0)
+        orderValues.add(values[query.orderField]);
+    }
+
+    LongList result()
+    {
+      Integer[] order = new Integer[ids.size()];
+      for (int i=0; i<order.length; ++i)
+        order[i] = i;
+      Arrays.sort(order,new Comparator<Integer>()
+      {
+        public int compare(Integer a, Integer b)
+        {
+          if (query.orderField >= 0)
+          {
+            int r = compareValues(orderValues.get(a),orderValues.get(b));
+            if (r != 0)
+              return query.ascending ? r : -r;
+          }
+          return Long.compare(ids.get(a),ids.get(b));
+        }
+      });
+      int count = order.length;
+      if (query.limit >= 0 && query.limit < count)
+        count = query.limit;
+      LongList result = new LongList(count);
+      for (int i=0; i<count; ++i)
+        result.add(ids.get(order[i]));
+      return result;
+    }
+  }
+// Running the query.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Tool methods.
+  private Query<T> addCondition
+    (int operator, String fieldName, Object... operands)
+  {
+    checkNotRun();
+    int field = indexOfField(fieldName);
+    for (Object o : operands)
+      if (!(o instanceof Argument))
+        checkValue(field,o);
+    conditions.add(new Condition(operator,field,operands));
+    return this;
+  }
+
+
+  //Returns the index of the field in fieldNames, adding the field
+  //if it is not there yet. The field must be a scalar field of the
+  //type of the query.
+  private int indexOfField(String fieldName)
+  {
+    int i = fieldNames.indexOf(fieldName);
+    if (i >= 0)
+      return i;
+
+    int typeCode = TestDB.FIELD_TYPE_NONE;
+    NodeAccessor accessor = NodeAccessor.of(c);
+    for (int j=0; j<accessor.fields.length; ++j)
+      if (accessor.fields[j].getName().equals(fieldName))
+        typeCode = accessor.typeCodes[j];
+    if (typeCode == TestDB.FIELD_TYPE_NONE
+        || TestDB.isPointerField(typeCode))
+      throw new IllegalArgumentException
+        ("The type "+c.getName()+" does not have the scalar field "
+         +fieldName);
+
+    fieldNames.add(fieldName);
+    typeCodes.add(typeCode);
+    return fieldNames.size()-1;
+  }
+
+
+  private void checkValue(int field, Object value)
+  {
+    Class<?> expected = typeCodes.get(field) == TestDB.FIELD_TYPE_STRING
+                        ? String.class : Integer.class;
+    if (value == null || value.getClass() != expected)
+      throw new IllegalArgumentException
+        ("The value "+value+" of the field "+fieldNames.get(field)
+         +" is not "+expected.getSimpleName());
+  }
+
+
+  private void checkNotRun()
+  {
+    if (isRun)
+      throw new IllegalStateException
+        ("The query can not be changed after it has been run");
+  }
+
+
+  private static boolean holds(int operator, Object v, Object[] o)
+  {
+    if (operator == BETWEEN)
+      return compareValues(v,o[0]) >= 0 && compareValues(v,o[1]) <= 0;
+    if (operator == IN)
+    {
+      for (Object value : o)
+        if (compareValues(v,value) == 0)
+          return true;
+      return false;
+    }
+    if (operator == STARTS_WITH)
+      return ((String) v).startsWith((String) o[0]);
+
+    int r = compareValues(v,o[0]);
+    if (operator == EQUAL)
+      return r == 0;
+    if (operator == NOT_EQUAL)
+      return r != 0;
+    if (operator == LESS_THAN)
+      return r < 0;
+    if (operator == LESS_OR_EQUAL)
+      return r <= 0;
+    if (operator == GREATER_THAN)
+      return r > 0;
+    return r >= 0;
+  }
+
+
+  //Compares the values like SQLite: a null is smaller than a
+  //number, a number is smaller than a string, and the strings are
+  //compared by the code points of their characters, which is the
+  //order of their UTF-8 bytes.
+  static int compareValues(Object a, Object b)
+  {
+    if (a == null || b == null)
+      return (a == null ? 0 : 1) - (b == null ? 0 : 1);
+    if (a instanceof Integer && b instanceof Integer)
+      return Integer.compare((Integer) a,(Integer) b);
+    if (a instanceof Integer || b instanceof Integer)
+      return a instanceof Integer ? -1 : 1;
+
+    String s = (String) a;
+    String t = (String) b;
+    int n = Math.min(s.length(),t.length());
+    for (int i=0; i<n; ++i)
+    {
+      char x = s.charAt(i);
+      char y = t.charAt(i);
+      if (x == y)
+        continue;
+      //A surrogate is a part of a code point above all the others.
+      if (Character.isSurrogate(x) != Character.isSurrogate(y))
+        return Character.isSurrogate(x) ? 1 : -1;
+      return x - y;
+    }
+    return s.length() - t.length();
+  }
+// Tool methods.
+//////////////////////////////////////////////////////////////////
+}
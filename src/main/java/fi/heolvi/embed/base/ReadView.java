@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.sql.SQLException;
+import java.util.*;
+
+//A read view is a read-only handle of the database pinned to the
+//state committed when it was opened (see TestDB.openReadView).
+//Several searches made through the view see the same consistent
+//state, while the writer goes on embedding and collecting garbage.
+//
+//The view has its own reader of the node store and keeps one read
+//transaction open from openReadView to close. In SQLiteNodeStore
+//the reader is a connection of its own in the WAL mode. The other
+//node stores keep the original state overwritten by the commits
+//made after the view was opened (see Snapshots). So the views and
+//the writer do not block each other. However, the WAL file can
+//not be checkpointed past the snapshot of an open view, and the
+//other node stores keep the overwritten state in the memory until
+//the view has been closed, so a view should not be kept open for
+//long.
+//
+//A view is not meant to be shared between threads: its methods
+//are synchronized, so the searches of the threads would run one
+//at a time. Each reading thread should open its own view. The list
+//nodes are always loaded whole through a view, also if paged
+//loading has been set with TestDB.setPagedLists, because a paged
+//list node reads its pages later outside the snapshot of the view.
+public class ReadView implements AutoCloseable
+{
+  private TestDB db;
+
+  //The reader of the view, null when the view has been closed.
+  private NodeStore reader;
+
+
+  ReadView(TestDB db, NodeStore reader)
+  {
+    this.db = db;
+    this.reader = reader;
+  }
+
+
+  //Like TestDB.searchFixedNodesFromDB, but the nodes are loaded
+  //from the snapshot of the view.
+  public synchronized ArrayList<Object> searchFixedNodesFromDB
+    (Object... searchRules)
+  throws Exception
+  {
+    checkOpen();
+    return db.search(reader,false,searchRules);
+  }
+
+
+  //Like TestDB.findFixedNodes and TestDB.findIdsOfFixedNodes, but
+  //the query is run in the snapshot of the view.
+  public synchronized <T> ArrayList<T> findFixedNodes
+    (Query<T> query, Object... arguments)
+  throws Exception
+  {
+    checkOpen();
+    return db.find(reader,false,query,arguments);
+  }
+  public synchronized LongList findIdsOfFixedNodes
+    (Query<?> query, Object... arguments)
+  throws Exception
+  {
+    checkOpen();
+    return reader.findFixedNodes(query,query.bind(arguments));
+  }
+
+
+  //Ends the read transaction of the view and closes its reader.
+  //Closing a closed view does nothing.
+  //
+  //Of the readers of the included node stores only the reader of
+  //SQLiteNodeStore throws a checked exception here, so only
+  //SQLException is declared, and javac -Xlint:try does not warn of
+  //a view in a try-with-resources statement. Other checked
+  //exceptions are wrapped in a RuntimeException.
+  public synchronized void close()
+  throws SQLException
+  {
+    if (reader == null)
+      return;
+    NodeStore r = reader;
+    reader = null;
+    db.readViewClosed(this);
+    try
+    {
+      try
+      {
+        r.rollbackTransaction();
+      }
+      finally
+      {
+        r.close();
+      }
+    }
+    catch (RuntimeException e)
+    {
+      throw e;
+    }
+    catch (SQLException e)
+    {
+      throw e;
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+
+  private void checkOpen()
+  {
+    if (reader == null)
+      throw new IllegalStateException("The read view has been closed");
+  }
+}
@@ -0,0 +1,722 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.*;
+
+//The export of a whole SQLite object database (see SQLiteNodeStore)
+//to a file in a compact binary format, and the import of the file
+//to a new database, see TestDB.exportDB and TestDB.importDB.
+//
+//Both run in one pass: the export reads each table once, in one
+//read transaction, and the import writes the rows in batches as it
+//reads them. Only the type dictionary is kept in the memory. The
+//file is read and written through buffered file channels, and the
+//data after the header is optionally compressed with GZIP.
+//
+//Format of the file:
+//  The header: the bytes "EMBD", int version, byte flags
+//  (FLAG_COMPRESSED). The sections follow, each beginning with a
+//  section byte (SECTION_*):
+//    SECTION_NODES          The node headers, i.e. the rows of the
+//                           table nodeInstances, and the type
+//                           dictionary.
+//    SECTION_FIXED_ROWS     The rows of the table of one type of
+//                           fixed node.
+//    SECTION_LISTS          The rows of the tables lists, listItems
+//    SECTION_LIST_ITEMS     and listSegments, i.e. the contents of
+//    SECTION_LIST_SEGMENTS  the list nodes.
+//    SECTION_SEQUENCES      The rows of sqlite_sequence.
+//    SECTION_END
+//  The rows of a section are records, each beginning with a record
+//  byte: RECORD_ROW followed by the values of the row, RECORD_CLASS
+//  followed by an entry of the type dictionary (only in the section
+//  SECTION_NODES), and RECORD_END ending the section.
+//
+//  An entry of the type dictionary is written before the first
+//  node of the type: the name of the Java type, and for a fixed node
+//  the name of its table, the SQL creating the table and for each
+//  column its name and a byte which is 1 for a pointer field. The
+//  types are numbered in the order of their entries, and a node
+//  header refers to its type by the number.
+//
+//  A node header is: varlong id, varlong orc, varint number of the
+//  type. The irc is not exported. A row of the other tables is its
+//  columns as values. A value is a tag byte (VALUE_*) followed by
+//  its data: a zigzag varlong, a double, or varint length and the
+//  bytes of a text (UTF-8) or a BLOB.
+//
+//The import creates the tables without the indexes, and the indexes
+//are created when all the rows have been written. The irc of each
+//node is computed from the pointer fields and the items of the
+//rows written, so it is correct even if the exported database had
+//wrong internal reference counts. The ids of the nodes and the
+//sequences of the ids are kept, so the ids are not reused in the
+//new database either.
+//
+//The Java types of the fixed nodes must be loadable when the
+//database is exported, because the pointer fields are found from
+//them. The import does not need them.
+class SQLiteDump
+{
+  static final byte[] MAGIC = {'E','M','B','D'};
+  static final int VERSION = 1;
+  static final int FLAG_COMPRESSED = 1;
+
+  static final byte SECTION_END = 0;
+  static final byte SECTION_NODES = 1;
+  static final byte SECTION_FIXED_ROWS = 2;
+  static final byte SECTION_LISTS = 3;
+  static final byte SECTION_LIST_ITEMS = 4;
+  static final byte SECTION_LIST_SEGMENTS = 5;
+  static final byte SECTION_SEQUENCES = 6;
+
+  static final byte RECORD_END = 0;
+  static final byte RECORD_ROW = 1;
+  static final byte RECORD_CLASS = 2;
+
+  static final byte VALUE_NULL = 0;
+  static final byte VALUE_INTEGER = 1;
+  static final byte VALUE_REAL = 2;
+  static final byte VALUE_TEXT = 3;
+  static final byte VALUE_BLOB = 4;
+
+  //Size of the buffers of the file, and count of rows written in
+  //one batch by the import.
+  static final int BUFFER_SIZE = 1 << 16;
+  static final int BATCH_SIZE = 1000;
+
+
+  //An entry of the type dictionary.
+  static class TypeEntry
+  {
+    String className;
+
+    //For a fixed node the name of its table, the SQL creating the
+    //table, and the names of the columns and whether they are
+    //pointer fields. Null for a list node.
+    String tableName;
+    String createSQL;
+    String[] columns;
+    boolean[] isPointer;
+  }
+
+
+//////////////////////////////////////////////////////////////////
+// Export.
+  static void exportDB(String dbName, String fileName,
+                       boolean compressed)
+  throws Exception
+  {
+    Class.forName("org.sqlite.JDBC");
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    FileChannel channel = FileChannel.open(Paths.get(fileName),
+      StandardOpenOption.CREATE,StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    try
+    {
+      OutputStream out = new BufferedOutputStream
+        (Channels.newOutputStream(channel),BUFFER_SIZE);
+      DataOutputStream header = new DataOutputStream(out);
+      header.write(MAGIC);
+      header.writeInt(VERSION);
+      header.writeByte(compressed ? FLAG_COMPRESSED : 0);
+      if (compressed)
+        out = new GZIPOutputStream(out,BUFFER_SIZE);
+      DataOutputStream data = new DataOutputStream(out);
+
+      //All the tables are read in one read transaction, so that the
+      //export is one committed state of the database, even if the
+      //database is being updated.
+      c.setAutoCommit(false);
+      ArrayList<TypeEntry> types = new ArrayList<TypeEntry>();
+      HashMap<String,Integer> typeNumbers =
+        new HashMap<String,Integer>();
+
+      data.writeByte(SECTION_NODES);
+      Statement st = c.createStatement();
+      ResultSet rs = st.executeQuery
+        ("SELECT id,orc,className FROM nodeInstances");
+      while (rs.next())
+      {
+        Integer number =
+          exportType(c,data,types,typeNumbers,rs.getString(3));
+        data.writeByte(RECORD_ROW);
+        writeVarLong(data,rs.getLong(1));
+        writeVarLong(data,rs.getLong(2));
+        writeVarLong(data,number);
+      }
+      rs.close();
+      data.writeByte(RECORD_END);
+
+      for (int i=0; i<types.size(); ++i)
+      {
+        TypeEntry type = types.get(i);
+        if (type.tableName == null)
+          continue;
+        data.writeByte(SECTION_FIXED_ROWS);
+        writeVarLong(data,i);
+        exportRows(st,data,"SELECT * FROM "+type.tableName);
+      }
+
+      //A row of the table lists has one more column, which is 1 if
+      //the list can have child nodes, i.e. if it is not a list of
+      //primitive items. The import needs it to find the ids of the
+      //child nodes in the packed format.
+      data.writeByte(SECTION_LISTS);
+      exportRows(st,data,"SELECT l.id,l.instanceId,l.len,l.items,"
+                 +"l.segmentSize,n.className NOT IN ('"
+                 +IntListNode.class.getName()+"','"
+                 +StringListNode.class.getName()+"')"
+                 +" FROM lists l JOIN nodeInstances n"
+                 +" ON n.id=l.instanceId");
+      data.writeByte(SECTION_LIST_ITEMS);
+      exportRows(st,data,"SELECT id,parent,position,type,item"
+                 +" FROM listItems");
+      data.writeByte(SECTION_LIST_SEGMENTS);
+      exportRows(st,data,"SELECT instanceId,segment,digest,childIds,"
+                 +"items FROM listSegments");
+      data.writeByte(SECTION_SEQUENCES);
+      exportRows(st,data,"SELECT name,seq FROM sqlite_sequence");
+      data.writeByte(SECTION_END);
+      st.close();
+      data.close();
+    }
+    finally
+    {
+      if (!c.getAutoCommit())
+        c.rollback();
+      c.close();
+      channel.close();
+    }
+  }
+
+
+  //Writes the entry of the type dictionary for the Java type, if it
+  //has not been written yet. Returns the number of the type.
+  private static Integer exportType
+    (Connection c, DataOutputStream data, ArrayList<TypeEntry> types,
+     HashMap<String,Integer> typeNumbers, String className)
+  throws Exception
+  {
+    Integer number = typeNumbers.get(className);
+    if (number != null)
+      return number;
+
+    TypeEntry type = new TypeEntry();
+    type.className = className;
+    Class<?> cls = Class.forName(className);
+    if (!TestDB.isListNode(cls))
+    {
+      type.tableName = className.replace('.','_');
+      PreparedStatement st = c.prepareStatement
+        ("SELECT sql FROM sqlite_master WHERE type='table' AND name=?");
+      st.setString(1,type.tableName);
+      ResultSet rs = st.executeQuery();
+      rs.next();
+      type.createSQL = rs.getString(1);
+      st.close();
+
+      HashSet<String> pointerFields = new HashSet<String>();
+      for (FieldT f : TestDB.getFields(cls,null,1))
+        pointerFields.add(((Field) f.field).getName());
+      ArrayList<String> columns = new ArrayList<String>();
+      Statement info = c.createStatement();
+      rs = info.executeQuery("PRAGMA table_info("+type.tableName+")");
+      while (rs.next())
+        columns.add(rs.getString("name"));
+      info.close();
+      type.columns = columns.toArray(new String[columns.size()]);
+      type.isPointer = new boolean[type.columns.length];
+      for (int i=0; i<type.columns.length; ++i)
+        type.isPointer[i] = pointerFields.contains(type.columns[i]);
+    }
+
+    data.writeByte(RECORD_CLASS);
+    writeText(data,type.className);
+    data.writeBoolean(type.tableName != null);
+    if (type.tableName != null)
+    {
+      writeText(data,type.tableName);
+      writeText(data,type.createSQL);
+      writeVarLong(data,type.columns.length);
+      for (int i=0; i<type.columns.length; ++i)
+      {
+        writeText(data,type.columns[i]);
+        data.writeBoolean(type.isPointer[i]);
+      }
+    }
+
+    number = types.size();
+    types.add(type);
+    typeNumbers.put(className,number);
+    return number;
+  }
+
+
+  //Writes the rows of the query, and ends the section.
+  private static void exportRows
+    (Statement st, DataOutputStream data, String query)
+  throws Exception
+  {
+    ResultSet rs = st.executeQuery(query);
+    int columnCount = rs.getMetaData().getColumnCount();
+    while (rs.next())
+    {
+      data.writeByte(RECORD_ROW);
+      for (int i=1; i<=columnCount; ++i)
+        writeValue(data,rs.getObject(i));
+    }
+    rs.close();
+    data.writeByte(RECORD_END);
+  }
+// Export.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Import.
+  static void importDB(String fileName, String dbName)
+  throws Exception
+  {
+    if (TestDB.existsDB(dbName))
+      throw new IOException("The database exists: "+dbName);
+
+    //Create the database with its system tables.
+    new SQLiteNodeStore(dbName).close();
+
+    Connection c = DriverManager.getConnection("jdbc:sqlite:"+dbName);
+    FileChannel channel =
+      FileChannel.open(Paths.get(fileName),StandardOpenOption.READ);
+    try
+    {
+      InputStream in = new BufferedInputStream
+        (Channels.newInputStream(channel),BUFFER_SIZE);
+      DataInputStream header = new DataInputStream(in);
+      byte[] magic = new byte[MAGIC.length];
+      header.readFully(magic);
+      if (!Arrays.equals(magic,MAGIC) || header.readInt() != VERSION)
+        throw new IOException("Not an object database export");
+      if ((header.readByte() & FLAG_COMPRESSED) != 0)
+        in = new GZIPInputStream(in,BUFFER_SIZE);
+      DataInputStream data = new DataInputStream(in);
+
+      //The database is new, so it is written in one transaction
+      //without syncing and without a journal. If the import fails,
+      //the database is deleted. In the WAL mode set by
+      //SQLiteNodeStore all the rows would be written to the WAL file
+      //and then again to the database by the checkpoint, and the WAL
+      //file would grow to the size of the database. Opening the
+      //database at the end sets the WAL mode again.
+      Statement st = c.createStatement();
+      st.execute("PRAGMA journal_mode=OFF");
+      st.execute("PRAGMA synchronous=OFF");
+      c.setAutoCommit(false);
+
+      //The indexes are created after the rows have been written.
+      st.execute("DROP INDEX IF EXISTS lists_instanceId");
+      st.execute("DROP INDEX IF EXISTS listItems_parent");
+
+      //The ids of the child nodes of the rows written, for computing
+      //the internal reference counts.
+      st.execute("CREATE TEMP TABLE refs (id INTEGER)");
+      Batch refs = new Batch(c,"INSERT INTO temp.refs (id) VALUES(?)");
+
+      ArrayList<TypeEntry> types = new ArrayList<TypeEntry>();
+      byte section;
+      while ((section = data.readByte()) != SECTION_END)
+      {
+        if (section == SECTION_NODES)
+          importNodes(c,data,types);
+        else if (section == SECTION_FIXED_ROWS)
+          importFixedRows(c,data,types.get((int) readVarLong(data)),refs);
+        else if (section == SECTION_LISTS)
+          importLists(c,data,refs);
+        else if (section == SECTION_LIST_ITEMS)
+          importListItems(c,data,refs);
+        else if (section == SECTION_LIST_SEGMENTS)
+          importListSegments(c,data,refs);
+        else if (section == SECTION_SEQUENCES)
+          importSequences(c,data);
+        else
+          throw new IOException("Unknown section "+section);
+      }
+      refs.finish();
+
+      computeInternalReferenceCounts(st);
+      st.close();
+      c.commit();
+      c.close();
+      channel.close();
+    }
+    catch (Exception e)
+    {
+      c.close();
+      channel.close();
+      TestDB.deleteDB(dbName);
+      throw e;
+    }
+
+    //Opening the database creates the indexes of all the tables.
+    new SQLiteNodeStore(dbName).close();
+  }
+
+
+  private static void importNodes
+    (Connection c, DataInputStream data, ArrayList<TypeEntry> types)
+  throws Exception
+  {
+    Batch nodes = new Batch(c,"INSERT INTO nodeInstances"
+                            +" (id,orc,irc,className) VALUES(?,?,0,?)");
+    Statement st = c.createStatement();
+    byte record;
+    while ((record = data.readByte()) != RECORD_END)
+    {
+      if (record == RECORD_CLASS)
+      {
+        TypeEntry type = readType(data);
+        if (type.tableName != null)
+          st.execute(type.createSQL);
+        types.add(type);
+        continue;
+      }
+      nodes.set(1,readVarLong(data));
+      nodes.set(2,readVarLong(data));
+      nodes.set(3,types.get((int) readVarLong(data)).className);
+      nodes.add();
+    }
+    st.close();
+    nodes.finish();
+  }
+
+
+  private static TypeEntry readType(DataInputStream data)
+  throws Exception
+  {
+    TypeEntry type = new TypeEntry();
+    type.className = readText(data);
+    if (!data.readBoolean())
+      return type;
+    type.tableName = readText(data);
+    type.createSQL = readText(data);
+    int columnCount = (int) readVarLong(data);
+    type.columns = new String[columnCount];
+    type.isPointer = new boolean[columnCount];
+    for (int i=0; i<columnCount; ++i)
+    {
+      type.columns[i] = readText(data);
+      type.isPointer[i] = data.readBoolean();
+    }
+    return type;
+  }
+
+
+  private static void importFixedRows
+    (Connection c, DataInputStream data, TypeEntry type, Batch refs)
+  throws Exception
+  {
+    Batch rows = new Batch(c,"INSERT INTO "+type.tableName
+      +" ("+String.join(",",type.columns)+") VALUES("
+      +parameters(type.columns.length)+")");
+    while (data.readByte() != RECORD_END)
+    {
+      for (int i=0; i<type.columns.length; ++i)
+      {
+        Object value = readValue(data);
+        rows.set(i+1,value);
+        if (type.isPointer[i])
+          addRef(refs,value);
+      }
+      rows.add();
+    }
+    rows.finish();
+  }
+
+
+  //The ids of the child nodes of a list in the packed format are
+  //read from the BLOB. The BLOB of a list of primitive items has no
+  //ids, and the ids of a list in the chunked format are in its
+  //segments.
+  private static void importLists
+    (Connection c, DataInputStream data, Batch refs)
+  throws Exception
+  {
+    Batch rows = new Batch(c,"INSERT INTO lists"
+      +" (id,instanceId,len,items,segmentSize) VALUES(?,?,?,?,?)");
+    while (data.readByte() != RECORD_END)
+    {
+      for (int i=1; i<=5; ++i)
+        rows.set(i,readValue(data));
+      boolean hasChildNodes = ((Number) readValue(data)).intValue() != 0;
+      rows.add();
+
+      Object items = rows.values[3];
+      Object segmentSize = rows.values[4];
+      if (hasChildNodes && items != null && segmentSize == null)
+      {
+        LongList ids = NodeRecords.readIdsOfNonNullChildNodesOfPackedList
+          (ByteBuffer.wrap((byte[]) items));
+        for (int i=0; i<ids.size(); ++i)
+          addRef(refs,ids.get(i));
+      }
+    }
+    rows.finish();
+  }
+
+
+  private static void importListItems
+    (Connection c, DataInputStream data, Batch refs)
+  throws Exception
+  {
+    Batch rows = new Batch(c,"INSERT INTO listItems"
+      +" (id,parent,position,type,item) VALUES(?,?,?,?,?)");
+    while (data.readByte() != RECORD_END)
+    {
+      for (int i=1; i<=5; ++i)
+        rows.set(i,readValue(data));
+      rows.add();
+      Object typeCode = rows.values[3];
+      if (typeCode != null
+          && TestDB.isPointerField(((Number) typeCode).intValue()))
+        addRef(refs,rows.values[4]);
+    }
+    rows.finish();
+  }
+
+
+  private static void importListSegments
+    (Connection c, DataInputStream data, Batch refs)
+  throws Exception
+  {
+    Batch rows = new Batch(c,"INSERT INTO listSegments"
+      +" (instanceId,segment,digest,childIds,items) VALUES(?,?,?,?,?)");
+    while (data.readByte() != RECORD_END)
+    {
+      for (int i=1; i<=5; ++i)
+        rows.set(i,readValue(data));
+      rows.add();
+      Object childIds = rows.values[3];
+      if (childIds != null)
+      {
+        LongList ids = new LongList();
+        NodeRecords.decodeIds(ByteBuffer.wrap((byte[]) childIds),ids);
+        for (int i=0; i<ids.size(); ++i)
+          addRef(refs,ids.get(i));
+      }
+    }
+    rows.finish();
+  }
+
+
+  //The sequences are imported after the rows, so that the rows
+  //written with their ids do not change them any more.
+  private static void importSequences(Connection c, DataInputStream data)
+  throws Exception
+  {
+    PreparedStatement delete = c.prepareStatement
+      ("DELETE FROM sqlite_sequence WHERE name=?");
+    PreparedStatement insert = c.prepareStatement
+      ("INSERT INTO sqlite_sequence (name,seq) VALUES(?,?)");
+    while (data.readByte() != RECORD_END)
+    {
+      Object name = readValue(data);
+      Object seq = readValue(data);
+      delete.setObject(1,name);
+      delete.executeUpdate();
+      insert.setObject(1,name);
+      insert.setObject(2,seq);
+      insert.executeUpdate();
+    }
+    delete.close();
+    insert.close();
+  }
+
+
+  //Sets the irc of each node to the count of the references to it
+  //in the rows written. The references are counted by SQLite,
+  //which keeps the temporary tables on the disk when they grow.
+  private static void computeInternalReferenceCounts(Statement st)
+  throws Exception
+  {
+    st.execute("CREATE TEMP TABLE ircCounts"
+               +" (id INTEGER PRIMARY KEY, n INTEGER)");
+    st.execute("INSERT INTO temp.ircCounts (id,n)"
+               +" SELECT id,COUNT(*) FROM temp.refs GROUP BY id");
+    st.execute("UPDATE nodeInstances SET irc="
+               +"(SELECT n FROM temp.ircCounts c"
+               +" WHERE c.id=nodeInstances.id)"
+               +" WHERE id IN (SELECT id FROM temp.ircCounts)");
+    st.execute("DROP TABLE temp.refs");
+    st.execute("DROP TABLE temp.ircCounts");
+  }
+
+
+  private static void addRef(Batch refs, Object id)
+  throws Exception
+  {
+    if (id == null || ((Number) id).longValue() == TestDB.ID_NULL_NODE)
+      return;
+    refs.set(1,id);
+    refs.add();
+  }
+
+
+  private static String parameters(int count)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<count; ++i)
+      sb.append(i == 0 ? "?" : ",?");
+    return sb.toString();
+  }
+
+
+  //A prepared statement executed in batches of BATCH_SIZE rows.
+  //The values of the current row are kept in values (the value of
+  //the parameter i at the index i-1), because the statement does
+  //not return them.
+  static class Batch
+  {
+    private PreparedStatement st;
+    Object[] values;
+    private int count = 0;
+
+    Batch(Connection c, String sql)
+    throws Exception
+    {
+      st = c.prepareStatement(sql);
+      values = new Object[st.getParameterMetaData().getParameterCount()];
+    }
+
+    void set(int i, Object value)
+    throws Exception
+    {
+      st.setObject(i,value);
+      values[i-1] = value;
+    }
+
+    //Adds the row whose values have been set.
+    void add()
+    throws Exception
+    {
+      st.addBatch();
+      if (++count % BATCH_SIZE == 0)
+        st.executeBatch();
+    }
+
+    void finish()
+    throws Exception
+    {
+      st.executeBatch();
+      st.close();
+    }
+  }
+// Import.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Values.
+  private static void writeValue(DataOutputStream data, Object value)
+  throws IOException
+  {
+    if (value == null)
+      data.writeByte(VALUE_NULL);
+    else if (value instanceof Integer || value instanceof Long)
+    {
+      data.writeByte(VALUE_INTEGER);
+      long v = ((Number) value).longValue();
+      writeVarLong(data,(v << 1) ^ (v >> 63));
+    }
+    else if (value instanceof Number)
+    {
+      data.writeByte(VALUE_REAL);
+      data.writeDouble(((Number) value).doubleValue());
+    }
+    else if (value instanceof String)
+    {
+      data.writeByte(VALUE_TEXT);
+      writeText(data,(String) value);
+    }
+    else
+    {
+      byte[] bytes = (byte[]) value;
+      data.writeByte(VALUE_BLOB);
+      writeVarLong(data,bytes.length);
+      data.write(bytes);
+    }
+  }
+  private static Object readValue(DataInputStream data)
+  throws IOException
+  {
+    byte tag = data.readByte();
+    if (tag == VALUE_NULL)
+      return null;
+    if (tag == VALUE_INTEGER)
+    {
+      long v = readVarLong(data);
+      return (v >>> 1) ^ -(v & 1);
+    }
+    if (tag == VALUE_REAL)
+      return data.readDouble();
+    if (tag == VALUE_TEXT)
+      return readText(data);
+    byte[] bytes = new byte[(int) readVarLong(data)];
+    data.readFully(bytes);
+    return bytes;
+  }
+
+
+  private static void writeText(DataOutputStream data, String s)
+  throws IOException
+  {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(data,bytes.length);
+    data.write(bytes);
+  }
+  private static String readText(DataInputStream data)
+  throws IOException
+  {
+    byte[] bytes = new byte[(int) readVarLong(data)];
+    data.readFully(bytes);
+    return new String(bytes,StandardCharsets.UTF_8);
+  }
+
+
+  //Variable length longs, 7 bits in a byte, the lowest bits first,
+  //like the varints of NodeRecords.
+  private static void writeVarLong(DataOutputStream data, long value)
+  throws IOException
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      data.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    data.writeByte((int) value);
+  }
+  private static long readVarLong(DataInputStream data)
+  throws IOException
+  {
+    long value = 0;
+    for (int shift=0; ; shift+=7)
+    {
+      byte b = data.readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+// Values.
+//////////////////////////////////////////////////////////////////
+}
@@ -0,0 +1,1794 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+import java.sql.*;
+
+//This is the node store of the object database implemented with
+//the SQLite database. Each type of fixed node has its own SQL table
+//and list nodes are stored in the tables lists and listItems.
+//Higher level structure of all the nodes is stored in the table
+//nodeInstances.
+//
+//The database is used in the WAL mode, so that the readers (see
+//the method openReader) do not block the writer and the writer
+//does not block the readers.
+//
+//Optionally a list node is stored in the packed format, as one BLOB
+//in the table lists instead of a row for each item in the table
+//listItems, see setPackedLists. A large list node can be stored in
+//the chunked format, in segments in the table listSegments, see
+//setChunkedLists.
+//
+//If a type of fixed node has a generated NodeMapper, its table is
+//created, and its nodes are written and read with one statement,
+//with the SQL of the mapper.
+public class SQLiteNodeStore implements NodeStore
+{
+  //Name of the database.
+  private String dbName;
+
+  //Java JDBC connection of the database.
+  private Connection connection;
+
+  //True, if list nodes are written in the packed format.
+  private boolean packedLists = false;
+
+  //Count of items in a segment of a list node in the chunked
+  //format, 0 if the chunked format is not used.
+  private int segmentSize = 0;
+
+  //Digest of the segments of the chunked format, created when
+  //first needed.
+  private MessageDigest segmentDigest;
+
+  //The catalog of the schema: the names of the columns of each
+  //table of the database. The catalog is loaded when the store is
+  //opened (see loadCatalog), and a table is added to it when it is
+  //created, so sqlite_master is not queried for each new node.
+  //
+  //The writer creates all the tables, so its catalog is complete. A
+  //reader looks up a table missing from its catalog in the
+  //database, because the writer may have created it after the
+  //reader was opened. A table which was not found is kept in
+  //missingTables until the next read transaction begins, because a
+  //read transaction does not see the tables created after it began.
+  private HashMap<String,HashSet<String>> catalog =
+    new HashMap<String,HashSet<String>>();
+  private HashSet<String> missingTables = new HashSet<String>();
+  private boolean isReader = false;
+
+  //The tables created in the current transaction. They are removed
+  //from the catalog if the transaction is rolled back.
+  private ArrayList<String> createdTables = new ArrayList<String>();
+
+  //The ids of new nodes are allocated from a block of ids reserved
+  //in the table sqlite_sequence, see allocateId. The ids from
+  //nextId to lastReservedId have been reserved but not used yet.
+  //They are kept when the transaction is rolled back.
+  private long nextId = 1;
+  private long lastReservedId = 0;
+
+  //Count of ids reserved at a time. The ids of a block which are not
+  //used are not used later either, so the ids are never reused.
+  public static int ID_BLOCK_SIZE = 1000;
+
+  //The INSERT statements of the rows of the nodes allocated in the
+  //current transaction, by their SQL. The rows are added to the
+  //batches of the statements, and the batches are executed before
+  //the next other statement, see flushAllocatedNodes.
+  private LinkedHashMap<String,PreparedStatement> allocatedNodes =
+    new LinkedHashMap<String,PreparedStatement>();
+
+  //True when pending ids have been added in the current
+  //transaction. The pending ids are kept in the temporary table
+  //pendingIds of the connection, see addPendingId.
+  private boolean hasPendingIds = false;
+
+  //The listener told of the statements, see setMetricsListener.
+  //The writer keeps its readers, so that the listener set for it is
+  //set for them too.
+  private volatile MetricsListener metrics = MetricsListener.NONE;
+  private ArrayList<SQLiteNodeStore> readerStores =
+    new ArrayList<SQLiteNodeStore>();
+
+  //The writer which opened this reader, or null for the writer. A
+  //reader removes itself from the readers of the writer when it is
+  //closed, because read views open and close readers all the time.
+  private SQLiteNodeStore writer;
+
+  //Count of the statements prepared by this instance, for sampling
+  //the SqlStatementEvent events.
+  private int statementCount = 0;
+
+  //One statement of this count of statements is recorded as an
+  //SqlStatementEvent event of the JDK Flight Recorder.
+  public static int SQL_EVENT_SAMPLE_INTERVAL = 100;
+
+  //The tables which are not tables of fixed nodes.
+  private static final List<String> SYSTEM_TABLES = Arrays.asList
+    ("nodeInstances","lists","listItems","listSegments",
+     "sqlite_sequence");
+
+  //The formats of a list node in the table lists, see
+  //readListFormat.
+  private static final int LIST_FORMAT_NONE = -1;
+  private static final int LIST_FORMAT_ROWS = 0;
+  private static final int LIST_FORMAT_PACKED = 1;
+  private static final int LIST_FORMAT_CHUNKED = 2;
+
+
+  //Opens the SQLite database with the given name, or creates a new
+  //database if the database with that name does not exist yet.
+  //When the database is created, initial system tables for it are
+  //created at the same time. This includes creating two tables to
+  //store list nodes.
+  //
+  //Tables for different types of fixed nodes are created
+  //dynamically on-fly in the method createDBTableForFixedNode
+  //when the appropriate type is encountered for the first time.
+  public SQLiteNodeStore(String dbName)
+  throws Exception
+  {
+    this.dbName = dbName;
+
+    boolean isOldDB = TestDB.existsDB(dbName);
+
+    try
+    {
+      connection = openConnection();
+    }
+    catch ( Exception e )
+    {
+      System.out.println( e.getClass().getName() +
+        ": " + e.getMessage() );
+      System.exit(0);
+    }
+
+    //In the WAL mode the readers do not block the writer and the
+    //writer does not block the readers. The mode is persistent,
+    //i.e. it is stored in the database file.
+    executePragma("journal_mode=WAL");
+
+    if (!isOldDB)
+      createSystemTables();
+    loadCatalog();
+    if (isOldDB)
+      upgradeSystemTables();
+  }
+  //Selects the format in which list nodes (ListNode) are written.
+  //In the packed format all the items of a list are written in one
+  //BLOB in the column lists.items, in the format described in
+  //NodeRecords. The list is then read with one query, and the
+  //garbage collection reads the ids of the child nodes from the
+  //BLOB. Otherwise each item is written as a row in the table
+  //listItems.
+  //
+  //Lists in both formats are read, so the format can be changed for
+  //an existing database. An old list is converted when it is
+  //written the next time. The default is the row format.
+  public void setPackedLists(boolean packedLists)
+  {
+    this.packedLists = packedLists;
+  }
+
+
+  //Selects if large list nodes (ListNode) are written in the
+  //chunked format. A list having more than segmentSize items is
+  //written in segments of segmentSize items in the table
+  //listSegments. Each segment has its items in the packed format,
+  //a digest of the items and the ids of its child nodes.
+  //
+  //When the list is written again, only the segments whose digest
+  //has changed are written. Changing or appending items writes
+  //only the segments of these items, but inserting or removing an
+  //item moves the following items, and their segments are written
+  //too. The garbage collection reads only the ids of the child
+  //nodes of the segments, and readListFields only the segments
+  //containing the positions.
+  //
+  //The value 0 (the default) means that the chunked format is not
+  //used. Like with setPackedLists, lists in all formats are read.
+  public void setChunkedLists(int segmentSize)
+  {
+    this.segmentSize = segmentSize;
+  }
+
+
+  //Opens a new JDBC connection to the database. The writer and each
+  //reader have their own connection. A subclass can override this
+  //to wrap the connections, for example to record the statements.
+  protected Connection openConnection()
+  throws Exception
+  {
+    Class.forName("org.sqlite.JDBC");
+    return DriverManager.getConnection("jdbc:sqlite:"+dbName);
+  }
+
+
+  //Constructor of a reader. A reader has its own connection to
+  //the same database.
+  private SQLiteNodeStore(String dbName, Connection connection)
+  throws Exception
+  {
+    this.dbName = dbName;
+    this.connection = connection;
+    isReader = true;
+    loadCatalog();
+  }
+  //Create the initial system tables of a new database.
+  private void createSystemTables()
+  throws Exception
+  {
+    //Higher level structure of a node instance is stored in the
+    //nodeInstances table.
+    String str =
+      "CREATE TABLE nodeInstances"
+      +" ("
+
+      //Unique id of the node in the object database.
+      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+      //Count of outer references (orc) to the node.
+      +"orc INTEGER,"
+
+      //Count of internal references (irc) to the node.
+      +"irc INTEGER,"
+
+      //Full Java type name of the node.
+      //For a list node the name is "testdb.ListNode"
+      //For a fixed node the type name is, for example,
+      //"userclasses.Friend".
+      //(It is inefficient to store for each node instance the
+      //full Java type name, but this is a demo implementation.)
+      +"className TEXT"
+
+      +")";
+    executeStatement(str);
+
+
+    //List node instances are stored in the tables "list" and
+    //"listitems" in th database.
+
+    str =
+      "CREATE TABLE lists"
+      +" ("
+
+      //Primary key. The listItems table refers to this field.
+      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+      //Refers to nodeInstances.id.
+      +"instanceId INTEGER,"
+
+      //Length of the list node, i.e. how many items the list node
+      //contains currently.
+      +"len INTEGER,"
+
+      //The items of a list node of primitive items, IntListNode or
+      //StringListNode, in one BLOB in the format of
+      //NodeRecords.encodeIntList or encodeStringList, or the items
+      //of a ListNode in the packed format (see setPackedLists).
+      //These lists have no rows in the table listItems. Null for a
+      //ListNode in the row format and for a list which has not
+      //been written yet.
+      +"items BLOB,"
+
+      //Count of items in a segment of a ListNode in the chunked
+      //format (see setChunkedLists). Null for the other formats.
+      +"segmentSize INTEGER"
+
+      +")";
+    executeStatement(str);
+
+
+    str =
+      "CREATE TABLE listItems"
+      +" ("
+
+      //Primary key.
+      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+      //Refers to lists.id.
+      +"parent INTEGER,"
+
+      //Position (0,1,..) of an item in the list.
+      +"position INTEGER,"
+
+      //Type code of an item in a list.
+      //Defines explicitly the type of the item.
+      +"type INTEGER,"
+
+      //An item in a list. The item can be a scalar value or
+      //pointer to node, to a fixed node or to a list node. If
+      //an item is a scalar value, it is stored as such. Note that
+      //SQLite database uses dynamic type system. Therefore also
+      //a string scalar can be stored in this field. If item is
+      //pointer to a node then item (integer value) refers to
+      //nodeInstances.id.
+      +"item INTEGER"
+
+      +")";
+
+    executeStatement(str);
+
+    createListSegmentsTable();
+    createSystemIndexes();
+  }
+  //The indexes of the rows of a node by its id (instanceId) and of
+  //the items of a list by the list and the position. Without them
+  //each read of a node or of an item scans the whole table.
+  private void createSystemIndexes()
+  throws Exception
+  {
+    createInstanceIdIndex("lists");
+    executeStatement
+      ("CREATE INDEX IF NOT EXISTS listItems_parent"
+       +" ON listItems (parent,position)");
+  }
+  private void createInstanceIdIndex(String tableName)
+  throws Exception
+  {
+    executeStatement
+      ("CREATE INDEX IF NOT EXISTS "+tableName+"_instanceId"
+       +" ON "+tableName+" (instanceId)");
+  }
+  //The segments of the list nodes in the chunked format, see
+  //setChunkedLists.
+  private void createListSegmentsTable()
+  throws Exception
+  {
+    String str =
+      "CREATE TABLE listSegments"
+      +" ("
+
+      //Refers to nodeInstances.id of the list node.
+      +"instanceId INTEGER,"
+
+      //Number (0,1,..) of the segment. The first item of the
+      //segment is at the position segment*lists.segmentSize.
+      +"segment INTEGER,"
+
+      //SHA-256 digest of the items.
+      +"digest BLOB,"
+
+      //The ids of the non-null child nodes referred to by the items
+      //(see NodeRecords.encodeIds). Null if there are none.
+      +"childIds BLOB,"
+
+      //The items in the packed format.
+      +"items BLOB,"
+
+      +"PRIMARY KEY (instanceId,segment)"
+
+      +")";
+    executeStatement(str);
+  }
+  //Adds the columns and tables added later to the system tables of
+  //an old database.
+  private void upgradeSystemTables()
+  throws Exception
+  {
+    if (!catalog.get("lists").contains("items"))
+      executeStatement("ALTER TABLE lists ADD COLUMN items BLOB");
+    if (!catalog.get("lists").contains("segmentSize"))
+      executeStatement
+        ("ALTER TABLE lists ADD COLUMN segmentSize INTEGER");
+    loadTableToCatalog("lists");
+    if (!catalog.containsKey("listSegments"))
+    {
+      createListSegmentsTable();
+      loadTableToCatalog("listSegments");
+    }
+
+    //The indexes were added later too. Only the tables of fixed
+    //nodes have the column instanceId. The tables of SQLite itself,
+    //like sqlite_stat1 created by ANALYZE, can not be indexed.
+    createSystemIndexes();
+    for (String name : catalog.keySet())
+      if (!SYSTEM_TABLES.contains(name) && !name.startsWith("sqlite_")
+          && catalog.get(name).contains("instanceId"))
+        createInstanceIdIndex(name);
+  }
+
+
+
+
+//////////////////////////////////////////////////////////////////
+// Methods of the interface NodeStore.
+  public NodeStore openReader()
+  throws Exception
+  {
+    SQLiteNodeStore reader = new SQLiteNodeStore(dbName,openConnection());
+    reader.metrics = metrics;
+    reader.writer = this;
+    synchronized (readerStores)
+    {
+      readerStores.add(reader);
+    }
+    return reader;
+  }
+
+
+  public void close()
+  throws Exception
+  {
+    connection.close();
+    if (writer != null)
+    {
+      synchronized (writer.readerStores)
+      {
+        writer.readerStores.remove(this);
+      }
+    }
+  }
+
+
+  public void setMetricsListener(MetricsListener listener)
+  {
+    metrics = listener;
+    synchronized (readerStores)
+    {
+      for (SQLiteNodeStore reader : readerStores)
+        reader.metrics = listener;
+    }
+  }
+
+
+  //A transaction is begun by switching the auto-commit mode off
+  //and it is ended by committing or rolling back and switching the
+  //auto-commit mode on again. For a reader the transaction is a
+  //read transaction. SQLite takes the snapshot of the read
+  //transaction at its first read, so the reader reads sqlite_master
+  //at once. The transaction then sees the state of the database
+  //committed when it was begun, like in the other node stores, and
+  //a read view (see TestDB.openReadView) is pinned to the state of
+  //the time it was opened.
+  public void beginTransaction()
+  throws Exception
+  {
+    connection.setAutoCommit(false);
+    if (isReader)
+    {
+      missingTables.clear();
+      readSingleValue("sqlite_master","1","1");
+    }
+  }
+  public void commitTransaction()
+  throws Exception
+  {
+    flushAllocatedNodes();
+    if (hasPendingIds)
+    {
+      executeStatement("DELETE FROM temp.pendingIds");
+      hasPendingIds = false;
+    }
+    connection.commit();
+    connection.setAutoCommit(true);
+    createdTables.clear();
+  }
+  public void rollbackTransaction()
+  throws Exception
+  {
+    for (PreparedStatement st : allocatedNodes.values())
+      st.close();
+    allocatedNodes.clear();
+    connection.rollback();
+    connection.setAutoCommit(true);
+    for (String tableName : createdTables)
+      catalog.remove(tableName);
+    createdTables.clear();
+    hasPendingIds = false;
+
+    //The reservation of the block of ids was rolled back too, but
+    //the ids given out are not given out again, see allocateId.
+  }
+
+
+  //Creates the table of the type, if it does not exist yet.
+  public void registerClass(Class<?> c)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+    if (!fixedTableExists(tableName))
+      createDBTableForFixedNode(c);
+  }
+
+
+  public long allocateFixedNode(Class<?> c)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+
+    //If a node type is a new one, create the corresponding SQL
+    //table.
+    if (!fixedTableExists(tableName))
+      createDBTableForFixedNode(c);
+
+    //Insert an empty fixed node. Set orc=irc=0 for the inserted
+    //node. The rows are inserted in batches, see
+    //flushAllocatedNodes.
+    long id = allocateId();
+    addToBatch
+      ("INSERT INTO nodeInstances (id,orc,irc,className) VALUES(?,0,0,?)",
+       id,c.getName());
+    NodeMapper mapper = NodeAccessor.of(c).mapper;
+    if (mapper != null)
+      addToBatch(mapper.getInsertSQL(),id);
+    else
+      addToBatch
+        ("INSERT INTO " + tableName + " (id,instanceId) VALUES(NULL,?)",id);
+
+    return id;
+  }
+  public long allocateListNode(Class<?> c)
+  throws Exception
+  {
+   //Insert an empty list node. Set orc=irc=0 for the inserted
+   //node.
+   long id = allocateId();
+   addToBatch
+     ("INSERT INTO nodeInstances (id,orc,irc,className) VALUES(?,0,0,?)",
+      id,c.getName());
+
+   addToBatch
+     ("INSERT INTO lists (id,instanceId,len) VALUES(NULL,?,0)",id);
+
+   return id;
+  }
+
+
+  public Class<?> readClassOfNode(long id)
+  throws Exception
+  {
+    String className = (String)
+      readSingleValue("nodeInstances","className","id=?",id);
+    return  Class.forName(className);
+  }
+
+
+  public ArrayList<FieldT> readFields(long id, int selector)
+  throws Exception
+  {
+    Class<?> c = readClassOfNode(id);
+    if (c == IntListNode.class)
+      return TestDB.getFields
+        (c,new IntListNode(readIntListItems(id)),selector);
+    else if (c == StringListNode.class)
+      return TestDB.getFields
+        (c,new StringListNode(readStringListItems(id)),selector);
+    else if (c != ListNode.class)
+      return readFieldsOfDBFixedNode(c,id,selector);
+    else
+      return readFieldsOfDBListNode(id,selector);
+  }
+
+
+  //For simplicity, contents of all given fields are written, i.e.
+  //not only the changed fields. Also, to make implementing easy,
+  //a list node is first cleared by making it an empty list.
+  public void writeFields(long id, Class<?> c, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    if (c != ListNode.class)
+    {
+      //With a generated mapper all the fields are written with one
+      //statement.
+      NodeAccessor accessor = NodeAccessor.of(c);
+      if (accessor.mapper != null && !fields.isEmpty()
+          && fields.size() == accessor.fields.length)
+      {
+        Object[] values = new Object[fields.size()+1];
+        for (FieldT f : fields)
+          values[accessor.indexOfField((Field) f.field)] = f.value;
+        values[fields.size()] = id;
+        executeStatement(accessor.mapper.getUpdateSQL(),values);
+      }
+      else
+        for (FieldT f : fields)
+          writeValueToFieldOfDBFixedNode(c,id,f);
+    }
+    else if (segmentSize > 0 && fields.size() > segmentSize)
+      writeChunkedDBListNode(id,fields);
+    else if (packedLists)
+      writePackedDBListNode(id,fields);
+    else
+    {
+      removeFieldsOfDBListNode(id);
+      for (FieldT f : fields)
+        writeValueToFieldOfDBListNode(id,f);
+    }
+  }
+
+
+  //A list in the row format or in the chunked format is written
+  //only at the given positions. A list in the packed format is read
+  //and written again as a whole.
+  public void writeListFields(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    if (fields.isEmpty())
+      return;
+    int format = readListFormat(id);
+    if (format == LIST_FORMAT_ROWS)
+      writeRowsOfDBListNodeAt(id,fields);
+    else if (format == LIST_FORMAT_CHUNKED)
+      writeChunkedDBListNodeAt(id,fields);
+    else
+    {
+      ArrayList<FieldT> items = readFields(id,0);
+      TestDB.setFieldsAtPositions(items,0,fields);
+      writeFields(id,ListNode.class,items);
+    }
+  }
+
+
+  public int readListLength(long id)
+  throws Exception
+  {
+    return (Integer) readSingleValue("lists","len","instanceId=?",id);
+  }
+  public ArrayList<FieldT> readListFields
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    if (readClassOfNode(id) == ListNode.class)
+    {
+      int format = readListFormat(id);
+      if (format == LIST_FORMAT_CHUNKED)
+        return readChunkedDBListNode(id,fromPos,toPos,selector);
+      if (format == LIST_FORMAT_ROWS)
+        return readRowsOfDBListNode(id,fromPos,toPos,selector);
+    }
+    return TestDB.getFieldsAtPositions
+      (readFields(id,selector),fromPos,toPos);
+  }
+
+
+  public void writeIntListItems(long id, int[] items, int size)
+  throws Exception
+  {
+    executeStatement("UPDATE lists SET len=?,items=? WHERE instanceId=?",
+                     size,NodeRecords.encodeIntList(items,size),id);
+  }
+  public int[] readIntListItems(long id)
+  throws Exception
+  {
+    byte[] items = (byte[])
+      readSingleValue("lists","items","instanceId=?",id);
+    if (items == null)
+      return new int[0];
+    return NodeRecords.decodeIntList(ByteBuffer.wrap(items));
+  }
+  public void writeStringListItems(long id, String[] items, int size)
+  throws Exception
+  {
+    executeStatement("UPDATE lists SET len=?,items=? WHERE instanceId=?",
+                     size,NodeRecords.encodeStringList(items,size),id);
+  }
+  public String[] readStringListItems(long id)
+  throws Exception
+  {
+    byte[] items = (byte[])
+      readSingleValue("lists","items","instanceId=?",id);
+    if (items == null)
+      return new String[0];
+    return NodeRecords.decodeStringList(ByteBuffer.wrap(items));
+  }
+
+
+  public LongList readIdsOfNonNullChildNodes(long id)
+  throws Exception
+  {
+     LongList ids = new LongList();
+     //The items of a list node of primitive items are not read.
+     Class<?> c = readClassOfNode(id);
+     if (c == IntListNode.class || c == StringListNode.class)
+       return ids;
+     //The ids of the child nodes of a packed list are read from the
+     //BLOB, without creating the items, and the ids of the child
+     //nodes of a chunked list from the ids of its segments.
+     if (c == ListNode.class)
+     {
+       int format = readListFormat(id);
+       if (format == LIST_FORMAT_PACKED)
+         return NodeRecords.readIdsOfNonNullChildNodesOfPackedList
+           (ByteBuffer.wrap((byte[]) readSingleValue
+              ("lists","items","instanceId=?",id)));
+       if (format == LIST_FORMAT_CHUNKED)
+       {
+         for (Object childIds : readColumn
+                ("SELECT childIds FROM listSegments"
+                 +" WHERE instanceId=? AND childIds IS NOT NULL"
+                 +" ORDER BY segment",id))
+           NodeRecords.decodeIds(ByteBuffer.wrap((byte[]) childIds),ids);
+         return ids;
+       }
+     }
+     ArrayList<FieldT> fields = readFields(id,1);
+     for(FieldT f: fields)
+     {
+       long idChild = (Long) f.value;
+       if (idChild != TestDB.ID_NULL_NODE)
+         ids.add(idChild);
+     }
+     return ids;
+  }
+
+
+  public int readORC(long id)
+  throws Exception
+  {
+     return (Integer)
+       readSingleValue("nodeInstances","orc" , "id=?",id);
+  }
+  public int readIRC(long id)
+  throws Exception
+  {
+     return (Integer)
+       readSingleValue("nodeInstances","irc" , "id=?",id);
+  }
+  public void incrORC(long id)
+  throws Exception
+  {
+    executeStatement
+      ("UPDATE nodeInstances SET orc=orc+1 WHERE id=?",id);
+  }
+  public void decrORC(long id)
+  throws Exception
+  {
+    executeStatement
+      ("UPDATE nodeInstances SET orc=orc-1 WHERE id=?",id);
+  }
+  public void incrIRC(long id)
+  throws Exception
+  {
+    executeStatement
+       ("UPDATE nodeInstances SET irc=irc+1 WHERE id=?",id);
+  }
+  public void decrIRC(long id)
+  throws Exception
+  {
+    executeStatement
+      ("UPDATE nodeInstances SET irc=irc-1 WHERE id=?",id);
+  }
+
+
+  public void deleteNode(long id)
+  throws Exception
+  {
+    Class<?> c = readClassOfNode(id);
+
+    if (!TestDB.isListNode(c))
+      removeFixedNodeFromDB(c,id);
+    else
+      removeListNodeFromDB(id);
+  }
+
+
+  public long findFixedNode(Class<?> c, String fieldName, Object value)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+
+    if (!fixedTableExists(tableName))
+      return TestDB.ID_NULL_NODE;
+    Number instanceId = (Number) readSingleValue
+      (tableName,"instanceId", fieldName+"=?",value);
+    if (instanceId == null)
+      return TestDB.ID_NULL_NODE;
+    return instanceId.longValue();
+  }
+
+
+  //The query is compiled to SQL when it is run for the first time,
+  //see compileQuery.
+  public LongList findFixedNodes(Query<?> query, Object[][] operands)
+  throws Exception
+  {
+    LongList ids = new LongList();
+    String tableName =
+      getFixedTableNameFromClassName(query.c.getName());
+    if (!fixedTableExists(tableName))
+      return ids;
+
+    String sql = query.sql;
+    if (sql == null)
+    {
+      sql = compileQuery(query,tableName);
+      query.sql = sql;
+    }
+    for (Object id : readColumn(sql,getQueryParameters(query,operands)))
+      ids.add(((Number) id).longValue());
+    return ids;
+  }
+
+
+  //The pending ids are kept in a temporary table, which SQLite
+  //keeps in a temporary file when it grows large. The table is
+  //created when the first id is added in a transaction, and its
+  //rows are deleted when the transaction is committed. A rollback
+  //removes them as well.
+  public void addPendingId(long id)
+  throws Exception
+  {
+    if (!hasPendingIds)
+    {
+      executeStatement("CREATE TEMP TABLE IF NOT EXISTS pendingIds"
+                       +"(id INTEGER PRIMARY KEY)");
+      hasPendingIds = true;
+    }
+    executeStatement("INSERT INTO temp.pendingIds(id) VALUES(?)",id);
+  }
+  public boolean removePendingId(long id)
+  throws Exception
+  {
+    if (!hasPendingIds)
+      return false;
+    PreparedStatement st = getPrepStatement
+      ("DELETE FROM temp.pendingIds WHERE id=?",id);
+    int count = st.executeUpdate();
+    countRows(count);
+    st.close();
+    return count > 0;
+  }
+  public int countPendingIds()
+  throws Exception
+  {
+    if (!hasPendingIds)
+      return 0;
+    return ((Number) readColumn
+      ("SELECT COUNT(*) FROM temp.pendingIds").get(0)).intValue();
+  }
+// Methods of the interface NodeStore.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Tool methods for the nodes in DB.
+
+  //Remove a fixed node from the database, in a flat way.
+  private void removeFixedNodeFromDB(Class<?> c, long id)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+    executeDelete(tableName, "instanceId=?", id);
+    executeDelete("nodeInstances", "id=?", id);
+  }
+
+
+  //Remove a list node from the database, in a flat way.
+  private void removeListNodeFromDB(long id)
+  throws Exception
+  {
+    long rowIdOfList = readLongValue
+      ("lists","id","instanceId=?",id);
+    executeDelete("listItems", "parent=?", rowIdOfList);
+    executeDelete("listSegments", "instanceId=?", id);
+    executeDelete("lists", "id=?", rowIdOfList);
+    executeDelete("nodeInstances", "id=?", id);
+  }
+
+
+  private void removeFieldsOfDBListNode(long id)
+  throws Exception
+  {
+    long rowIdOfList = readLongValue 
+      ("lists","id","instanceId=?",id);
+
+    executeDelete("listItems", "parent=?", rowIdOfList);
+    executeDelete("listSegments", "instanceId=?", id);
+
+    executeStatement
+      ("UPDATE lists SET len=0,items=NULL,segmentSize=NULL WHERE id=?",
+       rowIdOfList);
+  }
+
+
+  //Returns the format of the list node in the database,
+  //LIST_FORMAT_NONE if no items have been written to the list.
+  private int readListFormat(long id)
+  throws Exception
+  {
+    return (Integer) readSingleValue
+      ("lists",
+       "CASE WHEN segmentSize>0 THEN "+LIST_FORMAT_CHUNKED
+       +" WHEN items IS NOT NULL THEN "+LIST_FORMAT_PACKED
+       +" WHEN len>0 THEN "+LIST_FORMAT_ROWS
+       +" ELSE "+LIST_FORMAT_NONE+" END",
+       "instanceId=?",id);
+  }
+
+
+  private void writePackedDBListNode(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    //Remove the items written in another format before.
+    int format = readListFormat(id);
+    if (format == LIST_FORMAT_ROWS || format == LIST_FORMAT_CHUNKED)
+      removeFieldsOfDBListNode(id);
+
+    executeStatement("UPDATE lists SET len=?,items=? WHERE instanceId=?",
+                     fields.size(),NodeRecords.encodePackedList(fields),id);
+  }
+
+
+  //Writes the segments of the list whose items have changed, see
+  //setChunkedLists.
+  private void writeChunkedDBListNode(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    //The digests of the old segments, if the list was written in
+    //segments of the same size before. Otherwise the items written
+    //before are removed.
+    ArrayList<Object> oldDigests = new ArrayList<Object>();
+    int format = readListFormat(id);
+    if (format == LIST_FORMAT_CHUNKED && (Integer) readSingleValue
+          ("lists","segmentSize","instanceId=?",id) == segmentSize)
+      oldDigests = readColumn
+        ("SELECT digest FROM listSegments WHERE instanceId=?"
+         +" ORDER BY segment",id);
+    else if (format != LIST_FORMAT_NONE)
+      removeFieldsOfDBListNode(id);
+
+    int segmentCount = (fields.size()+segmentSize-1)/segmentSize;
+    for (int segment=0; segment<segmentCount; ++segment)
+      writeListSegment
+        (id,segment,
+         fields.subList(segment*segmentSize,
+                        Math.min(fields.size(),(segment+1)*segmentSize)),
+         segment < oldDigests.size() ? oldDigests.get(segment) : null);
+    executeDelete
+      ("listSegments","instanceId=? AND segment>=?",id,segmentCount);
+
+    executeStatement
+      ("UPDATE lists SET len=?,items=NULL,segmentSize=?"
+       +" WHERE instanceId=?",fields.size(),segmentSize,id);
+  }
+  //Writes only the segments containing the positions of the given
+  //fields, see writeListFields. The list keeps the segment size it
+  //was written with.
+  private void writeChunkedDBListNodeAt(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    int size = (Integer) readSingleValue
+      ("lists","segmentSize","instanceId=?",id);
+    int fromPos = (Integer) fields.get(0).field;
+    int toPos = fromPos + fields.size();
+    int firstSegment = fromPos/size;
+    int lastSegment = (toPos-1)/size;
+
+    ArrayList<FieldT> items = readChunkedDBListNode
+      (id,firstSegment*size,(lastSegment+1)*size,0);
+    TestDB.setFieldsAtPositions(items,firstSegment*size,fields);
+    ArrayList<Object> oldDigests = readColumn
+      ("SELECT digest FROM listSegments"
+       +" WHERE instanceId=? AND segment>=? AND segment<=?"
+       +" ORDER BY segment",
+       id,firstSegment,lastSegment);
+
+    for (int segment=firstSegment; segment<=lastSegment; ++segment)
+    {
+      int i = segment - firstSegment;
+      writeListSegment
+        (id,segment,
+         items.subList(i*size,Math.min(items.size(),(i+1)*size)),
+         i < oldDigests.size() ? oldDigests.get(i) : null);
+    }
+
+    executeStatement
+      ("UPDATE lists SET len=MAX(len,?) WHERE instanceId=?",toPos,id);
+  }
+  //Writes a segment of a list in the chunked format, unless its
+  //digest equals the old digest of the segment.
+  private void writeListSegment
+    (long id, int segment, List<FieldT> items, Object oldDigest)
+  throws Exception
+  {
+    if (segmentDigest == null)
+      segmentDigest = MessageDigest.getInstance("SHA-256");
+
+    byte[] packed = NodeRecords.encodePackedList(items);
+    byte[] digest = segmentDigest.digest(packed);
+    if (oldDigest != null && Arrays.equals((byte[]) oldDigest,digest))
+      return;
+
+    LongList childIds = new LongList();
+    for (FieldT f : items)
+      if (TestDB.isPointerField(f.typeCode)
+          && (Long) f.value != TestDB.ID_NULL_NODE)
+        childIds.add((Long) f.value);
+
+    executeStatement
+      ("INSERT OR REPLACE INTO listSegments VALUES(?,?,?,?,?)",
+       id,segment,digest,
+       childIds.size() > 0 ? NodeRecords.encodeIds(childIds) : null,
+       packed);
+  }
+  //Writes only the rows of the positions of the given fields, see
+  //writeListFields.
+  private void writeRowsOfDBListNodeAt(long id, ArrayList<FieldT> fields)
+  throws Exception
+  {
+    long rowIdOfList = readLongValue 
+      ("lists","id","instanceId=?",id);
+    int fromPos = (Integer) fields.get(0).field;
+    int toPos = fromPos + fields.size();
+
+    executeDelete("listItems","parent=? AND position>=? AND position<?",
+                  rowIdOfList,fromPos,toPos);
+    for (FieldT f : fields)
+      executeStatement("INSERT INTO listItems VALUES(NULL,?,?,?,?)",
+                       rowIdOfList,
+                       (Integer)f.field,
+                       f.typeCode,
+                       f.value);
+
+    executeStatement
+      ("UPDATE lists SET len=MAX(len,?) WHERE id=?",toPos,rowIdOfList);
+  }
+
+
+  private void writeValueToFieldOfDBFixedNode
+    (Class<?> c, long id, FieldT f)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+
+    long rowId = readLongValue 
+      (tableName,"id","instanceId=?",id);
+
+    String fieldName = ((Field) f.field).getName();
+
+    updateSingleValue(tableName,fieldName,"id=?",f.value,rowId);
+  }
+  private void writeValueToFieldOfDBListNode(long id, FieldT f)
+  throws Exception
+  {
+    long rowIdOfList = readLongValue 
+      ("lists","id","instanceId=?",id);
+
+    executeStatement("INSERT INTO listItems VALUES(NULL,?,?,?,?)",
+                     rowIdOfList,
+                     (Integer)f.field,
+                     f.typeCode,
+                     f.value);
+
+    executeStatement
+      ("UPDATE lists SET len=len+1 WHERE id=?",rowIdOfList);
+  }
+
+
+  //Fields of the database node are returned in a ArrayList.
+  //Both a field and its content is returned in the structure
+  //FieldT. A caller selects with the selector if only scalar
+  //fields or only pointer fields, or if both types of fields
+  //are returned.
+  //
+  //The id defines the node in the database.
+  //
+  //Values of the selector:
+  //0 = Pointer fields and scalar fields are returned.
+  //1 = Only pointer fields are returned.
+  //2 = Only scalar fields are returned.
+  private ArrayList<FieldT> readFieldsOfDBFixedNode
+    (Class<?> c, long id, int selector)
+  throws Exception
+  {
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+
+    //Get the fields from the corresponding run-time node type
+    //(class). Do not fill the fields with any values yet.
+    ArrayList<FieldT> fields = TestDB.getFields(c,null,selector);
+
+    //With a generated mapper all the fields are read with one
+    //query.
+    NodeAccessor accessor = NodeAccessor.of(c);
+    if (accessor.mapper != null && !fields.isEmpty())
+    {
+      PreparedStatement st =
+        getPrepStatement(accessor.mapper.getSelectSQL(),id);
+      ResultSet rs = st.executeQuery();
+      rs.next();
+      for (FieldT f : fields)
+        f.value = toFieldValue
+          (f.typeCode,rs.getObject(accessor.indexOfField((Field) f.field)+1));
+      st.close();
+      return fields;
+    }
+
+    long rowId = readLongValue 
+      (tableName,"id","instanceId=?",id);
+
+    //Fill the fields from the database.
+    for(FieldT f : fields)
+    {
+      String fieldName = ((Field) f.field).getName();
+      //Set the value in the field. The value is read from the
+      //database.
+      f.value = toFieldValue
+        (f.typeCode,readSingleValue(tableName,fieldName,"id=?",rowId));
+    }
+    return fields;
+  }
+  private ArrayList<FieldT> readFieldsOfDBListNode
+    (long id, int selector)
+  throws Exception
+  {
+    int format = readListFormat(id);
+    if (format == LIST_FORMAT_PACKED)
+      return NodeRecords.decodePackedList
+        (ByteBuffer.wrap((byte[]) readSingleValue
+           ("lists","items","instanceId=?",id)),selector);
+    if (format == LIST_FORMAT_CHUNKED)
+      return readChunkedDBListNode(id,0,Integer.MAX_VALUE,selector);
+
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+
+    long rowIdOfList = readLongValue 
+      ("lists","id","instanceId=?",id);
+
+    int len = (Integer) readSingleValue
+      ("lists","len","id=?",rowIdOfList);
+
+    for(int pos=0; pos<len; ++pos)
+    {
+      int typeCodeOfField = (Integer) readSingleValue
+        ("listItems", "type", "parent=? AND position=?",
+         rowIdOfList,pos);
+
+      boolean addPointerField =
+        TestDB.isPointerField(typeCodeOfField) &&
+          (selector == 0 || selector == 1);
+
+      boolean addScalarField =
+        TestDB.isScalarField(typeCodeOfField) &&
+          (selector == 0 || selector == 2);
+
+      if (addPointerField || addScalarField)
+      {
+        Object value = readSingleValue
+          ("listItems", "item", "parent=? AND position=?",
+           rowIdOfList,pos);
+
+        fields.add(new FieldT
+          (pos,typeCodeOfField,toFieldValue(typeCodeOfField,value)));
+      }
+    }
+    return fields;
+  }
+  //Reads the items at the positions fromPos to toPos-1 of a list
+  //in the row format, with one query.
+  private ArrayList<FieldT> readRowsOfDBListNode
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+
+    long rowIdOfList = readLongValue 
+      ("lists","id","instanceId=?",id);
+
+    PreparedStatement st = getPrepStatement
+      ("SELECT position,type,item FROM listItems"
+       +" WHERE parent=? AND position>=? AND position<?"
+       +" ORDER BY position",
+       rowIdOfList,fromPos,toPos);
+    ResultSet rs = st.executeQuery();
+    while (rs.next())
+    {
+      int typeCodeOfField = rs.getInt(2);
+      if (NodeRecords.isSelected(typeCodeOfField,selector))
+        fields.add(new FieldT
+          (rs.getInt(1),typeCodeOfField,
+           toFieldValue(typeCodeOfField,rs.getObject(3))));
+    }
+    st.close();
+    return fields;
+  }
+  //Reads the items at the positions fromPos to toPos-1 of a list
+  //in the chunked format. Only the segments containing the
+  //positions are read.
+  private ArrayList<FieldT> readChunkedDBListNode
+    (long id, int fromPos, int toPos, int selector)
+  throws Exception
+  {
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+
+    int size = (Integer) readSingleValue
+      ("lists","segmentSize","instanceId=?",id);
+    toPos = Math.min(toPos,readListLength(id));
+    if (fromPos >= toPos)
+      return fields;
+
+    int segment = fromPos/size;
+    for (Object packed : readColumn
+           ("SELECT items FROM listSegments"
+            +" WHERE instanceId=? AND segment>=? AND segment<=?"
+            +" ORDER BY segment",
+            id,segment,(toPos-1)/size))
+    {
+      for (FieldT f : NodeRecords.decodePackedList
+                        (ByteBuffer.wrap((byte[]) packed),selector))
+      {
+        int pos = segment*size + (Integer) f.field;
+        if (pos < fromPos || pos >= toPos)
+          continue;
+        f.field = pos;
+        fields.add(f);
+      }
+      ++segment;
+    }
+    return fields;
+  }
+
+
+//This method creates the table for a fixed node (for its type).
+//These tables are created dynamically, when the system encounters
+//the type of the fixed node for the first time.
+//
+//Below are two examples of Java types of fixed nodes, Friend and
+//Book. Fields of the these nodes (their Java types) are public,
+//but this is not a requirement. Every node (object) in the
+//run-time memory contains a compulsory id field.
+//
+//
+//  package userclasses;
+//
+//  public class Friend
+//  {
+//    //Id of the node. If id==0 the node does not have a
+//    //corresponding node in the database. If id>0 the node has
+//    //a corresponding node in the database identified by the
+//    //id.
+//    public int id;
+//
+//    //Scalar field of type String.
+//    public String name;
+//
+//    //Scalar field of type Integer.
+//    public Integer age;
+//
+//    //Pointer field referring to a list node. Contains Java
+//    //reference to an object of type ListNode (or null).
+//    public ListNode list;
+//
+//    //Pointer field referring to a fixed node of type Book.
+//    //Contains Java reference to an object of type Book
+//    (or null).
+//    public Book book;
+//
+//    //Default constructor is required. The database uses
+//    //this constructor to create a corresponding Java object
+//    //when a node is loaded from the database with the search
+//    //method.
+//    public Friend(){}
+//
+//    <Possible other methods>
+//  }
+//
+//  public class Book
+//  {
+//    public int id;
+//
+//    public String name;
+//    public int price;
+//
+//    public Book(){}
+//
+//    <Possible other methods>
+//  }
+//
+//
+//Database tables created for the types of fixed nodes above:
+//
+//
+//  CREATE TABLE userclasses_Friend
+//  (
+//    //Primary key.
+//    id INTEGER PRIMARY KEY AUTOINCREMENT,
+//
+//    //Refers to nodeInstances.id.
+//    instanceId INTEGER,
+//
+//    //Scalar field.
+//    name TEXT,
+//
+//    //Scalar field.
+//    age INTEGER,
+//
+//    //Pointer field referring to a list node. Refers to
+//    //nodeInstances.id
+//    //(or contains zero if refers to a null list node).
+//    list INTEGER,
+//
+//    //Pointer field referring to a fixed node of type book.
+//    //Refers to nodeInstances.id
+//    //(or contains zero if refers to a null book node).
+//    book INTEGER
+//  )
+//
+//  CREATE TABLE userclasses_Book
+//  (
+//    id INTEGER PRIMARY KEY AUTOINCREMENT,
+//    instanceId INTEGER,
+//    name TEXT,
+//    price INTEGER
+//  )
+//
+//Each table has also an index on the column instanceId, for
+//example
+//
+//  CREATE INDEX userclasses_Friend_instanceId
+//    ON userclasses_Friend (instanceId)
+  private void createDBTableForFixedNode(Class<?> c)
+  throws Exception
+  {
+    NodeMapper mapper = NodeAccessor.of(c).mapper;
+    String tableName =
+      getFixedTableNameFromClassName(c.getName());
+
+    if (mapper != null)
+    {
+      executeStatement(mapper.getCreateTableSQL());
+      createInstanceIdIndex(tableName);
+      addCreatedTable
+        (tableName,Arrays.asList(mapper.getFieldNames()));
+      return;
+    }
+
+    String str = "CREATE TABLE "+tableName
+               +" ("
+               +"id INTEGER PRIMARY KEY AUTOINCREMENT"
+               +",instanceId INTEGER";
+
+    ArrayList<FieldT> fields = TestDB.getFields(c,null,0);
+    ArrayList<String> fieldNames = new ArrayList<String>();
+    for (FieldT f : fields)
+    {
+      String fieldName = ((Field) f.field).getName();
+
+      String sqlFieldType =
+        getSQLFixedNodeFieldTypeFromTypeCode(f.typeCode);
+
+      str += ("," + fieldName + " " + sqlFieldType);
+      fieldNames.add(fieldName);
+    }
+    str += ")";
+    executeStatement(str);
+    createInstanceIdIndex(tableName);
+    addCreatedTable(tableName,fieldNames);
+  }
+
+
+  //Compiles the query to a SELECT of the ids from the table of its
+  //type, for example
+  //
+  //  SELECT instanceId FROM userclasses_Person
+  //  WHERE age>=? AND name GLOB ?
+  //  ORDER BY age DESC,instanceId LIMIT 10
+  //
+  //The values of the conditions are parameters, one for each value
+  //of IN, see getQueryParameters. The prefix of startsWith is a GLOB
+  //pattern, because GLOB is case sensitive like the other node
+  //stores, and SQLite can search a prefix of GLOB with an ordinary
+  //index of the column, but not a prefix of LIKE.
+  private static String compileQuery(Query<?> query, String tableName)
+  {
+    String str = "SELECT instanceId FROM "+tableName;
+    for (int i=0; i<query.conditions.size(); ++i)
+    {
+      Query.Condition cond = query.conditions.get(i);
+      str += (i == 0 ? " WHERE " : " AND ")
+           + query.fieldNames.get(cond.field);
+      if (cond.operator == Query.BETWEEN)
+        str += " BETWEEN ? AND ?";
+      else if (cond.operator == Query.STARTS_WITH)
+        str += " GLOB ?";
+      else if (cond.operator == Query.IN)
+      {
+        str += " IN (";
+        for (int j=0; j<cond.operands.length; ++j)
+          str += (j == 0 ? "?" : ",?");
+        str += ")";
+      }
+      else
+        str += Query.SQL_OPERATORS[cond.operator]+"?";
+    }
+    if (query.orderField >= 0)
+      str += " ORDER BY "+query.fieldNames.get(query.orderField)
+           + (query.ascending ? "" : " DESC")+",instanceId";
+    else
+      str += " ORDER BY instanceId";
+    if (query.limit >= 0)
+      str += " LIMIT "+query.limit;
+    return str;
+  }
+
+
+  //Returns the parameters of the SQL of the query, in the order of
+  //the conditions. The prefix of startsWith is given as a GLOB
+  //pattern in which the wildcard characters are escaped.
+  private static Object[] getQueryParameters
+    (Query<?> query, Object[][] operands)
+  {
+    ArrayList<Object> parameters = new ArrayList<Object>();
+    for (int i=0; i<operands.length; ++i)
+    {
+      if (query.conditions.get(i).operator != Query.STARTS_WITH)
+      {
+        parameters.addAll(Arrays.asList(operands[i]));
+        continue;
+      }
+      String prefix = (String) operands[i][0];
+      String pattern = "";
+      for (int j=0; j<prefix.length(); ++j)
+      {
+        char ch = prefix.charAt(j);
+        if (ch == '*' || ch == '?' || ch == '[')
+          pattern += "["+ch+"]";
+        else
+          pattern += ch;
+      }
+      parameters.add(pattern+"*");
+    }
+    return parameters.toArray();
+  }
+
+
+  private static String
+    getFixedTableNameFromClassName(String className)
+  {
+    return className.replace('.','_');
+  }
+
+
+  //The table is looked up in the catalog. Only a reader queries the
+  //database, when the table is not in its catalog, and only once in
+  //a read transaction (see missingTables).
+  private boolean fixedTableExists(String tableName)
+  throws Exception
+  {
+    if (catalog.containsKey(tableName))
+      return true;
+    if (!isReader || missingTables.contains(tableName))
+      return false;
+    loadTableToCatalog(tableName);
+    if (catalog.containsKey(tableName))
+      return true;
+    missingTables.add(tableName);
+    return false;
+  }
+
+
+  private static String getSQLFixedNodeFieldTypeFromTypeCode
+    (int typeCode)
+  {
+    if (typeCode == TestDB.FIELD_TYPE_INT) return "INTEGER";
+    else if (typeCode == TestDB.FIELD_TYPE_INTEGER) return "INTEGER";
+    else if (typeCode == TestDB.FIELD_TYPE_STRING) return "TEXT";
+    else if (typeCode == TestDB.FIELD_TYPE_FIXED_NODE) return "INTEGER";
+    else if (typeCode == TestDB.FIELD_TYPE_LIST_NODE) return "INTEGER";
+    return null; //Should not happen.
+  }
+// Tool methods for the nodes in DB.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Catalog.
+  //Loads the names of the tables and their columns. The columns are
+  //read with PRAGMA table_info for each table, because the
+  //table-valued function pragma_table_info needs SQLite 3.16, and
+  //the driver in sqlitedriver is older.
+  private void loadCatalog()
+  throws Exception
+  {
+    catalog.clear();
+    missingTables.clear();
+    for (Object tableName : readColumn
+           ("SELECT name FROM sqlite_master WHERE type='table'"))
+      loadTableToCatalog((String) tableName);
+  }
+
+
+  //Loads the columns of a table which has been created or altered
+  //after the catalog was loaded. A table which does not exist is
+  //not added.
+  private void loadTableToCatalog(String tableName)
+  throws Exception
+  {
+    catalog.remove(tableName);
+    PreparedStatement st = getPrepStatement
+      ("PRAGMA table_info(\""+tableName.replace("\"","\"\"")+"\")");
+    ResultSet rs = st.executeQuery();
+    while (rs.next())
+      addToCatalog(tableName,rs.getString("name"));
+    st.close();
+  }
+
+
+  private void addToCatalog(String tableName, String column)
+  {
+    HashSet<String> columns = catalog.get(tableName);
+    if (columns == null)
+    {
+      columns = new HashSet<String>();
+      catalog.put(tableName,columns);
+    }
+    columns.add(column);
+  }
+
+
+  //Adds a table of a fixed node created in the current transaction,
+  //with the columns id and instanceId and the columns of the fields.
+  //The catalog is updated without querying the database, so the
+  //catalog is the only record of the tables of the writer.
+  private void addCreatedTable(String tableName,
+                               List<String> fieldNames)
+  {
+    addToCatalog(tableName,"id");
+    addToCatalog(tableName,"instanceId");
+    for (String fieldName : fieldNames)
+      addToCatalog(tableName,fieldName);
+    createdTables.add(tableName);
+  }
+// Catalog.
+//////////////////////////////////////////////////////////////////
+
+
+//////////////////////////////////////////////////////////////////
+// Lower level SQL methods.
+  //Returns a new id for a node. The ids are reserved in blocks of
+  //ID_BLOCK_SIZE ids: the block is added to the sequence of the ids
+  //of the table nodeInstances in the table sqlite_sequence, and the
+  //end of the block is read back in the same write transaction.
+  //This is the same sequence which AUTOINCREMENT uses. If the table
+  //does not have a sequence yet, it is started from the greatest id
+  //in the table. UPDATE ... RETURNING is not used, because it needs
+  //SQLite 3.35, and the driver in sqlitedriver is older.
+  //
+  //If the transaction is rolled back, the reservation is rolled
+  //back too, but a node in the run-time memory may still have an
+  //id given out in the transaction. Therefore the rest of the block
+  //is used by the next transactions, and the next block is reserved
+  //after lastReservedId even if the sequence was rolled back below
+  //it. A node inserted with an id of the block moves the sequence
+  //past the id when it is committed. So an id is never given out
+  //twice, and a rollback only leaves gaps in the ids. The block is
+  //not reserved with a connection of its own: the writer may hold
+  //the write lock of the database already, and the commit of
+  //another connection would invalidate the snapshot of the
+  //transaction of the writer.
+  private long allocateId()
+  throws Exception
+  {
+    if (nextId > lastReservedId)
+    {
+      int count = executeStatement
+        ("UPDATE sqlite_sequence SET seq=MAX(seq,?)+?"
+         +" WHERE name='nodeInstances'",lastReservedId,ID_BLOCK_SIZE);
+      if (count == 0)
+        executeStatement
+          ("INSERT INTO sqlite_sequence (name,seq)"
+           +" SELECT 'nodeInstances',MAX(IFNULL(MAX(id),0),?)+?"
+           +" FROM nodeInstances",lastReservedId,ID_BLOCK_SIZE);
+      lastReservedId = readLongValue
+        ("sqlite_sequence","seq","name='nodeInstances'");
+      nextId = lastReservedId - ID_BLOCK_SIZE + 1;
+    }
+    return nextId++;
+  }
+
+
+  //Adds a row to the batch of the INSERT statement. The statement
+  //is prepared once for the batch.
+  private void addToBatch(String str, Object... parameters)
+  throws Exception
+  {
+    PreparedStatement st = allocatedNodes.get(str);
+    if (st == null)
+    {
+      countStatement(MetricsListener.STATEMENT_INSERT);
+      st = connection.prepareStatement(str);
+      allocatedNodes.put(str,st);
+    }
+    for(int i=0; i<parameters.length; ++i)
+      st.setObject(i+1,parameters[i]);
+    st.addBatch();
+  }
+
+
+  //Inserts the rows of the nodes allocated since the last flush.
+  //This is done before any other statement is prepared, so that the
+  //statements see the rows. When the embed method has allocated the
+  //white nodes, the rows of all of them are inserted with one batch
+  //for each table.
+  private void flushAllocatedNodes()
+  throws Exception
+  {
+    if (allocatedNodes.isEmpty())
+      return;
+    for (PreparedStatement st : allocatedNodes.values())
+    {
+      int count = 0;
+      for (int rows : st.executeBatch())
+        count += rows;
+      countRows(count);
+      st.close();
+    }
+    allocatedNodes.clear();
+  }
+
+
+  //Returns null if nothing found.
+  private Object readSingleValue(String table,
+                                 String field,
+                                 String wherePart,
+                                 Object... parameters)
+  throws Exception
+  {
+    PreparedStatement st = getPrepStatement
+      ("SELECT "+field+" FROM "+table+" WHERE "+wherePart,
+       parameters);
+
+    ResultSet rs = st.executeQuery();
+
+    Object obj = null;
+    boolean found = rs.next();
+    if (found)
+      obj = rs.getObject(1);
+    st.close();
+    return obj;
+  }
+
+
+  //Reads a value which must exist and is an INTEGER, for example
+  //the id of a row. The driver returns a small INTEGER as an
+  //Integer and a large one as a Long.
+  private long readLongValue(String table,
+                             String field,
+                             String wherePart,
+                             Object... parameters)
+  throws Exception
+  {
+    return ((Number) readSingleValue
+              (table,field,wherePart,parameters)).longValue();
+  }
+
+
+  //Returns the value read from a column as the value of a field
+  //with the type code. A pointer field contains the id as a Long
+  //(see NodeStore), also when the driver returns an Integer.
+  private static Object toFieldValue(int typeCode, Object value)
+  {
+    if (TestDB.isPointerField(typeCode) && value instanceof Integer)
+      return ((Integer) value).longValue();
+    return value;
+  }
+
+
+  //Returns the values of the first column of the rows returned by
+  //the query.
+  private ArrayList<Object> readColumn(String query,
+                                       Object... parameters)
+  throws Exception
+  {
+    PreparedStatement st = getPrepStatement(query,parameters);
+    ResultSet rs = st.executeQuery();
+    ArrayList<Object> values = new ArrayList<Object>();
+    while (rs.next())
+      values.add(rs.getObject(1));
+    st.close();
+    return values;
+  }
+
+
+  private void updateSingleValue(String table,
+                                 String field,
+                                 String wherePart,
+                                 Object... parameters)
+  throws Exception
+  {
+    executeStatement
+      ("UPDATE "+table+" SET "+field+"=? WHERE "+wherePart,
+        parameters);
+  }
+
+
+  private void executeDelete(String table,
+                             String wherePart,
+                             Object... parameters)
+  throws Exception
+  {
+    executeStatement
+      ("DELETE FROM "+table+" WHERE "+wherePart, parameters);
+  }
+
+  //Returns the count of the rows changed.
+  private int executeStatement(String str, Object... parameters)
+  throws Exception
+  {
+    PreparedStatement st = getPrepStatement(str, parameters);
+    int count = st.executeUpdate();
+    countRows(count);
+    st.close();
+    return count;
+  }
+
+  //Executes a PRAGMA statement. The result of the statement, if
+  //any, is ignored.
+  private void executePragma(String pragma)
+  throws Exception
+  {
+    countStatement(MetricsListener.STATEMENT_OTHER);
+    Statement st = connection.createStatement();
+    st.execute("PRAGMA "+pragma);
+    st.close();
+  }
+
+  private PreparedStatement getPrepStatement(String str,
+                                             Object... parameters)
+  throws Exception
+  {
+    flushAllocatedNodes();
+    if (metrics.isEnabled())
+      metrics.statementExecuted(getKindOfStatement(str));
+    if (++statementCount >= SQL_EVENT_SAMPLE_INTERVAL)
+    {
+      statementCount = 0;
+      SqlStatementEvent event = new SqlStatementEvent();
+      if (event.isEnabled())
+      {
+        event.sql = str;
+        event.sampleInterval = SQL_EVENT_SAMPLE_INTERVAL;
+        event.commit();
+      }
+    }
+    PreparedStatement st = connection.prepareStatement(str);
+    for(int i=0; i<parameters.length; ++i)
+      st.setObject(i+1,parameters[i]);
+    return st;
+  }
+
+
+  //Each prepared statement is executed once, so it is counted when
+  //it is prepared.
+  private void countStatement(int kind)
+  {
+    if (metrics.isEnabled())
+      metrics.statementExecuted(kind);
+  }
+  private void countRows(int count)
+  {
+    if (metrics.isEnabled())
+      metrics.rowsWritten(count);
+  }
+
+
+  private static int getKindOfStatement(String str)
+  {
+    if (str.startsWith("SELECT"))
+      return MetricsListener.STATEMENT_SELECT;
+    if (str.startsWith("INSERT"))
+      return MetricsListener.STATEMENT_INSERT;
+    if (str.startsWith("UPDATE"))
+      return MetricsListener.STATEMENT_UPDATE;
+    if (str.startsWith("DELETE"))
+      return MetricsListener.STATEMENT_DELETE;
+    return MetricsListener.STATEMENT_OTHER;
+  }
+// Lower level SQL methods.
+//////////////////////////////////////////////////////////////////
+}
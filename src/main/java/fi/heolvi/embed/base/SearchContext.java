@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+//This is the per-call state of the method searchFixedNodesFromDB.
+//A new context is created for each call, so that many threads can
+//load object structures from the same database at the same time.
+class SearchContext
+{
+  //The reader of the node store borrowed from the pool of the
+  //readers of the database for the duration of the call.
+  NodeStore store;
+
+  //This map is for a tool method search which can be used to load
+  //(search) object structures from the object database into the
+  //run-time memory. The key is id of a node and the value is the
+  //run-time node created for it.
+  LongObjectMap<Object> readNodes;
+
+  //True if a long list node may be loaded as a paged list node. A
+  //paged list node reads its pages later with a reader from the
+  //pool, so a read view, which must read only its own snapshot,
+  //loads the list nodes whole.
+  boolean pagedLists;
+
+  SearchContext(NodeStore store)
+  {
+    this(store,new LongObjectMap<Object>());
+  }
+
+  //A context which goes on loading the nodes of an earlier call,
+  //with its map readNodes, see TestDB.readListPage.
+  SearchContext(NodeStore store, LongObjectMap<Object> readNodes)
+  {
+    this.store = store;
+    this.readNodes = readNodes;
+  }
+}
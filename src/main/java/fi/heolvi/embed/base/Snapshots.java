@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.ArrayList;
+
+//The versions of the committed state of a node store which keeps
+//its data in the memory (HeapNodeStore, MappedNodeStore and
+//LogNodeStore), and the undo records which let a read transaction
+//see the version which was committed when it began.
+//
+//Each commit increments the version. A read transaction registers
+//the current version at its beginning with begin. While read
+//transactions are open, a commit saves the state it overwrites as
+//an undo record of type T: for example the original records of
+//the nodes changed by the commit. A reader of the version v finds
+//the state of a part of the data from the oldest undo record
+//after v which contains the part, and if no undo record contains
+//it, from the current state of the store.
+//
+//The undo records are kept until no read transaction of an older
+//version is open. Then they are dropped by the next commit, so a
+//long read transaction makes the undo records pile up, like an
+//open read transaction of SQLite makes the WAL file grow.
+//
+//The version and the undo records are changed only by commit,
+//which is called with the write lock of the store. The readers
+//use them with the read lock of the store. The registrations of
+//the read transactions are synchronized by this object, because
+//the read transactions begin and end concurrently.
+class Snapshots<T>
+{
+  //The version of the committed state.
+  long version = 1;
+
+  //The undo records of the commits, oldest first, and the versions
+  //created by the commits. The undo record of the version V has
+  //the state of the version V-1 of the parts changed by the commit.
+  ArrayList<T> undoRecords = new ArrayList<T>();
+  private ArrayList<Long> versions = new ArrayList<Long>();
+
+  //The count of open read transactions of each version.
+  private LongIntMap openCounts = new LongIntMap();
+
+
+  //Registers a read transaction, and returns the version it sees.
+  //Called with the read lock of the store.
+  synchronized long begin()
+  {
+    openCounts.add(version,1);
+    return version;
+  }
+
+
+  //Ends a read transaction of the version.
+  synchronized void end(long version)
+  {
+    openCounts.add(version,-1);
+    if (openCounts.get(version) == 0)
+      openCounts.remove(version);
+  }
+
+
+  //Returns true, if a commit must save an undo record, because some
+  //read transaction is open.
+  synchronized boolean isNeeded()
+  {
+    return openCounts.size() > 0;
+  }
+
+
+  //Called at the end of a commit, with the write lock of the store.
+  //The undo record is null if isNeeded returned false. The undo
+  //records which no open read transaction can use are dropped.
+  synchronized void commit(T undoRecord)
+  {
+    ++version;
+    long oldest = oldestOpenVersion();
+    int count = 0;
+    while (count < versions.size() && versions.get(count) <= oldest)
+      ++count;
+    versions.subList(0,count).clear();
+    undoRecords.subList(0,count).clear();
+    if (undoRecord != null)
+    {
+      undoRecords.add(undoRecord);
+      versions.add(version);
+    }
+  }
+
+
+  //Returns the index in undoRecords of the first undo record which
+  //a read transaction of the version must use. Called with the read
+  //lock of the store.
+  int firstUndoRecord(long version)
+  {
+    int i = versions.size();
+    while (i > 0 && versions.get(i-1) > version)
+      --i;
+    return i;
+  }
+
+
+  private long oldestOpenVersion()
+  {
+    long oldest = Long.MAX_VALUE;
+    for (long v : openCounts.keys())
+      oldest = Math.min(oldest,v);
+    return oldest;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import jdk.jfr.*;
+
+//An SQL statement executed by SQLiteNodeStore. There are many
+//statements for each node, so only one statement of each
+//SQLiteNodeStore.SQL_EVENT_SAMPLE_INTERVAL statements of a store
+//instance is recorded. The
+//stack trace of the sampled statements shows where the statements
+//come from. See EmbedEvent.
+@Name("fi.heolvi.embed.SqlStatement")
+@Label("SQL Statement")
+@Category({"Object Database"})
+@Description("A sampled SQL statement of SQLiteNodeStore")
+@StackTrace(true)
+class SqlStatementEvent extends Event
+{
+  @Label("SQL")
+  String sql;
+
+  @Label("Statements Represented")
+  int sampleInterval;
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.lang.reflect.*;
+import java.nio.*;
+import java.util.*;
+
+//A type of fixed node as stored in a file based node store: the
+//class id used in the store, the name of the Java type and the names
+//of its fields. The values of the fields are in the records in the
+//order of fieldNames.
+//
+//If the fields of a Java type change, the type gets a new stored
+//class with a new class id, and the records of the old nodes of the
+//type are still read with the old field names.
+class StoredClass
+{
+  int id;
+  String className;
+  String[] fieldNames;
+
+  //Resolved from the Java type when first needed, see resolve.
+  //For each name in fieldNames the field of the Java type and its
+  //type code. The field is null if the type does not have the field
+  //any more.
+  Class<?> c;
+  Field[] fields;
+  int[] typeCodes;
+
+
+  StoredClass(int id, String className, String[] fieldNames)
+  {
+    this.id = id;
+    this.className = className;
+    this.fieldNames = fieldNames;
+  }
+
+
+  //A stored class with the current fields of the Java type c.
+  StoredClass(int id, Class<?> c)
+  throws Exception
+  {
+    this(id,c.getName(),fieldNamesOf(c));
+  }
+
+
+  int indexOfField(String fieldName)
+  {
+    for (int i=0; i<fieldNames.length; ++i)
+      if (fieldNames[i].equals(fieldName))
+        return i;
+    return -1;
+  }
+
+
+  //Returns for each class id the indexes of the fields in the
+  //records of the class id, -1 for a field which the stored class
+  //does not have, or null if the class id is not of the type c.
+  static int[][] indexesOfFields
+    (ArrayList<StoredClass> classes, Class<?> c, List<String> fieldNames)
+  {
+    int lastId = 0;
+    for (StoredClass sc : classes)
+      lastId = Math.max(lastId,sc.id);
+    int[][] indexes = new int[lastId+1][];
+    for (StoredClass sc : classes)
+    {
+      if (!sc.className.equals(c.getName()))
+        continue;
+      indexes[sc.id] = new int[fieldNames.size()];
+      for (int k=0; k<indexes[sc.id].length; ++k)
+        indexes[sc.id][k] = sc.indexOfField(fieldNames.get(k));
+    }
+    return indexes;
+  }
+
+
+  //Returns true, if this is the stored class of the current fields
+  //of the Java type c.
+  boolean matches(Class<?> c)
+  throws Exception
+  {
+    return className.equals(c.getName())
+      && Arrays.equals(fieldNames,fieldNamesOf(c));
+  }
+
+
+  //Returns true, if this is the stored class of a list node of
+  //primitive items, IntListNode or StringListNode. The class has no
+  //fields and the records of its nodes are in the formats of
+  //NodeRecords.encodeIntList and encodeStringList.
+  boolean isPrimitiveList()
+  {
+    return className.equals(IntListNode.class.getName())
+      || className.equals(StringListNode.class.getName());
+  }
+
+
+  //Resolves the Java type and the fields.
+  synchronized StoredClass resolve()
+  throws Exception
+  {
+    if (c != null)
+      return this;
+    Class<?> cl = Class.forName(className);
+    Field[] fs = new Field[fieldNames.length];
+    int[] tcs = new int[fs.length];
+    for (FieldT f : TestDB.getFields(cl,null,0))
+    {
+      int i = indexOfField(((Field) f.field).getName());
+      if (i < 0)
+        continue;
+      fs[i] = (Field) f.field;
+      tcs[i] = f.typeCode;
+    }
+    fields = fs;
+    typeCodes = tcs;
+    c = cl;
+    return this;
+  }
+
+
+  //Adds the class name, the count of fields and the field names to
+  //the values of a record, see NodeRecords.encode.
+  void addTo(List<Object> values)
+  {
+    values.add(className);
+    values.add(fieldNames.length);
+    values.addAll(Arrays.asList(fieldNames));
+  }
+
+
+  //Reads a stored class written with addTo from the record.
+  static StoredClass read(int id, ByteBuffer record)
+  {
+    String className = (String) NodeRecords.readValue(record);
+    String[] fieldNames =
+      new String[(Integer) NodeRecords.readValue(record)];
+    for (int i=0; i<fieldNames.length; ++i)
+      fieldNames[i] = (String) NodeRecords.readValue(record);
+    return new StoredClass(id,className,fieldNames);
+  }
+
+
+  static String[] fieldNamesOf(Class<?> c)
+  throws Exception
+  {
+    ArrayList<FieldT> fieldsOfClass = TestDB.getFields(c,null,0);
+    String[] names = new String[fieldsOfClass.size()];
+    for (int i=0; i<names.length; ++i)
+      names[i] = ((Field) fieldsOfClass.get(i).field).getName();
+    return names;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 Heikki Virkkunen.
+ * Date: 19 October 2026
+*/
+
+package fi.heolvi.embed.base;
+
+import java.util.Arrays;
+
+//A list node whose items are strings. The items are kept in a
+//String array, and the node stores write and read them as a whole
+//array without a type code per item (see
+//NodeStore.writeStringListItems).
+//
+//Items can be null but they can not refer to other nodes. A field
+//or a list item referring to a StringListNode is a pointer to a
+//list node, like a reference to a ListNode.
+public class StringListNode
+{
+  //Id of the list node, like in ListNode.
+  public long id;
+
+  //The items of the list are items[0..size-1].
+  String[] items;
+  int size;
+
+  //Default constructor. The database uses this constructor to
+  //create a corresponding Java object when the list node is loaded
+  //from the database with the search method.
+  public StringListNode()
+  {
+    items = new String[8];
+  }
+
+  //A list node with the given items. The array is used as such,
+  //it is not copied.
+  public StringListNode(String[] items)
+  {
+    this.items = items;
+    this.size = items.length;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+  public void add(String item)
+  {
+    if (size == items.length)
+      items = Arrays.copyOf(items,Math.max(8,2*size));
+    items[size++] = item;
+  }
+  public String get(int index)
+  {
+    checkIndex(index);
+    return items[index];
+  }
+  public String remove(int index)
+  {
+    checkIndex(index);
+    String item = items[index];
+    System.arraycopy(items,index+1,items,index,size-index-1);
+    items[--size] = null;
+    return item;
+  }
+  public String set(int index, String item)
+  {
+    checkIndex(index);
+    String oldItem = items[index];
+    items[index] = item;
+    return oldItem;
+  }
+
+  //Returns a copy of the items.
+  public String[] toArray()
+  {
+    return Arrays.copyOf(items,size);
+  }
+
+  public String toString()
+  {
+    return Arrays.toString(toArray());
+  }
+
+  private void checkIndex(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException
+        ("Index: "+index+", size: "+size);
+  }
+}
@@ -8,7 +8,9 @@ package fi.heolvi.embed.base;
 import java.lang.reflect.*;
 import java.util.*;
 import java.io.*;
-import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /*
 This is the demo implementation of the embed method.
@@ -24,7 +26,10 @@ efficient as an implementation.
 The SQLite database is used as an underlying data store.
 Therefore, the implementation is formally an object-relational
 (O/R) database, but the underlying data store could be, for
-example, a random access file.
+example, a random access file. The data store is accessed only
+through the interface NodeStore. SQLiteNodeStore implements it
+with the SQLite database, and HeapNodeStore keeps the nodes in the
+run-time memory.
 
 For simplicity, error checkings are not done. It is assumed that
 a user does not give erroneous input for the embed method.
@@ -80,12 +85,14 @@ pointer values. To avoid ambiguity, a null value in a run-time
 list node is interpreted as a special value "None". In the
 database, fields of the list nodes have explicit types.
 
-Each run-time node has a compulsory id field of type int storing
-the id of corresponding node in the object database if that
-exists. If a node p in the run-time memory has id>0, it has a
+Each run-time node has a compulsory id field of type long or int
+storing the id of corresponding node in the object database if
+that exists. If a node p in the run-time memory has id>0, it has a
 corresponding node p' in the database having that id. Otherwise,
 when the id is zero for p, then p does not have a corresponding
-node in the database.
+node in the database. The ids are 64-bit in the database. An int
+id field is enough for a database of less than 2^31 ids; binding
+a larger id to it throws an ArithmeticException.
 */
 
 
@@ -94,11 +101,10 @@ node in the database.
 public class TestDB
 {
 
-  //Name of the database.
-  private String dbName;
-
-  //Java JDBC connection of the database.
-  private Connection connection;
+  //The underlying data store of the database. This is the writing
+  //instance of the store. It is used only while holding the
+  //writerLock.
+  private NodeStore store;
 
   //Id of a null node is zero in the run-time memory and in the
   //database.
@@ -125,45 +131,99 @@ public class TestDB
   public static int FIELD_TYPE_STRING  = 3;
 
   //Supported pointer fields for the nodes are pointer to a fixed
-  //node and pointer to a list node.
+  //node and pointer to a list node. A pointer to a list node of
+  //primitive items, IntListNode or StringListNode, is a pointer to
+  //a list node.
   public static int FIELD_TYPE_FIXED_NODE        = 4;
   public static int FIELD_TYPE_LIST_NODE         = 5;
 
-  //The embed method is called for a modified object structure s
-  //(with its root node) in the run-time memory. In the beginning
-  //of the embed method non-null nodes in s are separated in two
-  //groups, white nodes and gray nodes. A non-null node p in s is
-  //a white node if its id is zero, i.e. if p does not yet have a
-  //corresponding node in the the database. Otherwise, if id>0, p
-  //already has a corresponding node in the database with that id
-  //and p is a gray node. White nodes are collected in the list
-  //whiteNodes and gray nodes are collected in the list GrayNodes.
-  ArrayList<Object> whiteNodes;
-  ArrayList<Object> grayNodes;
-
-  //As a side effect, the update phase of the embed method
-  //collects ids of potential garbage nodes, it finds, in the
-  //set seedGarbageIds. When the update phase has been finished,
-  //all possible garbage nodes belong to set or graph Z
-  //consisting of the nodes reachable from the nodes having their
-  //ids in seedGarbageIds. It is possible that only some, or none
-  //of the nodes in Z are garbage. Z may also be empty.
-  HashSet<Integer> seedGarbageIds;
-
-  //The map countOfInternalReferencesInZ is used to count the
-  //internal references inside Z. The key is id of a node and the
-  //value is count of internal references to that node in Z.
-  HashMap<Integer,Integer> countOfInternalReferencesInZ;
-
-  //In Z, nodes which are referred to from outside the Z,
-  //cannot be garbage. Ids of those nodes are collected in the
-  //set idsOfNodesRefOutsideZ.
-  HashSet<Integer> idsOfNodesRefOutsideZ;
-
-  //This map is for a tool method search which can be used to load
-  //(search) object structures from the object database into the
-  //run-time memory.
-  HashMap<Integer,Object> readNodes;
+  //The state of a single call of the embed method (white and gray
+  //nodes, seed garbage ids and the bookkeeping of the graph Z) is
+  //kept in an EmbedContext object, and the state of a single call
+  //of the search method in a SearchContext object. These are
+  //created for each call, and TestDB itself does not keep any
+  //per-call state. Therefore one TestDB object can be shared by
+  //many threads.
+  //
+  //Calls that modify the database (embed, incrORC and decrORC) are
+  //serialized with the writer lock. Each of them is executed in
+  //its own transaction of the writing instance of the node store.
+  //Calls of the search method run concurrently. Each of them
+  //borrows a reader of the node store from the pool of readers.
+  //A reader sees the last committed state of the database and does
+  //not block the writer. (For SQLiteNodeStore each reader has its
+  //own read connection.)
+  private final ReentrantLock writerLock = new ReentrantLock();
+
+  //Pool of the readers of the node store.
+  private ArrayBlockingQueue<NodeStore> readers;
+  private int readerCount;
+
+  //The read views which have not been closed, see openReadView.
+  //They are closed when the database is closed.
+  private Set<ReadView> openViews =
+    Collections.newSetFromMap(new ConcurrentHashMap<ReadView,Boolean>());
+
+  //Count of the readers (read connections) opened by the
+  //constructors which do not get the count as a parameter.
+  public static int DEFAULT_READ_CONNECTION_COUNT = 4;
+
+  //The asynchronous methods (embedAsync, decrORCAsync and
+  //searchAsync) are executed by the executors of the database.
+  //The write executor has a single thread that owns the write
+  //connection, and the read executor has one thread for each read
+  //connection. The threads are ordinary platform threads. A caller
+  //running in a virtual thread only waits for a CompletableFuture,
+  //so it never enters the synchronized sections of the JDBC driver
+  //and is never pinned to its carrier thread. (TestDB itself uses
+  //only java.util.concurrent locks.)
+  private ScheduledExecutorService writeExecutor;
+  private ExecutorService readExecutor;
+
+  //Count of the write operations that have been submitted to the
+  //write executor but have not finished yet is limited with
+  //pendingWritePermits. When the limit is reached, the asynchronous
+  //write methods wait until some pending write operation has
+  //finished. This gives backpressure for the callers.
+  private Semaphore pendingWritePermits;
+  private int maxPendingWrites;
+
+  //The write-behind queue of the method embedWriteBehind. The root
+  //nodes are kept in the list writeBehindRoots in the order they
+  //were queued, and in the identity set writeBehindRootSet to
+  //detect repeated root nodes. All the root nodes in the queue
+  //share the future writeBehindFuture, which is null when the
+  //queue is empty.
+  private final ReentrantLock writeBehindLock = new ReentrantLock();
+  private ArrayList<Object> writeBehindRoots = new ArrayList<Object>();
+  private Set<Object> writeBehindRootSet =
+    Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+  private CompletableFuture<Void> writeBehindFuture;
+
+  //True when the method close has been called. It is set holding
+  //the writeBehindLock, so no root node is queued after the last
+  //flush of the queue.
+  private boolean isClosed = false;
+  private volatile long writeBehindWindowMillis =
+    DEFAULT_WRITE_BEHIND_WINDOW_MILLIS;
+
+  //Default length of the write-behind window in milliseconds.
+  public static long DEFAULT_WRITE_BEHIND_WINDOW_MILLIS = 10;
+
+  //Maximum count of the pending asynchronous write operations used
+  //by the constructors TestDB(dbName) and
+  //TestDB(dbName,readConnectionCount).
+  public static int DEFAULT_MAX_PENDING_WRITES = 256;
+
+  //The page size and the maximum count of the pages in the memory
+  //of the paged list nodes returned by the search method, see
+  //setPagedLists. The page size 0 means that list nodes are loaded
+  //as a whole.
+  private volatile int listPageSize = 0;
+  private volatile int maxResidentListPages;
+
+  //The listener of the metrics, see setMetricsListener.
+  private volatile MetricsListener metrics = MetricsListener.NONE;
 
 
 
@@ -185,147 +245,495 @@ public class TestDB
   //dynamically on-fly in the method
   //methodcreateDBTableForFixedNodewhen when the appropriate type
   //is encountered for the first time.
+  //
+  //The database is stored in the SQLite database with the given
+  //name, see SQLiteNodeStore.
   public TestDB(String dbName)
   throws Exception
   {
-    this.dbName = dbName;
+    this(dbName,DEFAULT_READ_CONNECTION_COUNT);
+  }
+
+
+  //This constructor is like the constructor above, but the client
+  //program gives the count of the read connections used to run
+  //the search method concurrently in many threads.
+  public TestDB(String dbName, int readConnectionCount)
+  throws Exception
+  {
+    this(dbName,readConnectionCount,DEFAULT_MAX_PENDING_WRITES);
+  }
+
+
+  //This constructor is like the constructor above, but the client
+  //program gives also the maximum count of the pending asynchronous
+  //write operations, see the method embedAsync.
+  public TestDB(String dbName,
+                int readConnectionCount,
+                int maxPendingWrites)
+  throws Exception
+  {
+    this(new SQLiteNodeStore(dbName),
+         readConnectionCount,
+         maxPendingWrites);
+  }
+
+
+  //This constructor creates the object database on top of the given
+  //node store, for example
+  //
+  //  TestDB db = new TestDB(new HeapNodeStore());
+  //
+  //creates a database which keeps its nodes in the run-time memory.
+  public TestDB(NodeStore store)
+  throws Exception
+  {
+    this(store,DEFAULT_READ_CONNECTION_COUNT,DEFAULT_MAX_PENDING_WRITES);
+  }
+
+
+  //This constructor is like the constructor above, but the client
+  //program gives also the count of the readers of the node store
+  //and the maximum count of the pending asynchronous write
+  //operations.
+  public TestDB(NodeStore store, int readerCount, int maxPendingWrites)
+  throws Exception
+  {
+    this.store = store;
+
+    //Open the readers.
+    this.readerCount = readerCount;
+    readers = new ArrayBlockingQueue<NodeStore>(readerCount);
+    for (int i=0; i<readerCount; ++i)
+      readers.add(store.openReader());
+
+    this.maxPendingWrites = maxPendingWrites;
+    pendingWritePermits = new Semaphore(maxPendingWrites);
+    writeExecutor = Executors.newSingleThreadScheduledExecutor
+      (newThreadFactory("TestDB-writer"));
+    readExecutor = Executors.newFixedThreadPool
+      (readerCount, newThreadFactory("TestDB-reader"));
+  }
 
-    boolean isOldDB = existsDB(dbName);
 
+  //This method closes the database.
+  //
+  //The asynchronous operations submitted before calling this
+  //method, and the root nodes in the write-behind queue, are
+  //finished before the database is closed. The read views which
+  //have not been closed are closed here, and using them afterwards
+  //throws an IllegalStateException. If closing a view fails, the
+  //rest of the database is closed anyway, and the first failure
+  //is thrown. Closing a closed database does nothing.
+  public void close()
+  throws Exception
+  {
+    //A view can be closed by any thread, because the node stores
+    //do not hold locks for the read transactions of the views (see
+    //ReadView). ReadView.close waits for a search of the view which
+    //is running in another thread.
+    Exception error = null;
     try
     {
-      Class.forName("org.sqlite.JDBC");
-      connection =
-        DriverManager.getConnection("jdbc:sqlite:"+dbName);
+      for (ReadView view : new ArrayList<ReadView>(openViews))
+      {
+        try
+        {
+          view.close();
+        }
+        catch (Exception e)
+        {
+          if (error == null)
+            error = e;
+        }
+      }
     }
-    catch ( Exception e )
+    finally
     {
-      System.out.println( e.getClass().getName() +
-        ": " + e.getMessage() );
-      System.exit(0);
+      closeExecutorsAndStore();
     }
+    if (error != null)
+      throw error;
+  }
 
 
-    if (isOldDB)
-      return;
+  //Finishes the asynchronous operations and the write-behind queue,
+  //and closes the readers and the node store.
+  private void closeExecutorsAndStore()
+  throws Exception
+  {
+    writeBehindLock.lock();
+    try
+    {
+      //The executors of a closed database do not accept tasks.
+      if (isClosed)
+        return;
+      isClosed = true;
+    }
+    finally
+    {
+      writeBehindLock.unlock();
+    }
 
+    //Flush the write-behind queue now rather than after the window.
+    writeExecutor.execute(new Runnable()
+    {
+      public void run()
+      {
+        flushWriteBehindQueue();
+      }
+    });
+    writeExecutor.shutdown();
+    readExecutor.shutdown();
+    writeExecutor.awaitTermination(Long.MAX_VALUE,TimeUnit.SECONDS);
+    readExecutor.awaitTermination(Long.MAX_VALUE,TimeUnit.SECONDS);
 
-    //Higher level structure of a node instance is stored in the
-    //nodeInstances table.
-    String str =
-      "CREATE TABLE nodeInstances"
-      +" ("
+    writerLock.lock();
+    try
+    {
+      //Wait until all the readers have been returned to the pool,
+      //i.e. until the running searches have finished.
+      try
+      {
+        for (int i=0; i<readerCount; ++i)
+          readers.take().close();
+      }
+      finally
+      {
+        store.close();
+      }
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
+  }
 
-      //Unique id of the node in the object database.
-      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
 
-      //Count of outer references (orc) to the node.
-      +"orc INTEGER,"
+  //This method tests whether the database with a given name
+  //exists.
+  public static boolean existsDB(String dbName)
+  throws Exception
+  {
+    return (new File(dbName)).exists();
+  }
 
-      //Count of internal references (irc) to the node.
-      +"irc INTEGER,"
 
-      //Full Java type name of the node.
-      //For a list node the name is "testdb.ListNode"
-      //For a fixed node the type name is, for example,
-      //"userclasses.Friend".
-      //(It is inefficient to store for each node instance the
-      //full Java type name, but this is a demo implementation.)
-      +"className TEXT"
+  //This method deletes the database with a given name.
+  public static void deleteDB(String dbName)
+  throws Exception
+  {
+    (new File(dbName)).delete();
 
-      +")";
-    executeStatement(str);
+    //Files of the WAL mode. These exist only if the database was
+    //not closed.
+    (new File(dbName+"-wal")).delete();
+    (new File(dbName+"-shm")).delete();
+  }
 
 
-    //List node instances are stored in the tables "list" and
-    //"listitems" in th database.
+  //This method exports the SQLite database with the given name to
+  //a file in a compact binary format, optionally compressed. The
+  //file can be imported with the method importDB, for example to
+  //back up or to clone the database. The export sees one committed
+  //state of the database, and it can be done while the database is
+  //open and being updated. See SQLiteDump.
+  public static void exportDB(String dbName, String fileName,
+                              boolean compressed)
+  throws Exception
+  {
+    SQLiteDump.exportDB(dbName,fileName,compressed);
+  }
 
-    str =
-      "CREATE TABLE lists"
-      +" ("
 
-      //Primary key. The listItems table refers to this field.
-      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
+  //This method creates a new SQLite database with the given name
+  //from a file written by the method exportDB. The database must
+  //not exist. The nodes keep their ids, and the internal reference
+  //counts are computed from the imported nodes.
+  public static void importDB(String fileName, String dbName)
+  throws Exception
+  {
+    SQLiteDump.importDB(fileName,dbName);
+  }
 
-      //Refers to nodeInstances.id.
-      +"instanceId INTEGER,"
 
-      //Length of the list node, i.e. how many items the list node
-      //contains currently.
-      +"len INTEGER"
+  //This method registers the types of fixed nodes which the client
+  //program is going to embed, for example
+  //
+  //  TestDB db = new TestDB(dbName);
+  //  db.registerNodeClasses(Friend.class,Book.class);
+  //
+  //The accessor of each type is created, and the node store
+  //prepares for the type (see NodeStore.registerClass), for example
+  //an SQLite database creates the table of a new type. Then the
+  //first embed of a type does not pay for these, and the DDL of the
+  //new types is run when the database is opened, in one
+  //transaction. The types of list nodes need not be registered.
+  public void registerNodeClasses(Class<?>... classes)
+  throws Exception
+  {
+    writerLock.lock();
+    try
+    {
+      store.beginTransaction();
+      try
+      {
+        for (Class<?> c : classes)
+        {
+          if (isListNode(c))
+            continue;
+          NodeAccessor.of(c);
+          store.registerClass(c);
+        }
+        store.commitTransaction();
+      }
+      catch (Exception e)
+      {
+        store.rollbackTransaction();
+        throw e;
+      }
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
+  }
 
-      +")";
-    executeStatement(str);
 
+  //This is the famous embed method which a client program calls to
+  //update the object database with a modified object structure s
+  //in the run-time memory. The method is called with the root
+  //object s of the modified object structure. The embed method
+  //consists of two co-operating phases, the update phase and the
+  //garbage collection phase.
+  //
+  //The method is executed in one transaction holding the writer
+  //lock. If the method fails, the transaction is rolled back and
+  //the database is left as it was before the call. The ids
+  //assigned to the white nodes in s are cleared, so s can be
+  //embedded again.
+  public void embed(Object s)
+  throws Exception
+  {
+    ArrayList<Object> roots = new ArrayList<Object>();
+    roots.add(s);
+    embedRoots(roots);
+  }
 
-    str =
-      "CREATE TABLE listItems"
-      +" ("
 
-      //Primary key.
-      +"id INTEGER PRIMARY KEY AUTOINCREMENT,"
+  //This is the write-behind version of the embed method. The method
+  //does not update the database, but puts the root node s in the
+  //write-behind queue and returns a future, which is completed when
+  //the content of s has been committed to the database.
+  //
+  //The queue is flushed by the write executor when the
+  //write-behind window (see setWriteBehindWindow) has elapsed from
+  //the moment the first root node was put in the empty queue. If
+  //the same root node (the same Java object) is put in the queue
+  //several times during the window, it is embedded only once, and
+  //all the calls get the same future. All the root nodes in the
+  //queue are embedded in one transaction like with the method
+  //embedAll.
+  //
+  //The content of s is read when the queue is flushed, not when
+  //this method is called. Therefore the database lags behind the
+  //run-time memory at most the length of the window (plus the time
+  //of the flush). The client program must not modify s while the
+  //queue is flushed, i.e. while the future is not completed.
+  //
+  //Each distinct root node in the queue counts as a pending
+  //asynchronous write operation, see the method embedAsync. After
+  //the database has been closed the method throws an
+  //IllegalStateException.
+  public CompletableFuture<Void> embedWriteBehind(Object s)
+  throws Exception
+  {
+    writeBehindLock.lock();
+    try
+    {
+      checkNotClosed();
+      if (writeBehindFuture != null && writeBehindRootSet.contains(s))
+        return writeBehindFuture; //Coalesce with the queued root.
+    }
+    finally
+    {
+      writeBehindLock.unlock();
+    }
 
-      //Refers to lists.id.
-      +"parent INTEGER,"
+    //Wait outside the lock, so that the flush can release permits.
+    pendingWritePermits.acquire();
 
-      //Position (0,1,..) of an item in the list.
-      +"position INTEGER,"
+    writeBehindLock.lock();
+    try
+    {
+      //The database may have been closed meanwhile, and another
+      //thread may have queued the same root.
+      if (isClosed)
+      {
+        pendingWritePermits.release();
+        checkNotClosed();
+      }
+      if (writeBehindFuture != null && writeBehindRootSet.contains(s))
+      {
+        pendingWritePermits.release();
+        return writeBehindFuture;
+      }
 
-      //Type code of an item in a list.
-      //Defines explicitly the type of the item.
-      +"type INTEGER,"
+      //The first root node in the empty queue schedules the flush.
+      if (writeBehindFuture == null)
+      {
+        writeBehindFuture = new CompletableFuture<Void>();
+        writeExecutor.schedule(new Runnable()
+        {
+          public void run()
+          {
+            flushWriteBehindQueue();
+          }
+        }, writeBehindWindowMillis, TimeUnit.MILLISECONDS);
+      }
 
-      //An item in a list. The item can be a scalar value or
-      //pointer to node, to a fixed node or to a list node. If
-      //an item is a scalar value, it is stored as such. Note that
-      //SQLite database uses dynamic type system. Therefore also
-      //a string scalar can be stored in this field. If item is
-      //pointer to a node then item (integer value) refers to
-      //nodeInstances.id.
-      +"item INTEGER"
+      writeBehindRoots.add(s);
+      writeBehindRootSet.add(s);
+      return writeBehindFuture;
+    }
+    finally
+    {
+      writeBehindLock.unlock();
+    }
+  }
 
-      +")";
 
-    executeStatement(str);
+  //This method embeds many object structures in one call, as if
+  //the embed method were called for each root node in roots in
+  //their order, but with one update phase and one garbage
+  //collection phase in one transaction. A node reachable from
+  //several root nodes is collected, and its content copied to the
+  //database, only once, and the garbage collection walks the graph
+  //Z of all the root nodes once.
+  //
+  //Each root node which is white when it is reached in the order
+  //becomes a persistent root node (orc=1), like in the embed
+  //method. A white root node reachable from an earlier root node
+  //has then already been collected as an ordinary node, so it does
+  //not become a persistent root node, like when embedding the root
+  //nodes one after another.
+  public void embedAll(Collection<?> roots)
+  throws Exception
+  {
+    embedRoots(new ArrayList<Object>(roots));
   }
 
 
-  //This method closes the database.
-  public void close()
+  //Opens an embed session, which embeds an object structure given
+  //node by node, see EmbedSession. The session begins a transaction
+  //holding the writer lock, and it ends when it is closed or
+  //aborted.
+  public EmbedSession openEmbedSession()
   throws Exception
   {
-    connection.close();
+    writerLock.lock();
+    try
+    {
+      EmbedContext ctx = new EmbedContext(store);
+      ctx.metrics = getEnabledMetrics();
+      store.beginTransaction();
+      return new EmbedSession(this,ctx);
+    }
+    catch (Exception e)
+    {
+      writerLock.unlock();
+      throw e;
+    }
   }
 
 
-  //This method tests whether the database with a given name
-  //exists.
-  public static boolean existsDB(String dbName)
-  throws Exception
+  //Sets the length of the write-behind window in milliseconds for
+  //the method embedWriteBehind. A longer window coalesces more
+  //repeated embeds of the same root nodes, but increases the lag
+  //of the database. The new length affects the windows started
+  //after this call.
+  public void setWriteBehindWindow(long windowMillis)
   {
-    return (new File(dbName)).exists();
+    writeBehindWindowMillis = windowMillis;
   }
 
 
-  //This method deletes the database with a given name.
-  public static void deleteDB(String dbName)
+  //Sets the search method to load a list node (ListNode) having
+  //more than pageSize items as a PagedListNode. Its items are read
+  //in pages of pageSize items when they are needed, and at most
+  //maxResidentPages pages of the list are kept in the memory. The
+  //embed method writes only the pages where items have been set or
+  //added. Shorter list nodes are loaded as a whole. The page size 0
+  //(the default) means that all list nodes are loaded as a whole.
+  //
+  //Each page is read in its own read transaction, so the pages of
+  //the list may be from different committed states of the
+  //database.
+  public void setPagedLists(int pageSize, int maxResidentPages)
+  {
+    this.maxResidentListPages = Math.max(1,maxResidentPages);
+    this.listPageSize = pageSize;
+  }
+
+
+  //Sets the listener of the metrics of the database: the times of
+  //the phases of the embed method, the garbage collection and the
+  //search, the counts of nodes they handle, and the statements
+  //executed by the node store (see MetricsListener). The listener
+  //is used by the operations started after this call. The default
+  //listener MetricsListener.NONE does nothing, and then the times
+  //are not measured.
+  public void setMetricsListener(MetricsListener listener)
+  {
+    metrics = listener;
+    store.setMetricsListener(listener);
+  }
+
+
+  //Embeds the root nodes in one transaction, with one update phase
+  //and one garbage collection phase, see embedAll.
+  private void embedRoots(List<Object> roots)
   throws Exception
   {
-    (new File(dbName)).delete();
+    writerLock.lock();
+    try
+    {
+      EmbedContext ctx = new EmbedContext(store);
+      ctx.metrics = getEnabledMetrics();
+      store.beginTransaction();
+      try
+      {
+        update(ctx,roots);
+        garbageCollection(ctx);
+        store.commitTransaction();
+        for (PagedListNode list : ctx.writtenPagedLists)
+          list.pagesWritten();
+      }
+      catch (Exception e)
+      {
+        rollback(ctx);
+        throw e;
+      }
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
   }
 
 
-  //This is the famous embed method which a client program calls to
-  //update the object database with a modified object structure s
-  //in the run-time memory. The method is called with the root
-  //object s of the modified object structure. The embed method
-  //consists of two co-operating phases, the update phase and the
-  //garbage collection phase.
-  public void embed(Object s)
+  //Rolls back the transaction of the embed method, the embed
+  //session or the method decrORC, and sets the ids assigned to the
+  //white nodes in the call back to ID_ZERO. The rolled-back ids do
+  //not exist in the database, so the nodes are white again, and
+  //they can be embedded again.
+  private void rollback(EmbedContext ctx)
   throws Exception
   {
-    update(s);
-    garbageCollection();
+    for (Object p : ctx.allocatedNodes)
+      setId(p,ID_ZERO);
+    ctx.allocatedNodes.clear();
+    store.rollbackTransaction();
   }
 
 
@@ -340,7 +748,25 @@ public class TestDB
   public void incrORC(Object p)
   throws Exception
   {
-    incrORC(getId(p));
+    writerLock.lock();
+    try
+    {
+      store.beginTransaction();
+      try
+      {
+        store.incrORC(getId(p));
+        store.commitTransaction();
+      }
+      catch (Exception e)
+      {
+        store.rollbackTransaction();
+        throw e;
+      }
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
   }
 
 
@@ -356,14 +782,32 @@ public class TestDB
   public void decrORC(Object p)
   throws Exception
   {
-    //Create the global set seedGarbageIds.
-    seedGarbageIds = new HashSet<Integer>();
-
-    decrORC(getId(p));
+    writerLock.lock();
+    try
+    {
+      //The context creates the set seedGarbageIds.
+      EmbedContext ctx = new EmbedContext(store);
+      ctx.metrics = getEnabledMetrics();
+      store.beginTransaction();
+      try
+      {
+        store.decrORC(getId(p));
 
-    seedGarbageIds.add(getId(p));
+        ctx.seedGarbageIds.add(getId(p));
 
-    garbageCollection();
+        garbageCollection(ctx);
+        store.commitTransaction();
+      }
+      catch (Exception e)
+      {
+        rollback(ctx);
+        throw e;
+      }
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
   }
 
 
@@ -398,85 +842,267 @@ public class TestDB
   //  The scalar value (compatible with the type of the search
   //  field) used to test equality in a search operation
   //(for example "A").
+  //
+  //The method can be called concurrently from many threads. Each
+  //call reads one consistent committed state of the database, and
+  //does not wait for the embed method running in another thread.
   public ArrayList<Object> searchFixedNodesFromDB
     (Object... searchRules)
   throws Exception
   {
-    ArrayList<Object> resultNodes = new ArrayList<Object>();
-
-    readNodes = new HashMap<Integer,Object>();
-    int rootCount = searchRules.length/3;
-    for (int i=0; i<rootCount; ++i)
+    //Borrow a reader from the pool. If all of them are in use,
+    //wait until some search returns its reader.
+    NodeStore reader = readers.take();
+    reader.beginTransaction();
+    try
     {
-      int j = 3*i;
-      Class<?> classOfFixedNode     = (Class<?>) searchRules[j];
-      String fieldNameOfScalarField = (String)   searchRules[j+1];
-      Object value                  =            searchRules[j+2];
-
-      Object node = searchFixedNodeFromDB(classOfFixedNode,
-                      fieldNameOfScalarField, value);
-      if (node != null)
-        resultNodes.add(node);
+      return search(reader,true,searchRules);
+    }
+    finally
+    {
+      //End the read transaction so that the next search sees the
+      //latest committed state of the database.
+      reader.rollbackTransaction();
+      readers.put(reader);
     }
-    return resultNodes;
   }
-// Public methods.
-//////////////////////////////////////////////////////////////////
 
 
+  //These methods run the query (see Query) and return the nodes
+  //found, or only their ids. The arguments are the values of the
+  //arguments of the query. Like the search method, they borrow a
+  //reader from the pool, and the nodes are loaded like the nodes
+  //found by the search method.
+  public <T> ArrayList<T> findFixedNodes
+    (Query<T> query, Object... arguments)
+  throws Exception
+  {
+    NodeStore reader = readers.take();
+    reader.beginTransaction();
+    try
+    {
+      return find(reader,true,query,arguments);
+    }
+    finally
+    {
+      reader.rollbackTransaction();
+      readers.put(reader);
+    }
+  }
+  public LongList findIdsOfFixedNodes
+    (Query<?> query, Object... arguments)
+  throws Exception
+  {
+    NodeStore reader = readers.take();
+    reader.beginTransaction();
+    try
+    {
+      return reader.findFixedNodes(query,query.bind(arguments));
+    }
+    finally
+    {
+      reader.rollbackTransaction();
+      readers.put(reader);
+    }
+  }
 
-//////////////////////////////////////////////////////////////////
-// Higher level private methods.
 
-  //The embed method calls the update method with the root node s
-  //of the modified object data structure in the run-time memory.
-  //After the update method has been finished, content of the
-  //object structure s exists in the database.
+  //This method opens a read view of the database, for example
   //
-  //As a side effect, the update method produces the set of ids of
-  //potential garbage nodes, it finds, into the set seedGarbageIds.
-  //The set seedGarbageIds is input for the garbage collection
-  //phase of the embed method.
+  //  try (ReadView view = db.openReadView())
+  //  {
+  //    ArrayList<Object> a = view.searchFixedNodesFromDB(...);
+  //    ArrayList<Object> b = view.searchFixedNodesFromDB(...);
+  //  }
   //
-  //Below the terms "step 1", "step 2", "step 3" and "step 4"
-  //refer to the steps described in the article, in section 4.
-  private void update(Object s)
+  //All the searches of the view read the state of the database
+  //committed when the view was opened, see ReadView. The view has
+  //its own reader of the node store (for SQLiteNodeStore its own
+  //read connection), so it does not take a reader from the pool of
+  //the search method, and it does not block the writer. Any count
+  //of views can be open at the same time.
+  public ReadView openReadView()
   throws Exception
   {
-    //Global lists for the white nodes and the gray nodes in s.
-    whiteNodes = new ArrayList<Object>();
-    grayNodes = new ArrayList<Object>();
+    NodeStore reader = store.openReader();
+    try
+    {
+      reader.beginTransaction();
+    }
+    catch (Exception e)
+    {
+      reader.close();
+      throw e;
+    }
+    ReadView view = new ReadView(this,reader);
+    openViews.add(view);
+    return view;
+  }
 
-    //This boolean value dscribes whether the root node s is
-    //white. This information is used in the step 4 of this
-    //method.
-    boolean rootIsWhite =
-      getId(s) == ID_ZERO;
 
-    //Create the global set seedGarbageIds.
-    seedGarbageIds = new HashSet<Integer>();
+  //This is the asynchronous version of the embed method. The
+  //method submits the embed operation to the write executor of the
+  //database and returns a future, which is completed when the
+  //operation has been committed to the database, or completed
+  //exceptionally if the operation fails.
+  //
+  //Embed operations submitted from the same thread are executed
+  //in the order they were submitted. The client program must not
+  //modify the object structure s before the future is completed.
+  //
+  //If the maximum count of the pending asynchronous write
+  //operations has been reached, the method waits until some of
+  //them have finished.
+  public CompletableFuture<Void> embedAsync(final Object s)
+  throws Exception
+  {
+    return submitWrite(new Callable<Void>()
+    {
+      public Void call() throws Exception
+      {
+        embed(s);
+        return null;
+      }
+    });
+  }
 
-//Step 1 and step 2 of the update method:
+
+  //This is the asynchronous version of the method decrORC. See the
+  //method embedAsync.
+  public CompletableFuture<Void> decrORCAsync(final Object p)
+  throws Exception
+  {
+    return submitWrite(new Callable<Void>()
+    {
+      public Void call() throws Exception
+      {
+        decrORC(p);
+        return null;
+      }
+    });
+  }
+
+
+  //This is the asynchronous version of the method
+  //searchFixedNodesFromDB. The search is executed by the read
+  //executor of the database, concurrently with other searches and
+  //with the write operations.
+  public CompletableFuture<ArrayList<Object>> searchAsync
+    (final Object... searchRules)
+  throws Exception
+  {
+    final CompletableFuture<ArrayList<Object>> future =
+      new CompletableFuture<ArrayList<Object>>();
+    readExecutor.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          future.complete(searchFixedNodesFromDB(searchRules));
+        }
+        catch (Throwable e)
+        {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
+  }
+
+
+  //Returns the count of the asynchronous write operations that
+  //have been submitted but have not finished yet. A client program
+  //can use this to slow down before the asynchronous write methods
+  //start to wait.
+  public int getPendingWriteCount()
+  {
+    return maxPendingWrites - pendingWritePermits.availablePermits();
+  }
+// Public methods.
+//////////////////////////////////////////////////////////////////
+
+
+
+//////////////////////////////////////////////////////////////////
+// Higher level private methods.
+
+  //The embed method calls the update method with the root node s
+  //of the modified object data structure in the run-time memory.
+  //After the update method has been finished, content of the
+  //object structure s exists in the database.
+  //
+  //As a side effect, the update method produces the set of ids of
+  //potential garbage nodes, it finds, into the set seedGarbageIds.
+  //The set seedGarbageIds is input for the garbage collection
+  //phase of the embed method.
+  //
+  //Below the terms "step 1", "step 2", "step 3" and "step 4"
+  //refer to the steps described in the article, in section 4.
+  //
+  //The method embedAll calls the update method with several root
+  //nodes. Then the white nodes and the gray nodes of all the
+  //structures are collected in the same lists, so that a node
+  //reachable from several root nodes is collected and copied once,
+  //and the steps 3 and 4 are done once for all of them. The root
+  //nodes are collected in their order, and the result is the same
+  //as if they were embedded one after another.
+  private void update(EmbedContext ctx, List<Object> roots)
+  throws Exception
+  {
+    //Lists for the white nodes and the gray nodes in s, and the
+    //set of the nodes collected in these lists.
+    ctx.whiteNodes = new ArrayList<Object>();
+    ctx.grayNodes = new ArrayList<Object>();
+    ctx.grayNodesById = new LongObjectMap<Object>();
+    ctx.collectedNodes =
+      Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+
+    //The root nodes s which are white. This information is used in
+    //the step 4 of this method.
+    ArrayList<Object> whiteRoots = new ArrayList<Object>();
+
+    //Start time of the phase, if the metrics are enabled.
+    long t = startTime(ctx.metrics);
+    EmbedEvent event = new EmbedEvent();
+    event.begin();
+
+//Step 1 and step 2 of the update method:
     //Step1: Collect white nodes in object the structure s in the
     //list whiteNodes and gray nodes in s in the list grayNodes.
     //Step 2: For each white node in s: Allocate the same type of
     //empty node in the database.
-    collectWhiteAndGrayNodes(s);
+    //
+    //A root node reachable from an earlier root node has already
+    //got its id, so it is gray, like when embedding the root nodes
+    //one after another. The same applies to a repeated root node.
+    for (Object s : roots)
+    {
+      if (s != null && getId(s) == ID_ZERO)
+        whiteRoots.add(s);
+      collectWhiteAndGrayNodes(ctx,s);
+    }
+    t = phaseFinished(ctx.metrics,MetricsListener.PHASE_COLLECT,t);
+    if (ctx.metrics != null)
+      ctx.metrics.nodesCollected
+        (ctx.whiteNodes.size(),ctx.grayNodes.size());
 
 //Step 3 of the update method:
     //Handle changes of internal reference counts of the nodes
     //caused by updating the database with the white nodes.
-    handleReferencesFromWhiteNodesInDB();
+    handleReferencesFromWhiteNodesInDB(ctx);
 
     //Handle changes of internal reference counts of the nodes
     //caused by updating the database with the gray nodes.
-    handleReferencesFromGrayNodesInDB();
+    handleReferencesFromGrayNodesInDB(ctx);
+    t = phaseFinished(ctx.metrics,MetricsListener.PHASE_IRC,t);
 
     //Update the database with the white nodes.
-    copyContentsOfWhiteNodesToDB();
+    copyContentsOfWhiteNodesToDB(ctx);
 
     //Update the database with the gray nodes.
-    copyContentsOfGrayNodesToDB();
+    copyContentsOfGrayNodesToDB(ctx);
+    phaseFinished(ctx.metrics,MetricsListener.PHASE_COPY,t);
 
 
 //Step 4 of the update method:
@@ -499,6 +1125,8 @@ public class TestDB
     //the persistence of p'. Therefore orc could be zero for s in
     //this case.
     //
+    //For embedAll this is done for each root node s in turn.
+    //
     //If the embed method is called for a gray node s, then the
     //orc of s' is kept as it was. This is a natural decision.
     //However, this can cause a strange but perhaps correct
@@ -514,12 +1142,23 @@ public class TestDB
     //to refer to a null node, i.e. not to s anymore. After that
     //the embed method is called for s. As a consequence s'
     //becomes garbage, because now irc=orc=0 for s'.
-    if (rootIsWhite)
-      incrORC(getId(s));
+    for (Object s : whiteRoots)
+      ctx.store.incrORC(getId(s));
+
+    if (event.shouldCommit())
+    {
+      event.rootId = roots.isEmpty() ? ID_NULL_NODE : getId(roots.get(0));
+      event.rootCount = roots.size();
+      event.whiteNodes = ctx.whiteNodes.size();
+      event.grayNodes = ctx.grayNodes.size();
+      event.commit();
+    }
 
     //Free the lists reserved for the white nodes and the gray nodes.
-    whiteNodes = null;
-    grayNodes = null;
+    ctx.whiteNodes = null;
+    ctx.grayNodes = null;
+    ctx.grayNodesById = null;
+    ctx.collectedNodes = null;
   }
 
 
@@ -532,7 +1171,7 @@ public class TestDB
   //corresponding empty node p' (having a corresponding type) in
   //the object database. The node p gets the id of p' into its
   //id field.
-  private void collectWhiteAndGrayNodes(Object p)
+  private void collectWhiteAndGrayNodes(EmbedContext ctx, Object p)
   throws Exception
   {
     //Null nodes are note collected.
@@ -540,37 +1179,44 @@ public class TestDB
       return;
 
     //The same node instance is not collected twice.
-    if (bufferContainsNode(whiteNodes,p)
-        || bufferContainsNode(grayNodes,p))
+    if (!ctx.collectedNodes.add(p))
       return;
 
-    int id = getId(p);
+    long id = getId(p);
 
     //If p is a white node, collect p and allocate a corresponding empty
     //node p' in the database. Assign id of p' to p.
     if (id == ID_ZERO)
     {
-      id = allocateNodeInDB(p);
+      id = allocateNodeInDB(ctx.store,p);
       setId(p,id);
-      whiteNodes.add(p);
+      ctx.allocatedNodes.add(p);
+      ctx.whiteNodes.add(p);
     }
     else //Collect a gray node p.
-      grayNodes.add(p);
+    {
+      //Two different objects with the same id would both update p',
+      //and the changes of one of them would be lost.
+      if (ctx.grayNodesById.put(id,p) != null)
+        throw new IllegalStateException
+          ("Two different objects have the id "+id+" in the embedded"
+           +" structure");
+      ctx.grayNodes.add(p);
+    }
 
     //Collect non-null child nodes of p if not yet collected.
-    ArrayList<FieldT> pointerFields = getFields(p.getClass(),p,1);
-    for (FieldT f : pointerFields)
-      collectWhiteAndGrayNodes(f.value);
+    for (Object q : getNonNullChildNodes(p))
+      collectWhiteAndGrayNodes(ctx,q);
   }
 
 
   //Handle changes of internal reference counts caused by updating
   //the object database with white nodes.
-  private void handleReferencesFromWhiteNodesInDB()
+  private void handleReferencesFromWhiteNodesInDB(EmbedContext ctx)
   throws Exception
   {
-    for(Object p:whiteNodes)
-      handleReferencesFromWhiteNodeInDB(p);
+    for(Object p:ctx.whiteNodes)
+      handleReferencesFromWhiteNodeInDB(ctx,p);
   }
   //Here p is a white node. Updating p' with the p can increase
   //internal reference counts of some nodes in the database. These
@@ -582,22 +1228,23 @@ public class TestDB
   //increments by one. If p refers to q many times (with many
   //pointer fields), then the internal reference count of q'
   //increments as many times.
-  private void handleReferencesFromWhiteNodeInDB(Object p)
+  private void handleReferencesFromWhiteNodeInDB
+    (EmbedContext ctx, Object p)
   throws Exception
   {
-    ArrayList<Integer> C1 = getIdsOfNonNullChildNodes(p);
-    for(Integer id:C1)
-      incrIRC(id);
+    LongList C1 = getIdsOfNonNullChildNodes(p);
+    for (int i=0; i<C1.size(); ++i)
+      ctx.store.incrIRC(C1.get(i));
   }
 
 
   //Handle changes of internal reference counts caused by updating
   //the object database with gray nodes.
-  private void handleReferencesFromGrayNodesInDB()
+  private void handleReferencesFromGrayNodesInDB(EmbedContext ctx)
   throws Exception
   {
-    for(Object p:grayNodes)
-      handleReferencesFromGrayNodeInDB(p);
+    for(Object p:ctx.grayNodes)
+      handleReferencesFromGrayNodeInDB(ctx,p);
   }
   //Here p is a gray node. Updating p' with the p can change
   //internal reference counts of some nodes in the database. These
@@ -627,7 +1274,8 @@ public class TestDB
   //non-null node q', then q' may be garbage. In this case the id
   //of q' is added conditionally to set seedGarbageIds, if it is
   //not yet there.
-  private void handleReferencesFromGrayNodeInDB(Object p)
+  private void handleReferencesFromGrayNodeInDB
+    (EmbedContext ctx, Object p)
   throws Exception
   {
 
@@ -635,7 +1283,7 @@ public class TestDB
     //non-null child nodes of the node p. If p refers several
     //times to the same non-null child node q then the id of q is
     //as many times in the list C1.
-    ArrayList<Integer> C1 =
+    LongList C1 =
       getIdsOfNonNullChildNodes(p);
 
 
@@ -644,12 +1292,12 @@ public class TestDB
     //updated with p). If p' refers several times to the same
     //non-null child node q' then the id of q' is as many times
     //in the list C2.
-    ArrayList<Integer> C2 =
-      getIdsOfNonNullChildNodesOfDBNode(getId(p));
+    LongList C2 =
+      readIdsOfNonNullChildNodesInDB(ctx.store,p);
 
     //The set I will contain the intersection of C1 and C2. (The
     //same id is not twice in I).
-    HashSet<Integer> I = new HashSet<Integer>();
+    LongSet I = new LongSet();
 
     //Make lists C1 and C2 disjoint. The intersection of C1 and C2
     //is collected in the set I. Note that C1 can contain the
@@ -665,10 +1313,10 @@ public class TestDB
     int i=0;
     while (i < C1.size())
     {
-      int id = C1.get(i);
-      if (C2.remove((Integer)id))
+      long id = C1.get(i);
+      if (C2.removeValue(id))
       {
-        C1.remove(i);
+        C1.removeAt(i);
         I.add(id);
       }
       else
@@ -678,9 +1326,10 @@ public class TestDB
     //Decrement the internal reference count, irc, of the nodes
     //that have their ids in C2. If id is not in set I, add id
     //conditionally to set seedGarbageIds.
-    for(Integer id2:C2)
+    for (int j=0; j<C2.size(); ++j)
     {
-      decrIRC(id2);
+      long id2 = C2.get(j);
+      ctx.store.decrIRC(id2);
 
       //If set I contains the id2 then p' will still refere to the
       //node having the id value id2.
@@ -691,15 +1340,15 @@ public class TestDB
       //value id2. If we are not certain that the node is not
       //garbage add the id2 to the set seedGarbageIds if it is not
       //yet there.
-      if (!isNodeCertainlyNotGarabge(id2))
-        seedGarbageIds.add(id2);
+      if (!isNodeCertainlyNotGarabge(ctx,id2))
+        ctx.seedGarbageIds.add(id2);
 
     }
 
     //Increment the internal reference counts, irc, of the nodes
     //having their ids in C1.
-    for(Integer id1:C1)
-      incrIRC(id1);
+    for (int j=0; j<C1.size(); ++j)
+      ctx.store.incrIRC(C1.get(j));
   }
 
 
@@ -707,34 +1356,151 @@ public class TestDB
   //in a flat way. If a field of a white node p is a pointer field
   //then the id of a node in the field is copied to p', not the
   //node itself.
-  private void copyContentsOfWhiteNodesToDB()
+  private void copyContentsOfWhiteNodesToDB(EmbedContext ctx)
   throws Exception
   {
-    for(Object p:whiteNodes)
-      copyContentOfNodeToDB(p);
+    for(Object p:ctx.whiteNodes)
+      copyContentOfNodeToDB(ctx,p);
   }
 
 
-  //This method updates the object database with the gray nodes
-  //in a flat way. If a field of a gray node p is a pointer field
-  //then the id of a node in the field is copied to p', not the
-  //node itself. For simplicity, contents of all fields are
-  //copied, i.e. not only the changed fields. Also, to make
-  //implementing easy, for a list node p the p' is first cleared
-  //by making it an empty list.
-  private void copyContentsOfGrayNodesToDB()
+  //The update method for one node p added to an embed session, see
+  //EmbedSession. The node p is white if its id is zero, or if its
+  //id is pending, i.e. p got its id when a node referring to it was
+  //added. Otherwise p is a gray node.
+  //
+  //The white child nodes of p are allocated in the database, like
+  //in the step 2, and their ids are made pending. Then the internal
+  //reference counts are handled and the content of p is copied to
+  //p', like in the step 3. If isRoot is true and p is white, p'
+  //becomes a persistent root node like in the step 4.
+  //
+  //A node which was white when it was added, but which was not
+  //referred to by any node added before it, may be left without
+  //references. Its id is added to the set seedGarbageIds, so that
+  //the garbage collection at the end of the session removes it if
+  //no node referring to it is added later. An importer which adds
+  //a node before the nodes it refers to keeps this set small.
+  void addToEmbedSession(EmbedSession session, Object p, boolean isRoot)
   throws Exception
   {
-    for(Object p:grayNodes)
-      copyContentOfGrayNodeToDB(p);
+    EmbedContext ctx = getContextOfEmbedSession(session);
+    if (p == null)
+      return;
+    try
+    {
+      boolean isWhite;
+      boolean isReferred;
+      if (getId(p) == ID_ZERO)
+      {
+        setId(p,allocateNodeInDB(ctx.store,p));
+        ctx.allocatedNodes.add(p);
+        isWhite = true;
+        isReferred = false;
+      }
+      else
+      {
+        isWhite = ctx.store.removePendingId(getId(p));
+        isReferred = isWhite;
+      }
+
+      for (Object q : getNonNullChildNodes(p))
+        if (getId(q) == ID_ZERO)
+        {
+          setId(q,allocateNodeInDB(ctx.store,q));
+          ctx.allocatedNodes.add(q);
+          ctx.store.addPendingId(getId(q));
+        }
+
+      if (isWhite)
+        handleReferencesFromWhiteNodeInDB(ctx,p);
+      else
+        handleReferencesFromGrayNodeInDB(ctx,p);
+      copyContentOfNodeToDB(ctx,p);
+
+      if (isWhite && isRoot)
+        ctx.store.incrORC(getId(p));
+      else if (isWhite && !isReferred)
+        ctx.seedGarbageIds.add(getId(p));
+    }
+    catch (Exception e)
+    {
+      closeEmbedSession(session,false);
+      throw e;
+    }
   }
-  private void copyContentOfGrayNodeToDB(Object p)
+
+
+  //Returns the count of the pending ids of the embed session.
+  int countPendingInEmbedSession(EmbedSession session)
   throws Exception
   {
-    //This is a null operation for a fixed node.
-    removeFieldsOfNodeInDB(p);
+    return getContextOfEmbedSession(session).store.countPendingIds();
+  }
 
-    copyContentOfNodeToDB(p);
+
+  //Ends the embed session. If commit is true, the garbage
+  //collection phase is run and the transaction is committed,
+  //otherwise the transaction is rolled back. The session can not
+  //be committed while some ids are pending, because their nodes
+  //are still empty in the database.
+  void closeEmbedSession(EmbedSession session, boolean commit)
+  throws Exception
+  {
+    EmbedContext ctx = session.ctx;
+    if (ctx == null)
+      return;
+    session.ctx = null;
+    try
+    {
+      if (!commit)
+      {
+        rollback(ctx);
+        return;
+      }
+      int pendingCount = store.countPendingIds();
+      if (pendingCount > 0)
+        throw new IllegalStateException
+          (pendingCount+" nodes referred to in the embed session "
+           +"have not been added");
+      garbageCollection(ctx);
+      store.commitTransaction();
+      for (PagedListNode list : ctx.writtenPagedLists)
+        list.pagesWritten();
+    }
+    catch (Exception e)
+    {
+      if (commit)
+        rollback(ctx);
+      throw e;
+    }
+    finally
+    {
+      writerLock.unlock();
+    }
+  }
+
+
+  private EmbedContext getContextOfEmbedSession(EmbedSession session)
+  {
+    if (session.ctx == null)
+      throw new IllegalStateException("The embed session has ended");
+    return session.ctx;
+  }
+
+
+  //This method updates the object database with the gray nodes
+  //in a flat way. If a field of a gray node p is a pointer field
+  //then the id of a node in the field is copied to p', not the
+  //node itself. For simplicity, contents of all fields are
+  //copied, i.e. not only the changed fields. For a list node p the
+  //items of p' are replaced with the items of p (see
+  //NodeStore.writeFields).
+  private void copyContentsOfGrayNodesToDB(EmbedContext ctx)
+  throws Exception
+  {
+    for(Object p:ctx.grayNodes)
+      copyContentOfNodeToDB(ctx,p);
   }
 
 
@@ -758,31 +1524,49 @@ public class TestDB
  //
  //In some cases only part of the Z is needed to walk, i.e. Z can
  //be shrunk.
- private void garbageCollection()
+ private void garbageCollection(EmbedContext ctx)
   throws Exception
   {
     //The map used to count incoming internal references in Z.
-    countOfInternalReferencesInZ
-      = new HashMap<Integer,Integer>();
-    idsOfNodesRefOutsideZ = new HashSet<Integer>();
+    ctx.countOfInternalReferencesInZ = new LongIntMap();
+    ctx.idsOfNodesRefOutsideZ = new LongSet();
+    long t = startTime(ctx.metrics);
+    GarbageCollectionEvent event = new GarbageCollectionEvent();
+    event.begin();
+    int seedCount = ctx.seedGarbageIds.size();
 
     //Walk the Z and calculate incoming internal references in Z.
-    calculateReferencesProducedByWalkingInZ();
+    calculateReferencesProducedByWalkingInZ(ctx);
+    int sizeOfZ = ctx.countOfInternalReferencesInZ.size();
 
     //Determine the nodes in Z referred to from outside the Z.
-    collectIdsOfNodesReferecedOutsideZ();
+    collectIdsOfNodesReferecedOutsideZ(ctx);
 
     //Determine non-garbage nodes in Z. Remaining nodes in Z are
     //real garbage nodes to be removed from the object database.
-    removeIdsOfNonGarbageNodesInZ();
+    removeIdsOfNonGarbageNodesInZ(ctx);
 
     //Remove garbage nodes from the database.
-    removeGarbageNodesFromDB();
+    removeGarbageNodesFromDB(ctx);
+
+    if (ctx.metrics != null)
+    {
+      ctx.metrics.garbageCollected
+        (seedCount,sizeOfZ,ctx.countOfInternalReferencesInZ.size());
+      phaseFinished(ctx.metrics,MetricsListener.PHASE_GC,t);
+    }
+    if (event.shouldCommit())
+    {
+      event.seedCount = seedCount;
+      event.sizeOfZ = sizeOfZ;
+      event.garbageCount = ctx.countOfInternalReferencesInZ.size();
+      event.commit();
+    }
 
-    //Free the global structures.
-    countOfInternalReferencesInZ = null;
-    idsOfNodesRefOutsideZ = null;
-    seedGarbageIds = null;
+    //Free the structures of the context.
+    ctx.countOfInternalReferencesInZ = null;
+    ctx.idsOfNodesRefOutsideZ = null;
+    ctx.seedGarbageIds = null;
   }
 
 
@@ -792,10 +1576,10 @@ public class TestDB
   //collected in the map countOfInternalReferencesInZ where the
   //key is the id of the node and the value is the count of the
   //incoming references to that node in the Z.
-  private void calculateReferencesProducedByWalkingInZ()
+  private void calculateReferencesProducedByWalkingInZ(EmbedContext ctx)
   throws Exception
   {
-    for (Integer seedGarbageId:seedGarbageIds)
+    for (long seedGarbageId : ctx.seedGarbageIds.toArray())
     {
       //A trick:
       //Let p' be the node having id value seedGarbageId. If the
@@ -803,37 +1587,37 @@ public class TestDB
       //count of incoming references for p' must be decreased
       //afterward by one because the node p' is not reached through
       //a real edge in Z.
-      if (walk(seedGarbageId))
-        addToInternalReferencesInZ(seedGarbageId,-1);
+      if (walk(ctx,seedGarbageId))
+        addToInternalReferencesInZ(ctx,seedGarbageId,-1);
     }
   }
-  private boolean walk(Integer id)
+  private boolean walk(EmbedContext ctx, long id)
   throws Exception
   {
     //Here we try to make the Z smaller, i.e. to the node having
     //"id" is not walked to if we are sure that this node is not
     //garbage.
-    if (isNodeCertainlyNotGarabge(id))
+    if (isNodeCertainlyNotGarabge(ctx,id))
       return false;
 
     boolean nodeReachedBefore =
-      countOfInternalReferencesInZ.containsKey(id);
+      ctx.countOfInternalReferencesInZ.containsKey(id);
 
     if (nodeReachedBefore) //The node has been seen before.
     {
-      addToInternalReferencesInZ(id,1);
+      addToInternalReferencesInZ(ctx,id,1);
       return true;
     }
 
     //The node has not been seen before.
-    countOfInternalReferencesInZ.put(id,1);
+    ctx.countOfInternalReferencesInZ.put(id,1);
 
     //Walk to non-null child nodes.
-    ArrayList<Integer> childIds =
-      getIdsOfNonNullChildNodesOfDBNode(id);
-    for(Integer idChild : childIds)
+    LongList childIds =
+      ctx.store.readIdsOfNonNullChildNodes(id);
+    for (int i=0; i<childIds.size(); ++i)
     {
-      walk(idChild);
+      walk(ctx,childIds.get(i));
     }
     return true;
   }
@@ -844,7 +1628,8 @@ public class TestDB
   //this method returns always false. Some checkings
   //could be done in real implementations. Some suggestions are in
   //comments.
-  private boolean isNodeCertainlyNotGarabge(Integer id)
+  private boolean isNodeCertainlyNotGarabge
+    (EmbedContext ctx, long id)
   throws Exception
   {
     //Possible checkings, for example:
@@ -870,26 +1655,25 @@ public class TestDB
   }
 
 
-  void addToInternalReferencesInZ(Integer id, int value)
+  void addToInternalReferencesInZ
+    (EmbedContext ctx, long id, int value)
   {
-    int oldValue = countOfInternalReferencesInZ.get(id);
-    countOfInternalReferencesInZ.put(id,oldValue+value);
+    ctx.countOfInternalReferencesInZ.add(id,value);
   }
 
 
   //Determine in the Z the nodes, their ids, which are referred to
   //from outside the Z. These ids are collected in the set
   //idsOfNodesRefOutsideZ.
-  private void collectIdsOfNodesReferecedOutsideZ()
+  private void collectIdsOfNodesReferecedOutsideZ(EmbedContext ctx)
   throws Exception
   {
-    for (Map.Entry<Integer, Integer> e :
-      countOfInternalReferencesInZ.entrySet())
+    for (long id : ctx.countOfInternalReferencesInZ.keys())
     {
-      int id = e.getKey();
-      int countOfInternalReferences = e.getValue();
-      int irc = readIRC(id);
-      int orc = readORC(id);
+      int countOfInternalReferences =
+        ctx.countOfInternalReferencesInZ.get(id);
+      int irc = ctx.store.readIRC(id);
+      int orc = ctx.store.readORC(id);
 
       //Here we test if a node is referred to from outside the Z,
       //i.e. if a node is a persistent root node (orc >= 1) or
@@ -902,7 +1686,7 @@ public class TestDB
       //the test below ccould be replaced with the test
       //"if (countOfInternalReferences < irc)"
       if (countOfInternalReferences < orc + irc)
-        idsOfNodesRefOutsideZ.add(id);
+        ctx.idsOfNodesRefOutsideZ.add(id);
     }
   }
 
@@ -913,120 +1697,187 @@ public class TestDB
   //countOfInternalReferencesInZ. The remaining nodes, having
   //their ids in the map countOfInternalReferencesInZ, are the
   //real garbage nodes.
-  private void removeIdsOfNonGarbageNodesInZ()
+  private void removeIdsOfNonGarbageNodesInZ(EmbedContext ctx)
   throws Exception
   {
-    for(Integer id : idsOfNodesRefOutsideZ)
-      removeIdOfNonGarbageNodeInZ(id);
+    for (long id : ctx.idsOfNodesRefOutsideZ.toArray())
+      removeIdOfNonGarbageNodeInZ(ctx,id);
   }
-  private void removeIdOfNonGarbageNodeInZ(Integer id)
+  private void removeIdOfNonGarbageNodeInZ(EmbedContext ctx, long id)
   throws Exception
   {
-    if (countOfInternalReferencesInZ.remove(id) == null)
+    if (!ctx.countOfInternalReferencesInZ.remove(id))
       return;
 
-    ArrayList<Integer> childIds
-      = getIdsOfNonNullChildNodesOfDBNode(id);
-    for(Integer idChild : childIds)
-      removeIdOfNonGarbageNodeInZ(idChild);
+    LongList childIds
+      = ctx.store.readIdsOfNonNullChildNodes(id);
+    for (int i=0; i<childIds.size(); ++i)
+      removeIdOfNonGarbageNodeInZ(ctx,childIds.get(i));
   }
 
 
   //Remove real garbage nodes from the database. These are the
   //nodes having their ids in the map
   //countOfInternalReferencesInZ.
-  private void removeGarbageNodesFromDB()
+  private void removeGarbageNodesFromDB(EmbedContext ctx)
   throws Exception
   {
-    Set<Integer> keys = countOfInternalReferencesInZ.keySet();
-    for(Integer id : keys)
-      removeGarbageNodeFromDB(id);
+    for (long id : ctx.countOfInternalReferencesInZ.keys())
+      removeGarbageNodeFromDB(ctx,id);
   }
-  private void removeGarbageNodeFromDB(int id)
+  private void removeGarbageNodeFromDB(EmbedContext ctx, long id)
   throws Exception
   {
     //Internal reference counts of (non-null) non-garbage
     //child nodes must be decremented accordingly.
-    ArrayList<Integer> childIds =
-      getIdsOfNonNullChildNodesOfDBNode(id);
-    for(Integer idChild : childIds)
-      if (!countOfInternalReferencesInZ.containsKey(idChild))
-        decrIRC(idChild);
+    LongList childIds =
+      ctx.store.readIdsOfNonNullChildNodes(id);
+    for (int i=0; i<childIds.size(); ++i)
+    {
+      long idChild = childIds.get(i);
+      if (!ctx.countOfInternalReferencesInZ.containsKey(idChild))
+        ctx.store.decrIRC(idChild);
+    }
 
-    Class<?> c = getClassOfDBNode(id);
+    ctx.store.deleteNode(id);
+  }
 
-    if (c != ListNode.class)
-      removeFixedNodeFromDB(c,id);
-    else
-      removeListNodeFromDB(id);
+
+  //Returns the search rules of searchFixedNodesFromDB as text for
+  //a LoadEvent, for example "Friend.name=A,Friend.age=23".
+  private static String getSearchRuleText(Object[] searchRules)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int j=0; j+2<searchRules.length; j+=3)
+    {
+      if (j > 0)
+        sb.append(",");
+      sb.append(((Class<?>) searchRules[j]).getSimpleName())
+        .append(".").append(searchRules[j+1])
+        .append("=").append(searchRules[j+2]);
+    }
+    return sb.toString();
   }
 
 
-  //Remove a fixed node from the database, in a flat way.
-  private void removeFixedNodeFromDB(Class<?> c, int id)
-  throws Exception
+  //Returns the listener of the metrics, or null if the metrics are
+  //not enabled. An operation asks this once, so that it either
+  //measures all its phases or none of them.
+  private MetricsListener getEnabledMetrics()
   {
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
-    executeDelete(tableName, "instanceId=?", id);
-    executeDelete("nodeInstances", "id=?", id);
+    MetricsListener m = metrics;
+    return m.isEnabled() ? m : null;
   }
 
 
-  //Remove a list node from the database, in a flat way.
-  private void removeListNodeFromDB(int id)
-  throws Exception
+  //Returns the start time of a phase, if the listener m is not
+  //null.
+  private static long startTime(MetricsListener m)
+  {
+    return m == null ? 0 : System.nanoTime();
+  }
+
+
+  //Tells the listener m, if not null, the time of the phase started
+  //at the time t. Returns the time the phase finished, which is the
+  //start time of the next phase.
+  private static long phaseFinished
+    (MetricsListener m, int phase, long t)
   {
-    int rowIdOfList = (Integer)
-      readSingleValue("lists","id","instanceId=?",id);
-    executeDelete("listItems", "parent=?", rowIdOfList);
-    executeDelete("lists", "id=?", rowIdOfList);
-    executeDelete("nodeInstances", "id=?", id);
+    if (m == null)
+      return 0;
+    long now = System.nanoTime();
+    m.phaseFinished(phase,now-t);
+    return now;
   }
+
 // Higher level private methods.
 //////////////////////////////////////////////////////////////////
 
 
 //////////////////////////////////////////////////////////////////
 // Tool methods for the run-time memory nodes.
-  private int getId(Object p)
+  private static long getId(Object p)
   throws Exception
   {
     if (p==null)
       return ID_NULL_NODE;
 
-    Class c = p.getClass();
-    Field f = c.getDeclaredField("id");
-    f.setAccessible(true);
-    return (Integer) f.get(p);
+    //The id field of a PagedListNode is declared in ListNode.
+    if (p instanceof ListNode)
+      return ((ListNode) p).id;
+    if (p instanceof IntListNode)
+      return ((IntListNode) p).id;
+    if (p instanceof StringListNode)
+      return ((StringListNode) p).id;
+
+    return NodeAccessor.of(p.getClass()).getId(p);
   }
 
 
-  private void setId(Object p, int id)
+  private static void setId(Object p, long id)
   throws Exception
   {
-    Class<?> c = p.getClass();
-    Field f = c.getDeclaredField("id");
-    f.setAccessible(true);
-    f.set(p,id);
+    if (p instanceof ListNode)
+    {
+      ((ListNode) p).id = id;
+      return;
+    }
+    if (p instanceof IntListNode)
+    {
+      ((IntListNode) p).id = id;
+      return;
+    }
+    if (p instanceof StringListNode)
+    {
+      ((StringListNode) p).id = id;
+      return;
+    }
+    NodeAccessor.of(p.getClass()).setId(p,id);
   }
 
 
-  private ArrayList<Integer> getIdsOfNonNullChildNodes(Object p)
+  //For a paged list node only the child nodes in its dirty pages
+  //are returned, because only these pages are written to the
+  //database.
+  private LongList getIdsOfNonNullChildNodes(Object p)
   throws Exception
   {
-     ArrayList<Integer> ids = new ArrayList<Integer>();
-     ArrayList<FieldT> fields = getFields(p.getClass(),p,1);
-     for(FieldT f: fields)
+     LongList ids = new LongList();
+     if (p instanceof PagedListNode)
      {
-       int id = getId(f.value);
-       if (id != ID_NULL_NODE)
-         ids.add(id);
+       PagedListNode list = (PagedListNode) p;
+       for (FieldT f : getFieldsOfPages(list,list.dirtyPages,1))
+         if (f.value != null)
+           ids.add(getId(f.value));
+       return ids;
      }
+     for (Object q : getNonNullChildNodes(p))
+       ids.add(getId(q));
      return ids;
   }
 
 
+  //Returns the non-null nodes referred to by the pointer fields of
+  //the run-time node p. The child nodes of a fixed node are read
+  //with its accessor (or generated mapper), see NodeAccessor.
+  private static ArrayList<Object> getNonNullChildNodes(Object p)
+  throws Exception
+  {
+    ArrayList<Object> children = new ArrayList<Object>();
+    Class<?> c = p.getClass();
+    if (!isListNode(c))
+    {
+      NodeAccessor.of(c).addChildNodes(p,children);
+      return children;
+    }
+    for (FieldT f : getFields(c,p,1))
+      if (f.value != null)
+        children.add(f.value);
+    return children;
+  }
+
+
   //Fields of the run-time node p are returned in a ArrayList.
   //Both a field and its content is returned in the structure
   //FieldT. A caller selects with the selector if only scalar
@@ -1042,28 +1893,30 @@ public class TestDB
   //0 = Pointer fields and scalar fields are returned.
   //1 = Only pointer fields are returned.
   //2 = Only scalar fields are returned.
-  private ArrayList<FieldT>
+  static ArrayList<FieldT>
     getFields(Class<?> c, Object p, int selector)
   throws Exception
   {
-    if (c != ListNode.class)
-      return getFieldsOfFixedNode(c,p,selector);
-    else
+    if (c == ListNode.class)
       return getFieldsOfListNode((ListNode)p,selector);
+    else if (c == IntListNode.class)
+      return getFieldsOfListNode((IntListNode)p,selector);
+    else if (c == StringListNode.class)
+      return getFieldsOfListNode((StringListNode)p,selector);
+    else if (c == PagedListNode.class)
+      return getFieldsOfListNode((PagedListNode)p,selector);
+    else
+      return getFieldsOfFixedNode(c,p,selector);
   }
-  private ArrayList<FieldT>
+  private static ArrayList<FieldT>
     getFieldsOfFixedNode(Class<?> c, Object p, int selector)
   throws Exception
   {
     ArrayList<FieldT> fields = new ArrayList<FieldT>();
-    Field[] allFields = c.getDeclaredFields();
-    for(Field f: allFields)
+    NodeAccessor accessor = NodeAccessor.of(c);
+    for(int i=0; i<accessor.fields.length; ++i)
     {
-      if (f.getName().equals("id"))
-        continue;
-
-      Class<?> cf = f.getType();
-      int typeCodeOfField = getTypeCodeOfFieldFromClass(cf);
+      int typeCodeOfField = accessor.typeCodes[i];
 
       boolean addPointerField =
         isPointerField(typeCodeOfField) &&
@@ -1076,27 +1929,54 @@ public class TestDB
       {
         Object value = null;
         if (p != null)
-        {
-          f.setAccessible(true);
-          value = f.get(p);
-        }
-        fields.add(new FieldT(f,typeCodeOfField,value));
+          value = accessor.get(p,i);
+        fields.add
+          (new FieldT(accessor.fields[i],typeCodeOfField,value));
       }
     }
     return fields;
   }
 
 
-  private ArrayList<FieldT>
+  private static ArrayList<FieldT>
     getFieldsOfListNode(ListNode p, int selector)
   throws Exception
   {
     ArrayList<FieldT> fields = new ArrayList<FieldT>();
-
-    int len = p.list.size();
-    for(int pos=0;pos<len;++pos)
+    addFieldsOfListItems(fields,p.list,0,selector);
+    return fields;
+  }
+  //The items of a paged list node are the items of its pages in
+  //the memory. For the type without a node (p is null) no fields
+  //are returned.
+  private static ArrayList<FieldT>
+    getFieldsOfListNode(PagedListNode p, int selector)
+  {
+    if (p == null)
+      return new ArrayList<FieldT>();
+    return getFieldsOfPages(p,p.pages.keySet(),selector);
+  }
+  //Returns the fields of the given pages of the paged list node, in
+  //the order of their positions.
+  private static ArrayList<FieldT> getFieldsOfPages
+    (PagedListNode p, Collection<Integer> pageNumbers, int selector)
+  {
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+    for (int k : new TreeSet<Integer>(pageNumbers))
+      addFieldsOfListItems
+        (fields,p.pages.get(k),k*p.pageSize,selector);
+    return fields;
+  }
+  //Adds the items of a list node, whose first item is at the
+  //position fromPos, in the fields.
+  private static void addFieldsOfListItems
+    (ArrayList<FieldT> fields, List<Object> items, int fromPos,
+     int selector)
+  {
+    int len = items.size();
+    for(int i=0;i<len;++i)
     {
-      Object value = p.list.get(pos);
+      Object value = items.get(i);
       int typeCodeOfField =
         getTypeCodeOfFieldFromValueInField(value);
 
@@ -1108,26 +1988,81 @@ public class TestDB
           (selector == 0 || selector == 2);
 
       if (addPointerField || addScalarField)
-        fields.add(new FieldT(pos,typeCodeOfField,value));
+        fields.add(new FieldT(fromPos+i,typeCodeOfField,value));
 
     }//for
+  }
+  //The items of a list node of primitive items are scalar fields.
+  //Only these generic callers box the items; the list is copied
+  //to the database and loaded from it as a whole array. For the
+  //type without a node (p is null) no fields are returned.
+  private static ArrayList<FieldT>
+    getFieldsOfListNode(IntListNode p, int selector)
+  {
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+    if (p == null || selector == 1)
+      return fields;
+    for(int pos=0;pos<p.size;++pos)
+      fields.add(new FieldT(pos,FIELD_TYPE_INTEGER,p.items[pos]));
+    return fields;
+  }
+  private static ArrayList<FieldT>
+    getFieldsOfListNode(StringListNode p, int selector)
+  {
+    ArrayList<FieldT> fields = new ArrayList<FieldT>();
+    if (p == null || selector == 1)
+      return fields;
+    for(int pos=0;pos<p.size;++pos)
+    {
+      String value = p.items[pos];
+      fields.add(new FieldT(pos,
+        getTypeCodeOfFieldFromValueInField(value),value));
+    }
     return fields;
   }
 
 
-  private boolean
-    bufferContainsNode(ArrayList<Object> buffer, Object p)
+  //Returns the fields of a list node whose positions are from
+  //fromPos to toPos-1. Used by the node stores which read the
+  //whole list.
+  static ArrayList<FieldT> getFieldsAtPositions
+    (ArrayList<FieldT> fields, int fromPos, int toPos)
   {
-    for (Object o:buffer)
-      if (o == p) return true;
-    return false;
+    ArrayList<FieldT> result = new ArrayList<FieldT>();
+    for (FieldT f : fields)
+    {
+      int pos = (Integer) f.field;
+      if (pos >= fromPos && pos < toPos)
+        result.add(f);
+    }
+    return result;
   }
 
 
-  private boolean grayNodesContainsId(int id)
+  //Sets the given fields in the fields of a list node at their
+  //positions. The fields of the list node have the consecutive
+  //positions starting at fromPos, and the given fields the
+  //consecutive positions starting at most at the end of them. The
+  //fields are added at the end if their positions go past it. Used
+  //by the node stores which write the whole list.
+  static void setFieldsAtPositions
+    (ArrayList<FieldT> fields, int fromPos, ArrayList<FieldT> newFields)
+  {
+    for (FieldT f : newFields)
+    {
+      int i = (Integer) f.field - fromPos;
+      if (i < fields.size())
+        fields.set(i,f);
+      else
+        fields.add(f);
+    }
+  }
+
+
+  private boolean grayNodesContainsId(EmbedContext ctx, long id)
   throws Exception
   {
-    for(Object p:grayNodes)
+    for(Object p:ctx.grayNodes)
       if (getId(p) == id)
         return true;
     return false;
@@ -1138,516 +2073,335 @@ public class TestDB
 
 //////////////////////////////////////////////////////////////////
 // Tool methods for the nodes in DB.
-  private int allocateNodeInDB(Object p)
+  private long allocateNodeInDB(NodeStore store, Object p)
   throws Exception
   {
     Class<?> c = p.getClass();
-    if (c != ListNode.class)
-      return allocateFixedNodeInDB(p);
+    if (!isListNode(c))
+      return store.allocateFixedNode(c);
     else
-      return allocateListNodeInDB();
+      return store.allocateListNode(c);
 
   }
-  private int allocateFixedNodeInDB(Object p)
-  throws Exception
-  {
-    Class<?> c = p.getClass();
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
 
-    //If a node type is a new one, create the corresponding SQL
-    //table.
-    if (!tableExists(tableName))
-      createDBTableForFixedNode(c);
 
-    //Insert an empty fixed node. Set orc=irc=0 for the inserted
-    //node.
-    int id = doInsertReturnPrimaryKey
-      ("INSERT INTO nodeInstances (id,orc,irc,className) VALUES(NULL,0,0,?)",c.getName());
-    executeStatement
-      ("INSERT INTO " + tableName + " (id,instanceId) VALUES(NULL,?)",id);
-
-    return id;
-  }
-  private int allocateListNodeInDB()
-  throws Exception
-  {
-   //Insert an empty list node. Set orc=irc=0 for the inserted
-   //node.
-   int id = doInsertReturnPrimaryKey
-     ("INSERT INTO nodeInstances (id,orc,irc,className) VALUES(NULL,0,0,?)",
-       ListNode.class.getName());
-
-   executeStatement("INSERT INTO lists VALUES(NULL,?,0)",id);
-
-   return id;
-  }
-
-
-  private void removeFieldsOfNodeInDB(Object p)
-  throws Exception
-  {
-    Class<?> c = p.getClass();
-    if (c != ListNode.class)
-      ;
-    else
-      removeFieldsOfListNodeInDB(getId(p));
-  }
-  private void removeFieldsOfListNodeInDB(int id)
+  //Copies the content of the run-time node p to the node p' in the
+  //database, in a flat way. If a field of p is a pointer field
+  //then the id of a node in the field is copied to p', not the
+  //node itself.
+  private void copyContentOfNodeToDB(EmbedContext ctx, Object p)
   throws Exception
   {
-    int rowIdOfList = (Integer) readSingleValue
-      ("lists","id","instanceId=?",id);
-
-    executeDelete("listItems", "parent=?", rowIdOfList);
-
-    executeStatement
-      ("UPDATE lists SET len=0 WHERE id=?", rowIdOfList);
-  }
-
+    NodeStore store = ctx.store;
+    if (p instanceof PagedListNode)
+    {
+      copyDirtyPagesToDB(ctx,(PagedListNode) p);
+      return;
+    }
+    if (p instanceof IntListNode)
+    {
+      IntListNode list = (IntListNode) p;
+      store.writeIntListItems(list.id,list.items,list.size);
+      return;
+    }
+    if (p instanceof StringListNode)
+    {
+      StringListNode list = (StringListNode) p;
+      store.writeStringListItems(list.id,list.items,list.size);
+      return;
+    }
 
-  private void copyContentOfNodeToDB(Object p)
-  throws Exception
-  {
-    Class<?> c = p.getClass();
-    if (c != ListNode.class)
-      copyContentsOfFixedNodeToDB(p);
-    else
-      copyContentsOfListNodeToDB((ListNode)p);
-  }
-  private void copyContentsOfFixedNodeToDB(Object p)
-  throws Exception
-  {
     ArrayList<FieldT> fields = getFields(p.getClass(),p,0);
     for (FieldT f : fields)
-      writeValueToFieldOfDBNode(p,f);
-  }
-  private void copyContentsOfListNodeToDB(ListNode p)
-  throws Exception
-  {
-    ArrayList<FieldT> fields = getFields(p.getClass(),p,0);
-    for (FieldT f : fields)
-      writeValueToFieldOfDBListNode(p,f);
-  }
-
-
-  private void writeValueToFieldOfDBNode(Object p, FieldT f)
-  throws Exception
-  {
-    Class<?> c = p.getClass();
-    if (c != ListNode.class)
-      writeValueToFieldOfDBFixedNode(p,f);
-    else
-      writeValueToFieldOfDBListNode(p,f);
+      if (isPointerField(f.typeCode))
+        f.value = getId(f.value);
+    store.writeFields(getId(p),p.getClass(),fields);
   }
-  private void writeValueToFieldOfDBFixedNode(Object p, FieldT f)
-  throws Exception
-  {
-    Object valueDB = f.value;
 
-    if (isPointerField(f.typeCode))
-      valueDB = getId(valueDB);
-
-    Class<?> c = p.getClass();
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
 
-    int rowId = (Integer) readSingleValue
-      (tableName,"id","instanceId=?",getId(p));
-
-    String fieldName = ((Field) f.field).getName();
-
-    updateSingleValue(tableName,fieldName,"id=?",valueDB,rowId);
-  }
-  private void writeValueToFieldOfDBListNode(Object p, FieldT f)
+  //Writes the dirty pages of the paged list node p to p'. The pages
+  //are written in the order of their positions, so that the pages
+  //appended at the end follow the items written before them. The
+  //pages are marked clean after the transaction has been committed.
+  private void copyDirtyPagesToDB(EmbedContext ctx, PagedListNode p)
   throws Exception
   {
-    Object valueDB = f.value;
-
-    if (isPointerField(f.typeCode))
-      valueDB = getId(valueDB);
-
-    int rowIdOfList = (Integer) readSingleValue
-      ("lists","id","instanceId=?",getId(p));
-
-    executeStatement("INSERT INTO listItems VALUES(NULL,?,?,?,?)",
-                     rowIdOfList,
-                     (Integer)f.field,
-                     f.typeCode,
-                     valueDB);
-
-    executeStatement
-      ("UPDATE lists SET len=len+1 WHERE id=?",rowIdOfList);
+    for (int k : p.dirtyPages)
+    {
+      ArrayList<FieldT> fields = new ArrayList<FieldT>();
+      addFieldsOfListItems(fields,p.pages.get(k),k*p.pageSize,0);
+      for (FieldT f : fields)
+        if (isPointerField(f.typeCode))
+          f.value = getId(f.value);
+      ctx.store.writeListFields(p.id,fields);
+    }
+    ctx.writtenPagedLists.add(p);
   }
 
 
-  private ArrayList<Integer>
-    getIdsOfNonNullChildNodesOfDBNode(int id)
+  //Returns the ids of non-null child nodes of the node p' in the
+  //database. For a paged list node only the child nodes at the
+  //positions of its dirty pages are returned, like in the method
+  //getIdsOfNonNullChildNodes.
+  private LongList readIdsOfNonNullChildNodesInDB
+    (NodeStore store, Object p)
   throws Exception
   {
+    if (!(p instanceof PagedListNode))
+      return store.readIdsOfNonNullChildNodes(getId(p));
 
-     ArrayList<Integer> ids = new ArrayList<Integer>();
-     ArrayList<FieldT> fields = readFieldsOfDBNode(id,1);
-     for(FieldT f: fields)
-     {
-       int idChild = (Integer) f.value;
-       if (idChild != ID_NULL_NODE)
-         ids.add(idChild);
-     }
-     return ids;
+    PagedListNode list = (PagedListNode) p;
+    LongList ids = new LongList();
+    for (int k : list.dirtyPages)
+      for (FieldT f : store.readListFields
+             (list.id,k*list.pageSize,(k+1)*list.pageSize,1))
+      {
+        long id = (Long) f.value;
+        if (id != ID_NULL_NODE)
+          ids.add(id);
+      }
+    return ids;
   }
 
 
   //This method returns null if it does not find a node.
   private Object searchFixedNodeFromDB
-   (Class<?> c, String fieldNameOfScalarField, Object value)
+   (SearchContext ctx, Class<?> c, String fieldNameOfScalarField,
+    Object value)
   throws Exception
   {
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
-
-    if (!tableExists(tableName))
-      return null;
-    Integer instanceId = (Integer) readSingleValue
-      (tableName,"instanceId", fieldNameOfScalarField+"=?",value);
-    return readNodeFromDB(instanceId);
+    long instanceId =
+      ctx.store.findFixedNode(c,fieldNameOfScalarField,value);
+    return readNodeFromDB(ctx,instanceId);
   }
-  private Object readNodeFromDB(Integer id)
+  private Object readNodeFromDB(SearchContext ctx, long id)
   throws Exception
   {
     if (id == ID_NULL_NODE)
       return null;
 
     //Test if the node has already been read.
-    Object p = readNodes.get(id);
+    Object p = ctx.readNodes.get(id);
     if (p != null)
       return p;
 
     //Create the run-time node (object) corresponding the type of
     //the node in the object databse.
-    p = createRunTimeNode(id);
+    p = createRunTimeNode(ctx.store,id);
+
+    //A long list node is loaded as a paged list node, whose items
+    //are read when they are needed, see setPagedLists.
+    int pageSize = ctx.pagedLists ? listPageSize : 0;
+    if (p.getClass() == ListNode.class && pageSize > 0)
+    {
+      int len = ctx.store.readListLength(id);
+      if (len > pageSize)
+      {
+        p = new PagedListNode
+          (this,ctx.readNodes,id,len,pageSize,maxResidentListPages);
+        ctx.readNodes.put(id,p);
+        return p;
+      }
+    }
 
     //Set that the node has been read now.
-    readNodes.put(id,p);
+    ctx.readNodes.put(id,p);
+
+    //The items of a list node of primitive items are read as a
+    //whole array.
+    if (p instanceof IntListNode)
+    {
+      IntListNode list = (IntListNode) p;
+      list.items = ctx.store.readIntListItems(id);
+      list.size = list.items.length;
+      return p;
+    }
+    if (p instanceof StringListNode)
+    {
+      StringListNode list = (StringListNode) p;
+      list.items = ctx.store.readStringListItems(id);
+      list.size = list.items.length;
+      return p;
+    }
 
-    ArrayList<FieldT> fields = readFieldsOfDBNode(id,0);
+    ArrayList<FieldT> fields = ctx.store.readFields(id,0);
     for(FieldT field : fields)
     {
       Object v = field.value;
       if (isPointerField(field.typeCode))
-        v = readNodeFromDB((Integer) v); //Recursion.
+        v = readNodeFromDB(ctx,(Long) v); //Recursion.
       setValueInFieldOfObject(p,v,field);
     }
     return p;
   }
 
 
-  private void setValueInFieldOfObject
-   (Object o, Object value, FieldT field)
+  //Loads the nodes of the search rules with the reader, which is
+  //in a read transaction. A long list node is loaded as a paged
+  //list node if pagedLists is true and paged loading has been set.
+  //Called by searchFixedNodesFromDB and by ReadView.
+  ArrayList<Object> search
+    (NodeStore reader, boolean pagedLists, Object... searchRules)
   throws Exception
   {
-    Class<?> c = o.getClass();
-    if (c != ListNode.class)
+    ArrayList<Object> resultNodes = new ArrayList<Object>();
+    MetricsListener m = getEnabledMetrics();
+    long t = startTime(m);
+    LoadEvent event = new LoadEvent();
+    event.begin();
+
+    SearchContext ctx = new SearchContext(reader);
+    ctx.pagedLists = pagedLists;
+    int rootCount = searchRules.length/3;
+    for (int i=0; i<rootCount; ++i)
     {
-      Field f = (Field) field.field;
-      f.set(o,value);
+      int j = 3*i;
+      Class<?> classOfFixedNode     = (Class<?>) searchRules[j];
+      String fieldNameOfScalarField = (String)   searchRules[j+1];
+      Object value                  =            searchRules[j+2];
+
+      Object node = searchFixedNodeFromDB(ctx,classOfFixedNode,
+                      fieldNameOfScalarField, value);
+      if (node != null)
+        resultNodes.add(node);
     }
-    else
-      ((ListNode)o).list.add(value);
+    if (m != null)
+    {
+      m.nodesLoaded(ctx.readNodes.size());
+      phaseFinished(m,MetricsListener.PHASE_SEARCH,t);
+    }
+    if (event.shouldCommit())
+    {
+      event.searchRule = getSearchRuleText(searchRules);
+      event.nodesMaterialized = ctx.readNodes.size();
+      event.commit();
+    }
+    return resultNodes;
   }
 
 
-  Object createRunTimeNode(int id)
+  //Runs the query with the reader, which is in a read transaction,
+  //and loads the nodes found like the search method. Called by
+  //findFixedNodes and by ReadView.
+  <T> ArrayList<T> find
+    (NodeStore reader, boolean pagedLists, Query<T> query,
+     Object[] arguments)
   throws Exception
   {
-    Class<?> c = getClassOfDBNode(id);
-    Object p;
-    if (c != ListNode.class)
+    ArrayList<T> resultNodes = new ArrayList<T>();
+    MetricsListener m = getEnabledMetrics();
+    long t = startTime(m);
+    LoadEvent event = new LoadEvent();
+    event.begin();
+
+    LongList ids = reader.findFixedNodes(query,query.bind(arguments));
+    SearchContext ctx = new SearchContext(reader);
+    ctx.pagedLists = pagedLists;
+    for (int i=0; i<ids.size(); ++i)
+      resultNodes.add(query.c.cast(readNodeFromDB(ctx,ids.get(i))));
+
+    if (m != null)
     {
-      Constructor cnstr = c.getDeclaredConstructor();
-      cnstr.setAccessible(true);
-      p = cnstr.newInstance();
-      //Set the id value of the run-time fixed node.
-      setId(p,id);
+      m.nodesLoaded(ctx.readNodes.size());
+      phaseFinished(m,MetricsListener.PHASE_SEARCH,t);
     }
-    else
+    if (event.shouldCommit())
     {
-      ListNode list = new ListNode();
-      //Set the id value of the run-time list node.
-      list.id = id;
-      p = list;
+      event.searchRule = query.toString();
+      event.nodesMaterialized = ctx.readNodes.size();
+      event.commit();
     }
-    return p;
+    return resultNodes;
   }
 
 
-  //Fields of the database node are returned in a ArrayList.
-  //Both a field and its content is returned in the structure
-  //FieldT. A caller selects with the selector if only scalar
-  //fields or only pointer fields, or if both types of fields
-  //are returned.
-  //
-  //The id defines the node in the database.
-  //
-  //Values of the selector:
-  //0 = Pointer fields and scalar fields are returned.
-  //1 = Only pointer fields are returned.
-  //2 = Only scalar fields are returned.
-  ArrayList<FieldT> readFieldsOfDBNode(int id, int selector)
-  throws Exception
+  //Called by ReadView.close.
+  void readViewClosed(ReadView view)
   {
-    Class<?> c = getClassOfDBNode(id);
-    if (c != ListNode.class)
-      return readFieldsOfDBFixedNode(c,id,selector);
-    else
-      return readFieldsOfDBListNode(id,selector);
+    openViews.remove(view);
   }
-  private ArrayList<FieldT> readFieldsOfDBFixedNode
-    (Class<?> c, int id, int selector)
-  throws Exception
-  {
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
-
-    int rowId = (Integer) readSingleValue
-      (tableName,"id","instanceId=?",id);
 
-    //Get the fields from the corresponding run-time node type
-    //(class). Do not fill the fields with any values yet.
-    ArrayList<FieldT> fields = getFields(c,null,selector);
 
-    //Fill the fields from the database.
-    for(FieldT f : fields)
-    {
-      String fieldName = ((Field) f.field).getName();
-      //Set the value in the field. The value is read from the
-      //database.
-      f.value = readSingleValue(tableName,fieldName,"id=?",rowId);
-    }
-    return fields;
-  }
-  private ArrayList<FieldT> readFieldsOfDBListNode
-    (int id, int selector)
+  //Reads the items at the positions fromPos to toPos-1 of the paged
+  //list node. The nodes reached from the items are loaded like in
+  //the search method, with a reader borrowed from the pool, but
+  //with the map of the nodes of the search which loaded the list.
+  //A node already loaded is not loaded again, so that there are
+  //not two objects with the same id (see collectWhiteAndGrayNodes).
+  ArrayList<Object> readListPage(PagedListNode list, int fromPos, int toPos)
   throws Exception
   {
-    ArrayList<FieldT> fields = new ArrayList<FieldT>();
-
-    int rowIdOfList = (Integer) readSingleValue
-      ("lists","id","instanceId=?",id);
-
-    int len = (Integer) readSingleValue
-      ("lists","len","id=?",rowIdOfList);
-
-    for(int pos=0; pos<len; ++pos)
+    ArrayList<Object> page = new ArrayList<Object>();
+    LoadEvent event = new LoadEvent();
+    event.begin();
+    NodeStore reader = readers.take();
+    reader.beginTransaction();
+    try
     {
-      int typeCodeOfField = (Integer) readSingleValue
-        ("listItems", "type", "parent=? AND position=?",
-         rowIdOfList,pos);
-
-      boolean addPointerField =
-        isPointerField(typeCodeOfField) &&
-          (selector == 0 || selector == 1);
-
-      boolean addScalarField =
-        isScalarField(typeCodeOfField) &&
-          (selector == 0 || selector == 2);
-
-      if (addPointerField || addScalarField)
+      //The pages of the lists of one search may be read by many
+      //threads.
+      synchronized (list.readNodes)
       {
-        Object value = readSingleValue
-          ("listItems", "item", "parent=? AND position=?",
-           rowIdOfList,pos);
-
-        fields.add(new FieldT(pos,typeCodeOfField,value));
+        SearchContext ctx = new SearchContext(reader,list.readNodes);
+        ctx.pagedLists = true;
+        int loadedBefore = ctx.readNodes.size();
+        for (FieldT field :
+               reader.readListFields(list.id,fromPos,toPos,0))
+        {
+          Object v = field.value;
+          if (isPointerField(field.typeCode))
+            v = readNodeFromDB(ctx,(Long) v);
+          page.add(v);
+        }
+        if (event.shouldCommit())
+        {
+          event.searchRule =
+            "list " + list.id + " positions " + fromPos + ".." + toPos;
+          event.nodesMaterialized = ctx.readNodes.size()-loadedBefore;
+          event.commit();
+        }
       }
     }
-    return fields;
-  }
-
-
-//This method creates the table for a fixed node (for its type).
-//These tables are created dynamically, when the system encounters
-//the type of the fixed node for the first time.
-//
-//Below are two examples of Java types of fixed nodes, Friend and
-//Book. Fields of the these nodes (their Java types) are public,
-//but this is not a requirement. Every node (object) in the
-//run-time memory contains a compulsory id field.
-//
-//
-//  package userclasses;
-//
-//  public class Friend
-//  {
-//    //Id of the node. If id==0 the node does not have a
-//    //corresponding node in the database. If id>0 the node has
-//    //a corresponding node in the database identified by the
-//    //id.
-//    public int id;
-//
-//    //Scalar field of type String.
-//    public String name;
-//
-//    //Scalar field of type Integer.
-//    public Integer age;
-//
-//    //Pointer field referring to a list node. Contains Java
-//    //reference to an object of type ListNode (or null).
-//    public ListNode list;
-//
-//    //Pointer field referring to a fixed node of type Book.
-//    //Contains Java reference to an object of type Book
-//    (or null).
-//    public Book book;
-//
-//    //Default constructor is required. The database uses
-//    //this constructor to create a corresponding Java object
-//    //when a node is loaded from the database with the search
-//    //method.
-//    public Friend(){}
-//
-//    <Possible other methods>
-//  }
-//
-//  public class Book
-//  {
-//    public int id;
-//
-//    public String name;
-//    public int price;
-//
-//    public Book(){}
-//
-//    <Possible other methods>
-//  }
-//
-//
-//Database tables created for the types of fixed nodes above:
-//
-//
-//  CREATE TABLE userclasses_Friend
-//  (
-//    //Primary key.
-//    id INTEGER PRIMARY KEY AUTOINCREMENT,
-//
-//    //Refers to nodeInstances.id.
-//    instanceId INTEGER,
-//
-//    //Scalar field.
-//    name TEXT,
-//
-//    //Scalar field.
-//    age INTEGER,
-//
-//    //Pointer field referring to a list node. Refers to
-//    //nodeInstances.id
-//    //(or contains zero if refers to a null list node).
-//    list INTEGER,
-//
-//    //Pointer field referring to a fixed node of type book.
-//    //Refers to nodeInstances.id
-//    //(or contains zero if refers to a null book node).
-//    book INTEGER
-//  )
-//
-//  CREATE TABLE userclasses_Book
-//  (
-//    id INTEGER PRIMARY KEY AUTOINCREMENT,
-//    instanceId INTEGER,
-//    name TEXT,
-//    price INTEGER
-//  )
-  private void createDBTableForFixedNode(Class<?> c)
-  throws Exception
-  {
-    String tableName =
-      getFixedTableNameFromClassName(c.getName());
-
-    String str = "CREATE TABLE "+tableName
-               +" ("
-               +"id INTEGER PRIMARY KEY AUTOINCREMENT"
-               +",instanceId INTEGER";
-
-    ArrayList<FieldT> fields = getFields(c,null,0);
-    for (FieldT f : fields)
+    finally
     {
-      String fieldName = ((Field) f.field).getName();
-
-      String sqlFieldType =
-        getSQLFixedNodeFieldTypeFromTypeCode(f.typeCode);
-
-      str += ("," + fieldName + " " + sqlFieldType);
+      reader.rollbackTransaction();
+      readers.put(reader);
     }
-    str += ")";
-    executeStatement(str);
-  }
-
-
-  private int readORC(int id)
-  throws Exception
-  {
-     return (Integer)
-       readSingleValue("nodeInstances","orc" , "id=?",id);
-  }
-  private int readIRC(int id)
-  throws Exception
-  {
-     return (Integer)
-       readSingleValue("nodeInstances","irc" , "id=?",id);
-  }
-  private void incrORC(int id)
-  throws Exception
-  {
-    executeStatement
-      ("UPDATE nodeInstances SET orc=orc+1 WHERE id=?",id);
-  }
-  private void decrORC(int id)
-  throws Exception
-  {
-    executeStatement
-      ("UPDATE nodeInstances SET orc=orc-1 WHERE id=?",id);
-  }
-  private void incrIRC(int id)
-  throws Exception
-  {
-    executeStatement
-       ("UPDATE nodeInstances SET irc=irc+1 WHERE id=?",id);
-  }
-  private void decrIRC(int id)
-  throws Exception
-  {
-    executeStatement
-      ("UPDATE nodeInstances SET irc=irc-1 WHERE id=?",id);
-  }
-
-
-  private static String
-    getFixedTableNameFromClassName(String className)
-  {
-    return className.replace('.','_');
+    return page;
   }
 
 
-  private Class<?> getClassOfDBNode(int id)
+  private void setValueInFieldOfObject
+   (Object o, Object value, FieldT field)
   throws Exception
   {
-    String className = (String)
-      readSingleValue("nodeInstances","className","id=?",id);
-    return  Class.forName(className);
+    Class<?> c = o.getClass();
+    if (c != ListNode.class)
+      NodeAccessor.of(c).set(o,(Field) field.field,value);
+    else
+      ((ListNode)o).list.add(value);
   }
 
 
-  private boolean tableExists(String tableName)
+  Object createRunTimeNode(NodeStore store, long id)
   throws Exception
   {
-    int count  = (Integer)
-      readSingleValue("sqlite_master",
-                      "count(*)",
-                      "type=? AND name=?",
-                      "table",
-                      tableName);
-
-    return (count == 1);
+    Class<?> c = store.readClassOfNode(id);
+    Object p;
+    if (c != ListNode.class)
+    {
+      p = NodeAccessor.of(c).newInstance();
+      //Set the id value of the run-time fixed node.
+      setId(p,id);
+    }
+    else
+    {
+      ListNode list = new ListNode();
+      //Set the id value of the run-time list node.
+      list.id = id;
+      p = list;
+    }
+    return p;
   }
 // Tool methods for the nodes in DB.
 //////////////////////////////////////////////////////////////////
@@ -1655,18 +2409,28 @@ public class TestDB
 
 //////////////////////////////////////////////////////////////////
 // Lower level tool methods.
-  private static boolean isPointerField(int typeCodeOfField)
+  static boolean isPointerField(int typeCodeOfField)
   {
     return typeCodeOfField == FIELD_TYPE_FIXED_NODE
     || typeCodeOfField == FIELD_TYPE_LIST_NODE;
   }
-  private static boolean isScalarField(int typeCodeOfField)
+  static boolean isScalarField(int typeCodeOfField)
   {
     return typeCodeOfField == FIELD_TYPE_INT
     || typeCodeOfField == FIELD_TYPE_INTEGER
     || typeCodeOfField == FIELD_TYPE_STRING
     || typeCodeOfField == FIELD_TYPE_NONE;
   }
+  //Returns true, if c is a type of list node: ListNode or
+  //PagedListNode, or a list node of primitive items, IntListNode or
+  //StringListNode.
+  static boolean isListNode(Class<?> c)
+  {
+    return c == ListNode.class
+    || c == PagedListNode.class
+    || c == IntListNode.class
+    || c == StringListNode.class;
+  }
 
 
   private static int getTypeCodeOfFieldFromValueInField
@@ -1677,116 +2441,129 @@ public class TestDB
    Class<?> cf = value.getClass();
    if (cf == Integer.class) return FIELD_TYPE_INTEGER;
    else if (cf == String.class) return FIELD_TYPE_STRING;
-   else if (cf == ListNode.class) return FIELD_TYPE_LIST_NODE;
+   else if (isListNode(cf)) return FIELD_TYPE_LIST_NODE;
    else return FIELD_TYPE_FIXED_NODE;
   }
 
 
-  private static int getTypeCodeOfFieldFromClass(Class<?> cf)
+  static int getTypeCodeOfFieldFromClass(Class<?> cf)
   {
     if (cf == int.class) return FIELD_TYPE_INT;
     else if (cf == Integer.class) return FIELD_TYPE_INTEGER;
     else if (cf == String.class) return FIELD_TYPE_STRING;
-    else if (cf == ListNode.class) return FIELD_TYPE_LIST_NODE;
+    else if (isListNode(cf)) return FIELD_TYPE_LIST_NODE;
     else return FIELD_TYPE_FIXED_NODE;
   }
 
-  private static String getSQLFixedNodeFieldTypeFromTypeCode
-    (int typeCode)
-  {
-    if (typeCode == FIELD_TYPE_INT) return "INTEGER";
-    else if (typeCode == FIELD_TYPE_INTEGER) return "INTEGER";
-    else if (typeCode == FIELD_TYPE_STRING) return "TEXT";
-    else if (typeCode == FIELD_TYPE_FIXED_NODE) return "INTEGER";
-    else if (typeCode == FIELD_TYPE_LIST_NODE) return "INTEGER";
-    return null; //Should not happen.
-  }
 
 // Lower level tool methods.
 //////////////////////////////////////////////////////////////////
 
 
 //////////////////////////////////////////////////////////////////
-// Lower level SQL methods.
-  //Returns null if nothing found.
-  private Object readSingleValue(String table,
-                                 String field,
-                                 String wherePart,
-                                 Object... parameters)
-  throws Exception
-  {
-    PreparedStatement st = getPrepStatement
-      ("SELECT "+field+" FROM "+table+" WHERE "+wherePart,
-       parameters);
-
-    ResultSet rs = st.executeQuery();
-
-    Object obj = null;
-    boolean found = rs.next();
-    if (found)
-      obj = rs.getObject(1);
-    st.close();
-    return obj;
-  }
-
+// Lower level methods of the executors.
+  //Embeds the root nodes in the write-behind queue and completes
+  //their future. This is executed by the write executor.
+  private void flushWriteBehindQueue()
+  {
+    ArrayList<Object> roots;
+    CompletableFuture<Void> future;
+    writeBehindLock.lock();
+    try
+    {
+      if (writeBehindFuture == null)
+        return; //The queue is empty.
+      roots = writeBehindRoots;
+      future = writeBehindFuture;
+      writeBehindRoots = new ArrayList<Object>();
+      writeBehindRootSet.clear();
+      writeBehindFuture = null;
+    }
+    finally
+    {
+      writeBehindLock.unlock();
+    }
 
-  private void updateSingleValue(String table,
-                                 String field,
-                                 String wherePart,
-                                 Object... parameters)
-  throws Exception
-  {
-    executeStatement
-      ("UPDATE "+table+" SET "+field+"=? WHERE "+wherePart,
-        parameters);
+    try
+    {
+      embedRoots(roots);
+      future.complete(null);
+    }
+    catch (Throwable e)
+    {
+      future.completeExceptionally(e);
+    }
+    finally
+    {
+      pendingWritePermits.release(roots.size());
+    }
   }
 
-
-  private int doInsertReturnPrimaryKey(String str,
-                                       Object... parameters)
-  throws Exception
+  //Called holding the writeBehindLock.
+  private void checkNotClosed()
   {
-    PreparedStatement st = getPrepStatement(str, parameters);
-    st.executeUpdate();
-    ResultSet rs = st.getGeneratedKeys();
-    rs.next();
-    int id = rs.getInt(1);
-    rs.close();
-    st.close();
-    return id;
+    if (isClosed)
+      throw new IllegalStateException("The database has been closed");
   }
 
-  private void executeDelete(String table,
-                             String wherePart,
-                             Object... parameters)
+  //Submits a write operation to the write executor. Waits if the
+  //maximum count of the pending write operations has been reached.
+  private <T> CompletableFuture<T> submitWrite(final Callable<T> task)
   throws Exception
   {
-    executeStatement
-      ("DELETE FROM "+table+" WHERE "+wherePart, parameters);
-  }
+    pendingWritePermits.acquire();
 
-  private void executeStatement(String str, Object... parameters)
-  throws Exception
-  {
-    PreparedStatement st = getPrepStatement(str, parameters);
-    st.executeUpdate();
-    st.close();
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    try
+    {
+      writeExecutor.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            future.complete(task.call());
+          }
+          catch (Throwable e)
+          {
+            future.completeExceptionally(e);
+          }
+          finally
+          {
+            pendingWritePermits.release();
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      pendingWritePermits.release();
+      throw e;
+    }
+    return future;
   }
 
-  private PreparedStatement getPrepStatement(String str,
-                                             Object... parameters)
-  throws Exception
+  //Thread factory of the executors of the database. The threads
+  //are daemon threads, so that they do not prevent the virtual
+  //machine from exiting if the database is not closed.
+  private static ThreadFactory newThreadFactory(final String name)
   {
-    PreparedStatement st = connection.prepareStatement(str);
-    for(int i=0; i<parameters.length; ++i)
-      st.setObject(i+1,parameters[i]);
-    return st;
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
   }
 
   static private void p(Object o)
   {
     System.out.println(""+o);
   }
-// Lower level SQL methods.
+// Lower level methods of the executors.
 //////////////////////////////////////////////////////////////////
 }
\ No newline at end of file